@@ -0,0 +1,113 @@
+package org.SecuredText.SecuredText.crypto;
+
+import android.os.Debug;
+import android.util.Log;
+
+import org.SecuredText.SecuredText.SecuredTextTestCase;
+
+import java.io.File;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Measures MB/sec and bytes allocated per MB when reading a multi-megabyte part back
+ * through DecryptingPartInputStream, the way an attachment upload consumes it.
+ */
+public class DecryptingPartInputStreamBenchmark extends SecuredTextTestCase {
+  private static final String TAG = DecryptingPartInputStreamBenchmark.class.getSimpleName();
+
+  private static final int MB         = 1024 * 1024;
+  private static final int PART_SIZE  = 8 * MB;
+  private static final int ITERATIONS = 3;
+
+  private MasterSecret masterSecret;
+  private File         part;
+  private byte[]       digest;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    SecureRandom random        = new SecureRandom();
+    byte[]       encryptionKey = new byte[16];
+    byte[]       macKey        = new byte[20];
+    byte[]       chunk         = new byte[64 * 1024];
+
+    random.nextBytes(encryptionKey);
+    random.nextBytes(macKey);
+
+    masterSecret = new MasterSecret(new SecretKeySpec(encryptionKey, "AES"),
+                                    new SecretKeySpec(macKey, "HmacSHA1"));
+    part         = File.createTempFile("part", ".mms", getInstrumentation().getTargetContext().getCacheDir());
+
+    MessageDigest              messageDigest = MessageDigest.getInstance("SHA-256");
+    EncryptingPartOutputStream out           = new EncryptingPartOutputStream(part, masterSecret);
+
+    for (int written = 0; written < PART_SIZE; written += chunk.length) {
+      random.nextBytes(chunk);
+      messageDigest.update(chunk);
+      out.write(chunk);
+    }
+
+    out.close();
+    digest = messageDigest.digest();
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    part.delete();
+    super.tearDown();
+  }
+
+  public void testUploadSizedReads() throws Exception {
+    benchmark(4096);
+  }
+
+  public void testSmallReads() throws Exception {
+    benchmark(1000);
+  }
+
+  private void benchmark(int readSize) throws Exception {
+    MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+    byte[]        buffer        = new byte[readSize];
+
+    readPart(buffer, messageDigest);
+
+    Debug.resetThreadAllocCount();
+    Debug.startAllocCounting();
+    long start = System.nanoTime();
+
+    for (int i = 0; i < ITERATIONS; i++) {
+      readPart(buffer, null);
+    }
+
+    long elapsed   = System.nanoTime() - start;
+    long allocated = Debug.getThreadAllocSize();
+    Debug.stopAllocCounting();
+
+    long megabytes = (long)ITERATIONS * PART_SIZE / MB;
+
+    Log.w(TAG, readSize + " byte reads: " + (megabytes * 1000000000L / Math.max(1, elapsed)) + " MB/sec, " +
+               (allocated / megabytes) + " bytes allocated/MB");
+
+    assertThat(messageDigest.digest()).isEqualTo(digest);
+  }
+
+  private void readPart(byte[] buffer, MessageDigest messageDigest) throws Exception {
+    InputStream in = new DecryptingPartInputStream(part, masterSecret);
+    int         read;
+
+    try {
+      while ((read = in.read(buffer)) != -1) {
+        if (messageDigest != null) messageDigest.update(buffer, 0, read);
+      }
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,130 @@
+package org.SecuredText.SecuredText.crypto;
+
+import android.os.Debug;
+import android.util.Log;
+
+import org.SecuredText.SecuredText.SecuredTextTestCase;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Measures ops/sec and bytes allocated per operation for MasterCipher round trips
+ * on SMS sized bodies and session record sized blobs.
+ */
+public class MasterCipherBenchmark extends SecuredTextTestCase {
+  private static final String TAG = MasterCipherBenchmark.class.getSimpleName();
+
+  private static final int SMS_BODY_SIZE       = 160;
+  private static final int SESSION_RECORD_SIZE = 4096;
+  private static final int WARMUP_ITERATIONS   = 200;
+  private static final int ITERATIONS          = 2000;
+
+  private MasterCipher masterCipher;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    SecureRandom random        = new SecureRandom();
+    byte[]       encryptionKey = new byte[16];
+    byte[]       macKey        = new byte[20];
+
+    random.nextBytes(encryptionKey);
+    random.nextBytes(macKey);
+
+    masterCipher = new MasterCipher(new MasterSecret(new SecretKeySpec(encryptionKey, "AES"),
+                                                     new SecretKeySpec(macKey, "HmacSHA1")));
+  }
+
+  public void testSmsBodyArrays() throws Exception {
+    benchmarkArrays(SMS_BODY_SIZE);
+  }
+
+  public void testSessionRecordArrays() throws Exception {
+    benchmarkArrays(SESSION_RECORD_SIZE);
+  }
+
+  public void testSmsBodyBuffers() throws Exception {
+    benchmarkBuffers(SMS_BODY_SIZE);
+  }
+
+  public void testSessionRecordBuffers() throws Exception {
+    benchmarkBuffers(SESSION_RECORD_SIZE);
+  }
+
+  private void benchmarkArrays(int size) throws Exception {
+    byte[] plaintext = new byte[size];
+    new SecureRandom().nextBytes(plaintext);
+
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      masterCipher.decryptBytes(masterCipher.encryptBytes(plaintext));
+    }
+
+    Debug.resetThreadAllocCount();
+    Debug.startAllocCounting();
+    long start = System.nanoTime();
+
+    byte[] decrypted = null;
+
+    for (int i = 0; i < ITERATIONS; i++) {
+      decrypted = masterCipher.decryptBytes(masterCipher.encryptBytes(plaintext));
+    }
+
+    report("byte[] " + size, start, Debug.getThreadAllocSize());
+    assertThat(Arrays.equals(decrypted, plaintext)).isTrue();
+  }
+
+  private void benchmarkBuffers(int size) throws Exception {
+    ByteBuffer plaintext  = ByteBuffer.allocateDirect(size);
+    ByteBuffer ciphertext = ByteBuffer.allocateDirect(MasterCipher.getEncryptedSize(size));
+    ByteBuffer decrypted  = ByteBuffer.allocateDirect(MasterCipher.getMaxDecryptedSize(ciphertext.capacity()));
+
+    byte[] random = new byte[size];
+    new SecureRandom().nextBytes(random);
+    plaintext.put(random);
+
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      roundTrip(plaintext, ciphertext, decrypted);
+    }
+
+    Debug.resetThreadAllocCount();
+    Debug.startAllocCounting();
+    long start = System.nanoTime();
+
+    for (int i = 0; i < ITERATIONS; i++) {
+      roundTrip(plaintext, ciphertext, decrypted);
+    }
+
+    report("ByteBuffer " + size, start, Debug.getThreadAllocSize());
+
+    plaintext.flip();
+    assertThat(decrypted).isEqualTo(plaintext);
+  }
+
+  private void roundTrip(ByteBuffer plaintext, ByteBuffer ciphertext, ByteBuffer decrypted)
+      throws Exception
+  {
+    plaintext.clear();
+    ciphertext.clear();
+    decrypted.clear();
+
+    masterCipher.encryptBytes(plaintext, ciphertext);
+    ciphertext.flip();
+    masterCipher.decryptBytes(ciphertext, decrypted);
+    decrypted.flip();
+  }
+
+  private void report(String name, long startNanos, long allocatedBytes) {
+    long elapsed = System.nanoTime() - startNanos;
+    Debug.stopAllocCounting();
+
+    Log.w(TAG, name + ": " + (ITERATIONS * 1000000000L / Math.max(1, elapsed)) + " round trips/sec, " +
+               (allocatedBytes / ITERATIONS) + " bytes allocated/round trip");
+  }
+}
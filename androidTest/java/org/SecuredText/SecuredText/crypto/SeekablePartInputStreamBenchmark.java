@@ -0,0 +1,155 @@
+package org.SecuredText.SecuredText.crypto;
+
+import android.os.Debug;
+import android.util.Log;
+
+import org.SecuredText.SecuredText.SecuredTextTestCase;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+import java.util.Random;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Compares seekable chunked parts against the CBC parts they replace, by MB/sec and
+ * bytes allocated per MB on a full read, and by the latency of reading one byte at a
+ * random offset, which a CBC part can only reach by decrypting everything before it.
+ */
+public class SeekablePartInputStreamBenchmark extends SecuredTextTestCase {
+  private static final String TAG = SeekablePartInputStreamBenchmark.class.getSimpleName();
+
+  private static final int MB         = 1024 * 1024;
+  private static final int PART_SIZE  = 8 * MB;
+  private static final int ITERATIONS = 3;
+  private static final int SEEKS      = 20;
+
+  private MasterSecret masterSecret;
+  private File         seekablePart;
+  private File         legacyPart;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    SecureRandom random        = new SecureRandom();
+    byte[]       encryptionKey = new byte[16];
+    byte[]       macKey        = new byte[20];
+    byte[]       chunk         = new byte[64 * 1024];
+    File         cacheDir      = getInstrumentation().getTargetContext().getCacheDir();
+
+    random.nextBytes(encryptionKey);
+    random.nextBytes(macKey);
+
+    masterSecret = new MasterSecret(new SecretKeySpec(encryptionKey, "AES"),
+                                    new SecretKeySpec(macKey, "HmacSHA1"));
+    seekablePart = File.createTempFile("part", ".mms", cacheDir);
+    legacyPart   = File.createTempFile("part", ".mms", cacheDir);
+
+    OutputStream seekableOut = new SeekablePartOutputStream(seekablePart, masterSecret);
+    OutputStream legacyOut   = new EncryptingPartOutputStream(legacyPart, masterSecret);
+
+    for (int written = 0; written < PART_SIZE; written += chunk.length) {
+      random.nextBytes(chunk);
+      seekableOut.write(chunk);
+      legacyOut.write(chunk);
+    }
+
+    seekableOut.close();
+    legacyOut.close();
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    seekablePart.delete();
+    legacyPart.delete();
+    super.tearDown();
+  }
+
+  public void testThroughput() throws Exception {
+    long seekable = benchmarkThroughput("seekable", seekablePart);
+    long legacy   = benchmarkThroughput("cbc", legacyPart);
+
+    assertThat(seekable).isEqualTo(legacy);
+  }
+
+  public void testSeekLatency() throws Exception {
+    Random random = new Random(1);
+    long   start  = System.nanoTime();
+
+    SeekablePartInputStream seekable = new SeekablePartInputStream(seekablePart, masterSecret);
+
+    for (int i = 0; i < SEEKS; i++) {
+      seekable.seek(random.nextInt(PART_SIZE));
+      assertThat(seekable.read()).isNotEqualTo(-1);
+    }
+
+    seekable.close();
+    report("seekable", start);
+
+    start = System.nanoTime();
+
+    for (int i = 0; i < SEEKS; i++) {
+      InputStream legacy = new DecryptingPartInputStream(legacyPart, masterSecret);
+      legacy.skip(random.nextInt(PART_SIZE));
+      assertThat(legacy.read()).isNotEqualTo(-1);
+      legacy.close();
+    }
+
+    report("cbc", start);
+  }
+
+  /**
+   * @return the number of bytes read per pass.
+   */
+  private long benchmarkThroughput(String name, File part) throws Exception {
+    byte[] buffer = new byte[4096];
+    long   total  = readPart(part, buffer);
+
+    Debug.resetThreadAllocCount();
+    Debug.startAllocCounting();
+    long start = System.nanoTime();
+
+    for (int i = 0; i < ITERATIONS; i++) {
+      readPart(part, buffer);
+    }
+
+    long elapsed   = System.nanoTime() - start;
+    long allocated = Debug.getThreadAllocSize();
+    Debug.stopAllocCounting();
+
+    long megabytes = (long)ITERATIONS * PART_SIZE / MB;
+
+    Log.w(TAG, name + ": " + (megabytes * 1000000000L / Math.max(1, elapsed)) + " MB/sec, " +
+               (allocated / megabytes) + " bytes allocated/MB");
+
+    return total;
+  }
+
+  private long readPart(File part, byte[] buffer) throws Exception {
+    InputStream in    = SeekablePartInputStream.isSeekablePart(part) ?
+                        new SeekablePartInputStream(part, masterSecret) :
+                        new DecryptingPartInputStream(part, masterSecret);
+    long        total = 0;
+    int         read;
+
+    try {
+      while ((read = in.read(buffer)) != -1) {
+        total += read;
+      }
+    } finally {
+      in.close();
+    }
+
+    return total;
+  }
+
+  private void report(String name, long startNanos) {
+    long elapsed = System.nanoTime() - startNanos;
+    Log.w(TAG, name + ": " + (elapsed / SEEKS / 1000) + "us per random seek and read");
+  }
+}
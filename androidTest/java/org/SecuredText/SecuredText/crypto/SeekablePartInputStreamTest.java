@@ -0,0 +1,131 @@
+package org.SecuredText.SecuredText.crypto;
+
+import org.SecuredText.SecuredText.SecuredTextTestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.SecureRandom;
+import java.util.Random;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SeekablePartInputStreamTest extends SecuredTextTestCase {
+  private static final int PART_SIZE = 3 * SeekablePartInputStream.CHUNK_SIZE + 1000;
+
+  private MasterSecret masterSecret;
+  private File         part;
+  private byte[]       data;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    SecureRandom random        = new SecureRandom();
+    byte[]       encryptionKey = new byte[16];
+    byte[]       macKey        = new byte[20];
+
+    random.nextBytes(encryptionKey);
+    random.nextBytes(macKey);
+
+    masterSecret = new MasterSecret(new SecretKeySpec(encryptionKey, "AES"),
+                                    new SecretKeySpec(macKey, "HmacSHA1"));
+    part         = File.createTempFile("part", ".mms", getInstrumentation().getTargetContext().getCacheDir());
+    data         = new byte[PART_SIZE];
+
+    random.nextBytes(data);
+
+    SeekablePartOutputStream out = new SeekablePartOutputStream(part, masterSecret);
+    out.write(data, 0, 10);
+    out.write(data[10]);
+    out.write(data, 11, data.length - 11);
+    out.close();
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    part.delete();
+    super.tearDown();
+  }
+
+  public void testRoundTrip() throws Exception {
+    assertThat(SeekablePartInputStream.isSeekablePart(part)).isTrue();
+    assertThat(readFully(new SeekablePartInputStream(part, masterSecret))).isEqualTo(data);
+  }
+
+  public void testRandomSeeks() throws Exception {
+    SeekablePartInputStream in     = new SeekablePartInputStream(part, masterSecret);
+    Random                  random = new Random(1);
+
+    assertThat(in.length()).isEqualTo(PART_SIZE);
+
+    for (int i = 0; i < 100; i++) {
+      int position = random.nextInt(PART_SIZE);
+
+      in.seek(position);
+      assertThat(in.read()).isEqualTo(data[position] & 0xFF);
+    }
+
+    in.seek(0);
+    assertThat(in.skip(PART_SIZE - 1)).isEqualTo(PART_SIZE - 1);
+    assertThat(in.read()).isEqualTo(data[PART_SIZE - 1] & 0xFF);
+    assertThat(in.read()).isEqualTo(-1);
+    in.close();
+  }
+
+  public void testDetectsTampering() throws Exception {
+    RandomAccessFile file = new RandomAccessFile(part, "rw");
+    file.seek(SeekablePartInputStream.HEADER_LENGTH + SeekablePartInputStream.CHUNK_SIZE / 2);
+    file.write(0x55);
+    file.close();
+
+    assertUnreadable();
+  }
+
+  public void testDetectsTruncation() throws Exception {
+    RandomAccessFile file = new RandomAccessFile(part, "rw");
+    file.setLength(SeekablePartInputStream.HEADER_LENGTH +
+                   2 * (SeekablePartInputStream.CHUNK_SIZE + SeekablePartInputStream.MAC_LENGTH));
+    file.close();
+
+    assertUnreadable();
+  }
+
+  public void testLegacyPartsStayReadable() throws Exception {
+    EncryptingPartOutputStream out = new EncryptingPartOutputStream(part, masterSecret);
+    out.write(data);
+    out.close();
+
+    assertThat(SeekablePartInputStream.isSeekablePart(part)).isFalse();
+    assertThat(readFully(new DecryptingPartInputStream(part, masterSecret))).isEqualTo(data);
+  }
+
+  private void assertUnreadable() throws Exception {
+    try {
+      readFully(new SeekablePartInputStream(part, masterSecret));
+      fail("Read a damaged part");
+    } catch (IOException e) {
+      // success
+    }
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream out    = new ByteArrayOutputStream();
+    byte[]                buffer = new byte[4096];
+    int                   read;
+
+    try {
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+    } finally {
+      in.close();
+    }
+
+    return out.toByteArray();
+  }
+}
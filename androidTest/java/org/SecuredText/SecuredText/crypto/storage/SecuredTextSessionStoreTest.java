@@ -0,0 +1,97 @@
+package org.SecuredText.SecuredText.crypto.storage;
+
+import android.content.Context;
+
+import org.SecuredText.SecuredText.SecuredTextTestCase;
+import org.SecuredText.SecuredText.crypto.MasterSecret;
+import org.SecuredText.SecuredText.database.DatabaseFactory;
+import org.SecuredText.SecuredText.database.SessionDatabase;
+import org.SecuredText.SecuredText.recipients.RecipientFactory;
+import org.whispersystems.libaxolotl.AxolotlAddress;
+import org.whispersystems.libaxolotl.state.SessionRecord;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SecuredTextSessionStoreTest extends SecuredTextTestCase {
+
+  private static final String NUMBER = "+14155550199";
+
+  private Context         context;
+  private MasterSecret    masterSecret;
+  private SessionDatabase sessionDatabase;
+  private AxolotlAddress  address;
+  private long            recipientId;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    context         = getInstrumentation().getTargetContext();
+    masterSecret    = new MasterSecret(new SecretKeySpec(new byte[16], "AES"),
+                                       new SecretKeySpec(new byte[20], "HmacSHA1"));
+    sessionDatabase = DatabaseFactory.getSessionDatabase(context);
+    address         = new AxolotlAddress(NUMBER, 1);
+    recipientId     = RecipientFactory.getRecipientsFromString(context, NUMBER, true)
+                                      .getPrimaryRecipient()
+                                      .getRecipientId();
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    new SecuredTextSessionStore(context, masterSecret).deleteSession(address);
+    SecuredTextSessionStore.reset();
+    super.tearDown();
+  }
+
+  public void testStoreIsPersistedImmediately() throws Exception {
+    SecuredTextSessionStore sessionStore = new SecuredTextSessionStore(context, masterSecret);
+    SessionRecord           record       = new SessionRecord();
+
+    sessionStore.storeSession(address, record);
+    assertThat(sessionDatabase.get(recipientId, address.getDeviceId())).isNotNull();
+
+    SecuredTextSessionStore.reset();
+    assertThat(sessionStore.loadSession(address).serialize()).isEqualTo(record.serialize());
+  }
+
+  public void testDeferredStoreIsPersistedWithTransaction() throws Exception {
+    SecuredTextSessionStore sessionStore = new SecuredTextSessionStore(context, masterSecret, true);
+    DatabaseFactory         messages     = DatabaseFactory.getInstance(context);
+
+    sessionStore.storeSession(address, new SessionRecord());
+    assertThat(sessionDatabase.get(recipientId, address.getDeviceId())).isNull();
+
+    messages.beginTransaction();
+
+    try {
+      sessionStore.persistDeferred();
+    } finally {
+      messages.endTransaction();
+    }
+
+    assertThat(sessionDatabase.get(recipientId, address.getDeviceId())).isNull();
+
+    sessionStore.storeSession(address, new SessionRecord());
+    messages.beginTransaction();
+
+    try {
+      sessionStore.persistDeferred();
+      messages.setTransactionSuccessful();
+    } finally {
+      messages.endTransaction();
+    }
+
+    assertThat(sessionDatabase.get(recipientId, address.getDeviceId())).isNotNull();
+  }
+
+  public void testDeleteDropsDeferredStore() throws Exception {
+    SecuredTextSessionStore sessionStore = new SecuredTextSessionStore(context, masterSecret, true);
+
+    sessionStore.storeSession(address, new SessionRecord());
+    sessionStore.deleteSession(address);
+    sessionStore.persistDeferred();
+
+    assertThat(sessionDatabase.get(recipientId, address.getDeviceId())).isNull();
+  }
+}
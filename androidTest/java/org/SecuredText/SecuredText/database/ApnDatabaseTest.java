@@ -0,0 +1,97 @@
+package org.SecuredText.SecuredText.database;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.text.TextUtils;
+
+import org.SecuredText.SecuredText.SecuredTextTestCase;
+import org.SecuredText.SecuredText.mms.MmsConnection.Apn;
+import org.SecuredText.SecuredText.util.Util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Looks APNs up in the index shipped in the APK, and checks it against the apns.db asset
+ * it was generated from.
+ */
+public class ApnDatabaseTest extends SecuredTextTestCase {
+
+  private Context     context;
+  private ApnDatabase apnDatabase;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    context     = getInstrumentation().getTargetContext();
+    apnDatabase = new ApnDatabase(context);
+  }
+
+  public void testIndexIsShipped() throws Exception {
+    assertThat(apnDatabase.isIndexed()).isTrue();
+  }
+
+  public void testDefaultApnForMccMnc() throws Exception {
+    Apn apn = apnDatabase.getDefaultApnParameters("310410", null);
+
+    assertThat(apn.getMmsc()).isEqualTo("http://mmsc.cingular.com");
+    assertThat(apn.getProxy()).isEqualTo("wireless.cingular.com");
+    assertThat(apn.getPort()).isEqualTo(80);
+  }
+
+  public void testNamedApnForMccMnc() throws Exception {
+    Apn apn = apnDatabase.getDefaultApnParameters("310260", "web.omwtoday.com");
+
+    assertThat(apn.getMmsc()).isEqualTo("http://wirelessfour.mmsmvno.com/mms/wapenc");
+    assertThat(apn.getProxy()).isEqualTo("216.155.165.50");
+    assertThat(apn.getPort()).isEqualTo(8080);
+  }
+
+  public void testUnknownApnNameFallsBackToFirstApn() throws Exception {
+    Apn apn = apnDatabase.getDefaultApnParameters("310260", "no.such.apn");
+
+    assertThat(apn.getMmsc()).isEqualTo("http://metropcs.mmsmvno.com/mms/wapenc");
+  }
+
+  public void testUnknownMccMnc() throws Exception {
+    assertThat(apnDatabase.getDefaultApnParameters("999999", null)).isSameAs(Apn.EMPTY);
+    assertThat(apnDatabase.getDefaultApnParameters("31026x", null)).isSameAs(Apn.EMPTY);
+  }
+
+  public void testIndexMatchesDatabaseAsset() throws Exception {
+    File copy = context.getDatabasePath("apns-test.db");
+    Util.copy(context.getAssets().open("databases/apns.db"), new FileOutputStream(copy));
+
+    SQLiteDatabase db     = SQLiteDatabase.openDatabase(copy.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+    Cursor         cursor = null;
+
+    try {
+      Set<String> seen = new HashSet<>();
+      cursor = db.query("apns", new String[] {"mccmnc", "mmsc", "mmsproxy", "mmsport"},
+                        null, null, null, null, "_id");
+
+      while (cursor.moveToNext()) {
+        String mccmnc = cursor.getString(0);
+
+        if (!seen.add(mccmnc)) continue;
+
+        Apn apn = apnDatabase.getDefaultApnParameters(mccmnc, null);
+
+        assertThat(apn.getMmsc()).as(mccmnc).isEqualTo(cursor.getString(1));
+        assertThat(apn.getProxy()).as(mccmnc).isEqualTo(TextUtils.isEmpty(cursor.getString(2)) ? null : cursor.getString(2));
+        assertThat(apn.getPort()).as(mccmnc).isEqualTo(TextUtils.isEmpty(cursor.getString(3)) ? 80 : cursor.getInt(3));
+      }
+
+      assertThat(seen).isNotEmpty();
+    } finally {
+      if (cursor != null) cursor.close();
+      db.close();
+      context.deleteDatabase(copy.getName());
+    }
+  }
+}
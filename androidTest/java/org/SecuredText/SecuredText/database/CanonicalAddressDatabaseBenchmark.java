@@ -0,0 +1,105 @@
+package org.SecuredText.SecuredText.database;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import org.SecuredText.SecuredText.SecuredTextTestCase;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Reports the cost of a cache-missing number lookup against 20k stored addresses, for
+ * the indexed match key probe and the PHONE_NUMBERS_EQUAL scan it replaces.  The timings
+ * are only logged, since they vary too much between devices to assert on; the test
+ * checks that both find the stored row.
+ */
+public class CanonicalAddressDatabaseBenchmark extends SecuredTextTestCase {
+  private static final String TAG = CanonicalAddressDatabaseBenchmark.class.getSimpleName();
+
+  private static final int ADDRESS_COUNT = 20000;
+  private static final int LOOKUPS       = 200;
+  private static final int FIRST_NUMBER  = 9000000;
+
+  private final long[] ids = new long[ADDRESS_COUNT];
+
+  private CanonicalAddressDatabase database;
+  private SQLiteDatabase           rawDatabase;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    Context context = getInstrumentation().getTargetContext();
+
+    this.database    = CanonicalAddressDatabase.getInstance(context);
+    this.rawDatabase = SQLiteDatabase.openDatabase(context.getDatabasePath("canonical_address.db").getPath(),
+                                                   null, SQLiteDatabase.OPEN_READWRITE);
+
+    populate();
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    rawDatabase.delete("canonical_addresses", "address LIKE '+1 555 %' OR address LIKE '(555) %'", null);
+    rawDatabase.close();
+  }
+
+  public void testLookupOfNewFormat() throws Exception {
+    long indexedStart = System.nanoTime();
+
+    for (int i = 0; i < LOOKUPS; i++) {
+      long id = database.getCanonicalAddressId(getReformattedNumber(i));
+      assertThat(id).isEqualTo(ids[i]);
+      assertThat(database.getAddressFromId(id)).isEqualTo(getReformattedNumber(i));
+    }
+
+    long indexedTime = System.nanoTime() - indexedStart;
+    long scanStart   = System.nanoTime();
+
+    for (int i = LOOKUPS; i < 2 * LOOKUPS; i++) {
+      Cursor cursor = rawDatabase.query("canonical_addresses", new String[] {"_id"}, "PHONE_NUMBERS_EQUAL(address, ?)",
+                                        new String[] {getReformattedNumber(i)}, null, null, null);
+      assertThat(cursor.getCount()).isEqualTo(1);
+      assertThat(cursor.moveToFirst()).isTrue();
+      assertThat(cursor.getLong(0)).isEqualTo(ids[i]);
+      cursor.close();
+    }
+
+    long scanTime = System.nanoTime() - scanStart;
+
+    Log.w(TAG, "Indexed: " + (indexedTime / LOOKUPS / 1000) + "us per lookup, " +
+               "scan: " + (scanTime / LOOKUPS / 1000) + "us per lookup");
+  }
+
+  private void populate() {
+    SQLiteStatement insert = rawDatabase.compileStatement("INSERT INTO canonical_addresses (address, match_key) VALUES (?, ?)");
+
+    rawDatabase.beginTransaction();
+
+    try {
+      for (int i = 0; i < ADDRESS_COUNT; i++) {
+        String address = getStoredNumber(i);
+
+        insert.bindString(1, address);
+        insert.bindString(2, CanonicalAddressDatabase.getMatchKey(address));
+        ids[i] = insert.executeInsert();
+      }
+
+      rawDatabase.setTransactionSuccessful();
+    } finally {
+      rawDatabase.endTransaction();
+      insert.close();
+    }
+  }
+
+  private static String getStoredNumber(int index) {
+    return "+1 555 " + (FIRST_NUMBER + index);
+  }
+
+  private static String getReformattedNumber(int index) {
+    String digits = String.valueOf(FIRST_NUMBER + index);
+    return "(555) " + digits.substring(0, 3) + "-" + digits.substring(3);
+  }
+}
@@ -0,0 +1,128 @@
+package org.SecuredText.SecuredText.database;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import org.SecuredText.SecuredText.SecuredTextTestCase;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Compares the time to the first usable page of a 100k message thread between
+ * the full UNION scan and the keyset paged conversation query.
+ */
+public class ConversationPagingBenchmark extends SecuredTextTestCase {
+  private static final String TAG = ConversationPagingBenchmark.class.getSimpleName();
+
+  private static final long THREAD_ID     = Long.MAX_VALUE / 2;
+  private static final int  MESSAGE_COUNT = 100000;
+  private static final int  PAGE_SIZE     = 100;
+
+  private MmsSmsDatabase database;
+  private SQLiteDatabase rawDatabase;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    Context context = getInstrumentation().getTargetContext();
+
+    this.database    = DatabaseFactory.getMmsSmsDatabase(context);
+    this.database.getConversationCount(THREAD_ID);
+    this.rawDatabase = SQLiteDatabase.openDatabase(context.getDatabasePath("messages.db").getPath(),
+                                                   null, SQLiteDatabase.OPEN_READWRITE);
+
+    populateThread();
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    rawDatabase.delete(SmsDatabase.TABLE_NAME, MmsSmsColumns.THREAD_ID + " = ?", new String[] {THREAD_ID + ""});
+    rawDatabase.delete(MmsDatabase.TABLE_NAME, MmsSmsColumns.THREAD_ID + " = ?", new String[] {THREAD_ID + ""});
+    rawDatabase.close();
+  }
+
+  public void testTimeToFirstPage() throws Exception {
+    long   fullStart = System.nanoTime();
+    Cursor full      = database.getConversation(THREAD_ID);
+    full.moveToLast();
+    long   fullTime  = System.nanoTime() - fullStart;
+    full.close();
+
+    long   pageStart = System.nanoTime();
+    Cursor page      = database.getConversation(THREAD_ID, Long.MAX_VALUE, MmsSmsDatabase.DIRECTION_OLDER, PAGE_SIZE);
+    page.moveToLast();
+    long   pageTime  = System.nanoTime() - pageStart;
+
+    Log.w(TAG, "Full scan: " + (fullTime / 1000000) + "ms, first page: " + (pageTime / 1000000) + "ms");
+
+    assertThat(page.getCount()).isEqualTo(PAGE_SIZE);
+    assertThat(page.moveToFirst()).isTrue();
+
+    for (int i = MESSAGE_COUNT - PAGE_SIZE; i < MESSAGE_COUNT; i++) {
+      assertThat(page.getLong(page.getColumnIndexOrThrow(MmsSmsColumns.NORMALIZED_DATE_RECEIVED)))
+          .isEqualTo(getDate(i));
+      assertThat(page.getString(page.getColumnIndexOrThrow(SmsDatabase.BODY))).isEqualTo("message " + i);
+      page.moveToNext();
+    }
+
+    page.close();
+  }
+
+  public void testPagesAreContiguous() throws Exception {
+    Cursor newest = database.getConversation(THREAD_ID, Long.MAX_VALUE, MmsSmsDatabase.DIRECTION_OLDER, PAGE_SIZE);
+    assertThat(newest.moveToFirst()).isTrue();
+    long anchor = newest.getLong(newest.getColumnIndexOrThrow(MmsSmsColumns.NORMALIZED_DATE_RECEIVED));
+    newest.close();
+
+    Cursor older = database.getConversation(THREAD_ID, anchor, MmsSmsDatabase.DIRECTION_OLDER, PAGE_SIZE);
+    assertThat(older.getCount()).isEqualTo(PAGE_SIZE);
+    assertThat(older.moveToLast()).isTrue();
+    assertThat(older.getLong(older.getColumnIndexOrThrow(MmsSmsColumns.NORMALIZED_DATE_RECEIVED)))
+        .isEqualTo(anchor - 1000);
+    older.close();
+  }
+
+  private void populateThread() {
+    SQLiteStatement sms = rawDatabase.compileStatement("INSERT INTO sms (thread_id, address, date, date_sent, type, body) VALUES (?, ?, ?, ?, ?, ?)");
+    SQLiteStatement mms = rawDatabase.compileStatement("INSERT INTO mms (thread_id, address, date, date_received, msg_box, body) VALUES (?, ?, ?, ?, ?, ?)");
+
+    rawDatabase.beginTransaction();
+
+    try {
+      for (int i = 0; i < MESSAGE_COUNT; i++) {
+        long date = getDate(i);
+
+        if (i % 10 == 0) {
+          mms.bindLong(1, THREAD_ID);
+          mms.bindString(2, "+14155550000");
+          mms.bindLong(3, date / 1000);
+          mms.bindLong(4, date / 1000);
+          mms.bindLong(5, MmsSmsColumns.Types.BASE_INBOX_TYPE);
+          mms.bindString(6, "message " + i);
+          mms.executeInsert();
+        } else {
+          sms.bindLong(1, THREAD_ID);
+          sms.bindString(2, "+14155550000");
+          sms.bindLong(3, date);
+          sms.bindLong(4, date);
+          sms.bindLong(5, MmsSmsColumns.Types.BASE_INBOX_TYPE);
+          sms.bindString(6, "message " + i);
+          sms.executeInsert();
+        }
+      }
+
+      rawDatabase.setTransactionSuccessful();
+    } finally {
+      rawDatabase.endTransaction();
+      sms.close();
+      mms.close();
+    }
+  }
+
+  private long getDate(int index) {
+    return 1000000000000L + index * 1000L;
+  }
+}
@@ -1,15 +1,27 @@
 package org.SecuredText.SecuredText.database;
 
+import android.content.Context;
 import android.net.Uri;
+import android.util.Pair;
 
 import org.SecuredText.SecuredText.SecuredTextTestCase;
 import org.SecuredText.SecuredText.crypto.MasterSecret;
+import org.SecuredText.SecuredText.util.Util;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
+import java.util.List;
 
+import javax.crypto.spec.SecretKeySpec;
+
+import ws.com.google.android.mms.pdu.PduBody;
 import ws.com.google.android.mms.pdu.PduPart;
 
+import static org.assertj.core.api.Assertions.assertThat;
+
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyFloat;
 import static org.mockito.Matchers.anyLong;
@@ -23,13 +35,26 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class PartDatabaseTest extends SecuredTextTestCase {
-  private static final long PART_ID = 1L;
+  private static final long   PART_ID = 1L;
+  private static final long   MMS_ID  = -100L;
+  private static final byte[] DATA    = "part data".getBytes();
 
+  private Context      context;
+  private MasterSecret masterSecret;
   private PartDatabase database;
 
   @Override
   public void setUp() {
-    database = spy(DatabaseFactory.getPartDatabase(getInstrumentation().getTargetContext()));
+    context      = getInstrumentation().getTargetContext();
+    masterSecret = new MasterSecret(new SecretKeySpec(new byte[16], "AES"),
+                                    new SecretKeySpec(new byte[20], "HmacSHA1"));
+    database     = spy(DatabaseFactory.getPartDatabase(context));
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    DatabaseFactory.getPartDatabase(context).deleteParts(MMS_ID);
+    super.tearDown();
   }
 
   public void testTaskNotRunWhenThumbnailExists() throws Exception {
@@ -54,6 +79,59 @@ public class PartDatabaseTest extends SecuredTextTestCase {
     }
   }
 
+  public void testDetachedPartIsAdoptedOnInsert() throws Exception {
+    PartDatabase partDatabase = DatabaseFactory.getPartDatabase(context);
+    PduPart      part         = getPduPartSkeleton("application/octet-stream");
+    File         file         = partDatabase.writeDetachedPart(masterSecret, part, new ByteArrayInputStream(DATA));
+
+    assertThat(partDatabase.isDetachedPartFile(part)).isTrue();
+    assertThat(part.getDataSize()).isEqualTo(DATA.length);
+
+    PduBody body = new PduBody();
+    body.addPart(part);
+
+    int filesBefore = getPartsDirectory().list().length;
+    partDatabase.insertParts(masterSecret, MMS_ID, body);
+
+    assertThat(getPartsDirectory().list().length).isEqualTo(filesBefore);
+
+    List<Pair<Long, PduPart>> parts = partDatabase.getParts(MMS_ID);
+    assertThat(parts).hasSize(1);
+    assertThat(readFully(partDatabase.getPartStream(masterSecret, parts.get(0).first))).isEqualTo(DATA);
+
+    partDatabase.deleteParts(MMS_ID);
+    assertThat(file.exists()).isFalse();
+  }
+
+  public void testOtherFilesAreNotDetachedParts() throws Exception {
+    PartDatabase partDatabase = DatabaseFactory.getPartDatabase(context);
+    PduPart      outside      = getPduPartSkeleton("image/png");
+    PduPart      unencrypted  = getPduPartSkeleton("image/png");
+    File         file         = partDatabase.writeDetachedPart(masterSecret, unencrypted, new ByteArrayInputStream(DATA));
+
+    outside.setEncrypted(true);
+    outside.setDataUri(Uri.fromFile(new File(context.getCacheDir(), file.getName())));
+    unencrypted.setEncrypted(false);
+
+    try {
+      assertThat(partDatabase.isDetachedPartFile(outside)).isFalse();
+      assertThat(partDatabase.isDetachedPartFile(unencrypted)).isFalse();
+      assertThat(partDatabase.isDetachedPartFile(getPduPartSkeleton("image/png"))).isFalse();
+    } finally {
+      file.delete();
+    }
+  }
+
+  private File getPartsDirectory() {
+    return context.getDir("parts", Context.MODE_PRIVATE);
+  }
+
+  private static byte[] readFully(InputStream in) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Util.copy(in, out);
+    return out.toByteArray();
+  }
+
   private PduPart getPduPartSkeleton(String contentType) {
     PduPart part = new PduPart();
     part.setContentType(contentType.getBytes());
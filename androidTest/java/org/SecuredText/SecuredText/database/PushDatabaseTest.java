@@ -0,0 +1,73 @@
+package org.SecuredText.SecuredText.database;
+
+import org.SecuredText.SecuredText.SecuredTextTestCase;
+import org.whispersystems.textsecure.api.messages.TextSecureEnvelope;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PushDatabaseTest extends SecuredTextTestCase {
+  private static final String SOURCE = "+14155550199";
+  private static final int    COUNT  = 2 * PushDatabase.PENDING_BATCH_SIZE + 7;
+
+  private PushDatabase database;
+  private List<Long>   ids;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    database = DatabaseFactory.getPushDatabase(getInstrumentation().getTargetContext());
+    ids      = new LinkedList<>();
+
+    for (int i = 0; i < COUNT; i++) {
+      ids.add(database.insert(new TextSecureEnvelope(1, SOURCE, 1, "", i, new byte[] {(byte)i, 0, (byte)0xFF})));
+    }
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    for (long id : ids) {
+      database.delete(id);
+    }
+  }
+
+  public void testReadsBodiesBack() throws Exception {
+    TextSecureEnvelope envelope = database.get(ids.get(5));
+
+    assertThat(envelope.getSource()).isEqualTo(SOURCE);
+    assertThat(envelope.getTimestamp()).isEqualTo(5);
+    assertThat(envelope.getMessage()).isEqualTo(new byte[] {5, 0, (byte)0xFF});
+  }
+
+  public void testDrainsInBatches() throws Exception {
+    PushDatabase.PendingReader reader = database.readPending(true);
+    List<Long>                 read   = new LinkedList<>();
+
+    while (reader.next()) {
+      if (!SOURCE.equals(reader.getSource())) continue;
+
+      TextSecureEnvelope envelope = reader.getEnvelope();
+      assertThat(envelope.getMessage()[0]).isEqualTo((byte)envelope.getTimestamp());
+
+      read.add(reader.getId());
+      database.delete(reader.getId());
+    }
+
+    assertThat(read).isEqualTo(ids);
+  }
+
+  public void testDrainsHeadersOnly() throws Exception {
+    PushDatabase.PendingReader reader = database.readPending(false);
+    List<Long>                 read   = new LinkedList<>();
+
+    while (reader.next()) {
+      if (SOURCE.equals(reader.getSource())) read.add(reader.getId());
+    }
+
+    assertThat(read).isEqualTo(ids);
+    assertThat(database.hasPending()).isTrue();
+  }
+}
@@ -0,0 +1,137 @@
+package org.SecuredText.SecuredText.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.SecuredText.SecuredText.SecuredTextTestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ThreadDatabaseTest extends SecuredTextTestCase {
+  private static final long FIRST_THREAD  = Long.MAX_VALUE / 3;
+  private static final long SECOND_THREAD = FIRST_THREAD + 1;
+  private static final long EMPTY_THREAD  = FIRST_THREAD + 2;
+  private static final long BASE_DATE     = 1000000000000L;
+
+  private ThreadDatabase database;
+  private SQLiteDatabase rawDatabase;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    Context context = getInstrumentation().getTargetContext();
+
+    this.database    = DatabaseFactory.getThreadDatabase(context);
+    this.database.getConversationList().close();
+    this.rawDatabase = SQLiteDatabase.openDatabase(context.getDatabasePath("messages.db").getPath(),
+                                                   null, SQLiteDatabase.OPEN_READWRITE);
+
+    for (long threadId : Arrays.asList(FIRST_THREAD, SECOND_THREAD, EMPTY_THREAD)) {
+      ContentValues values = new ContentValues();
+      values.put(ThreadDatabase.ID, threadId);
+      values.put(ThreadDatabase.MESSAGE_COUNT, 99);
+      rawDatabase.insert(ThreadDatabase.TABLE_NAME, null, values);
+    }
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    for (long threadId : Arrays.asList(FIRST_THREAD, SECOND_THREAD, EMPTY_THREAD)) {
+      rawDatabase.delete(SmsDatabase.TABLE_NAME, MmsSmsColumns.THREAD_ID + " = ?", new String[] {threadId + ""});
+      rawDatabase.delete(MmsDatabase.TABLE_NAME, MmsSmsColumns.THREAD_ID + " = ?", new String[] {threadId + ""});
+      rawDatabase.delete(ThreadDatabase.TABLE_NAME, ThreadDatabase.ID + " = ?", new String[] {threadId + ""});
+    }
+
+    rawDatabase.close();
+  }
+
+  public void testUpdateThreadsRecomputesFromBothTables() throws Exception {
+    insertSms(FIRST_THREAD, "first", 1);
+    insertMms(FIRST_THREAD, "second", 2);
+    insertSms(FIRST_THREAD, "third", 3);
+    insertMms(SECOND_THREAD, "only", 5);
+    insertSms(SECOND_THREAD, "older", 4);
+
+    database.updateThreads(Arrays.asList(FIRST_THREAD, SECOND_THREAD, EMPTY_THREAD));
+
+    assertThread(FIRST_THREAD, 3, "third", BASE_DATE + 3000);
+    assertThread(SECOND_THREAD, 2, "only", BASE_DATE + 5000);
+    assertThat(getThread(EMPTY_THREAD)).isNull();
+  }
+
+  public void testUpdateForNewMessageKeepsRunningCount() throws Exception {
+    insertSms(FIRST_THREAD, "first", 1);
+    database.update(FIRST_THREAD);
+
+    database.updateForNewMessage(FIRST_THREAD, "newer", MmsSmsColumns.Types.BASE_INBOX_TYPE,
+                                 BASE_DATE + 4000, BASE_DATE + 4000);
+    assertThread(FIRST_THREAD, 2, "newer", BASE_DATE + 4000);
+
+    database.updateForNewMessage(FIRST_THREAD, "late", MmsSmsColumns.Types.BASE_INBOX_TYPE,
+                                 BASE_DATE + 2000, BASE_DATE + 2000);
+    assertThread(FIRST_THREAD, 3, "newer", BASE_DATE + 4000);
+  }
+
+  public void testSingleUpdateMatchesBulkUpdate() throws Exception {
+    insertSms(FIRST_THREAD, "first", 1);
+    insertMms(FIRST_THREAD, "second", 2);
+
+    database.update(FIRST_THREAD);
+    assertThread(FIRST_THREAD, 2, "second", BASE_DATE + 2000);
+
+    database.updateThreads(Collections.singleton(FIRST_THREAD));
+    assertThread(FIRST_THREAD, 2, "second", BASE_DATE + 2000);
+  }
+
+  private void insertSms(long threadId, String body, int second) {
+    ContentValues values = new ContentValues();
+    values.put(MmsSmsColumns.THREAD_ID, threadId);
+    values.put(MmsSmsColumns.BODY, body);
+    values.put(SmsDatabase.TYPE, MmsSmsColumns.Types.BASE_INBOX_TYPE);
+    values.put(SmsDatabase.DATE_SENT, BASE_DATE + second * 1000L);
+    values.put(SmsDatabase.DATE_RECEIVED, BASE_DATE + second * 1000L);
+    rawDatabase.insert(SmsDatabase.TABLE_NAME, null, values);
+  }
+
+  private void insertMms(long threadId, String body, int second) {
+    ContentValues values = new ContentValues();
+    values.put(MmsSmsColumns.THREAD_ID, threadId);
+    values.put(MmsSmsColumns.BODY, body);
+    values.put(MmsDatabase.MESSAGE_BOX, MmsSmsColumns.Types.BASE_INBOX_TYPE);
+    values.put(MmsDatabase.DATE_SENT, BASE_DATE / 1000 + second);
+    values.put(MmsDatabase.DATE_RECEIVED, BASE_DATE / 1000 + second);
+    rawDatabase.insert(MmsDatabase.TABLE_NAME, null, values);
+  }
+
+  private void assertThread(long threadId, long count, String snippet, long date) {
+    ContentValues thread = getThread(threadId);
+
+    assertThat(thread).isNotNull();
+    assertThat(thread.getAsLong(ThreadDatabase.MESSAGE_COUNT)).isEqualTo(count);
+    assertThat(thread.getAsString(ThreadDatabase.SNIPPET)).isEqualTo(snippet);
+    assertThat(thread.getAsLong(ThreadDatabase.DATE)).isEqualTo(date);
+  }
+
+  private ContentValues getThread(long threadId) {
+    Cursor cursor = rawDatabase.query(ThreadDatabase.TABLE_NAME,
+                                      new String[] {ThreadDatabase.MESSAGE_COUNT, ThreadDatabase.SNIPPET, ThreadDatabase.DATE},
+                                      ThreadDatabase.ID + " = ?", new String[] {threadId + ""}, null, null, null);
+
+    try {
+      if (!cursor.moveToFirst()) return null;
+
+      ContentValues values = new ContentValues();
+      values.put(ThreadDatabase.MESSAGE_COUNT, cursor.getLong(0));
+      values.put(ThreadDatabase.SNIPPET, cursor.getString(1));
+      values.put(ThreadDatabase.DATE, cursor.getLong(2));
+      return values;
+    } finally {
+      cursor.close();
+    }
+  }
+}
@@ -0,0 +1,171 @@
+package org.SecuredText.SecuredText.jobs;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.SecuredText.SecuredText.SecuredTextTestCase;
+import org.SecuredText.SecuredText.crypto.MasterSecret;
+import org.SecuredText.SecuredText.database.DatabaseFactory;
+import org.whispersystems.jobqueue.Job;
+import org.whispersystems.jobqueue.JobManager;
+import org.whispersystems.textsecure.api.TextSecureMessageSender;
+import org.whispersystems.textsecure.api.push.TextSecureAddress;
+
+import java.util.List;
+
+import dagger.Module;
+import dagger.ObjectGraph;
+import dagger.Provides;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.SecuredText.SecuredText.dependencies.SecuredTextCommunicationModule.TextSecureMessageSenderFactory;
+
+public class DeliveryReceiptAggregatorTest extends SecuredTextTestCase {
+
+  private static final String SOURCE = "+14152222222";
+  private static final String OTHER  = "+14153333333";
+
+  private Context context;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    context = getInstrumentation().getTargetContext();
+    drain();
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    drain();
+    super.tearDown();
+  }
+
+  public void testReceiveJobsForOneSenderShareOneJob() throws Exception {
+    JobManager jobManager = mock(JobManager.class);
+
+    DeliveryReceiptAggregator.store(context, SOURCE, 1000, "foo");
+    DeliveryReceiptAggregator.store(context, SOURCE, 2000, "foo");
+    DeliveryReceiptAggregator.store(context, OTHER, 3000, "foo");
+    DeliveryReceiptAggregator.store(context, SOURCE, 4000, "foo");
+
+    assertThat(getPendingCount()).isEqualTo(4);
+
+    DeliveryReceiptAggregator.flush(context, jobManager);
+    DeliveryReceiptAggregator.flush(context, jobManager);
+
+    ArgumentCaptor<Job> captor = ArgumentCaptor.forClass(Job.class);
+    verify(jobManager, times(2)).add(captor.capture());
+
+    List<Job> jobs = captor.getAllValues();
+
+    TextSecureMessageSender sourceMessageSender = mock(TextSecureMessageSender.class);
+    runJob(jobs.get(0), sourceMessageSender);
+
+    InOrder order = inOrder(sourceMessageSender);
+    order.verify(sourceMessageSender).sendDeliveryReceipt(any(TextSecureAddress.class), eq(1000L));
+    order.verify(sourceMessageSender).sendDeliveryReceipt(any(TextSecureAddress.class), eq(2000L));
+    order.verify(sourceMessageSender).sendDeliveryReceipt(any(TextSecureAddress.class), eq(4000L));
+    verify(sourceMessageSender, never()).sendDeliveryReceipt(any(TextSecureAddress.class), eq(3000L));
+
+    TextSecureMessageSender otherMessageSender = mock(TextSecureMessageSender.class);
+    runJob(jobs.get(1), otherMessageSender);
+
+    ArgumentCaptor<TextSecureAddress> address = ArgumentCaptor.forClass(TextSecureAddress.class);
+    verify(otherMessageSender).sendDeliveryReceipt(address.capture(), eq(3000L));
+    assertThat(address.getValue().getNumber()).isEqualTo(OTHER);
+
+    for (Job job : jobs) {
+      job.onAdded();
+    }
+
+    assertThat(getPendingCount()).isEqualTo(0);
+  }
+
+  public void testReceiptsArePendingUntilTheirJobIsPersisted() throws Exception {
+    JobManager jobManager = mock(JobManager.class);
+
+    DeliveryReceiptAggregator.store(context, SOURCE, 1000, "foo");
+    DeliveryReceiptAggregator.flush(context, jobManager);
+
+    ArgumentCaptor<Job> captor = ArgumentCaptor.forClass(Job.class);
+    verify(jobManager).add(captor.capture());
+    assertThat(getPendingCount()).isEqualTo(1);
+
+    captor.getValue().onAdded();
+    assertThat(getPendingCount()).isEqualTo(0);
+
+    DeliveryReceiptAggregator.flush(context, jobManager);
+    verify(jobManager, times(1)).add(any(Job.class));
+  }
+
+  public void testFlushWithNothingPending() throws Exception {
+    JobManager jobManager = mock(JobManager.class);
+
+    DeliveryReceiptAggregator.flush(context, jobManager);
+
+    verifyZeroInteractions(jobManager);
+  }
+
+  /**
+   * Hands anything already pending to a job manager that drops it, so each test only sees
+   * its own receipts.
+   */
+  private void drain() {
+    JobManager jobManager = mock(JobManager.class);
+    DeliveryReceiptAggregator.flush(context, jobManager);
+
+    ArgumentCaptor<Job> captor = ArgumentCaptor.forClass(Job.class);
+    verify(jobManager, atLeast(0)).add(captor.capture());
+
+    for (Job job : captor.getAllValues()) {
+      job.onAdded();
+    }
+  }
+
+  private int getPendingCount() {
+    Cursor cursor = DatabaseFactory.getPendingReceiptDatabase(context).getPending();
+
+    try {
+      return cursor.getCount();
+    } finally {
+      cursor.close();
+    }
+  }
+
+  private void runJob(Job job, TextSecureMessageSender textSecureMessageSender) throws Exception {
+    assertThat(job).isInstanceOf(DeliveryReceiptBatchJob.class);
+
+    ObjectGraph.create(new TestModule(textSecureMessageSender)).inject(job);
+    job.onRun();
+  }
+
+  @Module(injects = DeliveryReceiptBatchJob.class)
+  public static class TestModule {
+
+    private final TextSecureMessageSender textSecureMessageSender;
+
+    public TestModule(TextSecureMessageSender textSecureMessageSender) {
+      this.textSecureMessageSender = textSecureMessageSender;
+    }
+
+    @Provides TextSecureMessageSenderFactory provideTextSecureMessageSenderFactory() {
+      return new TextSecureMessageSenderFactory() {
+        @Override
+        public TextSecureMessageSender create(MasterSecret masterSecret) {
+          return textSecureMessageSender;
+        }
+      };
+    }
+  }
+}
@@ -0,0 +1,92 @@
+package org.SecuredText.SecuredText.jobs;
+
+import org.mockito.InOrder;
+import org.mockito.Mockito;
+import org.SecuredText.SecuredText.SecuredTextTestCase;
+import org.SecuredText.SecuredText.crypto.MasterSecret;
+import org.whispersystems.textsecure.api.TextSecureMessageSender;
+import org.whispersystems.textsecure.api.push.TextSecureAddress;
+import org.whispersystems.textsecure.api.push.exceptions.PushNetworkException;
+
+import java.io.IOException;
+
+import dagger.Module;
+import dagger.ObjectGraph;
+import dagger.Provides;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.SecuredText.SecuredText.dependencies.SecuredTextCommunicationModule.TextSecureMessageSenderFactory;
+
+public class DeliveryReceiptBatchJobTest extends SecuredTextTestCase {
+
+  private static final long[] TIMESTAMPS = {1000, 2000, 3000};
+
+  public void testSendsEveryReceipt() throws IOException {
+    TextSecureMessageSender textSecureMessageSender = mock(TextSecureMessageSender.class);
+    DeliveryReceiptBatchJob job                     = createJob(textSecureMessageSender);
+
+    job.onRun();
+
+    InOrder order = inOrder(textSecureMessageSender);
+
+    for (long timestamp : TIMESTAMPS) {
+      order.verify(textSecureMessageSender).sendDeliveryReceipt(any(TextSecureAddress.class), eq(timestamp));
+    }
+  }
+
+  public void testRetryResumesAfterSentReceipts() throws IOException {
+    TextSecureMessageSender textSecureMessageSender = mock(TextSecureMessageSender.class);
+    DeliveryReceiptBatchJob job                     = createJob(textSecureMessageSender);
+
+    Mockito.doThrow(new PushNetworkException("network error"))
+           .doNothing()
+           .when(textSecureMessageSender)
+           .sendDeliveryReceipt(any(TextSecureAddress.class), eq(TIMESTAMPS[1]));
+
+    try {
+      job.onRun();
+      throw new AssertionError();
+    } catch (IOException e) {
+      assertTrue(job.onShouldRetry(e));
+    }
+
+    job.onRun();
+
+    verify(textSecureMessageSender, times(1)).sendDeliveryReceipt(any(TextSecureAddress.class), eq(TIMESTAMPS[0]));
+    verify(textSecureMessageSender, times(2)).sendDeliveryReceipt(any(TextSecureAddress.class), eq(TIMESTAMPS[1]));
+    verify(textSecureMessageSender, times(1)).sendDeliveryReceipt(any(TextSecureAddress.class), eq(TIMESTAMPS[2]));
+    verify(textSecureMessageSender, times(4)).sendDeliveryReceipt(any(TextSecureAddress.class), anyLong());
+  }
+
+  private DeliveryReceiptBatchJob createJob(TextSecureMessageSender textSecureMessageSender) {
+    DeliveryReceiptBatchJob job = new DeliveryReceiptBatchJob(getContext(), "+14152222222", TIMESTAMPS, "foo", new long[0]);
+
+    ObjectGraph.create(new TestModule(textSecureMessageSender)).inject(job);
+    return job;
+  }
+
+  @Module(injects = DeliveryReceiptBatchJob.class)
+  public static class TestModule {
+
+    private final TextSecureMessageSender textSecureMessageSender;
+
+    public TestModule(TextSecureMessageSender textSecureMessageSender) {
+      this.textSecureMessageSender = textSecureMessageSender;
+    }
+
+    @Provides TextSecureMessageSenderFactory provideTextSecureMessageSenderFactory() {
+      return new TextSecureMessageSenderFactory() {
+        @Override
+        public TextSecureMessageSender create(MasterSecret masterSecret) {
+          return textSecureMessageSender;
+        }
+      };
+    }
+  }
+}
@@ -0,0 +1,155 @@
+package org.SecuredText.SecuredText.jobs;
+
+import android.util.Log;
+
+import org.SecuredText.SecuredText.SecuredTextTestCase;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.whispersystems.libaxolotl.util.guava.Optional;
+import org.whispersystems.textsecure.api.TextSecureMessageSender;
+import org.whispersystems.textsecure.api.messages.TextSecureGroup;
+import org.whispersystems.textsecure.api.messages.TextSecureMessage;
+import org.whispersystems.textsecure.api.push.TextSecureAddress;
+import org.whispersystems.textsecure.api.push.exceptions.PushNetworkException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Measures group send throughput through GroupSendEngine against sending to each member
+ * in turn, with every send making a round trip to a local stub server that answers after
+ * a fixed delay, standing in for the push service.
+ */
+public class GroupSendEngineBenchmark extends SecuredTextTestCase {
+  private static final String TAG = GroupSendEngineBenchmark.class.getSimpleName();
+
+  private static final int    GROUP_SIZE      = 100;
+  private static final int    RESPONSE_MILLIS = 20;
+  private static final String FLAKY_NUMBER    = "+14155550150";
+
+  private StubServer              server;
+  private TextSecureMessageSender messageSender;
+  private List<TextSecureAddress> addresses;
+  private TextSecureMessage       message;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    server        = new StubServer();
+    messageSender = mock(TextSecureMessageSender.class);
+    addresses     = new LinkedList<>();
+    message       = new TextSecureMessage(System.currentTimeMillis(), new TextSecureGroup(new byte[16]), null, "hello");
+
+    for (int i = 0; i < GROUP_SIZE; i++) {
+      addresses.add(new TextSecureAddress("+141555501" + String.format("%02d", i), Optional.<String>absent()));
+    }
+
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        TextSecureAddress address = (TextSecureAddress)invocation.getArguments()[0];
+
+        if (address.getNumber().equals(FLAKY_NUMBER)) {
+          throw new PushNetworkException("flaky recipient");
+        }
+
+        server.roundTrip();
+        return null;
+      }
+    }).when(messageSender).sendMessage(any(TextSecureAddress.class), any(TextSecureMessage.class));
+
+    server.start();
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    server.close();
+  }
+
+  public void testSequentialSend() throws Exception {
+    benchmark("sequential", 1);
+  }
+
+  public void testParallelSend() throws Exception {
+    benchmark("parallel", GroupSendEngine.MAX_PARALLEL_SENDS);
+  }
+
+  private void benchmark(String name, int parallelism) throws Exception {
+    long                   start  = System.nanoTime();
+    GroupSendEngine.Result result = new GroupSendEngine(messageSender, parallelism).send(addresses, message);
+    long                   millis = (System.nanoTime() - start) / 1000000;
+
+    Log.w(TAG, name + ": " + (GROUP_SIZE * 1000L / Math.max(1, millis)) + " recipients/sec");
+
+    assertThat(result.getDelivered()).hasSize(GROUP_SIZE - 1);
+    assertThat(result.getNetworkFailures()).containsExactly(FLAKY_NUMBER);
+  }
+
+  /**
+   * Answers each one byte request with one byte after RESPONSE_MILLIS, on a thread per
+   * connection.
+   */
+  private static class StubServer extends Thread {
+    private final ServerSocket serverSocket;
+
+    public StubServer() throws IOException {
+      this.serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          final Socket socket = serverSocket.accept();
+
+          new Thread() {
+            @Override
+            public void run() {
+              try {
+                socket.getInputStream().read();
+                Thread.sleep(RESPONSE_MILLIS);
+                socket.getOutputStream().write(1);
+                socket.close();
+              } catch (IOException | InterruptedException e) {
+                Log.w(TAG, e);
+              }
+            }
+          }.start();
+        }
+      } catch (IOException e) {
+        Log.w(TAG, "Stub server closed");
+      }
+    }
+
+    public void roundTrip() throws IOException {
+      Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), serverSocket.getLocalPort());
+
+      try {
+        OutputStream out = socket.getOutputStream();
+        InputStream  in  = socket.getInputStream();
+
+        out.write(1);
+        out.flush();
+
+        if (in.read() != 1) throw new IOException("Bad stub response");
+      } finally {
+        socket.close();
+      }
+    }
+
+    public void close() throws IOException {
+      serverSocket.close();
+    }
+  }
+}
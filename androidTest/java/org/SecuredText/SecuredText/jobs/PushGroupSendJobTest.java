@@ -0,0 +1,178 @@
+package org.SecuredText.SecuredText.jobs;
+
+import android.content.Context;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.SecuredText.SecuredText.SecuredTextTestCase;
+import org.SecuredText.SecuredText.crypto.MasterSecret;
+import org.SecuredText.SecuredText.database.DatabaseFactory;
+import org.SecuredText.SecuredText.database.GroupDatabase;
+import org.SecuredText.SecuredText.database.MmsDatabase;
+import org.SecuredText.SecuredText.database.ThreadDatabase;
+import org.SecuredText.SecuredText.database.documents.NetworkFailure;
+import org.SecuredText.SecuredText.mms.OutgoingMediaMessage;
+import org.SecuredText.SecuredText.recipients.RecipientFactory;
+import org.SecuredText.SecuredText.recipients.Recipients;
+import org.SecuredText.SecuredText.util.GroupUtil;
+import org.SecuredText.SecuredText.util.SecuredTextPreferences;
+import org.whispersystems.textsecure.api.TextSecureMessageSender;
+import org.whispersystems.textsecure.api.messages.TextSecureMessage;
+import org.whispersystems.textsecure.api.push.TextSecureAddress;
+import org.whispersystems.textsecure.api.push.exceptions.PushNetworkException;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import dagger.Module;
+import dagger.ObjectGraph;
+import dagger.Provides;
+import ws.com.google.android.mms.pdu.PduBody;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.SecuredText.SecuredText.dependencies.SecuredTextCommunicationModule.TextSecureMessageSenderFactory;
+
+/**
+ * Runs a group send that fails for one member and then its retry, checking the
+ * message's NetworkFailure document after each attempt.
+ */
+public class PushGroupSendJobTest extends SecuredTextTestCase {
+  private static final String LOCAL_NUMBER = "+14155550100";
+  private static final String MEMBER_A     = "+14155550101";
+  private static final String MEMBER_B     = "+14155550102";
+  private static final String MEMBER_C     = "+14155550103";
+
+  private final Set<String> sent    = Collections.synchronizedSet(new HashSet<String>());
+  private final Set<String> failing = Collections.synchronizedSet(new HashSet<String>());
+
+  private Context          context;
+  private String           previousLocalNumber;
+  private MasterSecret     masterSecret;
+  private byte[]           groupId;
+  private long             threadId;
+  private long             messageId;
+  private PushGroupSendJob job;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    context             = getInstrumentation().getTargetContext();
+    previousLocalNumber = SecuredTextPreferences.getLocalNumber(context);
+    masterSecret        = new MasterSecret(new SecretKeySpec(new byte[16], "AES"),
+                                           new SecretKeySpec(new byte[20], "HmacSHA1"));
+
+    SecuredTextPreferences.setLocalNumber(context, LOCAL_NUMBER);
+
+    GroupDatabase groupDatabase = DatabaseFactory.getGroupDatabase(context);
+    groupId = groupDatabase.allocateGroupId();
+    groupDatabase.create(groupId, "test", Arrays.asList(LOCAL_NUMBER, MEMBER_A, MEMBER_B, MEMBER_C), null, null);
+
+    String     encodedGroupId = GroupUtil.getEncodedId(groupId);
+    Recipients group          = RecipientFactory.getRecipientsFromString(context, encodedGroupId, false);
+    threadId  = DatabaseFactory.getThreadDatabase(context).getThreadIdFor(group);
+    messageId = DatabaseFactory.getMmsDatabase(context)
+                               .insertMessageOutbox(masterSecret,
+                                                    new OutgoingMediaMessage(context, group, new PduBody(), "hello",
+                                                                             ThreadDatabase.DistributionTypes.CONVERSATION),
+                                                    threadId, false);
+
+    TextSecureMessageSender messageSender = mock(TextSecureMessageSender.class);
+
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        String number = ((TextSecureAddress)invocation.getArguments()[0]).getNumber();
+        sent.add(number);
+
+        if (failing.contains(number)) throw new PushNetworkException("network error");
+        return null;
+      }
+    }).when(messageSender).sendMessage(any(TextSecureAddress.class), any(TextSecureMessage.class));
+
+    job = new PushGroupSendJob(context, messageId, encodedGroupId, -1);
+    ObjectGraph.create(new TestModule(messageSender)).inject(job);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    DatabaseFactory.getThreadDatabase(context).deleteConversation(threadId);
+    SecuredTextPreferences.setLocalNumber(context, previousLocalNumber);
+    super.tearDown();
+  }
+
+  public void testRetrySendsOnlyToFailedMember() throws Exception {
+    MmsDatabase database = DatabaseFactory.getMmsDatabase(context);
+
+    failing.add(MEMBER_B);
+    assertAttemptFails();
+
+    assertThat(sent).containsOnly(MEMBER_A, MEMBER_B, MEMBER_C);
+    assertThat(database.getFailures(messageId)).containsOnly(getNetworkFailure(MEMBER_B));
+
+    sent.clear();
+    failing.clear();
+    job.onSend(masterSecret);
+
+    assertThat(sent).containsOnly(MEMBER_B);
+    assertThat(database.getFailures(messageId)).isEmpty();
+  }
+
+  public void testRetryDropsFailureOfDepartedMember() throws Exception {
+    MmsDatabase database = DatabaseFactory.getMmsDatabase(context);
+
+    failing.add(MEMBER_B);
+    assertAttemptFails();
+
+    assertThat(database.getFailures(messageId)).containsOnly(getNetworkFailure(MEMBER_B));
+
+    DatabaseFactory.getGroupDatabase(context).updateMembers(groupId, Arrays.asList(LOCAL_NUMBER, MEMBER_A, MEMBER_C));
+
+    sent.clear();
+    job.onSend(masterSecret);
+
+    assertThat(sent).isEmpty();
+    assertThat(database.getFailures(messageId)).isEmpty();
+  }
+
+  private void assertAttemptFails() throws Exception {
+    try {
+      job.onSend(masterSecret);
+      throw new AssertionError();
+    } catch (IOException e) {
+      assertTrue(job.onShouldRetry(e));
+    }
+  }
+
+  private NetworkFailure getNetworkFailure(String number) {
+    return new NetworkFailure(RecipientFactory.getRecipientsFromString(context, number, false)
+                                              .getPrimaryRecipient()
+                                              .getRecipientId());
+  }
+
+  @Module(injects = PushGroupSendJob.class)
+  public static class TestModule {
+
+    private final TextSecureMessageSender textSecureMessageSender;
+
+    public TestModule(TextSecureMessageSender textSecureMessageSender) {
+      this.textSecureMessageSender = textSecureMessageSender;
+    }
+
+    @Provides TextSecureMessageSenderFactory provideTextSecureMessageSenderFactory() {
+      return new TextSecureMessageSenderFactory() {
+        @Override
+        public TextSecureMessageSender create(MasterSecret masterSecret) {
+          return textSecureMessageSender;
+        }
+      };
+    }
+  }
+}
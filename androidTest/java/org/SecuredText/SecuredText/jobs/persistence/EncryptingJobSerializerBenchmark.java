@@ -0,0 +1,131 @@
+package org.SecuredText.SecuredText.jobs.persistence;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.SecuredText.SecuredText.SecuredTextTestCase;
+import org.SecuredText.SecuredText.crypto.MasterCipher;
+import org.SecuredText.SecuredText.crypto.MasterSecret;
+import org.SecuredText.SecuredText.jobs.DeliveryReceiptBatchJob;
+import org.SecuredText.SecuredText.jobs.PushDecryptJob;
+import org.SecuredText.SecuredText.jobs.TrimThreadJob;
+import org.SecuredText.SecuredText.util.ParcelUtil;
+import org.whispersystems.jobqueue.EncryptionKeys;
+import org.whispersystems.jobqueue.Job;
+import org.whispersystems.jobqueue.persistence.JavaJobSerializer;
+
+import java.security.SecureRandom;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Compares the bytes written to the job store and the time spent serializing the jobs
+ * persisted for one inbound push message, between the binary encoding and the Base64
+ * text encoding it replaces.  The message is charged a whole receipt batch job, though
+ * a burst of messages from one sender shares a single one.
+ */
+public class EncryptingJobSerializerBenchmark extends SecuredTextTestCase {
+  private static final String TAG = EncryptingJobSerializerBenchmark.class.getSimpleName();
+
+  private static final int ITERATIONS = 500;
+
+  private MasterSecret masterSecret;
+  private MasterCipher masterCipher;
+  private Job[]        inboundJobs;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    SecureRandom random        = new SecureRandom();
+    byte[]       encryptionKey = new byte[16];
+    byte[]       macKey        = new byte[20];
+    Context      context       = getInstrumentation().getTargetContext();
+
+    random.nextBytes(encryptionKey);
+    random.nextBytes(macKey);
+
+    masterSecret = new MasterSecret(new SecretKeySpec(encryptionKey, "AES"),
+                                    new SecretKeySpec(macKey, "HmacSHA1"));
+    masterCipher = new MasterCipher(masterSecret);
+    inboundJobs  = new Job[] {new PushDecryptJob(context, 1, "+14155550123"),
+                              new DeliveryReceiptBatchJob(context, "+14155550123", new long[] {System.currentTimeMillis()}, null,
+                                                          new long[] {1}),
+                              new TrimThreadJob(context, 1)};
+  }
+
+  public void testBytesAndTimePerInboundMessage() throws Exception {
+    EncryptingJobSerializer serializer = new EncryptingJobSerializer();
+    JavaJobSerializer       legacy     = new JavaJobSerializer();
+
+    long binaryBytes = 0;
+    long legacyBytes = 0;
+
+    for (Job job : inboundJobs) {
+      binaryBytes += serializer.serialize(job, masterCipher).length();
+      legacyBytes += new MasterCipher(masterSecret).encryptBody(legacy.serialize(job)).length();
+    }
+
+    long binaryStart = System.nanoTime();
+
+    for (int i = 0; i < ITERATIONS; i++) {
+      for (Job job : inboundJobs) serializer.serialize(job, masterCipher);
+    }
+
+    long binaryTime  = System.nanoTime() - binaryStart;
+    long legacyStart = System.nanoTime();
+
+    for (int i = 0; i < ITERATIONS; i++) {
+      for (Job job : inboundJobs) {
+        MasterSecret secret = ParcelUtil.deserialize(ParcelUtil.serialize(masterSecret), MasterSecret.CREATOR);
+        new MasterCipher(secret).encryptBody(legacy.serialize(job));
+      }
+    }
+
+    long legacyTime = System.nanoTime() - legacyStart;
+
+    Log.w(TAG, "Binary: " + binaryBytes + " bytes, " + (binaryTime / ITERATIONS / 1000) + "us per inbound message");
+    Log.w(TAG, "Legacy: " + legacyBytes + " bytes, " + (legacyTime / ITERATIONS / 1000) + "us per inbound message");
+
+    assertThat(binaryBytes).isLessThan(legacyBytes);
+  }
+
+  public void testCountsJobStoreWrites() throws Exception {
+    EncryptingJobSerializer serializer = new EncryptingJobSerializer();
+    long                    writes     = EncryptingJobSerializer.getStoreWrites();
+    long                    bytes      = EncryptingJobSerializer.getStoreBytes();
+    long                    written    = 0;
+
+    for (Job job : inboundJobs) {
+      written += serializer.serialize(job).length();
+    }
+
+    Log.w(TAG, "Job store writes per inbound message: " + inboundJobs.length + ", " + written + " bytes");
+
+    assertThat(EncryptingJobSerializer.getStoreWrites() - writes).isGreaterThanOrEqualTo(inboundJobs.length);
+    assertThat(EncryptingJobSerializer.getStoreBytes() - bytes).isGreaterThanOrEqualTo(written);
+  }
+
+  public void testRoundTrip() throws Exception {
+    EncryptingJobSerializer serializer = new EncryptingJobSerializer();
+    EncryptionKeys          keys       = new EncryptionKeys(ParcelUtil.serialize(masterSecret));
+
+    for (Job job : inboundJobs) {
+      String encrypted = serializer.serialize(job, masterCipher);
+      String plaintext = serializer.serialize(job, null);
+
+      assertThat(serializer.deserialize(keys, true, encrypted)).isInstanceOf(job.getClass());
+      assertThat(serializer.deserialize(null, false, plaintext)).isInstanceOf(job.getClass());
+    }
+  }
+
+  public void testRestoresLegacyJobs() throws Exception {
+    EncryptingJobSerializer serializer = new EncryptingJobSerializer();
+    EncryptionKeys          keys       = new EncryptionKeys(ParcelUtil.serialize(masterSecret));
+    String                  legacy     = masterCipher.encryptBody(new JavaJobSerializer().serialize(inboundJobs[0]));
+
+    assertThat(serializer.deserialize(keys, true, legacy)).isInstanceOf(PushDecryptJob.class);
+  }
+}
@@ -0,0 +1,234 @@
+package org.SecuredText.SecuredText.mms;
+
+import org.SecuredText.SecuredText.SecuredTextTestCase;
+import org.SecuredText.SecuredText.mms.MmsConnection.Apn;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ws.com.google.android.mms.pdu.PduParser;
+import ws.com.google.android.mms.pdu.PduPart;
+import ws.com.google.android.mms.pdu.RetrieveConf;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Retrieves a large image from a stand-in MMSC that never lets the image bytes it has
+ * sent get more than MAX_BUFFERED ahead of the bytes the part handler has consumed.  A
+ * connection that buffers the response before handing parts to the handler stalls the
+ * MMSC and fails, rather than depending on heap measurements.
+ */
+public class IncomingMmsConnectionTest extends SecuredTextTestCase {
+  private static final int  IMAGE_SIZE    = 4 * 1024 * 1024;
+  private static final long MAX_BUFFERED  = 1024 * 1024;
+  private static final long STALL_TIMEOUT = 10 * 1000;
+
+  private byte[] imageDigest;
+  private byte[] pdu;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    byte[] image = new byte[IMAGE_SIZE];
+    new Random(1).nextBytes(image);
+
+    imageDigest = MessageDigest.getInstance("SHA-256").digest(image);
+    pdu         = buildRetrieveConf("hello", image);
+  }
+
+  public void testStreamsMediaPartToHandler() throws Exception {
+    assertRetrievedByStreaming(false);
+  }
+
+  public void testStreamsChunkedResponseToHandler() throws Exception {
+    assertRetrievedByStreaming(true);
+  }
+
+  private void assertRetrievedByStreaming(boolean chunked) throws Exception {
+    DigestHandler handler = new DigestHandler();
+    StandInMmsc   mmsc    = new StandInMmsc(pdu, pdu.length - IMAGE_SIZE, handler.consumed, chunked);
+
+    mmsc.start();
+
+    try {
+      Apn                   apn        = new Apn("http://127.0.0.1:" + mmsc.getPort() + "/mms", null, null, null, null);
+      IncomingMmsConnection connection = new IncomingMmsConnection(getInstrumentation().getTargetContext(), apn);
+      RetrieveConf          retrieved  = connection.retrieve(false, false, handler);
+
+      mmsc.join();
+
+      assertThat(mmsc.stalled).isFalse();
+      assertThat(retrieved.getBody().getPartsNum()).isEqualTo(2);
+      assertThat(new String(retrieved.getBody().getPart(0).getData())).isEqualTo("hello");
+      assertThat(retrieved.getBody().getPart(1).getData()).isNull();
+      assertThat(handler.consumed.get()).isEqualTo(IMAGE_SIZE);
+      assertThat(handler.digest).isEqualTo(imageDigest);
+    } finally {
+      mmsc.close();
+    }
+  }
+
+  private static byte[] buildRetrieveConf(String text, byte[] image) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    out.write(new byte[] {(byte)0x8C, (byte)0x84});             // X-Mms-Message-Type: m-retrieve-conf
+    out.write(new byte[] {(byte)0x8D, (byte)0x90});             // X-Mms-MMS-Version: 1.0
+    out.write(new byte[] {(byte)0x85, 0x04, 0x55, 0, 0, 0});    // Date
+    out.write(new byte[] {(byte)0x84, (byte)0xA3});             // Content-Type: multipart/mixed
+
+    writeUintvar(out, 2);
+    writePart(out, 0x83, text.getBytes());                      // text/plain
+    writePart(out, 0x9E, image);                                // image/jpeg
+
+    return out.toByteArray();
+  }
+
+  private static void writePart(ByteArrayOutputStream out, int contentType, byte[] data) throws IOException {
+    writeUintvar(out, 1);
+    writeUintvar(out, data.length);
+    out.write(contentType | 0x80);
+    out.write(data);
+  }
+
+  private static void writeUintvar(ByteArrayOutputStream out, int value) {
+    int shift = 28;
+
+    while (shift > 0 && (value >>> shift) == 0) shift -= 7;
+
+    for (; shift > 0; shift -= 7) out.write(((value >>> shift) & 0x7F) | 0x80);
+    out.write(value & 0x7F);
+  }
+
+  private static class DigestHandler implements PduParser.PartDataHandler {
+    private final AtomicLong consumed = new AtomicLong();
+
+    private byte[] digest;
+
+    @Override
+    public boolean onPartData(PduPart part, InputStream data) throws IOException {
+      if (!PartParser.isImage(part)) return false;
+
+      try {
+        MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+        byte[]        buffer        = new byte[4096];
+        int           read;
+
+        while ((read = data.read(buffer)) != -1) {
+          messageDigest.update(buffer, 0, read);
+          consumed.addAndGet(read);
+        }
+
+        digest = messageDigest.digest();
+        return true;
+      } catch (Exception e) {
+        throw new IOException(e);
+      }
+    }
+  }
+
+  /**
+   * Answers a single request with a retrieve-conf, written in small pieces so the
+   * client sees it arrive gradually.  Before each piece it waits until the image bytes
+   * already sent are no more than MAX_BUFFERED ahead of the consumed count, and gives up
+   * with stalled set if they don't catch up within STALL_TIMEOUT.
+   */
+  private static class StandInMmsc extends Thread {
+    private final ServerSocket serverSocket;
+    private final byte[]       pdu;
+    private final int          imageOffset;
+    private final AtomicLong   consumed;
+    private final boolean      chunked;
+
+    private volatile boolean stalled;
+
+    public StandInMmsc(byte[] pdu, int imageOffset, AtomicLong consumed, boolean chunked) throws IOException {
+      this.serverSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+      this.pdu          = pdu;
+      this.imageOffset  = imageOffset;
+      this.consumed     = consumed;
+      this.chunked      = chunked;
+    }
+
+    public int getPort() {
+      return serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void run() {
+      try {
+        Socket       socket = serverSocket.accept();
+        InputStream  in     = socket.getInputStream();
+        OutputStream out    = socket.getOutputStream();
+
+        readRequestHeaders(in);
+
+        String headers = "HTTP/1.1 200 OK\r\n" +
+                         "Content-Type: application/vnd.wap.mms-message\r\n" +
+                         (chunked ? "Transfer-Encoding: chunked\r\n" : "Content-Length: " + pdu.length + "\r\n") +
+                         "Connection: close\r\n\r\n";
+
+        out.write(headers.getBytes());
+
+        for (int offset = 0; offset < pdu.length; offset += 8192) {
+          int length = Math.min(8192, pdu.length - offset);
+
+          if (!awaitConsumer(offset)) {
+            stalled = true;
+            socket.close();
+            return;
+          }
+
+          if (chunked) out.write((Integer.toHexString(length) + "\r\n").getBytes());
+          out.write(pdu, offset, length);
+          if (chunked) out.write("\r\n".getBytes());
+        }
+
+        if (chunked) out.write("0\r\n\r\n".getBytes());
+
+        out.flush();
+        socket.close();
+      } catch (IOException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    private boolean awaitConsumer(int offset) {
+      long deadline = System.currentTimeMillis() + STALL_TIMEOUT;
+
+      while (offset - imageOffset - consumed.get() > MAX_BUFFERED) {
+        if (System.currentTimeMillis() > deadline) return false;
+
+        try {
+          Thread.sleep(5);
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+      }
+
+      return true;
+    }
+
+    private void readRequestHeaders(InputStream in) throws IOException {
+      int matched = 0;
+      int value;
+
+      while (matched < 4 && (value = in.read()) != -1) {
+        if      (value == "\r\n\r\n".charAt(matched)) matched++;
+        else if (value == '\r')                      matched = 1;
+        else                                         matched = 0;
+      }
+    }
+
+    public void close() throws IOException {
+      serverSocket.close();
+    }
+  }
+}
@@ -0,0 +1,75 @@
+package org.SecuredText.SecuredText.mms;
+
+import android.content.Context;
+
+import org.SecuredText.SecuredText.SecuredTextTestCase;
+import org.SecuredText.SecuredText.crypto.MasterSecret;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import ws.com.google.android.mms.pdu.PduPart;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PartFileWriterTest extends SecuredTextTestCase {
+
+  private static final byte[] DATA = "part data".getBytes();
+
+  private Context        context;
+  private PartFileWriter writer;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    context = getInstrumentation().getTargetContext();
+    writer  = new PartFileWriter(context, new MasterSecret(new SecretKeySpec(new byte[16], "AES"),
+                                                           new SecretKeySpec(new byte[20], "HmacSHA1")));
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    writer.discard();
+    super.tearDown();
+  }
+
+  public void testWritesMediaPartToFile() throws Exception {
+    PduPart part = getPart("image/jpeg");
+
+    assertThat(writer.onPartData(part, new ByteArrayInputStream(DATA))).isTrue();
+    assertThat(part.getDataUri()).isNotNull();
+    assertThat(part.getDataSize()).isEqualTo(DATA.length);
+    assertThat(part.getEncrypted()).isTrue();
+    assertThat(new File(part.getDataUri().getPath()).getParentFile())
+        .isEqualTo(context.getDir("parts", Context.MODE_PRIVATE));
+  }
+
+  public void testLeavesOtherPartsToParser() throws Exception {
+    ByteArrayInputStream data = new ByteArrayInputStream(DATA);
+    PduPart              part = getPart("text/plain");
+
+    assertThat(writer.onPartData(part, data)).isFalse();
+    assertThat(data.available()).isEqualTo(DATA.length);
+    assertThat(part.getDataUri()).isNull();
+  }
+
+  public void testDiscardDeletesWrittenFiles() throws Exception {
+    PduPart image = getPart("image/jpeg");
+    PduPart audio = getPart("audio/amr");
+
+    writer.onPartData(image, new ByteArrayInputStream(DATA));
+    writer.onPartData(audio, new ByteArrayInputStream(DATA));
+    writer.discard();
+
+    assertThat(new File(image.getDataUri().getPath()).exists()).isFalse();
+    assertThat(new File(audio.getDataUri().getPath()).exists()).isFalse();
+  }
+
+  private PduPart getPart(String contentType) {
+    PduPart part = new PduPart();
+    part.setContentType(contentType.getBytes());
+    return part;
+  }
+}
@@ -0,0 +1,119 @@
+package org.SecuredText.SecuredText.notifications;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import org.SecuredText.SecuredText.SecuredTextTestCase;
+import org.SecuredText.SecuredText.crypto.MasterSecret;
+import org.SecuredText.SecuredText.database.DatabaseFactory;
+import org.SecuredText.SecuredText.database.MmsSmsColumns;
+import org.SecuredText.SecuredText.database.SmsDatabase;
+import org.SecuredText.SecuredText.recipients.RecipientFactory;
+import org.SecuredText.SecuredText.util.ParcelUtil;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MessageNotifierTest extends SecuredTextTestCase {
+  private static final String NUMBER     = "+14155550123";
+  private static final int    BURST_SIZE = 100;
+
+  private Context        context;
+  private SQLiteDatabase rawDatabase;
+  private long           threadId;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    this.context     = getInstrumentation().getTargetContext();
+    this.threadId    = DatabaseFactory.getThreadDatabase(context)
+                                      .getThreadIdFor(RecipientFactory.getRecipientsFromString(context, NUMBER, false));
+    this.rawDatabase = SQLiteDatabase.openDatabase(context.getDatabasePath("messages.db").getPath(),
+                                                   null, SQLiteDatabase.OPEN_READWRITE);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    rawDatabase.close();
+    DatabaseFactory.getThreadDatabase(context).deleteConversation(threadId);
+    MessageNotifier.updateNotification(context, null);
+    MessageNotifier.awaitPendingUpdates();
+  }
+
+  public void testBurstRebuildsOnce() throws Exception {
+    for (int i = 0; i < BURST_SIZE; i++) {
+      insertUnread(i);
+    }
+
+    int before = MessageNotifier.getQueryCount();
+
+    for (int i = 0; i < BURST_SIZE; i++) {
+      MessageNotifier.updateNotification(context, null, threadId);
+    }
+
+    MessageNotifier.awaitPendingUpdates();
+
+    // unread keys, pending pushes, unread records and the thread's recipients, once
+    assertThat(MessageNotifier.getQueryCount() - before).isLessThanOrEqualTo(4);
+  }
+
+  public void testRebuildLoadsOnlyNewMessages() throws Exception {
+    for (int i = 0; i < BURST_SIZE; i++) {
+      insertUnread(i);
+    }
+
+    MessageNotifier.updateNotification(context, null, threadId);
+    MessageNotifier.awaitPendingUpdates();
+
+    int before = MessageNotifier.getQueryCount();
+
+    insertUnread(BURST_SIZE);
+    MessageNotifier.updateNotification(context, null, threadId);
+    MessageNotifier.awaitPendingUpdates();
+
+    // unread keys, pending pushes and the one new record; thread recipients stay cached
+    assertThat(MessageNotifier.getQueryCount() - before).isEqualTo(3);
+  }
+
+  public void testEqualSecretKeepsCache() throws Exception {
+    MasterSecret masterSecret = new MasterSecret(new SecretKeySpec(new byte[16], "AES"),
+                                                 new SecretKeySpec(new byte[20], "HmacSHA1"));
+    MasterSecret reparcelled  = ParcelUtil.deserialize(ParcelUtil.serialize(masterSecret), MasterSecret.CREATOR);
+
+    for (int i = 0; i < BURST_SIZE; i++) {
+      insertUnread(i);
+    }
+
+    MessageNotifier.updateNotification(context, masterSecret, threadId);
+    MessageNotifier.awaitPendingUpdates();
+
+    int before = MessageNotifier.getQueryCount();
+
+    MessageNotifier.updateNotification(context, reparcelled, threadId);
+    MessageNotifier.awaitPendingUpdates();
+
+    // unread keys and pending pushes only; no records are reloaded
+    assertThat(MessageNotifier.getQueryCount() - before).isEqualTo(2);
+  }
+
+  private void insertUnread(int index) {
+    SQLiteStatement statement = rawDatabase.compileStatement("INSERT INTO " + SmsDatabase.TABLE_NAME +
+                                                             " (thread_id, address, date, date_sent, read, type, body)" +
+                                                             " VALUES (?, ?, ?, ?, 0, ?, ?)");
+    long date = System.currentTimeMillis() + index;
+
+    try {
+      statement.bindLong(1, threadId);
+      statement.bindString(2, NUMBER);
+      statement.bindLong(3, date);
+      statement.bindLong(4, date);
+      statement.bindLong(5, MmsSmsColumns.Types.BASE_INBOX_TYPE);
+      statement.bindString(6, "message " + index);
+      statement.executeInsert();
+    } finally {
+      statement.close();
+    }
+  }
+}
@@ -0,0 +1,115 @@
+package org.SecuredText.SecuredText.sms;
+
+import org.SecuredText.SecuredText.SecuredTextTestCase;
+import org.SecuredText.SecuredText.database.MultipartSmsDatabase;
+import org.SecuredText.SecuredText.recipients.Recipient;
+import org.SecuredText.SecuredText.recipients.Recipients;
+import org.SecuredText.SecuredText.util.Base64;
+import org.whispersystems.libaxolotl.util.guava.Optional;
+import org.whispersystems.textsecure.api.messages.TextSecureGroup;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Delivers part of a fragment set, then throws away the handler and closes its store,
+ * as a process death between fragments would, and delivers the rest to fresh ones.
+ */
+public class MultipartSmsMessageHandlerTest extends SecuredTextTestCase {
+  private static final int FRAGMENT_COUNT = 4;
+
+  private MultipartSmsDatabase database;
+  private String               body;
+  private List<String>         fragments;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    byte[] decoded = new byte[1 + FRAGMENT_COUNT * (SmsTransportDetails.BASE_MAX_BYTES - 3)];
+    new Random().nextBytes(decoded);
+    decoded[0] = 0x22;
+
+    body      = Base64.encodeBytesWithoutPadding(decoded);
+    fragments = MultipartSmsTransportMessage.getEncoded(new OutgoingEncryptedMessage(new Recipients(new LinkedList<Recipient>()), body),
+                                                        (byte)new Random().nextInt(256));
+    database  = new MultipartSmsDatabase(getInstrumentation().getTargetContext());
+
+    assertThat(fragments).hasSize(FRAGMENT_COUNT);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    database.close();
+  }
+
+  public void testReassemblesAcrossRestart() throws Exception {
+    String sender = newSender();
+
+    assertThat(receive(sender, 0)).isNull();
+    assertThat(receive(sender, 1)).isNull();
+
+    restart();
+
+    assertThat(receive(sender, 2)).isNull();
+    assertReassembled(receive(sender, 3));
+  }
+
+  public void testReassemblesOutOfOrderAcrossRestarts() throws Exception {
+    String sender = newSender();
+
+    assertThat(receive(sender, 3)).isNull();
+    restart();
+    assertThat(receive(sender, 1)).isNull();
+    assertThat(receive(sender, 1)).isNull();
+    restart();
+    assertThat(receive(sender, 0)).isNull();
+    assertReassembled(receive(sender, 2));
+  }
+
+  public void testKeepsSendersApart() throws Exception {
+    String first  = newSender();
+    String second = newSender();
+
+    assertThat(receive(first, 0)).isNull();
+    assertThat(receive(first, 1)).isNull();
+
+    restart();
+
+    for (int i = 0; i < FRAGMENT_COUNT - 1; i++) {
+      assertThat(receive(second, i)).isNull();
+    }
+
+    assertReassembled(receive(second, FRAGMENT_COUNT - 1));
+    assertThat(receive(first, 2)).isNull();
+    assertReassembled(receive(first, 3));
+  }
+
+  private IncomingTextMessage receive(String sender, int index) {
+    IncomingTextMessage fragment = new IncomingTextMessage(sender, 1, System.currentTimeMillis(),
+                                                           fragments.get(index), Optional.<TextSecureGroup>absent());
+
+    return new MultipartSmsMessageHandler(database).processPotentialMultipartMessage(fragment);
+  }
+
+  private void restart() {
+    database.close();
+    database = new MultipartSmsDatabase(getInstrumentation().getTargetContext());
+  }
+
+  private void assertReassembled(IncomingTextMessage message) {
+    assertThat(message).isNotNull();
+    assertThat(message.isSecureMessage()).isTrue();
+    assertThat(message.getMessageBody()).isEqualTo(body);
+  }
+
+  /**
+   * Fragments stay stored for an hour, so each test uses senders no earlier run has.
+   */
+  private static String newSender() {
+    return "+1415" + (2000000 + new Random().nextInt(8000000));
+  }
+}
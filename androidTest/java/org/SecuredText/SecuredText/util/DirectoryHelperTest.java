@@ -0,0 +1,201 @@
+package org.SecuredText.SecuredText.util;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.test.RenamingDelegatingContext;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+
+import org.SecuredText.SecuredText.SecuredTextTestCase;
+import org.SecuredText.SecuredText.database.SecuredTextDirectory;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.whispersystems.textsecure.api.TextSecureAccountManager;
+import org.whispersystems.textsecure.api.push.ContactTokenDetails;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.anySetOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Refreshes a directory kept in its own database against a stand in address book and
+ * server, so nothing on the device is read or left behind.
+ */
+public class DirectoryHelperTest extends SecuredTextTestCase {
+  private static final String LOCAL_NUMBER   = "+14155550100";
+  private static final String CONTACT_NUMBER = "+14155550101";
+  private static final String EDITED_NUMBER  = "+14155550102";
+  private static final String DATABASE_NAME  = "whisper_directory.db";
+
+  private Context                  context;
+  private FakeContactsProvider     contacts;
+  private SecuredTextDirectory     directory;
+  private TextSecureAccountManager accountManager;
+  private List<Set<String>>        requests;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    final MockContentResolver resolver = new MockContentResolver();
+
+    contacts = new FakeContactsProvider();
+    resolver.addProvider(ContactsContract.AUTHORITY, contacts);
+
+    context = new RenamingDelegatingContext(getInstrumentation().getTargetContext(), "test.") {
+      @Override
+      public ContentResolver getContentResolver() {
+        return resolver;
+      }
+    };
+
+    deleteDatabase();
+
+    directory      = new SecuredTextDirectory(context);
+    requests       = new LinkedList<>();
+    accountManager = mock(TextSecureAccountManager.class);
+
+    when(accountManager.getContacts(anySetOf(String.class))).thenAnswer(new Answer<List<ContactTokenDetails>>() {
+      @Override
+      public List<ContactTokenDetails> answer(InvocationOnMock invocation) {
+        @SuppressWarnings("unchecked")
+        Set<String>               numbers = new HashSet<>((Set<String>)invocation.getArguments()[0]);
+        List<ContactTokenDetails> tokens  = new LinkedList<>();
+
+        requests.add(numbers);
+
+        if (numbers.contains(CONTACT_NUMBER)) {
+          ContactTokenDetails token = new ContactTokenDetails();
+          token.setNumber(CONTACT_NUMBER);
+          tokens.add(token);
+        }
+
+        return tokens;
+      }
+    });
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    directory.close();
+    deleteDatabase();
+    super.tearDown();
+  }
+
+  public void testChecksOnlyChangedNumbers() throws Exception {
+    long id = contacts.insert(CONTACT_NUMBER);
+
+    refresh();
+    assertThat(requests).containsExactly(set(CONTACT_NUMBER));
+
+    refresh();
+    assertThat(requests).isEmpty();
+
+    contacts.update(id, EDITED_NUMBER);
+
+    refresh();
+    assertThat(requests).containsExactly(set(EDITED_NUMBER));
+  }
+
+  public void testRechecksStaleNumbers() throws Exception {
+    contacts.insert(CONTACT_NUMBER);
+    refresh();
+
+    SQLiteDatabase database = SQLiteDatabase.openDatabase(context.getDatabasePath(DATABASE_NAME).getPath(),
+                                                          null, SQLiteDatabase.OPEN_READWRITE);
+
+    try {
+      ContentValues values = new ContentValues();
+      values.put("timestamp", 0);
+      database.update("directory", values, "number = ?", new String[] {CONTACT_NUMBER});
+    } finally {
+      database.close();
+    }
+
+    refresh();
+    assertThat(requests).containsExactly(set(CONTACT_NUMBER));
+
+    refresh();
+    assertThat(requests).isEmpty();
+  }
+
+  private void refresh() throws Exception {
+    requests.clear();
+    DirectoryHelper.refreshDirectory(directory, accountManager, LOCAL_NUMBER);
+  }
+
+  private void deleteDatabase() {
+    File database = context.getDatabasePath(DATABASE_NAME);
+
+    database.delete();
+    new File(database.getPath() + "-journal").delete();
+  }
+
+  private static Set<String> set(String... numbers) {
+    Set<String> set = new HashSet<>();
+    for (String number : numbers) set.add(number);
+    return set;
+  }
+
+  /**
+   * An address book that only answers the phone number query a refresh makes, with
+   * each edit bumping the row's data version as the contacts provider does.
+   */
+  private static class FakeContactsProvider extends MockContentProvider {
+    private final Map<Long, String> numbers  = new LinkedHashMap<>();
+    private final Map<Long, Long>   versions = new LinkedHashMap<>();
+
+    private long nextId = 1;
+
+    public synchronized long insert(String number) {
+      long id = nextId++;
+      numbers.put(id, number);
+      versions.put(id, 1L);
+      return id;
+    }
+
+    public synchronized void update(long id, String number) {
+      numbers.put(id, number);
+      versions.put(id, versions.get(id) + 1);
+    }
+
+    @Override
+    public synchronized Cursor query(Uri uri, String[] projection, String selection,
+                                     String[] selectionArgs, String sortOrder)
+    {
+      assertThat(uri).isEqualTo(Phone.CONTENT_URI);
+
+      MatrixCursor cursor = new MatrixCursor(projection);
+
+      for (Map.Entry<Long, String> number : numbers.entrySet()) {
+        Object[] row = new Object[projection.length];
+
+        for (int i = 0; i < projection.length; i++) {
+          if      (Phone._ID.equals(projection[i]))          row[i] = number.getKey();
+          else if (Phone.DATA_VERSION.equals(projection[i])) row[i] = versions.get(number.getKey());
+          else if (Phone.NUMBER.equals(projection[i]))       row[i] = number.getValue();
+        }
+
+        cursor.addRow(row);
+      }
+
+      return cursor;
+    }
+  }
+}
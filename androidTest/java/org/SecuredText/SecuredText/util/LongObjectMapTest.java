@@ -0,0 +1,59 @@
+package org.SecuredText.SecuredText.util;
+
+import org.SecuredText.SecuredText.SecuredTextTestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LongObjectMapTest extends SecuredTextTestCase {
+
+  public void testPutGetRemove() throws Exception {
+    LongObjectMap<String> map = new LongObjectMap<>();
+
+    assertThat(map.put(1, "one")).isNull();
+    assertThat(map.put(-1, "minus one")).isNull();
+    assertThat(map.put(1, "uno")).isEqualTo("one");
+
+    assertThat(map.get(1)).isEqualTo("uno");
+    assertThat(map.get(-1)).isEqualTo("minus one");
+    assertThat(map.get(2)).isNull();
+    assertThat(map.size()).isEqualTo(2);
+
+    assertThat(map.remove(1)).isEqualTo("uno");
+    assertThat(map.remove(1)).isNull();
+    assertThat(map.containsKey(1)).isFalse();
+    assertThat(map.size()).isEqualTo(1);
+
+    map.clear();
+    assertThat(map.isEmpty()).isTrue();
+    assertThat(map.get(-1)).isNull();
+  }
+
+  /**
+   * Keys that collide in the table exercise probing and the shifting done on removal.
+   */
+  public void testMatchesHashMap() throws Exception {
+    LongObjectMap<Long> map      = new LongObjectMap<>();
+    Map<Long, Long>     expected = new HashMap<>();
+    Random              random   = new Random(1);
+
+    for (int i = 0; i < 50000; i++) {
+      long key = random.nextInt(2000) * 1024L;
+
+      switch (random.nextInt(3)) {
+        case 0:  assertThat(map.put(key, (long)i)).isEqualTo(expected.put(key, (long)i)); break;
+        case 1:  assertThat(map.remove(key)).isEqualTo(expected.remove(key));              break;
+        default: assertThat(map.get(key)).isEqualTo(expected.get(key));                    break;
+      }
+
+      assertThat(map.size()).isEqualTo(expected.size());
+    }
+
+    for (Map.Entry<Long, Long> entry : expected.entrySet()) {
+      assertThat(map.get(entry.getKey())).isEqualTo(entry.getValue());
+    }
+  }
+}
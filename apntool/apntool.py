@@ -3,8 +3,8 @@ import re
 import argparse
 import sqlite3
 import gzip
-from progressbar import ProgressBar, Counter, Timer
-from lxml import etree
+import struct
+import os
 
 parser = argparse.ArgumentParser(prog='apntool', description="""Process Android's apn xml files and drop them into an
                                                              easily queryable SQLite db. Tested up to version 9 of
@@ -14,6 +14,11 @@ parser.add_argument('-i', '--input', help='the xml file to parse', default='apns
 parser.add_argument('-o', '--output', help='the sqlite db output file', default='apns.db', required=False)
 parser.add_argument('--quiet', help='do not show progress or verbose instructions', action='store_true', required=False)
 parser.add_argument('--no-gzip', help="do not gzip after creation", action='store_true', required=False)
+parser.add_argument('-x', '--index', help='also write the binary lookup index the app ships', default='apns.idx',
+                    required=False)
+parser.add_argument('--no-index', help="do not write the binary lookup index", action='store_true', required=False)
+parser.add_argument('--index-only', help="only index an existing sqlite db, such as the one in assets/databases/",
+                    action='store_true', required=False)
 args = parser.parse_args()
 
 
@@ -26,6 +31,86 @@ def normalized(target):
     subbed = leading_zeros.sub(r'\1\2', subbed)
     return subbed
 
+INDEX_MAGIC = 0x41504E49  # "APNI"
+INDEX_VERSION = 1
+INDEX_COLUMNS = ["apn", "mmsc", "mmsproxy", "mmsport", "user", "password"]
+
+
+def index_key(mccmnc):
+    # must match ApnDatabase.getKey(): the digits' value, tagged with how many there were
+    if not mccmnc.isdigit() or len(mccmnc) > 7:
+        return None
+    return (len(mccmnc) << 24) | int(mccmnc)
+
+
+def write_index(cursor, output):
+    """
+    Writes the apns as fixed size records sorted by MCC+MNC, so the app can memory map the
+    file and binary search it.  Records with the same MCC+MNC keep their table order, since
+    the first of them is the default when no APN name matches.  Layout (big endian):
+
+      header:  int magic, int version, int record count, int string pool offset
+      records: int key, then an int string offset (-1 for null) for each of INDEX_COLUMNS
+      pool:    for each distinct string, an unsigned short byte length and its UTF-8 bytes
+    """
+    cursor.execute("SELECT mccmnc, %s FROM apns ORDER BY _id" % ", ".join(INDEX_COLUMNS))
+
+    records = []
+    for row in cursor.fetchall():
+        key = index_key(row[0])
+        if key is not None:
+            records.append((key, len(records), row[1:]))
+    records.sort()
+
+    pool = bytearray()
+    pool_offsets = {}
+
+    def pool_offset(value):
+        if value is None:
+            return -1
+        if not isinstance(value, bytes):
+            value = u"%s" % value
+            value = value.encode('utf-8')
+        encoded = value
+        if encoded not in pool_offsets:
+            pool_offsets[encoded] = len(pool)
+            pool.extend(struct.pack('>H', len(encoded)))
+            pool.extend(encoded)
+        return pool_offsets[encoded]
+
+    body = bytearray()
+    for key, _, values in records:
+        body.extend(struct.pack('>i', key))
+        for value in values:
+            body.extend(struct.pack('>i', pool_offset(value)))
+
+    with open(output, 'wb') as index:
+        index.write(struct.pack('>iiii', INDEX_MAGIC, INDEX_VERSION, len(records), 16 + len(body)))
+        index.write(body)
+        index.write(pool)
+
+connection = None
+
+if args.index_only:
+    if not os.path.isfile(args.output):
+        print("Error: %s does not exist" % args.output)
+        sys.exit(1)
+    try:
+        connection = sqlite3.connect(args.output)
+        write_index(connection.cursor(), args.index)
+        print("Successfully indexed %s to %s" % (args.output, args.index))
+    except sqlite3.Error as e:
+        print("Error: %s" % e.args[0])
+        sys.exit(1)
+    finally:
+        if connection:
+            connection.close()
+    sys.exit(0)
+
+# only needed to parse the xml, so indexing works with the standard library alone
+from progressbar import ProgressBar, Counter, Timer
+from lxml import etree
+
 try:
     connection = sqlite3.connect(args.output)
     cursor = connection.cursor()
@@ -69,7 +154,7 @@ try:
                 apn.set("mmsproxy", normalized_mmsproxy)
 
         values = [apn.get(attrib) for attrib in apn.attrib.keys()] + [mccmnc]
-        keys = apn.attrib.keys() + ["mccmnc"]
+        keys = list(apn.attrib.keys()) + ["mccmnc"]
 
         cursor.execute("SELECT 1 FROM apns WHERE mccmnc = ? AND apn = ?", [mccmnc, apn.get("apn")])
         if cursor.fetchone() is None:
@@ -85,6 +170,10 @@ try:
     connection.commit()
     print("Successfully written to %s" % args.output)
 
+    if not args.no_index:
+        write_index(cursor, args.index)
+        print("Successfully indexed to %s" % args.index)
+
     if not args.no_gzip:
         gzipped_file = "%s.gz" % (args.output,)
         with open(args.output, 'rb') as orig:
@@ -93,10 +182,12 @@ try:
         print("Successfully gzipped to %s" % gzipped_file)
 
     if not args.quiet:
-        print("\nTo include this in the distribution, copy it to the project's assets/databases/ directory.")
-        print("If you support API 10 or lower, you must use the gzipped version to avoid corruption.")
+        print("\nTo include this in the distribution, copy the db to the project's assets/databases/ directory.")
+        print("The build regenerates the index next to it, and both are shipped: the app falls back to the db")
+        print("if it can't load the index.")
+        print("The app memory maps the index, so it must stay uncompressed in the APK (see aaptOptions in build.gradle).")
 
-except sqlite3.Error, e:
+except sqlite3.Error as e:
     if connection:
         connection.rollback()
     print("Error: %s" % e.args[0])
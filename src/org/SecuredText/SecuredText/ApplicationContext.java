@@ -23,6 +23,7 @@ import org.SecuredText.SecuredText.crypto.PRNGFixes;
 import org.SecuredText.SecuredText.dependencies.AxolotlStorageModule;
 import org.SecuredText.SecuredText.dependencies.InjectableType;
 import org.SecuredText.SecuredText.dependencies.SecuredTextCommunicationModule;
+import org.SecuredText.SecuredText.jobs.DeliveryReceiptAggregator;
 import org.SecuredText.SecuredText.jobs.persistence.EncryptingJobSerializer;
 import org.SecuredText.SecuredText.jobs.requirements.MasterSecretRequirementProvider;
 import org.SecuredText.SecuredText.jobs.requirements.ServiceRequirementProvider;
@@ -60,6 +61,7 @@ public class ApplicationContext extends Application implements DependencyInjecto
     initializeLogging();
     initializeDependencyInjection();
     initializeJobManager();
+    initializePendingReceipts();
   }
 
   @Override
@@ -93,6 +95,10 @@ public class ApplicationContext extends Application implements DependencyInjecto
                                 .build();
   }
 
+  private void initializePendingReceipts() {
+    DeliveryReceiptAggregator.schedulePendingFlush(this);
+  }
+
   private void initializeDependencyInjection() {
     this.objectGraph = ObjectGraph.create(new SecuredTextCommunicationModule(this),
                                           new AxolotlStorageModule(this));
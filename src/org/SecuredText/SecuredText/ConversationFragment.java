@@ -22,6 +22,7 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.ListView;
 import android.widget.Toast;
@@ -52,6 +53,8 @@ public class ConversationFragment extends ListFragment
 {
   private static final String TAG = ConversationFragment.class.getSimpleName();
 
+  private static final int PAGE_SIZE = 100;
+
   private final ActionModeCallback     actionModeCallback     = new ActionModeCallback();
   private final SelectionClickListener selectionClickListener = new ConversationFragmentSelectionClickListener();
 
@@ -61,6 +64,7 @@ public class ConversationFragment extends ListFragment
   private Recipients   recipients;
   private long         threadId;
   private ActionMode   actionMode;
+  private boolean      loadingOlder;
 
   @Override
   public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle bundle) {
@@ -120,6 +124,7 @@ public class ConversationFragment extends ListFragment
   private void initializeContextualActionBar() {
     getListView().setOnItemClickListener(selectionClickListener);
     getListView().setOnItemLongClickListener(selectionClickListener);
+    getListView().setOnScrollListener(new LoadOlderScrollListener());
   }
 
   private void setCorrectMenuVisibility(Menu menu) {
@@ -273,12 +278,27 @@ public class ConversationFragment extends ListFragment
 
   @Override
   public Loader<Cursor> onCreateLoader(int arg0, Bundle arg1) {
-    return new ConversationLoader(getActivity(), threadId);
+    loadingOlder = false;
+    return new ConversationLoader(getActivity(), threadId, PAGE_SIZE);
   }
 
   @Override
   public void onLoadFinished(Loader<Cursor> arg0, Cursor cursor) {
+    ListView list          = getListView();
+    int      previousCount = getListAdapter().getCount();
+    int      firstVisible  = list.getFirstVisiblePosition();
+    View     firstView     = list.getChildAt(0);
+    int      firstTop      = firstView == null ? 0 : firstView.getTop();
+
     ((CursorAdapter)getListAdapter()).changeCursor(cursor);
+
+    if (loadingOlder) {
+      loadingOlder = false;
+
+      if (cursor != null && cursor.getCount() > previousCount) {
+        list.setSelectionFromTop(firstVisible + cursor.getCount() - previousCount, firstTop);
+      }
+    }
   }
 
   @Override
@@ -322,6 +342,24 @@ public class ConversationFragment extends ListFragment
     }
   }
 
+  private class LoadOlderScrollListener implements AbsListView.OnScrollListener {
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {}
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+      if (loadingOlder || totalItemCount == 0 || firstVisibleItem > 0) return;
+
+      Loader<Cursor> loader = getLoaderManager().getLoader(0);
+
+      if (loader instanceof ConversationLoader && ((ConversationLoader)loader).hasOlder()) {
+        loadingOlder = true;
+        ((ConversationLoader)loader).loadOlder();
+      }
+    }
+  }
+
   private class ActionModeCallback implements ActionMode.Callback {
 
     @Override
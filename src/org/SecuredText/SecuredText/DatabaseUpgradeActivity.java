@@ -20,7 +20,6 @@ package org.SecuredText.SecuredText;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
-import android.database.Cursor;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.util.Log;
@@ -183,8 +182,8 @@ public class DatabaseUpgradeActivity extends BaseActivity {
         EncryptingSmsDatabase smsDatabase  = DatabaseFactory.getEncryptingSmsDatabase(getApplicationContext());
         PushDatabase          pushDatabase = DatabaseFactory.getPushDatabase(getApplicationContext());
 
-        SmsDatabase.Reader smsReader  = null;
-        Cursor             pushReader = null;
+        SmsDatabase.Reader         smsReader  = null;
+        PushDatabase.PendingReader pushReader = null;
 
         SmsMessageRecord record;
 
@@ -194,7 +193,8 @@ public class DatabaseUpgradeActivity extends BaseActivity {
           while ((record = smsReader.getNext()) != null) {
             ApplicationContext.getInstance(getApplicationContext())
                               .getJobManager()
-                              .add(new SmsDecryptJob(getApplicationContext(), record.getId()));
+                              .add(new SmsDecryptJob(getApplicationContext(), record.getId(),
+                                                     record.getIndividualRecipient().getNumber()));
           }
         } finally {
           if (smsReader != null)
@@ -202,14 +202,12 @@ public class DatabaseUpgradeActivity extends BaseActivity {
         }
 
         try {
-          pushReader = pushDatabase.getPending();
+          pushReader = pushDatabase.readPending(false);
 
-          while ((pushReader != null && pushReader.moveToNext())) {
+          while (pushReader.next()) {
             ApplicationContext.getInstance(getApplicationContext())
                 .getJobManager()
-                .add(new PushDecryptJob(getApplicationContext(),
-                                        pushReader.getLong(pushReader.getColumnIndexOrThrow(PushDatabase.ID)),
-                                        pushReader.getString(pushReader.getColumnIndexOrThrow(PushDatabase.SOURCE))));
+                .add(new PushDecryptJob(getApplicationContext(), pushReader.getId(), pushReader.getSource()));
           }
         } finally {
           if (pushReader != null)
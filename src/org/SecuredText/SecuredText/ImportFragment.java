@@ -137,7 +137,9 @@ public class ImportFragment extends Fragment {
     builder.show();
   }
 
-  private class ImportPlaintextBackupTask extends AsyncTask<Void, Void, Integer> {
+  private class ImportPlaintextBackupTask extends AsyncTask<Void, Long, Integer>
+      implements PlaintextBackupImporter.ImportProgressListener
+  {
 
     @Override
     protected void onPreExecute() {
@@ -147,6 +149,27 @@ public class ImportFragment extends Fragment {
                                            true, false);
     }
 
+    @Override
+    public void onImportProgress(int imported, int total, long messagesPerSecond) {
+      publishProgress((long)imported, (long)total, messagesPerSecond);
+    }
+
+    @Override
+    protected void onProgressUpdate(Long... progress) {
+      Context context = getActivity();
+
+      if (progressDialog == null || context == null)
+        return;
+
+      if (progress[1] > 0) {
+        progressDialog.setMessage(context.getString(R.string.ImportFragment_imported_d_of_d_messages_d_per_second,
+                                                    progress[0], progress[1], progress[2]));
+      } else {
+        progressDialog.setMessage(context.getString(R.string.ImportFragment_imported_d_messages_d_per_second,
+                                                    progress[0], progress[2]));
+      }
+    }
+
     protected void onPostExecute(Integer result) {
       Context context = getActivity();
 
@@ -178,7 +201,7 @@ public class ImportFragment extends Fragment {
     @Override
     protected Integer doInBackground(Void... params) {
       try {
-        PlaintextBackupImporter.importPlaintextFromSd(getActivity(), masterSecret);
+        PlaintextBackupImporter.importPlaintextFromSd(getActivity(), masterSecret, this);
         return SUCCESS;
       } catch (NoExternalStorageException e) {
         Log.w("ImportFragment", e);
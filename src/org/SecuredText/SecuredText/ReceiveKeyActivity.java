@@ -242,7 +242,7 @@ public class ReceiveKeyActivity extends BaseActivity {
             } else {
               ApplicationContext.getInstance(context)
                                 .getJobManager()
-                                .add(new SmsDecryptJob(context, messageId));
+                                .add(new SmsDecryptJob(context, messageId, message.getSender()));
             }
           }
 
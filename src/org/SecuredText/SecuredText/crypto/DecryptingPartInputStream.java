@@ -40,13 +40,17 @@ import android.util.Log;
 /**
  * Class for streaming an encrypted MMS "part" off the disk.
  *
+ * Ciphertext is read and decrypted through a pair of buffers allocated once per stream,
+ * so reading a large part costs no allocation per read.
+ *
  * @author Moxie Marlinspike
  */
 
 public class DecryptingPartInputStream extends FileInputStream {
 
-  private static final int IV_LENGTH  = 16;
-  private static final int MAC_LENGTH = 20;
+  private static final int IV_LENGTH   = 16;
+  private static final int MAC_LENGTH  = 20;
+  private static final int BUFFER_SIZE = 8192;
 
   private Cipher cipher;
   private Mac mac;
@@ -54,7 +58,11 @@ public class DecryptingPartInputStream extends FileInputStream {
   private boolean done;
   private long totalDataSize;
   private long totalRead;
-  private byte[] overflowBuffer;
+
+  private byte[] cipherBuffer;
+  private byte[] plainBuffer;
+  private int    plainOffset;
+  private int    plainLength;
 
   public DecryptingPartInputStream(File file, MasterSecret masterSecret) throws FileNotFoundException {
     super(file);
@@ -67,6 +75,8 @@ public class DecryptingPartInputStream extends FileInputStream {
       cipher        = initializeCipher(masterSecret.getEncryptionKey());
       totalDataSize = file.length() - cipher.getBlockSize() - mac.getMacLength();
       totalRead     = 0;
+      cipherBuffer  = new byte[BUFFER_SIZE];
+      plainBuffer   = new byte[BUFFER_SIZE + cipher.getBlockSize()];
     } catch (InvalidKeyException ike) {
       Log.w("EncryptingPartInputStream", ike);
       throw new FileNotFoundException("Invalid key!");
@@ -82,6 +92,12 @@ public class DecryptingPartInputStream extends FileInputStream {
     }
   }
 
+  @Override
+  public int read() throws IOException {
+    if (!fillPlainBuffer()) return -1;
+    return plainBuffer[plainOffset++] & 0xFF;
+  }
+
   @Override
   public int read(byte[] buffer) throws IOException {
     return read(buffer, 0, buffer.length);
@@ -89,12 +105,19 @@ public class DecryptingPartInputStream extends FileInputStream {
 
   @Override
   public int read(byte[] buffer, int offset, int length) throws IOException {
-    if (totalRead != totalDataSize)
-      return readIncremental(buffer, offset, length);
-    else if (!done)
-      return readFinal(buffer, offset, length);
-    else
-      return -1;
+    if (length == 0)         return 0;
+    if (!fillPlainBuffer())  return -1;
+
+    int copied = Math.min(length, plainLength - plainOffset);
+    System.arraycopy(plainBuffer, plainOffset, buffer, offset, copied);
+    plainOffset += copied;
+
+    return copied;
+  }
+
+  @Override
+  public int available() {
+    return plainLength - plainOffset;
   }
 
   @Override
@@ -105,20 +128,34 @@ public class DecryptingPartInputStream extends FileInputStream {
   @Override
   public long skip(long byteCount) throws IOException {
     long skipped = 0L;
-    while (skipped < byteCount) {
-      byte[] buf  = new byte[Math.min(4096, (int)(byteCount-skipped))];
-      int    read = read(buf);
 
-      skipped += read;
+    while (skipped < byteCount && fillPlainBuffer()) {
+      int skip = (int)Math.min(plainLength - plainOffset, byteCount - skipped);
+
+      plainOffset += skip;
+      skipped     += skip;
     }
 
     return skipped;
   }
 
-  private int readFinal(byte[] buffer, int offset, int length) throws IOException {
+  /**
+   * @return true if there is plaintext waiting in plainBuffer, false at the end of the part.
+   */
+  private boolean fillPlainBuffer() throws IOException {
+    while (plainOffset == plainLength) {
+      if      (totalRead != totalDataSize) readIncremental();
+      else if (!done)                      readFinal();
+      else                                 return false;
+    }
+
+    return true;
+  }
+
+  private void readFinal() throws IOException {
     try {
-      int flourish = cipher.doFinal(buffer, offset);
-      //mac.update(buffer, offset, flourish);
+      plainOffset = 0;
+      plainLength = cipher.doFinal(plainBuffer, 0);
 
       byte[] ourMac   = mac.doFinal();
       byte[] theirMac = new byte[mac.getMacLength()];
@@ -128,7 +165,6 @@ public class DecryptingPartInputStream extends FileInputStream {
         throw new IOException("MAC doesn't match! Potential tampering?");
 
       done = true;
-      return flourish;
     } catch (IllegalBlockSizeException e) {
       Log.w("EncryptingPartInputStream", e);
       throw new IOException("Illegal block size exception!");
@@ -141,54 +177,19 @@ public class DecryptingPartInputStream extends FileInputStream {
     }
   }
 
-  private int readIncremental(byte[] buffer, int offset, int length) throws IOException {
-    int readLength = 0;
-    if (null != overflowBuffer) {
-      if (overflowBuffer.length > length) {
-        System.arraycopy(overflowBuffer, 0, buffer, offset, length);
-        overflowBuffer = Arrays.copyOfRange(overflowBuffer, length, overflowBuffer.length);
-        return length;
-      } else if (overflowBuffer.length == length) {
-        System.arraycopy(overflowBuffer, 0, buffer, offset, length);
-        overflowBuffer = null;
-        return length;
-      } else {
-        System.arraycopy(overflowBuffer, 0, buffer, offset, overflowBuffer.length);
-        readLength += overflowBuffer.length;
-        offset += readLength;
-        length -= readLength;
-        overflowBuffer = null;
-      }
-    }
+  private void readIncremental() throws IOException {
+    int length = (int)Math.min(cipherBuffer.length, totalDataSize - totalRead);
+    int read   = super.read(cipherBuffer, 0, length);
 
-    if (length + totalRead > totalDataSize)
-      length = (int)(totalDataSize - totalRead);
+    if (read == -1) throw new IOException("Part truncated!");
 
-    byte[] internalBuffer = new byte[length];
-    int read              = super.read(internalBuffer, 0, internalBuffer.length <= cipher.getBlockSize() ? internalBuffer.length : internalBuffer.length - cipher.getBlockSize());
-    totalRead            += read;
+    totalRead += read;
 
     try {
-      mac.update(internalBuffer, 0, read);
-
-      int outputLen = cipher.getOutputSize(read);
-
-      if (outputLen <= length) {
-        readLength += cipher.update(internalBuffer, 0, read, buffer, offset);
-        return readLength;
-      }
-
-      byte[] transientBuffer = new byte[outputLen];
-      outputLen = cipher.update(internalBuffer, 0, read, transientBuffer, 0);
-      if (outputLen <= length) {
-        System.arraycopy(transientBuffer, 0, buffer, offset, outputLen);
-        readLength += outputLen;
-      } else {
-        System.arraycopy(transientBuffer, 0, buffer, offset, length);
-        overflowBuffer = Arrays.copyOfRange(transientBuffer, length, outputLen);
-        readLength += length;
-      }
-      return readLength;
+      mac.update(cipherBuffer, 0, read);
+
+      plainOffset = 0;
+      plainLength = cipher.update(cipherBuffer, 0, read, plainBuffer, 0);
     } catch (ShortBufferException e) {
       throw new AssertionError(e);
     }
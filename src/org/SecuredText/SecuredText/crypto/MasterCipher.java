@@ -26,17 +26,18 @@ import org.whispersystems.libaxolotl.ecc.Curve;
 import org.whispersystems.libaxolotl.ecc.ECPrivateKey;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 
-import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -49,25 +50,48 @@ import javax.crypto.spec.SecretKeySpec;
  * 2) AES-CBC(plaintext)
  * 3) HMAC-SHA1 of 1 and 2
  *
+ * The underlying Cipher and Mac engines are kept per-thread and shared by every
+ * MasterCipher, so instances are cheap to create and safe to share between threads.
+ *
  * @author Moxie Marlinspike
  */
 
 public class MasterCipher {
 
+  private static final String CIPHER_ALGORITHM = "AES/CBC/PKCS5Padding";
+  private static final String MAC_ALGORITHM    = "HmacSHA1";
+  private static final int    IV_LENGTH        = 16;
+  private static final int    MAC_LENGTH       = 20;
+
+  private static final ThreadLocal<Cipher> ENCRYPTING_CIPHER = new ThreadLocal<Cipher>() {
+    @Override
+    protected Cipher initialValue() {
+      return newCipher();
+    }
+  };
+
+  private static final ThreadLocal<Cipher> DECRYPTING_CIPHER = new ThreadLocal<Cipher>() {
+    @Override
+    protected Cipher initialValue() {
+      return newCipher();
+    }
+  };
+
+  private static final ThreadLocal<Mac> HMAC = new ThreadLocal<Mac>() {
+    @Override
+    protected Mac initialValue() {
+      try {
+        return Mac.getInstance(MAC_ALGORITHM);
+      } catch (NoSuchAlgorithmException e) {
+        throw new AssertionError(e);
+      }
+    }
+  };
+
   private final MasterSecret masterSecret;
-  private final Cipher encryptingCipher;
-  private final Cipher decryptingCipher;
-  private final Mac hmac;
 
   public MasterCipher(MasterSecret masterSecret) {
-    try {
-      this.masterSecret = masterSecret;
-      this.encryptingCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-      this.decryptingCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-      this.hmac             = Mac.getInstance("HmacSHA1");
-    } catch (NoSuchPaddingException | NoSuchAlgorithmException nspe) {
-      throw new AssertionError(nspe);
-    }
+    this.masterSecret = masterSecret;
   }
 
   public byte[] encryptKey(ECPrivateKey privateKey) {
@@ -93,33 +117,131 @@ public class MasterCipher {
   }
 
   public byte[] decryptBytes(byte[] decodedBody) throws InvalidMessageException {
+    return decryptBytes(decodedBody, 0, decodedBody.length);
+  }
+
+  public byte[] decryptBytes(byte[] decodedBody, int offset, int length) throws InvalidMessageException {
+    try {
+      Mac    mac           = getMac(masterSecret.getMacKey());
+      int    encryptedSize = verifyMacBody(mac, decodedBody, offset, length);
+
+      Cipher cipher        = getDecryptingCipher(masterSecret.getEncryptionKey(), decodedBody, offset);
+      int    blockSize     = cipher.getBlockSize();
+
+      return cipher.doFinal(decodedBody, offset + blockSize, encryptedSize - blockSize);
+    } catch (GeneralSecurityException ge) {
+      throw new InvalidMessageException(ge);
+    }
+  }
+
+  /**
+   * Verifies and decrypts the remaining bytes of ciphertext into output, advancing both
+   * buffers.  Output needs room for getMaxDecryptedSize(ciphertext.remaining()) bytes.
+   *
+   * @return the number of plaintext bytes written.
+   */
+  public int decryptBytes(ByteBuffer ciphertext, ByteBuffer output) throws InvalidMessageException {
     try {
-      Mac mac              = getMac(masterSecret.getMacKey());
-      byte[] encryptedBody = verifyMacBody(mac, decodedBody);
+      if (ciphertext.remaining() < IV_LENGTH + MAC_LENGTH) {
+        throw new InvalidMessageException("Message too short: " + ciphertext.remaining());
+      }
+
+      Mac        mac       = getMac(masterSecret.getMacKey());
+      ByteBuffer encrypted = ciphertext.duplicate();
+      byte[]     remoteMac = new byte[MAC_LENGTH];
+
+      encrypted.limit(ciphertext.limit() - MAC_LENGTH);
+      mac.update(encrypted.duplicate());
 
-      Cipher cipher        = getDecryptingCipher(masterSecret.getEncryptionKey(), encryptedBody);
-      byte[] encrypted     = getDecryptedBody(cipher, encryptedBody);
+      ByteBuffer macBuffer = ciphertext.duplicate();
+      macBuffer.position(encrypted.limit());
+      macBuffer.get(remoteMac);
 
-      return encrypted;
+      if (!MessageDigest.isEqual(remoteMac, mac.doFinal()))
+        throw new InvalidMessageException("MAC doesen't match.");
+
+      byte[] iv = new byte[IV_LENGTH];
+      encrypted.get(iv);
+
+      Cipher cipher  = getDecryptingCipher(masterSecret.getEncryptionKey(), iv, 0);
+      int    written = cipher.doFinal(encrypted, output);
+
+      ciphertext.position(ciphertext.limit());
+      return written;
     } catch (GeneralSecurityException ge) {
       throw new InvalidMessageException(ge);
     }
   }
 
   public byte[] encryptBytes(byte[] body) {
+    return encryptBytes(body, 0, body.length);
+  }
+
+  public byte[] encryptBytes(byte[] body, int offset, int length) {
     try {
-      Cipher cipher              = getEncryptingCipher(masterSecret.getEncryptionKey());
-      Mac    mac                 = getMac(masterSecret.getMacKey());
+      Cipher cipher = getEncryptingCipher(masterSecret.getEncryptionKey());
+      Mac    mac    = getMac(masterSecret.getMacKey());
+      byte[] iv     = cipher.getIV();
+
+      byte[] encryptedAndMacBody = new byte[iv.length + cipher.getOutputSize(length) + mac.getMacLength()];
+      System.arraycopy(iv, 0, encryptedAndMacBody, 0, iv.length);
+
+      int encryptedLength = iv.length + cipher.doFinal(body, offset, length, encryptedAndMacBody, iv.length);
 
-      byte[] encryptedBody       = getEncryptedBody(cipher, body);
-      byte[] encryptedAndMacBody = getMacBody(mac, encryptedBody);
+      mac.update(encryptedAndMacBody, 0, encryptedLength);
+      mac.doFinal(encryptedAndMacBody, encryptedLength);
+
+      if (encryptedLength + mac.getMacLength() != encryptedAndMacBody.length) {
+        return Arrays.copyOf(encryptedAndMacBody, encryptedLength + mac.getMacLength());
+      }
 
       return encryptedAndMacBody;
     } catch (GeneralSecurityException ge) {
       Log.w("bodycipher", ge);
       return null;
     }
+  }
+
+  /**
+   * Encrypts the remaining bytes of plaintext into output, advancing both buffers.  Output
+   * needs room for getEncryptedSize(plaintext.remaining()) bytes.
+   *
+   * @return the number of bytes written.
+   */
+  public int encryptBytes(ByteBuffer plaintext, ByteBuffer output) throws ShortBufferException {
+    if (output.remaining() < getEncryptedSize(plaintext.remaining())) {
+      throw new ShortBufferException("Need " + getEncryptedSize(plaintext.remaining()) + " bytes");
+    }
+
+    try {
+      Cipher cipher = getEncryptingCipher(masterSecret.getEncryptionKey());
+      Mac    mac    = getMac(masterSecret.getMacKey());
+      int    start  = output.position();
+
+      output.put(cipher.getIV());
+      cipher.doFinal(plaintext, output);
+
+      ByteBuffer encrypted = output.duplicate();
+      encrypted.flip();
+      encrypted.position(start);
+      mac.update(encrypted);
+
+      output.put(mac.doFinal());
+
+      return output.position() - start;
+    } catch (ShortBufferException e) {
+      throw e;
+    } catch (GeneralSecurityException ge) {
+      throw new AssertionError(ge);
+    }
+  }
+
+  public static int getEncryptedSize(int plaintextSize) {
+    return IV_LENGTH + (plaintextSize / IV_LENGTH + 1) * IV_LENGTH + MAC_LENGTH;
+  }
 
+  public static int getMaxDecryptedSize(int ciphertextSize) {
+    return Math.max(0, ciphertextSize - IV_LENGTH - MAC_LENGTH);
   }
 
   public boolean verifyMacFor(String content, byte[] theirMac) {
@@ -153,66 +275,56 @@ public class MasterCipher {
     return Base64.encodeBytes(encryptedAndMacBody);
   }
 
-  private byte[] verifyMacBody(Mac hmac, byte[] encryptedAndMac) throws InvalidMessageException {
-    byte[] encrypted = new byte[encryptedAndMac.length - hmac.getMacLength()];
-    System.arraycopy(encryptedAndMac, 0, encrypted, 0, encrypted.length);
+  private int verifyMacBody(Mac hmac, byte[] encryptedAndMac, int offset, int length)
+      throws InvalidMessageException
+  {
+    int macLength     = hmac.getMacLength();
+    int encryptedSize = length - macLength;
 
-    byte[] remoteMac = new byte[hmac.getMacLength()];
-    System.arraycopy(encryptedAndMac, encryptedAndMac.length - remoteMac.length, remoteMac, 0, remoteMac.length);
+    if (encryptedSize < IV_LENGTH) {
+      throw new InvalidMessageException("Message too short: " + length);
+    }
 
-    byte[] localMac  = hmac.doFinal(encrypted);
+    hmac.update(encryptedAndMac, offset, encryptedSize);
+    byte[] localMac  = hmac.doFinal();
+    byte[] remoteMac = Arrays.copyOfRange(encryptedAndMac, offset + encryptedSize, offset + length);
 
-    if (!Arrays.equals(remoteMac, localMac))
+    if (!MessageDigest.isEqual(remoteMac, localMac))
       throw new InvalidMessageException("MAC doesen't match.");
 
-    return encrypted;
-  }
-
-  private byte[] getDecryptedBody(Cipher cipher, byte[] encryptedBody) throws IllegalBlockSizeException, BadPaddingException {
-    return cipher.doFinal(encryptedBody, cipher.getBlockSize(), encryptedBody.length - cipher.getBlockSize());
-  }
-
-  private byte[] getEncryptedBody(Cipher cipher, byte[] body) throws IllegalBlockSizeException, BadPaddingException {
-    byte[] encrypted = cipher.doFinal(body);
-    byte[] iv        = cipher.getIV();
-
-    byte[] ivAndBody = new byte[iv.length + encrypted.length];
-    System.arraycopy(iv, 0, ivAndBody, 0, iv.length);
-    System.arraycopy(encrypted, 0, ivAndBody, iv.length, encrypted.length);
-
-    return ivAndBody;
+    return encryptedSize;
   }
 
-  private Mac getMac(SecretKeySpec key) throws NoSuchAlgorithmException, InvalidKeyException {
-    //		Mac hmac = Mac.getInstance("HmacSHA1");
+  private Mac getMac(SecretKeySpec key) throws InvalidKeyException {
+    Mac hmac = HMAC.get();
     hmac.init(key);
 
     return hmac;
   }
 
-  private byte[] getMacBody(Mac hmac, byte[] encryptedBody) {
-    byte[] mac             = hmac.doFinal(encryptedBody);
-    byte[] encryptedAndMac = new byte[encryptedBody.length + mac.length];
-
-    System.arraycopy(encryptedBody, 0, encryptedAndMac, 0, encryptedBody.length);
-    System.arraycopy(mac, 0, encryptedAndMac, encryptedBody.length, mac.length);
+  private Cipher getDecryptingCipher(SecretKeySpec key, byte[] encryptedBody, int offset)
+      throws InvalidKeyException, InvalidAlgorithmParameterException
+  {
+    Cipher          cipher = DECRYPTING_CIPHER.get();
+    IvParameterSpec iv     = new IvParameterSpec(encryptedBody, offset, cipher.getBlockSize());
+    cipher.init(Cipher.DECRYPT_MODE, key, iv);
 
-    return encryptedAndMac;
+    return cipher;
   }
 
-  private Cipher getDecryptingCipher(SecretKeySpec key, byte[] encryptedBody) throws InvalidKeyException, InvalidAlgorithmParameterException, NoSuchAlgorithmException, NoSuchPaddingException {
-    //		Cipher cipher      = Cipher.getInstance("AES/CBC/PKCS5Padding");
-    IvParameterSpec iv = new IvParameterSpec(encryptedBody, 0, decryptingCipher.getBlockSize());
-    decryptingCipher.init(Cipher.DECRYPT_MODE, key, iv);
+  private Cipher getEncryptingCipher(SecretKeySpec key) throws InvalidKeyException {
+    Cipher cipher = ENCRYPTING_CIPHER.get();
+    cipher.init(Cipher.ENCRYPT_MODE, key);
 
-    return decryptingCipher;
+    return cipher;
   }
 
-  private Cipher getEncryptingCipher(SecretKeySpec key) throws InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException {
-    //		Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-    encryptingCipher.init(Cipher.ENCRYPT_MODE, key);
-
-    return encryptingCipher;
+  private static Cipher newCipher() {
+    try {
+      return Cipher.getInstance(CIPHER_ALGORITHM);
+    } catch (NoSuchPaddingException | NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
   }
 
 }
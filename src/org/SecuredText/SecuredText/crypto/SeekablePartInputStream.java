@@ -0,0 +1,350 @@
+/**
+ * Copyright (C) 2011 Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.SecuredText.SecuredText.crypto;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Class for reading a seekable encrypted MMS "part" off the disk.
+ *
+ * The part is a header followed by chunks of AES-CTR ciphertext, each with its own MAC
+ * over the chunk's index, whether it is the last chunk, and its ciphertext.  Any offset
+ * can be read by decrypting and verifying only the chunk that holds it, so seeks and
+ * skips cost one chunk regardless of where they land.
+ *
+ * @see SeekablePartOutputStream
+ */
+public class SeekablePartInputStream extends InputStream {
+
+  private static final String TAG = SeekablePartInputStream.class.getSimpleName();
+
+  /*package*/ static final byte[] MAGIC         = {'S', 'T', 'P', 'A', 'R', 'T', 0, 2};
+  /*package*/ static final int    NONCE_LENGTH  = 8;
+  /*package*/ static final int    HEADER_LENGTH = MAGIC.length + NONCE_LENGTH;
+  /*package*/ static final int    CHUNK_SIZE    = 32 * 1024;
+  /*package*/ static final int    MAC_LENGTH    = 20;
+
+  private final RandomAccessFile file;
+  private final Cipher           cipher;
+  private final Mac              mac;
+  private final SecretKeySpec    encryptionKey;
+  private final byte[]           nonce;
+  private final long             length;
+  private final long             chunkCount;
+
+  private final byte[] chunkBuffer = new byte[CHUNK_SIZE + MAC_LENGTH];
+  private final byte[] plainBuffer = new byte[CHUNK_SIZE];
+  private final byte[] ourMac      = new byte[MAC_LENGTH];
+  private final byte[] ivBuffer    = new byte[16];
+  private final byte[] singleByte  = new byte[1];
+
+  private long    loadedChunk = -1;
+  private int     loadedLength;
+  private long    position;
+  private long    markPosition;
+  private boolean verifiedEnd;
+
+  public SeekablePartInputStream(File file, MasterSecret masterSecret) throws FileNotFoundException {
+    long storedLength   = file.length() - HEADER_LENGTH;
+    long fullChunks     = storedLength / (CHUNK_SIZE + MAC_LENGTH);
+    long remainder      = storedLength % (CHUNK_SIZE + MAC_LENGTH);
+
+    if (storedLength < MAC_LENGTH || (remainder > 0 && remainder < MAC_LENGTH))
+      throw new FileNotFoundException("Part shorter than crypto overhead!");
+
+    this.file          = new RandomAccessFile(file, "r");
+    this.chunkCount    = fullChunks + (remainder > 0 ? 1 : 0);
+    this.length        = storedLength - chunkCount * MAC_LENGTH;
+    this.encryptionKey = masterSecret.getEncryptionKey();
+    this.nonce         = new byte[NONCE_LENGTH];
+
+    try {
+      byte[] magic = new byte[MAGIC.length];
+
+      this.file.readFully(magic);
+      this.file.readFully(nonce);
+
+      if (!Arrays.equals(magic, MAGIC))
+        throw new FileNotFoundException("Not a seekable part!");
+
+      this.cipher = initializeCipher();
+      this.mac    = initializeMac(masterSecret.getMacKey());
+    } catch (FileNotFoundException e) {
+      closeQuietly();
+      throw e;
+    } catch (IOException e) {
+      Log.w(TAG, e);
+      closeQuietly();
+      throw new FileNotFoundException("IOException while reading header!");
+    } catch (InvalidKeyException e) {
+      Log.w(TAG, e);
+      closeQuietly();
+      throw new FileNotFoundException("Invalid key!");
+    }
+  }
+
+  /**
+   * @return true if the file at path was written by {@link SeekablePartOutputStream},
+   * rather than being a CBC part for {@link DecryptingPartInputStream}.
+   */
+  public static boolean isSeekablePart(File path) {
+    if (path.length() < HEADER_LENGTH) return false;
+
+    FileInputStream in = null;
+
+    try {
+      byte[] magic = new byte[MAGIC.length];
+      int    read  = 0;
+      int    count;
+
+      in = new FileInputStream(path);
+
+      while (read < magic.length && (count = in.read(magic, read, magic.length - read)) != -1) {
+        read += count;
+      }
+
+      return read == magic.length && Arrays.equals(magic, MAGIC);
+    } catch (IOException e) {
+      Log.w(TAG, e);
+      return false;
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) {
+          Log.w(TAG, e);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the plaintext length of the part.
+   */
+  public long length() {
+    return length;
+  }
+
+  public long getPosition() {
+    return position;
+  }
+
+  /**
+   * Moves to a plaintext offset.  Nothing is decrypted until the next read.
+   */
+  public void seek(long position) throws IOException {
+    if (position < 0 || position > length)
+      throw new IOException("Seek to " + position + " outside part of length " + length);
+
+    this.position = position;
+  }
+
+  @Override
+  public int read() throws IOException {
+    return read(singleByte, 0, 1) == -1 ? -1 : singleByte[0] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] buffer) throws IOException {
+    return read(buffer, 0, buffer.length);
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int count) throws IOException {
+    if (count == 0) return 0;
+
+    if (position >= length) {
+      verifyEnd();
+      return -1;
+    }
+
+    long chunk         = position / CHUNK_SIZE;
+    int  offsetInChunk = (int)(position % CHUNK_SIZE);
+
+    loadChunk(chunk);
+
+    int copied = Math.min(count, loadedLength - offsetInChunk);
+    System.arraycopy(plainBuffer, offsetInChunk, buffer, offset, copied);
+    position += copied;
+
+    return copied;
+  }
+
+  @Override
+  public long skip(long byteCount) throws IOException {
+    if (byteCount <= 0) return 0;
+
+    long skipped = Math.min(byteCount, length - position);
+    position += skipped;
+
+    return skipped;
+  }
+
+  @Override
+  public int available() {
+    if (position >= length || position / CHUNK_SIZE != loadedChunk) return 0;
+    return loadedLength - (int)(position % CHUNK_SIZE);
+  }
+
+  @Override
+  public boolean markSupported() {
+    return true;
+  }
+
+  @Override
+  public synchronized void mark(int readLimit) {
+    markPosition = position;
+  }
+
+  @Override
+  public synchronized void reset() {
+    position = markPosition;
+  }
+
+  @Override
+  public void close() throws IOException {
+    file.close();
+  }
+
+  /**
+   * A reader that stops at the end of the plaintext still learns if the part was
+   * truncated, because the chunk it finished on must verify as the last one.
+   */
+  private void verifyEnd() throws IOException {
+    if (!verifiedEnd) {
+      loadChunk(chunkCount - 1);
+      verifiedEnd = true;
+    }
+  }
+
+  private void loadChunk(long chunk) throws IOException {
+    if (chunk == loadedChunk) return;
+
+    boolean last        = chunk == chunkCount - 1;
+    int     chunkLength = last ? (int)(length - chunk * CHUNK_SIZE) : CHUNK_SIZE;
+
+    file.seek(HEADER_LENGTH + chunk * (CHUNK_SIZE + MAC_LENGTH));
+    file.readFully(chunkBuffer, 0, chunkLength + MAC_LENGTH);
+
+    try {
+      updateChunkMac(mac, nonce, chunk, last, ivBuffer);
+      mac.update(chunkBuffer, 0, chunkLength);
+      mac.doFinal(ourMac, 0);
+
+      if (!isEqual(ourMac, chunkBuffer, chunkLength))
+        throw new IOException("MAC doesn't match! Potential tampering?");
+
+      cipher.init(Cipher.DECRYPT_MODE, encryptionKey, getChunkIv(nonce, chunk, ivBuffer));
+      loadedLength = cipher.doFinal(chunkBuffer, 0, chunkLength, plainBuffer, 0);
+      loadedChunk  = chunk;
+    } catch (GeneralSecurityException e) {
+      loadedChunk = -1;
+      Log.w(TAG, e);
+      throw new IOException("Failed to decrypt chunk " + chunk);
+    } catch (IOException e) {
+      loadedChunk = -1;
+      throw e;
+    }
+  }
+
+  private void closeQuietly() {
+    try {
+      file.close();
+    } catch (IOException e) {
+      Log.w(TAG, e);
+    }
+  }
+
+  private static boolean isEqual(byte[] mac, byte[] buffer, int offset) {
+    int difference = 0;
+
+    for (int i = 0; i < mac.length; i++) {
+      difference |= mac[i] ^ buffer[offset + i];
+    }
+
+    return difference == 0;
+  }
+
+  /**
+   * The counter for a chunk starts at the chunk's first block, so chunks never share
+   * keystream and any of them can be decrypted alone.
+   */
+  /*package*/ static IvParameterSpec getChunkIv(byte[] nonce, long chunk, byte[] ivBuffer) {
+    long counter = chunk * (CHUNK_SIZE / 16);
+
+    System.arraycopy(nonce, 0, ivBuffer, 0, NONCE_LENGTH);
+
+    for (int i = 15; i >= NONCE_LENGTH; i--) {
+      ivBuffer[i] = (byte)counter;
+      counter >>>= 8;
+    }
+
+    return new IvParameterSpec(ivBuffer);
+  }
+
+  /**
+   * Starts a chunk's MAC with the part's nonce, the chunk's index, and whether it is the
+   * last chunk, so chunks can't be reordered, moved between parts, or cut off.
+   */
+  /*package*/ static void updateChunkMac(Mac mac, byte[] nonce, long chunk, boolean last, byte[] scratch) {
+    for (int i = 7; i >= 0; i--) {
+      scratch[i] = (byte)chunk;
+      chunk >>>= 8;
+    }
+
+    scratch[8] = (byte)(last ? 1 : 0);
+
+    mac.update(nonce);
+    mac.update(scratch, 0, 9);
+  }
+
+  /*package*/ static Mac initializeMac(SecretKeySpec key) throws InvalidKeyException {
+    try {
+      Mac hmac = Mac.getInstance("HmacSHA1");
+      hmac.init(key);
+
+      return hmac;
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /*package*/ static Cipher initializeCipher() {
+    try {
+      return Cipher.getInstance("AES/CTR/NoPadding");
+    } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
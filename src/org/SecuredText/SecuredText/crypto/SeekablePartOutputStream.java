@@ -0,0 +1,138 @@
+/**
+ * Copyright (C) 2011 Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.SecuredText.SecuredText.crypto;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.SecuredText.SecuredText.crypto.SeekablePartInputStream.CHUNK_SIZE;
+import static org.SecuredText.SecuredText.crypto.SeekablePartInputStream.MAC_LENGTH;
+import static org.SecuredText.SecuredText.crypto.SeekablePartInputStream.MAGIC;
+import static org.SecuredText.SecuredText.crypto.SeekablePartInputStream.NONCE_LENGTH;
+
+/**
+ * A class for streaming a seekable encrypted MMS "part" to disk, in the format read by
+ * {@link SeekablePartInputStream}.
+ *
+ * A chunk is only written once the next byte after it arrives, or on close, so that the
+ * last chunk is always known when its MAC is computed.
+ */
+public class SeekablePartOutputStream extends FileOutputStream {
+
+  private static final String TAG = SeekablePartOutputStream.class.getSimpleName();
+
+  private final Cipher        cipher;
+  private final Mac           mac;
+  private final SecretKeySpec encryptionKey;
+  private final byte[]        nonce;
+
+  private final byte[] plainBuffer = new byte[CHUNK_SIZE];
+  private final byte[] chunkBuffer = new byte[CHUNK_SIZE + MAC_LENGTH];
+  private final byte[] ivBuffer    = new byte[16];
+  private final byte[] singleByte  = new byte[1];
+
+  private long    chunk;
+  private int     buffered;
+  private boolean closed;
+
+  public SeekablePartOutputStream(File file, MasterSecret masterSecret) throws FileNotFoundException {
+    super(file);
+
+    try {
+      this.encryptionKey = masterSecret.getEncryptionKey();
+      this.nonce         = new byte[NONCE_LENGTH];
+      this.cipher        = SeekablePartInputStream.initializeCipher();
+      this.mac           = SeekablePartInputStream.initializeMac(masterSecret.getMacKey());
+
+      new SecureRandom().nextBytes(nonce);
+
+      super.write(MAGIC, 0, MAGIC.length);
+      super.write(nonce, 0, nonce.length);
+    } catch (IOException ioe) {
+      Log.w(TAG, ioe);
+      throw new FileNotFoundException("Couldn't write header");
+    } catch (InvalidKeyException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  @Override
+  public void write(int value) throws IOException {
+    singleByte[0] = (byte)value;
+    write(singleByte, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] buffer) throws IOException {
+    write(buffer, 0, buffer.length);
+  }
+
+  @Override
+  public void write(byte[] buffer, int offset, int length) throws IOException {
+    while (length > 0) {
+      if (buffered == CHUNK_SIZE) {
+        writeChunk(false);
+      }
+
+      int copied = Math.min(length, CHUNK_SIZE - buffered);
+      System.arraycopy(buffer, offset, plainBuffer, buffered, copied);
+
+      buffered += copied;
+      offset   += copied;
+      length   -= copied;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (!closed) {
+      writeChunk(true);
+      closed = true;
+    }
+
+    super.close();
+  }
+
+  private void writeChunk(boolean last) throws IOException {
+    try {
+      cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, SeekablePartInputStream.getChunkIv(nonce, chunk, ivBuffer));
+      int encrypted = cipher.doFinal(plainBuffer, 0, buffered, chunkBuffer, 0);
+
+      SeekablePartInputStream.updateChunkMac(mac, nonce, chunk, last, ivBuffer);
+      mac.update(chunkBuffer, 0, encrypted);
+      mac.doFinal(chunkBuffer, encrypted);
+
+      super.write(chunkBuffer, 0, encrypted + MAC_LENGTH);
+
+      chunk++;
+      buffered = 0;
+    } catch (GeneralSecurityException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
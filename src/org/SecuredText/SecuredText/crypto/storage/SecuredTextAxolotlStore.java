@@ -26,10 +26,14 @@ public class SecuredTextAxolotlStore implements AxolotlStore {
   private final SessionStore      sessionStore;
 
   public SecuredTextAxolotlStore(Context context, MasterSecret masterSecret) {
+    this(context, masterSecret, new SecuredTextSessionStore(context, masterSecret));
+  }
+
+  public SecuredTextAxolotlStore(Context context, MasterSecret masterSecret, SessionStore sessionStore) {
     this.preKeyStore       = new SecuredTextPreKeyStore(context, masterSecret);
     this.signedPreKeyStore = new SecuredTextPreKeyStore(context, masterSecret);
     this.identityKeyStore  = new SecuredTextIdentityKeyStore(context, masterSecret);
-    this.sessionStore      = new SecuredTextSessionStore(context, masterSecret);
+    this.sessionStore      = sessionStore;
   }
 
   @Override
@@ -33,11 +33,11 @@ public class SecuredTextPreKeyStore implements PreKeyStore, SignedPreKeyStore {
   private static final String TAG                    = SecuredTextPreKeyStore.class.getSimpleName();
 
   private final Context      context;
-  private final MasterSecret masterSecret;
+  private final MasterCipher masterCipher;
 
   public SecuredTextPreKeyStore(Context context, MasterSecret masterSecret) {
     this.context      = context;
-    this.masterSecret = masterSecret;
+    this.masterCipher = new MasterCipher(masterSecret);
   }
 
   @Override
@@ -132,7 +132,6 @@ public class SecuredTextPreKeyStore implements PreKeyStore, SignedPreKeyStore {
   private byte[] loadSerializedRecord(File recordFile)
       throws IOException, InvalidMessageException
   {
-    MasterCipher masterCipher  = new MasterCipher(masterSecret);
     FileInputStream fin           = new FileInputStream(recordFile);
     int             recordVersion = readInteger(fin);
 
@@ -144,9 +143,8 @@ public class SecuredTextPreKeyStore implements PreKeyStore, SignedPreKeyStore {
   }
 
   private void storeSerializedRecord(File file, byte[] serialized) throws IOException {
-    MasterCipher     masterCipher = new MasterCipher(masterSecret);
-    RandomAccessFile recordFile   = new RandomAccessFile(file, "rw");
-    FileChannel      out          = recordFile.getChannel();
+    RandomAccessFile recordFile = new RandomAccessFile(file, "rw");
+    FileChannel      out        = recordFile.getChannel();
 
     out.position(0);
     writeInteger(CURRENT_VERSION_MARKER, out);
@@ -5,9 +5,11 @@ import android.util.Log;
 
 import org.SecuredText.SecuredText.crypto.MasterCipher;
 import org.SecuredText.SecuredText.crypto.MasterSecret;
-import org.SecuredText.SecuredText.recipients.Recipient;
+import org.SecuredText.SecuredText.database.DatabaseFactory;
+import org.SecuredText.SecuredText.database.SessionDatabase;
 import org.SecuredText.SecuredText.recipients.RecipientFactory;
 import org.SecuredText.SecuredText.util.Conversions;
+import org.SecuredText.SecuredText.util.LRUCache;
 import org.whispersystems.libaxolotl.AxolotlAddress;
 import org.whispersystems.libaxolotl.InvalidMessageException;
 import org.whispersystems.libaxolotl.state.SessionRecord;
@@ -18,92 +20,138 @@ import org.whispersystems.textsecure.api.push.TextSecureAddress;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import static org.whispersystems.libaxolotl.state.StorageProtos.SessionStructure;
 
+/**
+ * Stores session records encrypted in the sessions table of messages.db, one row per
+ * address.  Sessions from before the table existed are still read from their files,
+ * until the first store replaces them.
+ *
+ * A store created to defer keeps its stores in memory until persistDeferred(), which
+ * the decrypt path calls inside the transaction that inserts the decrypted message, so
+ * a session and the message it was advanced for are committed together.  Decryption
+ * itself has to happen outside that transaction: libaxolotl holds a global lock while it
+ * loads and stores sessions, so a thread waiting for that lock while holding the
+ * database could deadlock against a sender waiting for the database while holding it.
+ * For the same reason no lock of the store's own is held around database access.
+ *
+ * Serialized records are cached process wide, so a burst of messages from one contact
+ * reads and decrypts the session once.  The cache holds plaintext, so it's dropped by
+ * reset() whenever the master secret is cleared.
+ */
 public class SecuredTextSessionStore implements SessionStore {
 
   private static final String TAG                   = SecuredTextSessionStore.class.getSimpleName();
   private static final String SESSIONS_DIRECTORY_V2 = "sessions-v2";
-  private static final Object FILE_LOCK             = new Object();
 
   private static final int SINGLE_STATE_VERSION   = 1;
   private static final int ARCHIVE_STATES_VERSION = 2;
   private static final int CURRENT_VERSION        = 2;
 
-  private final Context      context;
-  private final MasterSecret masterSecret;
+  private static final int MAX_CACHED_RECORDS = 128;
+
+  private static final Map<AxolotlAddress, byte[]> records      = Collections.synchronizedMap(new LRUCache<AxolotlAddress, byte[]>(MAX_CACHED_RECORDS));
+  private static final Map<String, Long>           recipientIds = Collections.synchronizedMap(new LRUCache<String, Long>(MAX_CACHED_RECORDS));
+
+  private final Context                     context;
+  private final MasterCipher                masterCipher;
+  private final SessionDatabase             sessionDatabase;
+  private final Map<AxolotlAddress, byte[]> deferred;
 
   public SecuredTextSessionStore(Context context, MasterSecret masterSecret) {
-    this.context      = context.getApplicationContext();
-    this.masterSecret = masterSecret;
+    this(context, masterSecret, false);
+  }
+
+  public SecuredTextSessionStore(Context context, MasterSecret masterSecret, boolean defer) {
+    this.context         = context.getApplicationContext();
+    this.masterCipher    = new MasterCipher(masterSecret);
+    this.sessionDatabase = DatabaseFactory.getSessionDatabase(context);
+    this.deferred        = defer ? new HashMap<AxolotlAddress, byte[]>() : null;
+  }
+
+  /**
+   * Drops every cached record, for when the master secret is cleared, when a transaction
+   * that stored sessions is rolled back, or when the sessions have been replaced
+   * underneath the store, such as by a backup import.
+   */
+  public static void reset() {
+    records.clear();
+    recipientIds.clear();
+  }
+
+  /**
+   * Persists the records stored through this instance since it was created.  Called from
+   * within a transaction, they commit with it.  A record that has since been replaced in
+   * the cache by another store is skipped, since the newer record was advanced from it
+   * and is persisted by whoever stored it.
+   */
+  public void persistDeferred() {
+    for (Map.Entry<AxolotlAddress, byte[]> entry : deferred.entrySet()) {
+      byte[] current = records.get(entry.getKey());
+
+      if (current == null || current == entry.getValue()) {
+        persist(entry.getKey(), entry.getValue());
+      }
+    }
+
+    deferred.clear();
   }
 
   @Override
   public SessionRecord loadSession(AxolotlAddress address) {
-    synchronized (FILE_LOCK) {
-      try {
-        MasterCipher    cipher = new MasterCipher(masterSecret);
-        FileInputStream in     = new FileInputStream(getSessionFile(address));
+    try {
+      byte[] serialized = records.get(address);
 
-        int versionMarker  = readInteger(in);
+      if (serialized == null && deferred != null) {
+        serialized = deferred.get(address);
+      }
 
-        if (versionMarker > CURRENT_VERSION) {
-          throw new AssertionError("Unknown version: " + versionMarker);
-        }
+      if (serialized == null) {
+        serialized = readRecord(address);
 
-        byte[] serialized = cipher.decryptBytes(readBlob(in));
-        in.close();
-
-        if (versionMarker == SINGLE_STATE_VERSION) {
-          SessionStructure sessionStructure = SessionStructure.parseFrom(serialized);
-          SessionState     sessionState     = new SessionState(sessionStructure);
-          return new SessionRecord(sessionState);
-        } else if (versionMarker == ARCHIVE_STATES_VERSION) {
-          return new SessionRecord(serialized);
-        } else {
-          throw new AssertionError("Unknown version: " + versionMarker);
+        synchronized (records) {
+          if (!records.containsKey(address)) records.put(address, serialized);
         }
-      } catch (InvalidMessageException | IOException e) {
-        Log.w(TAG, "No existing session information found.");
-        return new SessionRecord();
       }
+
+      return new SessionRecord(serialized);
+    } catch (InvalidMessageException | IOException e) {
+      Log.w(TAG, "No existing session information found.");
+      return new SessionRecord();
     }
   }
 
   @Override
   public void storeSession(AxolotlAddress address, SessionRecord record) {
-    synchronized (FILE_LOCK) {
-      try {
-        MasterCipher     masterCipher = new MasterCipher(masterSecret);
-        RandomAccessFile sessionFile  = new RandomAccessFile(getSessionFile(address), "rw");
-        FileChannel      out          = sessionFile.getChannel();
-
-        out.position(0);
-        writeInteger(CURRENT_VERSION, out);
-        writeBlob(masterCipher.encryptBytes(record.serialize()), out);
-        out.truncate(out.position());
-
-        sessionFile.close();
-      } catch (IOException e) {
-        throw new AssertionError(e);
-      }
-    }
+    byte[] serialized = record.serialize();
+
+    if (deferred != null) deferred.put(address, serialized);
+    else                  persist(address, serialized);
+
+    records.put(address, serialized);
   }
 
   @Override
   public boolean containsSession(AxolotlAddress address) {
-    return getSessionFile(address).exists() &&
+    return (records.containsKey(address)                                                          ||
+            (deferred != null && deferred.containsKey(address))                                   ||
+            sessionDatabase.get(getRecipientId(address.getName()), address.getDeviceId()) != null ||
+            getSessionFile(address).exists())                                                     &&
            loadSession(address).getSessionState().hasSenderChain();
   }
 
   @Override
   public void deleteSession(AxolotlAddress address) {
+    if (deferred != null) deferred.remove(address);
+
+    sessionDatabase.delete(getRecipientId(address.getName()), address.getDeviceId());
+    records.remove(address);
     getSessionFile(address).delete();
   }
 
@@ -120,11 +168,17 @@ public class SecuredTextSessionStore implements SessionStore {
 
   @Override
   public List<Integer> getSubDeviceSessions(String name) {
-    long          recipientId = RecipientFactory.getRecipientsFromString(context, name, true).getPrimaryRecipient().getRecipientId();
+    long          recipientId = getRecipientId(name);
     List<Integer> results     = new LinkedList<>();
     File          parent      = getSessionDirectory();
     String[]      children    = parent.list();
 
+    for (int device : sessionDatabase.getDevices(recipientId)) {
+      if (device != TextSecureAddress.DEFAULT_DEVICE_ID) {
+        results.add(device);
+      }
+    }
+
     if (children == null) return results;
 
     for (String child : children) {
@@ -133,7 +187,9 @@ public class SecuredTextSessionStore implements SessionStore {
         long     sessionRecipientId = Long.parseLong(parts[0]);
 
         if (sessionRecipientId == recipientId && parts.length > 1) {
-          results.add(Integer.parseInt(parts[1]));
+          int device = Integer.parseInt(parts[1]);
+
+          if (!results.contains(device)) results.add(device);
         }
       } catch (NumberFormatException e) {
         Log.w(TAG, e);
@@ -143,6 +199,11 @@ public class SecuredTextSessionStore implements SessionStore {
     return results;
   }
 
+  private void persist(AxolotlAddress address, byte[] serialized) {
+    sessionDatabase.store(getRecipientId(address.getName()), address.getDeviceId(),
+                          masterCipher.encryptBytes(serialized));
+  }
+
   private File getSessionFile(AxolotlAddress address) {
     return new File(getSessionDirectory(), getSessionName(address));
   }
@@ -160,15 +221,65 @@ public class SecuredTextSessionStore implements SessionStore {
   }
 
   private String getSessionName(AxolotlAddress axolotlAddress) {
-    Recipient recipient   = RecipientFactory.getRecipientsFromString(context, axolotlAddress.getName(), true)
-                                          .getPrimaryRecipient();
-    long      recipientId = recipient.getRecipientId();
-    int       deviceId    = axolotlAddress.getDeviceId();
+    long recipientId = getRecipientId(axolotlAddress.getName());
+    int  deviceId    = axolotlAddress.getDeviceId();
 
     return recipientId + (deviceId == TextSecureAddress.DEFAULT_DEVICE_ID ? "" : "." + deviceId);
   }
 
-  private byte[] readBlob(FileInputStream in) throws IOException {
+  private long getRecipientId(String name) {
+    Long recipientId = recipientIds.get(name);
+
+    if (recipientId == null) {
+      recipientId = RecipientFactory.getRecipientsFromString(context, name, true)
+                                    .getPrimaryRecipient()
+                                    .getRecipientId();
+      recipientIds.put(name, recipientId);
+    }
+
+    return recipientId;
+  }
+
+  /**
+   * @return the record in the current (archive states) serialization format.
+   */
+  private byte[] readRecord(AxolotlAddress address) throws IOException, InvalidMessageException {
+    byte[] encrypted = sessionDatabase.get(getRecipientId(address.getName()), address.getDeviceId());
+
+    if (encrypted != null) {
+      return masterCipher.decryptBytes(encrypted);
+    }
+
+    return readLegacyRecord(getSessionFile(address));
+  }
+
+  private byte[] readLegacyRecord(File sessionFile) throws IOException, InvalidMessageException {
+    FileInputStream in = new FileInputStream(sessionFile);
+
+    try {
+      int versionMarker = readInteger(in);
+
+      if (versionMarker > CURRENT_VERSION) {
+        throw new AssertionError("Unknown version: " + versionMarker);
+      }
+
+      byte[] serialized = masterCipher.decryptBytes(readBlob(in));
+
+      if (versionMarker == SINGLE_STATE_VERSION) {
+        SessionStructure sessionStructure = SessionStructure.parseFrom(serialized);
+        SessionState     sessionState     = new SessionState(sessionStructure);
+        return new SessionRecord(sessionState).serialize();
+      } else if (versionMarker == ARCHIVE_STATES_VERSION) {
+        return serialized;
+      } else {
+        throw new AssertionError("Unknown version: " + versionMarker);
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  private static byte[] readBlob(FileInputStream in) throws IOException {
     int length       = readInteger(in);
     byte[] blobBytes = new byte[length];
 
@@ -176,20 +287,10 @@ public class SecuredTextSessionStore implements SessionStore {
     return blobBytes;
   }
 
-  private void writeBlob(byte[] blobBytes, FileChannel out) throws IOException {
-    writeInteger(blobBytes.length, out);
-    out.write(ByteBuffer.wrap(blobBytes));
-  }
-
-  private int readInteger(FileInputStream in) throws IOException {
+  private static int readInteger(FileInputStream in) throws IOException {
     byte[] integer = new byte[4];
     in.read(integer, 0, integer.length);
     return Conversions.byteArrayToInt(integer);
   }
 
-  private void writeInteger(int value, FileChannel out) throws IOException {
-    byte[] valueBytes = Conversions.intToByteArray(value);
-    out.write(ByteBuffer.wrap(valueBytes));
-  }
-
 }
@@ -17,60 +17,76 @@
 package org.SecuredText.SecuredText.database;
 
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.text.TextUtils;
 import android.util.Log;
 
-import org.SecuredText.SecuredText.mms.ApnUnavailableException;
 import org.SecuredText.SecuredText.mms.MmsConnection.Apn;
 import org.SecuredText.SecuredText.util.SecuredTextPreferences;
 import org.SecuredText.SecuredText.util.Util;
+import org.SecuredText.SecuredText.util.VisibleForTesting;
 import org.whispersystems.libaxolotl.util.guava.Optional;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
- * Database to query APN and MMSC information
+ * Database to query APN and MMSC information.
+ *
+ * The APNs ship as a binary index written by apntool: fixed size records sorted by
+ * MCC+MNC, followed by a pool of the strings they point to.  The index is memory mapped
+ * straight out of the APK, so after the first lookup maps it, lookups are a binary
+ * search that touches neither the disk nor SQLite.
+ *
+ * If the index is missing or can't be read, lookups fall back to the apns.db asset,
+ * copied out of the APK and queried with SQLite as before the index existed.
  */
 public class ApnDatabase {
   private static final String TAG = ApnDatabase.class.getSimpleName();
 
-  private final SQLiteDatabase db;
   private final Context        context;
+  private final ByteBuffer     index;
+  private final SQLiteDatabase legacyDatabase;
+  private final int            recordCount;
+  private final int            poolOffset;
+
+  private static final String INDEX_NAME                 = "apns.idx";
+  private static final String ASSET_PATH                 = "databases" + File.separator + INDEX_NAME;
+  private static final String LEGACY_DATABASE_NAME       = "apns.db";
+  private static final String LEGACY_DATABASE_ASSET_PATH = "databases" + File.separator + LEGACY_DATABASE_NAME;
 
-  private static final String DATABASE_NAME = "apns.db";
-  private static final String ASSET_PATH    = "databases" + File.separator + DATABASE_NAME;
-
-  private static final String TABLE_NAME              = "apns";
-  private static final String ID_COLUMN               = "_id";
-  private static final String MCC_MNC_COLUMN          = "mccmnc";
-  private static final String MCC_COLUMN              = "mcc";
-  private static final String MNC_COLUMN              = "mnc";
-  private static final String CARRIER_COLUMN          = "carrier";
-  private static final String APN_COLUMN              = "apn";
-  private static final String MMSC_COLUMN             = "mmsc";
-  private static final String PORT_COLUMN             = "port";
-  private static final String TYPE_COLUMN             = "type";
-  private static final String PROTOCOL_COLUMN         = "protocol";
-  private static final String BEARER_COLUMN           = "bearer";
-  private static final String ROAMING_PROTOCOL_COLUMN = "roaming_protocol";
-  private static final String CARRIER_ENABLED_COLUMN  = "carrier_enabled";
-  private static final String MMS_PROXY_COLUMN        = "mmsproxy";
-  private static final String MMS_PORT_COLUMN         = "mmsport";
-  private static final String PROXY_COLUMN            = "proxy";
-  private static final String MVNO_MATCH_DATA_COLUMN  = "mvno_match_data";
-  private static final String MVNO_TYPE_COLUMN        = "mvno";
-  private static final String AUTH_TYPE_COLUMN        = "authtype";
-  private static final String USER_COLUMN             = "user";
-  private static final String PASSWORD_COLUMN         = "password";
-  private static final String SERVER_COLUMN           = "server";
+  private static final String TABLE_NAME       = "apns";
+  private static final String MCC_MNC_COLUMN   = "mccmnc";
+  private static final String APN_COLUMN       = "apn";
+  private static final String MMSC_COLUMN      = "mmsc";
+  private static final String MMS_PROXY_COLUMN = "mmsproxy";
+  private static final String MMS_PORT_COLUMN  = "mmsport";
+  private static final String USER_COLUMN      = "user";
+  private static final String PASSWORD_COLUMN  = "password";
 
   private static final String BASE_SELECTION = MCC_MNC_COLUMN + " = ?";
 
+  private static final int MAGIC       = 0x41504E49;
+  private static final int VERSION     = 1;
+  private static final int HEADER_SIZE = 16;
+  private static final int RECORD_SIZE = 28;
+
+  private static final int APN_FIELD       = 4;
+  private static final int MMSC_FIELD      = 8;
+  private static final int MMS_PROXY_FIELD = 12;
+  private static final int MMS_PORT_FIELD  = 16;
+  private static final int USER_FIELD      = 20;
+  private static final int PASSWORD_FIELD  = 24;
+
   private static ApnDatabase instance = null;
 
   public synchronized static ApnDatabase getInstance(Context context) throws IOException {
@@ -78,21 +94,98 @@ public class ApnDatabase {
     return instance;
   }
 
-  private ApnDatabase(final Context context) throws IOException {
+  /*package*/ ApnDatabase(final Context context) throws IOException {
+    ByteBuffer index = null;
+
+    try {
+      index = loadIndex(context);
+    } catch (IOException e) {
+      Log.w(TAG, "Couldn't load the APN index, falling back to " + LEGACY_DATABASE_NAME, e);
+    }
+
     this.context = context;
+    this.index   = index;
+
+    if (index != null) {
+      this.recordCount    = index.getInt(8);
+      this.poolOffset     = index.getInt(12);
+      this.legacyDatabase = null;
+
+      File legacyDatabase = context.getDatabasePath(LEGACY_DATABASE_NAME);
+
+      if (legacyDatabase.exists() && !legacyDatabase.delete()) {
+        Log.w(TAG, "Couldn't delete the legacy APN database");
+      }
+    } else {
+      this.recordCount    = 0;
+      this.poolOffset     = 0;
+      this.legacyDatabase = openLegacyDatabase(context);
+    }
+  }
+
+  /**
+   * @return true if lookups are answered by the index rather than the legacy database.
+   */
+  @VisibleForTesting
+  /*package*/ boolean isIndexed() {
+    return index != null;
+  }
+
+  private static ByteBuffer loadIndex(Context context) throws IOException {
+    ByteBuffer index = mapIndex(context);
+
+    if (index.limit() < HEADER_SIZE || index.getInt(0) != MAGIC || index.getInt(4) != VERSION) {
+      throw new IOException("Unsupported APN index");
+    }
+
+    int recordCount = index.getInt(8);
+    int poolOffset  = index.getInt(12);
+
+    if (recordCount < 0 || poolOffset != HEADER_SIZE + recordCount * RECORD_SIZE || poolOffset > index.limit()) {
+      throw new IOException("Corrupt APN index");
+    }
+
+    return index;
+  }
 
-    File dbFile = context.getDatabasePath(DATABASE_NAME);
+  @VisibleForTesting
+  /*package*/ static SQLiteDatabase openLegacyDatabase(Context context) throws IOException {
+    File dbFile = context.getDatabasePath(LEGACY_DATABASE_NAME);
 
     if (!dbFile.getParentFile().exists() && !dbFile.getParentFile().mkdir()) {
       throw new IOException("couldn't make databases directory");
     }
 
-    Util.copy(context.getAssets().open(ASSET_PATH, AssetManager.ACCESS_STREAMING),
+    Util.copy(context.getAssets().open(LEGACY_DATABASE_ASSET_PATH, AssetManager.ACCESS_STREAMING),
               new FileOutputStream(dbFile));
 
-    this.db = SQLiteDatabase.openDatabase(context.getDatabasePath(DATABASE_NAME).getPath(),
-                                          null,
-                                          SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+    return SQLiteDatabase.openDatabase(dbFile.getPath(), null,
+                                       SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+  }
+
+  private static ByteBuffer mapIndex(Context context) throws IOException {
+    AssetFileDescriptor descriptor;
+
+    try {
+      descriptor = context.getAssets().openFd(ASSET_PATH);
+    } catch (IOException e) {
+      Log.w(TAG, "APN index is compressed, reading it into memory instead", e);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      Util.copy(context.getAssets().open(ASSET_PATH), out);
+      return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    try {
+      FileChannel channel = new FileInputStream(descriptor.getFileDescriptor()).getChannel();
+
+      try {
+        return channel.map(FileChannel.MapMode.READ_ONLY, descriptor.getStartOffset(), descriptor.getLength());
+      } finally {
+        channel.close();
+      }
+    } finally {
+      descriptor.close();
+    }
   }
 
   private Apn getCustomApnParameters() {
@@ -115,24 +208,54 @@ public class ApnDatabase {
       return Apn.EMPTY;
     }
 
+    if (index == null) {
+      return getLegacyApnParameters(mccmnc, apn);
+    }
+
+    int key    = getKey(mccmnc);
+    int record = key == -1 ? -1 : findFirstRecord(key);
+
+    if (record == -1) {
+      Log.w(TAG, "No matching APNs found, returning null");
+      return Apn.EMPTY;
+    }
+
+    if (apn != null) {
+      Log.w(TAG, "Searching index for MCC+MNC " + mccmnc + " and APN name " + apn);
+      int match = findApnRecord(record, key, apn);
+
+      if (match != -1) record = match;
+      else             Log.w(TAG, "Using MCC+MNC " + mccmnc + " without APN name");
+    }
+
+    Apn params = new Apn(getString(record, MMSC_FIELD),
+                         getString(record, MMS_PROXY_FIELD),
+                         getString(record, MMS_PORT_FIELD),
+                         getString(record, USER_FIELD),
+                         getString(record, PASSWORD_FIELD));
+    Log.w(TAG, "Returning preferred APN " + params);
+    return params;
+  }
+
+  private Apn getLegacyApnParameters(String mccmnc, String apn) {
     Cursor cursor = null;
 
     try {
       if (apn != null) {
         Log.w(TAG, "Querying table for MCC+MNC " + mccmnc + " and APN name " + apn);
-        cursor = db.query(TABLE_NAME, null,
-                          BASE_SELECTION + " AND " + APN_COLUMN + " = ?",
-                          new String[] {mccmnc, apn},
-                          null, null, null);
+        cursor = legacyDatabase.query(TABLE_NAME, null,
+                                      BASE_SELECTION + " AND " + APN_COLUMN + " = ?",
+                                      new String[] {mccmnc, apn},
+                                      null, null, null);
       }
 
       if (cursor == null || !cursor.moveToFirst()) {
         if (cursor != null) cursor.close();
         Log.w(TAG, "Querying table for MCC+MNC " + mccmnc + " without APN name");
-        cursor = db.query(TABLE_NAME, null,
-                          BASE_SELECTION,
-                          new String[] {mccmnc},
-                          null, null, null);
+        cursor = legacyDatabase.query(TABLE_NAME, null,
+                                      BASE_SELECTION,
+                                      new String[] {mccmnc},
+                                      null, null, null);
       }
 
       if (cursor != null && cursor.moveToFirst()) {
@@ -146,12 +269,10 @@ public class ApnDatabase {
       }
 
       Log.w(TAG, "No matching APNs found, returning null");
-
       return Apn.EMPTY;
     } finally {
       if (cursor != null) cursor.close();
     }
-
   }
 
   public Optional<Apn> getMmsConnectionParameters(String mccmnc, String apn) {
@@ -167,4 +288,71 @@ public class ApnDatabase {
     if (TextUtils.isEmpty(result.getMmsc())) return Optional.absent();
     else                                     return Optional.of(result);
   }
+
+  /**
+   * @return the number of digits in the MCC+MNC tagged onto their value, or -1 if it
+   * can't be in the index.  Must match apntool's index_key().
+   */
+  private static int getKey(String mccmnc) {
+    if (mccmnc.length() == 0 || mccmnc.length() > 7) return -1;
+
+    int value = 0;
+
+    for (int i = 0; i < mccmnc.length(); i++) {
+      char digit = mccmnc.charAt(i);
+      if (digit < '0' || digit > '9') return -1;
+      value = value * 10 + (digit - '0');
+    }
+
+    return (mccmnc.length() << 24) | value;
+  }
+
+  /**
+   * @return the first record with the given key, which apntool leaves as the first of
+   * that MCC+MNC's APNs in the source list, or -1 if there are none.
+   */
+  private int findFirstRecord(int key) {
+    int low  = 0;
+    int high = recordCount;
+
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+
+      if (getRecordKey(middle) < key) low  = middle + 1;
+      else                            high = middle;
+    }
+
+    return low < recordCount && getRecordKey(low) == key ? low : -1;
+  }
+
+  private int findApnRecord(int firstRecord, int key, String apn) {
+    for (int record = firstRecord; record < recordCount && getRecordKey(record) == key; record++) {
+      if (apn.equals(getString(record, APN_FIELD))) return record;
+    }
+
+    return -1;
+  }
+
+  private int getRecordKey(int record) {
+    return index.getInt(HEADER_SIZE + record * RECORD_SIZE);
+  }
+
+  private String getString(int record, int field) {
+    int offset = index.getInt(HEADER_SIZE + record * RECORD_SIZE + field);
+
+    if (offset == -1) return null;
+
+    ByteBuffer pool   = index.duplicate();
+    int        start  = poolOffset + offset;
+    byte[]     string = new byte[index.getShort(start) & 0xFFFF];
+
+    pool.position(start + 2);
+    pool.get(string);
+
+    try {
+      return new String(string, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
 }
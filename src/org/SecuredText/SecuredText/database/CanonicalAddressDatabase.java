@@ -27,31 +27,45 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import org.SecuredText.SecuredText.util.GroupUtil;
+import org.SecuredText.SecuredText.util.LRUCache;
+import org.SecuredText.SecuredText.util.LongObjectMap;
 import org.SecuredText.SecuredText.util.VisibleForTesting;
 
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 public class CanonicalAddressDatabase {
 
-  private static final int    DATABASE_VERSION = 1;
-  private static final String DATABASE_NAME    = "canonical_address.db";
-  private static final String TABLE            = "canonical_addresses";
-  private static final String ID_COLUMN        = "_id";
-  private static final String ADDRESS_COLUMN   = "address";
+  private static final String TAG = CanonicalAddressDatabase.class.getSimpleName();
 
-  private static final String DATABASE_CREATE  = "CREATE TABLE " + TABLE + " (" + ID_COLUMN + " integer PRIMARY KEY, " + ADDRESS_COLUMN + " TEXT NOT NULL);";
-  private static final String SELECTION_NUMBER = "PHONE_NUMBERS_EQUAL(" + ADDRESS_COLUMN + ", ?)";
+  private static final int    INTRODUCED_MATCH_KEY_VERSION = 2;
+  private static final int    DATABASE_VERSION             = 2;
+  private static final String DATABASE_NAME                = "canonical_address.db";
+  private static final String TABLE                        = "canonical_addresses";
+  private static final String ID_COLUMN                    = "_id";
+  private static final String ADDRESS_COLUMN               = "address";
+  private static final String MATCH_KEY_COLUMN             = "match_key";
+
+  private static final String DATABASE_CREATE  = "CREATE TABLE " + TABLE + " (" + ID_COLUMN + " integer PRIMARY KEY, " + ADDRESS_COLUMN + " TEXT NOT NULL, " + MATCH_KEY_COLUMN + " TEXT);";
+  private static final String[] CREATE_INDEXS  = {
+    "CREATE INDEX IF NOT EXISTS canonical_addresses_match_key_index ON " + TABLE + " (" + MATCH_KEY_COLUMN + ");",
+    "CREATE INDEX IF NOT EXISTS canonical_addresses_address_index ON " + TABLE + " (" + ADDRESS_COLUMN + " COLLATE NOCASE);",
+  };
+
+  private static final String SELECTION_NUMBER = MATCH_KEY_COLUMN + " = ? AND PHONE_NUMBERS_EQUAL(" + ADDRESS_COLUMN + ", ?)";
   private static final String SELECTION_OTHER  = ADDRESS_COLUMN + " = ? COLLATE NOCASE";
   private static final Object lock             = new Object();
 
+  private static final int MAX_CACHED_IDS       = 4096;
+  private static final int MAX_CACHED_ADDRESSES = 1000;
+
   private static CanonicalAddressDatabase instance;
   private        DatabaseHelper           databaseHelper;
 
-  private final Map<String, Long> addressCache = new ConcurrentHashMap<String, Long>();
-  private final Map<Long, String> idCache      = new ConcurrentHashMap<Long, String>();
+  private final Map<String, Long>     addressCache = Collections.synchronizedMap(new LRUCache<String, Long>(MAX_CACHED_ADDRESSES));
+  private final LongObjectMap<String> idCache      = new LongObjectMap<>();
 
   public static CanonicalAddressDatabase getInstance(Context context) {
     synchronized (lock) {
@@ -64,41 +78,31 @@ public class CanonicalAddressDatabase {
 
   private CanonicalAddressDatabase(Context context) {
     databaseHelper = new DatabaseHelper(context, DATABASE_NAME, null, DATABASE_VERSION);
-    fillCache();
   }
 
   public void reset(Context context) {
     DatabaseHelper old  = this.databaseHelper;
     this.databaseHelper = new DatabaseHelper(context, DATABASE_NAME, null, DATABASE_VERSION);
     old.close();
-    fillCache();
-  }
-
-  private void fillCache() {
-    Cursor cursor = null;
 
-    try {
-      SQLiteDatabase db = databaseHelper.getReadableDatabase();
-      cursor            = db.query(TABLE, null, null, null, null, null, null);
-
-      while (cursor != null && cursor.moveToNext()) {
-        long   id      = cursor.getLong(cursor.getColumnIndexOrThrow(ID_COLUMN));
-        String address = cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS_COLUMN));
+    addressCache.clear();
+    synchronized (idCache) {
+      idCache.clear();
+    }
+  }
 
-        if (address == null || address.trim().length() == 0)
-          address = "Anonymous";
+  public String beginSnapshot() {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    database.beginTransaction();
+    return database.getPath();
+  }
 
-        idCache.put(id, address);
-        addressCache.put(address, id);
-      }
-    } finally {
-      if (cursor != null)
-        cursor.close();
-    }
+  public void endSnapshot() {
+    databaseHelper.getWritableDatabase().endTransaction();
   }
 
   public String getAddressFromId(long id) {
-    String cachedAddress = idCache.get(id);
+    String cachedAddress = getAddressFromCache(id);
 
     if (cachedAddress != null)
       return cachedAddress;
@@ -119,7 +123,7 @@ public class CanonicalAddressDatabase {
       if (address == null || address.trim().equals("")) {
         return "Anonymous";
       } else {
-        idCache.put(id, address);
+        cacheAddress(id, address);
         return address;
       }
     } finally {
@@ -140,7 +144,7 @@ public class CanonicalAddressDatabase {
       return canonicalAddressId;
 
     canonicalAddressId = getCanonicalAddressIdFromDatabase(address);
-    idCache.put(canonicalAddressId, address);
+    cacheAddress(canonicalAddressId, address);
     addressCache.put(address, canonicalAddressId);
     return canonicalAddressId;
   }
@@ -160,26 +164,48 @@ public class CanonicalAddressDatabase {
     return cachedAddress == null ? -1L : cachedAddress;
   }
 
+  private String getAddressFromCache(long id) {
+    synchronized (idCache) {
+      return idCache.get(id);
+    }
+  }
+
+  /**
+   * Ids are cached as they're used rather than loaded up front, and the cache starts over
+   * once it's full, so it stays small however many addresses the database holds.
+   */
+  private void cacheAddress(long id, String address) {
+    synchronized (idCache) {
+      if (idCache.size() >= MAX_CACHED_IDS && !idCache.containsKey(id)) {
+        idCache.clear();
+      }
+
+      idCache.put(id, address);
+    }
+  }
+
   private long getCanonicalAddressIdFromDatabase(String address) {
     Cursor cursor = null;
     try {
-      SQLiteDatabase db           = databaseHelper.getWritableDatabase();
-      String[] selectionArguments = new String[] {address};
-      boolean isNumber            = isNumberAddress(address);
-      cursor                      = db.query(TABLE, null,
-                                             isNumber ? SELECTION_NUMBER : SELECTION_OTHER,
-                                             selectionArguments, null, null, null);
+      SQLiteDatabase db       = databaseHelper.getWritableDatabase();
+      String         matchKey = getMatchKey(address);
+      cursor                  = db.query(TABLE, null,
+                                         matchKey != null ? SELECTION_NUMBER : SELECTION_OTHER,
+                                         matchKey != null ? new String[] {matchKey, address} : new String[] {address},
+                                         null, null, null);
 
       if (cursor.getCount() == 0 || !cursor.moveToFirst()) {
-        ContentValues contentValues = new ContentValues(1);
+        ContentValues contentValues = new ContentValues(2);
         contentValues.put(ADDRESS_COLUMN, address);
+        contentValues.put(MATCH_KEY_COLUMN, matchKey);
         return db.insert(TABLE, ADDRESS_COLUMN, contentValues);
       } else {
         final long   canonicalId = cursor.getLong(cursor.getColumnIndexOrThrow(ID_COLUMN));
         final String oldAddress  = cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS_COLUMN));
         if (oldAddress == null || !oldAddress.equals(address)) {
-          ContentValues contentValues = new ContentValues(1);
+          ContentValues contentValues = new ContentValues(2);
           contentValues.put(ADDRESS_COLUMN, address);
+          contentValues.put(MATCH_KEY_COLUMN, matchKey);
           db.update(TABLE, contentValues, ID_COLUMN + " = ?", new String[]{canonicalId+""});
 
           addressCache.remove(oldAddress);
@@ -193,6 +219,19 @@ public class CanonicalAddressDatabase {
     }
   }
 
+  /**
+   * PHONE_NUMBERS_EQUAL() can't use an index, so number lookups first probe for the
+   * reversed trailing digits of the number, which any two numbers it considers equal
+   * share, and only compare the few candidates that turn up.
+   *
+   * @return the key for a number address, or null for any other kind of address.
+   */
+  @VisibleForTesting
+  static String getMatchKey(String address) {
+    if (!isNumberAddress(address)) return null;
+    return PhoneNumberUtils.toCallerIDMinMatch(address);
+  }
+
   @VisibleForTesting
   static boolean isNumberAddress(String number) {
     if (number.contains("@"))
@@ -219,10 +258,55 @@ public class CanonicalAddressDatabase {
     @Override
     public void onCreate(SQLiteDatabase db) {
       db.execSQL(DATABASE_CREATE);
+      executeStatements(db, CREATE_INDEXS);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+      db.beginTransaction();
+
+      try {
+        if (oldVersion < INTRODUCED_MATCH_KEY_VERSION) {
+          db.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN " + MATCH_KEY_COLUMN + " TEXT");
+          backfillMatchKeys(db);
+          executeStatements(db, CREATE_INDEXS);
+        }
+
+        db.setTransactionSuccessful();
+      } finally {
+        db.endTransaction();
+      }
+    }
+
+    private void backfillMatchKeys(SQLiteDatabase db) {
+      Cursor cursor  = null;
+      int    updated = 0;
+
+      try {
+        cursor = db.query(TABLE, new String[] {ID_COLUMN, ADDRESS_COLUMN}, null, null, null, null, null);
+
+        while (cursor != null && cursor.moveToNext()) {
+          String address  = cursor.getString(1);
+          String matchKey = address == null ? null : getMatchKey(address);
+
+          if (matchKey != null) {
+            ContentValues values = new ContentValues(1);
+            values.put(MATCH_KEY_COLUMN, matchKey);
+            db.update(TABLE, values, ID_COLUMN + " = ?", new String[] {cursor.getLong(0) + ""});
+            updated++;
+          }
+        }
+      } finally {
+        if (cursor != null)
+          cursor.close();
+      }
+
+      Log.w(TAG, "Backfilled " + updated + " match keys");
+    }
+
+    private void executeStatements(SQLiteDatabase db, String[] statements) {
+      for (String statement : statements)
+        db.execSQL(statement);
     }
 
   }
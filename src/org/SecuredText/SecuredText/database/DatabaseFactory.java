@@ -60,7 +60,11 @@ public class DatabaseFactory {
   private static final int INTRODUCED_PART_DATA_SIZE_VERSION  = 14;
   private static final int INTRODUCED_THUMBNAILS_VERSION      = 15;
   private static final int INTRODUCED_IDENTITY_COLUMN_VERSION = 16;
-  private static final int DATABASE_VERSION                   = 16;
+  private static final int INTRODUCED_THREAD_DATE_INDEXES     = 17;
+  private static final int INTRODUCED_PUSH_BLOB_VERSION       = 18;
+  private static final int INTRODUCED_SESSIONS_VERSION        = 19;
+  private static final int INTRODUCED_PENDING_RECEIPTS        = 20;
+  private static final int DATABASE_VERSION                   = 20;
 
   private static final String DATABASE_NAME    = "messages.db";
   private static final Object lock             = new Object();
@@ -81,6 +85,8 @@ public class DatabaseFactory {
   private final DraftDatabase draftDatabase;
   private final PushDatabase pushDatabase;
   private final GroupDatabase groupDatabase;
+  private final SessionDatabase sessionDatabase;
+  private final PendingReceiptDatabase pendingReceiptDatabase;
 
   public static DatabaseFactory getInstance(Context context) {
     synchronized (lock) {
@@ -139,20 +145,30 @@ public class DatabaseFactory {
     return getInstance(context).groupDatabase;
   }
 
+  public static SessionDatabase getSessionDatabase(Context context) {
+    return getInstance(context).sessionDatabase;
+  }
+
+  public static PendingReceiptDatabase getPendingReceiptDatabase(Context context) {
+    return getInstance(context).pendingReceiptDatabase;
+  }
+
   private DatabaseFactory(Context context) {
-    this.databaseHelper   = new DatabaseHelper(context, DATABASE_NAME, null, DATABASE_VERSION);
-    this.sms              = new SmsDatabase(context, databaseHelper);
-    this.encryptingSms    = new EncryptingSmsDatabase(context, databaseHelper);
-    this.mms              = new MmsDatabase(context, databaseHelper);
-    this.part             = new PartDatabase(context, databaseHelper);
-    this.thread           = new ThreadDatabase(context, databaseHelper);
-    this.address          = CanonicalAddressDatabase.getInstance(context);
-    this.mmsAddress       = new MmsAddressDatabase(context, databaseHelper);
-    this.mmsSmsDatabase   = new MmsSmsDatabase(context, databaseHelper);
-    this.identityDatabase = new IdentityDatabase(context, databaseHelper);
-    this.draftDatabase    = new DraftDatabase(context, databaseHelper);
-    this.pushDatabase     = new PushDatabase(context, databaseHelper);
-    this.groupDatabase    = new GroupDatabase(context, databaseHelper);
+    this.databaseHelper         = new DatabaseHelper(context, DATABASE_NAME, null, DATABASE_VERSION);
+    this.sms                    = new SmsDatabase(context, databaseHelper);
+    this.encryptingSms          = new EncryptingSmsDatabase(context, databaseHelper);
+    this.mms                    = new MmsDatabase(context, databaseHelper);
+    this.part                   = new PartDatabase(context, databaseHelper);
+    this.thread                 = new ThreadDatabase(context, databaseHelper);
+    this.address                = CanonicalAddressDatabase.getInstance(context);
+    this.mmsAddress             = new MmsAddressDatabase(context, databaseHelper);
+    this.mmsSmsDatabase         = new MmsSmsDatabase(context, databaseHelper);
+    this.identityDatabase       = new IdentityDatabase(context, databaseHelper);
+    this.draftDatabase          = new DraftDatabase(context, databaseHelper);
+    this.pushDatabase           = new PushDatabase(context, databaseHelper);
+    this.groupDatabase          = new GroupDatabase(context, databaseHelper);
+    this.sessionDatabase        = new SessionDatabase(context, databaseHelper);
+    this.pendingReceiptDatabase = new PendingReceiptDatabase(context, databaseHelper);
   }
 
   public void reset(Context context) {
@@ -170,9 +186,44 @@ public class DatabaseFactory {
     this.draftDatabase.reset(databaseHelper);
     this.pushDatabase.reset(databaseHelper);
     this.groupDatabase.reset(databaseHelper);
+    this.sessionDatabase.reset(databaseHelper);
+    this.pendingReceiptDatabase.reset(databaseHelper);
     old.close();
 
     this.address.reset(context);
+    SecuredTextDirectory.getInstance(context).reset(context);
+  }
+
+  /**
+   * Holds an exclusive transaction on the message database so that its file can be
+   * copied in a consistent state.  Writers block until endSnapshot() is called.
+   *
+   * @return the path of the database file.
+   */
+  public String beginSnapshot() {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    database.beginTransaction();
+    return database.getPath();
+  }
+
+  public void endSnapshot() {
+    databaseHelper.getWritableDatabase().endTransaction();
+  }
+
+  /**
+   * Starts a transaction that every write the calling thread makes to messages.db joins,
+   * through any of its tables, until endTransaction().
+   */
+  public void beginTransaction() {
+    databaseHelper.getWritableDatabase().beginTransaction();
+  }
+
+  public void setTransactionSuccessful() {
+    databaseHelper.getWritableDatabase().setTransactionSuccessful();
+  }
+
+  public void endTransaction() {
+    databaseHelper.getWritableDatabase().endTransaction();
   }
 
   public void onApplicationLevelUpgrade(Context context, MasterSecret masterSecret, int fromVersion,
@@ -479,6 +530,8 @@ public class DatabaseFactory {
       db.execSQL(DraftDatabase.CREATE_TABLE);
       db.execSQL(PushDatabase.CREATE_TABLE);
       db.execSQL(GroupDatabase.CREATE_TABLE);
+      db.execSQL(SessionDatabase.CREATE_TABLE);
+      db.execSQL(PendingReceiptDatabase.CREATE_TABLE);
 
       executeStatements(db, SmsDatabase.CREATE_INDEXS);
       executeStatements(db, MmsDatabase.CREATE_INDEXS);
@@ -717,6 +770,63 @@ public class DatabaseFactory {
         db.execSQL("ALTER TABLE mms ADD COLUMN network_failures TEXT");
       }
 
+      if (oldVersion < INTRODUCED_THREAD_DATE_INDEXES) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS sms_thread_date_index ON sms (thread_id, date);");
+        db.execSQL("CREATE INDEX IF NOT EXISTS mms_thread_date_index ON mms (thread_id, date_received);");
+      }
+
+      if (oldVersion < INTRODUCED_PUSH_BLOB_VERSION) {
+        db.execSQL("ALTER TABLE push RENAME TO push_backup;");
+        db.execSQL("CREATE TABLE push (_id INTEGER PRIMARY KEY, type INTEGER, source TEXT, device_id INTEGER, body BLOB, timestamp INTEGER);");
+
+        Cursor pushCursor  = db.query("push_backup", new String[] {"_id", "type", "source", "device_id", "body", "timestamp"},
+                                      null, null, null, null, null);
+        int    undecodable = 0;
+
+        try {
+          while (pushCursor != null && pushCursor.moveToNext()) {
+            ContentValues values = new ContentValues(6);
+            values.put("_id", pushCursor.getLong(0));
+            values.put("type", pushCursor.getInt(1));
+            values.put("source", pushCursor.getString(2));
+            values.put("device_id", pushCursor.getInt(3));
+            values.put("timestamp", pushCursor.getLong(5));
+
+            if (!pushCursor.isNull(4)) {
+              try {
+                values.put("body", Base64.decode(pushCursor.getString(4)));
+              } catch (IOException e) {
+                // Keep the row, so its queued PushDecryptJob still finds it.  The body won't
+                // decrypt, so the job shows a failed message rather than it vanishing.
+                Log.w("DatabaseFactory", e);
+                values.put("body", pushCursor.getBlob(4));
+                undecodable++;
+              }
+            }
+
+            db.insert("push", null, values);
+          }
+        } finally {
+          if (pushCursor != null)
+            pushCursor.close();
+        }
+
+        if (undecodable > 0) {
+          Log.w("DatabaseFactory", "Kept " + undecodable + " pending pushes whose bodies weren't Base64, " +
+                                   "they'll be shown as failed messages");
+        }
+
+        db.execSQL("DROP TABLE push_backup;");
+      }
+
+      if (oldVersion < INTRODUCED_SESSIONS_VERSION) {
+        db.execSQL("CREATE TABLE sessions (_id INTEGER PRIMARY KEY, recipient INTEGER NOT NULL, device INTEGER NOT NULL, record BLOB NOT NULL, UNIQUE(recipient, device) ON CONFLICT REPLACE);");
+      }
+
+      if (oldVersion < INTRODUCED_PENDING_RECEIPTS) {
+        db.execSQL("CREATE TABLE pending_receipts (_id INTEGER PRIMARY KEY, destination TEXT NOT NULL, relay TEXT, timestamp INTEGER);");
+      }
+
       db.setTransactionSuccessful();
       db.endTransaction();
     }
@@ -17,25 +17,85 @@
 package org.SecuredText.SecuredText.database;
 
 import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.Build;
 import android.os.Environment;
 import android.util.Log;
 
+import org.SecuredText.SecuredText.crypto.storage.SecuredTextSessionStore;
+import org.SecuredText.SecuredText.util.Hex;
+import org.SecuredText.SecuredText.util.Util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
 import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+/**
+ * Exports the app data directory to external storage as an incremental backup.
+ *
+ * Every file is stored once under objects/, named by the SHA-256 of its contents,
+ * and a manifest maps each path in the data directory to its size, mtime and hash.
+ * Files whose size and mtime match the previous manifest are not read again, and
+ * identical files (such as a forwarded attachment) share one object.  Entries are
+ * appended to a journal as they're copied, so an interrupted export resumes where it
+ * stopped.  Every SQLite database is copied to a staging file while holding a lock on it,
+ * so that each file is a consistent snapshot, and exported from there.
+ */
 public class EncryptedBackupExporter {
 
+  private static final String TAG = EncryptedBackupExporter.class.getSimpleName();
+
+  private static final String       MANIFEST            = "manifest";
+  private static final String       MANIFEST_JOURNAL    = "manifest.journal";
+  private static final String       MANIFEST_TEMPORARY  = "manifest.tmp";
+  private static final String       OBJECTS             = "objects";
+  private static final String       PARTIAL_OBJECT      = ".partial";
+  private static final String       DATABASES           = "databases";
+  private static final String       SQLITE_JOURNAL      = "-journal";
+  private static final String       SNAPSHOT_STAGING    = "backup-snapshot";
+  private static final int          LOCK_ATTEMPTS       = 10;
+  private static final long         LOCK_RETRY_DELAY    = 500;
+  private static final byte[]       SQLITE_HEADER       = "SQLite format 3\0".getBytes();
+  private static final List<String> EXCLUDED            = Arrays.asList("lib", "cache", "code_cache");
+
   public static void exportToSd(Context context) throws NoExternalStorageException, IOException {
     verifyExternalStorageForExport();
-    exportDirectory(context, "");
+    exportIncremental(context);
   }
 
   public static void importFromSd(Context context) throws NoExternalStorageException, IOException {
     verifyExternalStorageForImport();
-    importDirectory(context, "");
+
+    File manifest = new File(getExportDirectoryPath(), MANIFEST);
+
+    SecuredTextSessionStore.reset();
+
+    try {
+      if (manifest.exists()) importIncremental(context, manifest);
+      else                   importDirectory(context, "");
+    } finally {
+      SecuredTextSessionStore.reset();
+    }
   }
 
   private static String getExportDirectoryPath() {
@@ -75,27 +135,378 @@ public class EncryptedBackupExporter {
     }
   }
 
-  private static void exportDirectory(Context context, String directoryName) throws IOException {
-    File directory       = new File(context.getFilesDir().getParent() + File.separatorChar + directoryName);
-    File exportDirectory = new File(getExportDirectoryPath() + File.separatorChar + directoryName);
+  private static void exportIncremental(Context context) throws IOException {
+    File dataDirectory    = new File(context.getFilesDir().getParent());
+    File exportDirectory  = new File(getExportDirectoryPath());
+    File objectsDirectory = new File(exportDirectory, OBJECTS);
+    File journalFile      = new File(exportDirectory, MANIFEST_JOURNAL);
 
-    if (directory.exists()) {
-      exportDirectory.mkdirs();
+    objectsDirectory.mkdirs();
 
-      File[] contents = directory.listFiles();
+    Map<String, ManifestEntry> previous = readManifest(new File(exportDirectory, MANIFEST));
+    previous.putAll(readManifest(journalFile));
+
+    ExportSession session = new ExportSession(objectsDirectory, previous, journalFile);
+
+    try {
+      File[] contents = dataDirectory.listFiles();
+
+      if (contents == null) {
+        throw new IOException("Could not list directory: " + dataDirectory.getAbsolutePath());
+      }
+
+      for (File localFile : contents) {
+        if      (EXCLUDED.contains(localFile.getName()))  continue;
+        else if (DATABASES.equals(localFile.getName()))   exportDatabases(context, localFile, session);
+        else                                              exportTree(localFile, localFile.getName(), session, true);
+      }
+    } finally {
+      session.close();
+    }
+
+    writeManifest(exportDirectory, session.current);
+    journalFile.delete();
+    deleteUnreferencedObjects(objectsDirectory, session.current);
+
+    Log.w(TAG, "Exported " + session.current.size() + " files, copied " + session.copied);
+  }
+
+  /**
+   * Every SQLite file is first copied to a staging directory in the cache while it's
+   * locked, and only hashed and copied into the backup once the locks are released, so
+   * writers are held up for a local file copy rather than the whole export.  The app's
+   * own databases are locked together through their open helpers so their copies are
+   * consistent with each other.  Any other SQLite file, such as the job store, is locked
+   * through a connection of its own while that one file is copied.
+   */
+  private static void exportDatabases(Context context, File directory, ExportSession session)
+      throws IOException
+  {
+    File[] contents = directory.listFiles();
+
+    if (contents == null) {
+      throw new IOException("Could not list directory: " + directory.getAbsolutePath());
+    }
+
+    File staging = new File(context.getCacheDir(), SNAPSHOT_STAGING);
+
+    staging.mkdirs();
+
+    try {
+      Map<String, File> staged = new HashMap<>();
+
+      stageHeldDatabases(context, staging, staged);
+
+      for (File localFile : contents) {
+        if (!staged.containsKey(localFile.getCanonicalPath()) && isSqliteDatabase(localFile)) {
+          staged.put(localFile.getCanonicalPath(), stageLockedDatabase(localFile, staging));
+        }
+      }
+
+      for (File localFile : contents) {
+        String path       = directory.getName() + "/" + localFile.getName();
+        File   stagedFile = staged.get(localFile.getCanonicalPath());
+
+        if (stagedFile != null) session.export(stagedFile, path, false);
+        else                    exportTree(localFile, path, session, false);
+      }
+    } finally {
+      deleteContents(staging);
+    }
+  }
+
+  private static void stageHeldDatabases(Context context, File staging, Map<String, File> staged)
+      throws IOException
+  {
+    DatabaseFactory          messages    = DatabaseFactory.getInstance(context);
+    CanonicalAddressDatabase addresses   = CanonicalAddressDatabase.getInstance(context);
+    SecuredTextDirectory     directories = SecuredTextDirectory.getInstance(context);
+    MultipartSmsDatabase     fragments   = MultipartSmsDatabase.getInstance(context);
+    List<File>               files       = new LinkedList<>();
+
+    files.add(new File(messages.beginSnapshot()));
+
+    try {
+      files.add(new File(addresses.beginSnapshot()));
+
+      try {
+        files.add(new File(directories.beginSnapshot()));
 
-      for (int i=0;i<contents.length;i++) {
-        File localFile = contents[i];
+        try {
+          files.add(new File(fragments.beginSnapshot()));
 
-        if (localFile.isFile()) {
-          File exportedFile = new File(exportDirectory.getAbsolutePath() + File.separator + localFile.getName());
-          migrateFile(localFile, exportedFile);
-        } else {
-          exportDirectory(context, directoryName + File.separator + localFile.getName());
+          try {
+            for (File file : files) {
+              staged.put(file.getCanonicalPath(), stage(file, staging));
+            }
+          } finally {
+            fragments.endSnapshot();
+          }
+        } finally {
+          directories.endSnapshot();
         }
+      } finally {
+        addresses.endSnapshot();
+      }
+    } finally {
+      messages.endSnapshot();
+    }
+  }
+
+  /**
+   * Takes a reserved lock on the database, which keeps out writers but not readers,
+   * retrying for a while if another connection is in the middle of writing.
+   */
+  private static File stageLockedDatabase(File localFile, File staging) throws IOException {
+    SQLiteDatabase database = null;
+
+    try {
+      database = SQLiteDatabase.openDatabase(localFile.getAbsolutePath(), null, SQLiteDatabase.OPEN_READWRITE);
+      beginReservedTransaction(database);
+
+      try {
+        return stage(localFile, staging);
+      } finally {
+        database.endTransaction();
+      }
+    } catch (SQLiteException e) {
+      throw new IOException(e);
+    } finally {
+      if (database != null) database.close();
+    }
+  }
+
+  private static void beginReservedTransaction(SQLiteDatabase database) throws IOException {
+    for (int attempt = 1;; attempt++) {
+      try {
+        if (Build.VERSION.SDK_INT >= 11) database.beginTransactionNonExclusive();
+        else                             database.beginTransaction();
+        return;
+      } catch (SQLiteException e) {
+        if (attempt >= LOCK_ATTEMPTS) throw e;
+
+        Log.w(TAG, "Database busy, retrying: " + database.getPath());
+
+        try {
+          Thread.sleep(LOCK_RETRY_DELAY);
+        } catch (InterruptedException ie) {
+          throw new InterruptedIOException();
+        }
+      }
+    }
+  }
+
+  /**
+   * Copies the file into the staging directory with its mtime preserved, so the manifest
+   * records the database's own mtime rather than the copy's.
+   */
+  private static File stage(File localFile, File staging) throws IOException {
+    File copy = new File(staging, localFile.getName());
+
+    Util.copy(new FileInputStream(localFile), new FileOutputStream(copy));
+    copy.setLastModified(localFile.lastModified());
+
+    return copy;
+  }
+
+  private static void deleteContents(File directory) {
+    File[] contents = directory.listFiles();
+
+    if (contents == null) return;
+
+    for (File file : contents) {
+      if (!file.delete()) Log.w(TAG, "Could not delete " + file.getAbsolutePath());
+    }
+  }
+
+  private static boolean isSqliteDatabase(File localFile) throws IOException {
+    if (!localFile.isFile() || localFile.length() < SQLITE_HEADER.length) return false;
+
+    byte[]          header = new byte[SQLITE_HEADER.length];
+    DataInputStream in     = new DataInputStream(new FileInputStream(localFile));
+
+    try {
+      in.readFully(header);
+    } finally {
+      in.close();
+    }
+
+    return Arrays.equals(header, SQLITE_HEADER);
+  }
+
+  private static void exportTree(File localFile, String path, ExportSession session, boolean trustMetadata)
+      throws IOException
+  {
+    if (localFile.isDirectory()) {
+      File[] contents = localFile.listFiles();
+
+      if (contents == null) {
+        Log.w(TAG, "Could not list directory: " + localFile.getAbsolutePath());
+        return;
       }
-    } else {
-      Log.w("EncryptedBackupExporter", "Could not find directory: " + directory.getAbsolutePath());
+
+      for (File child : contents) {
+        exportTree(child, path + "/" + child.getName(), session, trustMetadata);
+      }
+    } else if (localFile.isFile() && !localFile.getName().endsWith(SQLITE_JOURNAL)) {
+      session.export(localFile, path, trustMetadata);
+    }
+  }
+
+  /**
+   * Hashes the file, and only copies it into the object store if no object with that
+   * hash exists yet.  The object is named by the hash of the bytes actually copied, in
+   * case the file changed between the two reads.
+   */
+  private static ManifestEntry copyToObjects(File localFile, String path, long modified, File objectsDirectory)
+      throws IOException
+  {
+    byte[] buffer = new byte[64 * 1024];
+    String hash   = hash(localFile, buffer);
+
+    if (new File(objectsDirectory, hash).exists()) {
+      return new ManifestEntry(path, localFile.length(), modified, hash);
+    }
+
+    File             partial = new File(objectsDirectory, PARTIAL_OBJECT);
+    MessageDigest    digest  = getDigest();
+    InputStream      in      = new FileInputStream(localFile);
+    FileOutputStream out     = new FileOutputStream(partial);
+    long             total   = 0;
+    int              read;
+
+    try {
+      while ((read = in.read(buffer)) != -1) {
+        digest.update(buffer, 0, read);
+        out.write(buffer, 0, read);
+        total += read;
+      }
+
+      out.getFD().sync();
+    } finally {
+      in.close();
+      out.close();
+    }
+
+    File object = new File(objectsDirectory, Hex.toStringCondensed(digest.digest()));
+
+    if (object.exists()) {
+      partial.delete();
+    } else if (!partial.renameTo(object)) {
+      throw new IOException("Could not rename " + partial.getAbsolutePath());
+    }
+
+    return new ManifestEntry(path, total, modified, object.getName());
+  }
+
+  private static String hash(File localFile, byte[] buffer) throws IOException {
+    MessageDigest digest = getDigest();
+    InputStream   in     = new FileInputStream(localFile);
+    int           read;
+
+    try {
+      while ((read = in.read(buffer)) != -1) {
+        digest.update(buffer, 0, read);
+      }
+    } finally {
+      in.close();
+    }
+
+    return Hex.toStringCondensed(digest.digest());
+  }
+
+  private static void importIncremental(Context context, File manifest) throws IOException {
+    File dataDirectory    = new File(context.getFilesDir().getParent());
+    File objectsDirectory = new File(manifest.getParentFile(), OBJECTS);
+
+    for (ManifestEntry entry : readManifest(manifest).values()) {
+      File object    = new File(objectsDirectory, entry.hash);
+      File localFile = new File(dataDirectory, entry.path);
+
+      if (!object.exists()) {
+        throw new IOException("Backup is missing object for " + entry.path);
+      }
+
+      localFile.getParentFile().mkdirs();
+      migrateFile(object, localFile);
+      localFile.setLastModified(entry.modified);
+    }
+  }
+
+  private static Map<String, ManifestEntry> readManifest(File file) throws IOException {
+    Map<String, ManifestEntry> entries = new HashMap<>();
+
+    if (!file.exists()) return entries;
+
+    BufferedReader reader = new BufferedReader(new FileReader(file));
+
+    try {
+      String line;
+
+      while ((line = reader.readLine()) != null) {
+        ManifestEntry entry = ManifestEntry.parse(line);
+
+        if (entry != null) entries.put(entry.path, entry);
+        else               Log.w(TAG, "Skipping malformed manifest line in " + file.getName());
+      }
+    } finally {
+      reader.close();
+    }
+
+    return entries;
+  }
+
+  private static void writeManifest(File exportDirectory, Map<String, ManifestEntry> entries)
+      throws IOException
+  {
+    File             temporary = new File(exportDirectory, MANIFEST_TEMPORARY);
+    File             manifest  = new File(exportDirectory, MANIFEST);
+    FileOutputStream out       = new FileOutputStream(temporary);
+    BufferedWriter   writer    = new BufferedWriter(new OutputStreamWriter(out));
+
+    try {
+      for (ManifestEntry entry : entries.values()) {
+        writer.write(entry.serialize());
+        writer.newLine();
+      }
+
+      writer.flush();
+      out.getFD().sync();
+    } finally {
+      writer.close();
+    }
+
+    if (!temporary.renameTo(manifest)) {
+      manifest.delete();
+
+      if (!temporary.renameTo(manifest)) {
+        throw new IOException("Could not replace " + manifest.getAbsolutePath());
+      }
+    }
+  }
+
+  private static void deleteUnreferencedObjects(File objectsDirectory, Map<String, ManifestEntry> entries) {
+    Set<String> referenced = new HashSet<>();
+    File[]      objects    = objectsDirectory.listFiles();
+
+    for (ManifestEntry entry : entries.values()) {
+      referenced.add(entry.hash);
+    }
+
+    if (objects == null) return;
+
+    for (File object : objects) {
+      if (!referenced.contains(object.getName()) && !object.delete()) {
+        Log.w(TAG, "Could not delete unreferenced object " + object.getName());
+      }
+    }
+  }
+
+  private static MessageDigest getDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
     }
   }
 
@@ -118,4 +529,79 @@ public class EncryptedBackupExporter {
       }
     }
   }
+
+  private static class ExportSession {
+    private final File                       objectsDirectory;
+    private final Map<String, ManifestEntry> previous;
+    private final Map<String, ManifestEntry> current = new HashMap<>();
+    private final BufferedWriter             journal;
+
+    private int copied;
+
+    public ExportSession(File objectsDirectory, Map<String, ManifestEntry> previous, File journalFile)
+        throws IOException
+    {
+      this.objectsDirectory = objectsDirectory;
+      this.previous         = previous;
+      this.journal          = new BufferedWriter(new FileWriter(journalFile, true));
+    }
+
+    /**
+     * Records the file in the new manifest, copying it into the object store unless the
+     * previous manifest already has it.  When trustMetadata is false the contents are
+     * always hashed, since SQLite can rewrite pages without changing size or a coarse mtime.
+     */
+    public void export(File localFile, String path, boolean trustMetadata) throws IOException {
+      long          size     = localFile.length();
+      long          modified = localFile.lastModified();
+      ManifestEntry entry    = previous.get(path);
+
+      if (!trustMetadata || entry == null || entry.size != size || entry.modified != modified ||
+          !new File(objectsDirectory, entry.hash).exists())
+      {
+        entry = copyToObjects(localFile, path, modified, objectsDirectory);
+
+        journal.write(entry.serialize());
+        journal.newLine();
+        journal.flush();
+        copied++;
+      }
+
+      current.put(path, entry);
+    }
+
+    public void close() throws IOException {
+      journal.close();
+    }
+  }
+
+  private static class ManifestEntry {
+    private final String path;
+    private final long   size;
+    private final long   modified;
+    private final String hash;
+
+    public ManifestEntry(String path, long size, long modified, String hash) {
+      this.path     = path;
+      this.size     = size;
+      this.modified = modified;
+      this.hash     = hash;
+    }
+
+    public String serialize() {
+      return hash + " " + size + " " + modified + " " + path;
+    }
+
+    public static ManifestEntry parse(String line) {
+      String[] fields = line.split(" ", 4);
+
+      if (fields.length != 4) return null;
+
+      try {
+        return new ManifestEntry(fields[3], Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[0]);
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+  }
 }
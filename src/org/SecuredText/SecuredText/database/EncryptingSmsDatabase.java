@@ -29,19 +29,15 @@ import org.SecuredText.SecuredText.database.model.DisplayRecord;
 import org.SecuredText.SecuredText.database.model.SmsMessageRecord;
 import org.SecuredText.SecuredText.sms.IncomingTextMessage;
 import org.SecuredText.SecuredText.sms.OutgoingTextMessage;
-import org.SecuredText.SecuredText.util.LRUCache;
 import org.whispersystems.libaxolotl.InvalidMessageException;
 import org.SecuredText.SecuredText.crypto.MasterCipher;
 import org.SecuredText.SecuredText.crypto.MasterSecret;
 
-import java.lang.ref.SoftReference;
-import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 
 public class EncryptingSmsDatabase extends SmsDatabase {
 
-  private final PlaintextCache plaintextCache = new PlaintextCache();
+  private final PlaintextCache plaintextCache = PlaintextCache.getInstance();
 
   public EncryptingSmsDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
@@ -54,10 +50,7 @@ public class EncryptingSmsDatabase extends SmsDatabase {
 
   private String getEncryptedBody(MasterSecret masterSecret, String body) {
     MasterCipher bodyCipher = new MasterCipher(masterSecret);
-    String ciphertext       = bodyCipher.encryptBody(body);
-    plaintextCache.put(ciphertext, body);
-
-    return ciphertext;
+    return bodyCipher.encryptBody(body);
   }
 
   public long insertMessageOutbox(MasterSecret masterSecret, long threadId,
@@ -112,8 +105,8 @@ public class EncryptingSmsDatabase extends SmsDatabase {
                              Types.ENCRYPTION_SYMMETRIC_BIT);
   }
 
-  public Reader getMessages(MasterSecret masterSecret, int skip, int limit) {
-    Cursor cursor = super.getMessages(skip, limit);
+  public Reader getMessagesInRange(MasterSecret masterSecret, long afterId, long lastId) {
+    Cursor cursor = super.getMessagesInRange(afterId, lastId);
     return new DecryptingReader(masterSecret, cursor);
   }
 
@@ -162,14 +155,15 @@ public class EncryptingSmsDatabase extends SmsDatabase {
 
       try {
         if (SmsDatabase.Types.isSymmetricEncryption(type)) {
-          String plaintext = plaintextCache.get(ciphertext);
+          long   messageId = cursor.getLong(cursor.getColumnIndexOrThrow(SmsDatabase.ID));
+          String plaintext = plaintextCache.get(TABLE_NAME, messageId, ciphertext);
 
           if (plaintext != null)
             return new DisplayRecord.Body(plaintext, true);
 
           plaintext = masterCipher.decryptBody(ciphertext);
 
-          plaintextCache.put(ciphertext, plaintext);
+          plaintextCache.put(TABLE_NAME, messageId, ciphertext, plaintext);
           return new DisplayRecord.Body(plaintext, true);
         } else {
           return new DisplayRecord.Body(ciphertext, true);
@@ -180,28 +174,4 @@ public class EncryptingSmsDatabase extends SmsDatabase {
       }
     }
   }
-
-  private static class PlaintextCache {
-    private static final int MAX_CACHE_SIZE = 2000;
-    private static final Map<String, SoftReference<String>> decryptedBodyCache =
-        Collections.synchronizedMap(new LRUCache<String, SoftReference<String>>(MAX_CACHE_SIZE));
-
-    public void put(String ciphertext, String plaintext) {
-      decryptedBodyCache.put(ciphertext, new SoftReference<String>(plaintext));
-    }
-
-    public String get(String ciphertext) {
-      SoftReference<String> plaintextReference = decryptedBodyCache.get(ciphertext);
-
-      if (plaintextReference != null) {
-        String plaintext = plaintextReference.get();
-
-        if (plaintext != null) {
-          return plaintext;
-        }
-      }
-
-      return null;
-    }
-  }
 }
@@ -12,7 +12,9 @@ import org.SecuredText.SecuredText.database.documents.Document;
 import org.SecuredText.SecuredText.database.documents.IdentityKeyMismatch;
 import org.SecuredText.SecuredText.database.documents.IdentityKeyMismatchList;
 import org.SecuredText.SecuredText.util.JsonUtils;
+import org.SecuredText.SecuredText.util.Util;
 import org.whispersystems.libaxolotl.IdentityKey;
+import org.whispersystems.textsecure.api.util.InvalidNumberException;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -30,6 +32,21 @@ public abstract class MessagingDatabase extends Database implements MmsSmsColumn
 
   protected abstract String getTableName();
 
+  /**
+   * @return the canonical form of the number (encoded groups are returned as-is), or
+   * null if it can't be parsed.
+   */
+  /*package*/ static String getCanonicalAddress(Context context, String number) {
+    if (number == null) return null;
+
+    try {
+      return Util.canonicalizeNumberOrGroup(context, number);
+    } catch (InvalidNumberException e) {
+      Log.w(TAG, e);
+      return null;
+    }
+  }
+
   public void addMismatchedIdentity(long messageId, long recipientId, IdentityKey identityKey) {
     try {
       addToDocument(messageId, MISMATCHED_IDENTITIES,
@@ -50,6 +67,10 @@ public abstract class MessagingDatabase extends Database implements MmsSmsColumn
     }
   }
 
+  public boolean hasMismatchedIdentities(long messageId) {
+    return !getDocumentList(messageId, MISMATCHED_IDENTITIES, IdentityKeyMismatchList.class).isEmpty();
+  }
+
   protected <D extends Document<I>, I> void removeFromDocument(long messageId, String column, I object, Class<D> clazz) throws IOException {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
     database.beginTransaction();
@@ -97,6 +118,41 @@ public abstract class MessagingDatabase extends Database implements MmsSmsColumn
     }
   }
 
+  protected <D extends Document<I>, I> List<I> getDocumentList(long messageId, String column, Class<D> clazz) {
+    return getDocument(databaseHelper.getReadableDatabase(), messageId, column, clazz).getList();
+  }
+
+  protected <D extends Document<I>, I> void setDocumentList(long messageId, String column, D document) throws IOException {
+    setDocument(databaseHelper.getWritableDatabase(), messageId, column, document);
+  }
+
+  /**
+   * Finds the id that closes the page of at most limit rows following afterId.  The scan
+   * starts at afterId in the primary key rather than skipping rows from the start of the
+   * table, so walking a table page by page stays linear.
+   *
+   * @return the last id in the page, or -1 if no rows follow afterId.
+   */
+  /*package*/ long getPageEndId(long afterId, int limit) {
+    SQLiteDatabase database = databaseHelper.getReadableDatabase();
+    Cursor         cursor   = null;
+
+    try {
+      cursor = database.rawQuery("SELECT MAX(" + ID + ") FROM (SELECT " + ID + " FROM " + getTableName() +
+                                 " WHERE " + ID + " > ? ORDER BY " + ID + " LIMIT " + limit + ")",
+                                 new String[] {String.valueOf(afterId)});
+
+      if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0)) {
+        return cursor.getLong(0);
+      }
+
+      return -1;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
   private void setDocument(SQLiteDatabase database, long messageId, String column, Document document) throws IOException {
     ContentValues contentValues = new ContentValues();
 
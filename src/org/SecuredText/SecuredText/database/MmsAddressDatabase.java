@@ -21,6 +21,7 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.text.TextUtils;
 import android.util.Log;
 
 import org.SecuredText.SecuredText.recipients.Recipient;
@@ -33,8 +34,11 @@ import ws.com.google.android.mms.pdu.EncodedStringValue;
 import ws.com.google.android.mms.pdu.PduHeaders;
 
 import java.io.UnsupportedEncodingException;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 public class MmsAddressDatabase extends Database {
 
@@ -134,6 +138,35 @@ public class MmsAddressDatabase extends Database {
     return results;
   }
 
+  public Map<Long, List<String>> getAddressesForIds(Collection<Long> messageIds) {
+    Map<Long, List<String>> results  = new HashMap<>();
+    SQLiteDatabase          database = databaseHelper.getReadableDatabase();
+    Cursor                  cursor   = null;
+
+    try {
+      cursor = database.query(TABLE_NAME, new String[] {MMS_ID, ADDRESS},
+                              MMS_ID + " IN (" + TextUtils.join(",", messageIds) + ")",
+                              null, null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        long         messageId = cursor.getLong(cursor.getColumnIndexOrThrow(MMS_ID));
+        List<String> addresses = results.get(messageId);
+
+        if (addresses == null) {
+          addresses = new LinkedList<>();
+          results.put(messageId, addresses);
+        }
+
+        addresses.add(cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS)));
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    return results;
+  }
+
   public Recipients getRecipientsForId(long messageId) {
     List<String>    numbers = getAddressesForId(messageId);
     List<Recipient> results = new LinkedList<>();
@@ -21,6 +21,7 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
@@ -61,12 +62,12 @@ import org.SecuredText.SecuredText.util.Util;
 import org.whispersystems.jobqueue.JobManager;
 import org.whispersystems.libaxolotl.InvalidMessageException;
 import org.whispersystems.libaxolotl.util.guava.Optional;
-import org.whispersystems.textsecure.api.util.InvalidNumberException;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.lang.ref.SoftReference;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
@@ -86,9 +87,6 @@ import ws.com.google.android.mms.pdu.PduHeaders;
 import ws.com.google.android.mms.pdu.PduPart;
 import ws.com.google.android.mms.pdu.SendReq;
 
-import static org.SecuredText.SecuredText.util.Util.canonicalizeNumber;
-import static org.SecuredText.SecuredText.util.Util.canonicalizeNumberOrGroup;
-
 // XXXX Clean up MMS efficiency:
 // 1) We need to be careful about how much memory we're using for parts. SoftRefereences.
 // 2) How many queries do we make?  calling getMediaMessageForId() from within an existing query
@@ -149,7 +147,8 @@ public class MmsDatabase extends MessagingDatabase {
     "CREATE INDEX IF NOT EXISTS mms_read_index ON " + TABLE_NAME + " (" + READ + ");",
     "CREATE INDEX IF NOT EXISTS mms_read_and_thread_id_index ON " + TABLE_NAME + "(" + READ + "," + THREAD_ID + ");",
     "CREATE INDEX IF NOT EXISTS mms_message_box_index ON " + TABLE_NAME + " (" + MESSAGE_BOX + ");",
-    "CREATE INDEX IF NOT EXISTS mms_date_sent_index ON " + TABLE_NAME + " (" + DATE_SENT + ");"
+    "CREATE INDEX IF NOT EXISTS mms_date_sent_index ON " + TABLE_NAME + " (" + DATE_SENT + ");",
+    "CREATE INDEX IF NOT EXISTS mms_thread_date_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ");"
   };
 
   private static final String[] MMS_PROJECTION = new String[] {
@@ -212,42 +211,93 @@ public class MmsDatabase extends MessagingDatabase {
     }
   }
 
-  public void incrementDeliveryReceiptCount(String address, long timestamp) {
-    MmsAddressDatabase addressDatabase = DatabaseFactory.getMmsAddressDatabase(context);
-    SQLiteDatabase     database        = databaseHelper.getWritableDatabase();
-    Cursor             cursor          = null;
+  public List<NetworkFailure> getFailures(long messageId) {
+    return getDocumentList(messageId, NETWORK_FAILURE, NetworkFailureList.class);
+  }
 
+  public void setFailures(long messageId, List<NetworkFailure> failures) {
     try {
-      cursor = database.query(TABLE_NAME, new String[] {ID, THREAD_ID, MESSAGE_BOX}, DATE_SENT + " = ?", new String[] {String.valueOf(timestamp / 1000)}, null, null, null, null);
+      setDocumentList(messageId, NETWORK_FAILURE, new NetworkFailureList(failures));
+    } catch (IOException e) {
+      Log.w(TAG, e);
+    }
+  }
+
+  /**
+   * Applies a batch of delivery receipts, keyed by sent timestamp with the canonical
+   * addresses that acknowledged it.  MMS sent dates are stored in seconds, so receipts
+   * are matched to the second.  The caller owns the transaction and notifies the
+   * threads added to updatedThreads.
+   */
+  /*package*/ void incrementDeliveryReceiptCounts(Map<Long, List<String>> receipts, Set<Long> updatedThreads) {
+    Map<Long, List<String>> receiptsBySecond = new HashMap<>();
+
+    for (Map.Entry<Long, List<String>> receipt : receipts.entrySet()) {
+      List<String> addresses = receiptsBySecond.get(receipt.getKey() / 1000);
+
+      if (addresses == null) {
+        addresses = new LinkedList<>();
+        receiptsBySecond.put(receipt.getKey() / 1000, addresses);
+      }
+
+      addresses.addAll(receipt.getValue());
+    }
+
+    SQLiteDatabase    database = databaseHelper.getWritableDatabase();
+    Map<Long, long[]> outgoing = new HashMap<>();
+    Cursor            cursor   = null;
+
+    try {
+      cursor = database.query(TABLE_NAME, new String[] {ID, THREAD_ID, MESSAGE_BOX, DATE_SENT},
+                              DATE_SENT + " IN (" + TextUtils.join(",", receiptsBySecond.keySet()) + ")",
+                              null, null, null, null);
 
       while (cursor.moveToNext()) {
         if (Types.isOutgoingMessageType(cursor.getLong(cursor.getColumnIndexOrThrow(MESSAGE_BOX)))) {
-          List<String> addresses = addressDatabase.getAddressesForId(cursor.getLong(cursor.getColumnIndexOrThrow(ID)));
+          outgoing.put(cursor.getLong(cursor.getColumnIndexOrThrow(ID)),
+                       new long[] {cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID)),
+                                   cursor.getLong(cursor.getColumnIndexOrThrow(DATE_SENT))});
+        }
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    if (outgoing.isEmpty()) return;
+
+    Map<Long, List<String>> storedAddresses = DatabaseFactory.getMmsAddressDatabase(context)
+                                                             .getAddressesForIds(outgoing.keySet());
+    SQLiteStatement         update          = database.compileStatement("UPDATE " + TABLE_NAME + " SET " + RECEIPT_COUNT + " = " +
+                                                                        RECEIPT_COUNT + " + ? WHERE " + ID + " = ?");
 
+    try {
+      for (Map.Entry<Long, long[]> message : outgoing.entrySet()) {
+        List<String> addresses = storedAddresses.get(message.getKey());
+        int          count     = 0;
+
+        if (addresses == null) continue;
+
+        for (String receiptAddress : receiptsBySecond.get(message.getValue()[1])) {
           for (String storedAddress : addresses) {
-            try {
-              String ourAddress   = canonicalizeNumber(context, address);
-              String theirAddress = canonicalizeNumberOrGroup(context, storedAddress);
-
-              if (ourAddress.equals(theirAddress) || GroupUtil.isEncodedGroup(theirAddress)) {
-                long id       = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
-                long threadId = cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID));
-
-                database.execSQL("UPDATE " + TABLE_NAME + " SET " +
-                                 RECEIPT_COUNT + " = " + RECEIPT_COUNT + " + 1 WHERE " + ID + " = ?",
-                                 new String[] {String.valueOf(id)});
-
-                notifyConversationListeners(threadId);
-              }
-            } catch (InvalidNumberException e) {
-              Log.w("MmsDatabase", e);
+            String theirAddress = getCanonicalAddress(context, storedAddress);
+
+            if (theirAddress != null && (theirAddress.equals(receiptAddress) || GroupUtil.isEncodedGroup(theirAddress))) {
+              count++;
             }
           }
         }
+
+        if (count > 0) {
+          update.bindLong(1, count);
+          update.bindLong(2, message.getKey());
+          update.execute();
+
+          updatedThreads.add(message.getValue()[0]);
+        }
       }
     } finally {
-      if (cursor != null)
-        cursor.close();
+      update.close();
     }
   }
 
@@ -358,6 +408,12 @@ public class MmsDatabase extends MessagingDatabase {
     return cursor;
   }
 
+  /*package*/ Cursor getMessagesInRange(long afterId, long lastId) {
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
+    return db.query(TABLE_NAME, MMS_PROJECTION, ID + " > ? AND " + ID + " <= ?",
+                    new String[] {afterId + "", lastId + ""}, null, null, ID);
+  }
+
   public void updateResponseStatus(long messageId, int status) {
     SQLiteDatabase database     = databaseHelper.getWritableDatabase();
     ContentValues contentValues = new ContentValues();
@@ -423,6 +479,25 @@ public class MmsDatabase extends MessagingDatabase {
     notifyConversationListeners(getThreadIdForMessage(messageId));
   }
 
+  public Optional<Integer> getDownloadState(long messageId) {
+    SQLiteDatabase database = databaseHelper.getReadableDatabase();
+    Cursor         cursor   = null;
+
+    try {
+      cursor = database.query(TABLE_NAME, new String[] {STATUS}, ID_WHERE, new String[] {messageId + ""},
+                              null, null, null);
+
+      if (cursor != null && cursor.moveToFirst()) {
+        return Optional.of(cursor.getInt(0));
+      }
+
+      return Optional.absent();
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
   public void markDeliveryStatus(long messageId, int status) {
     SQLiteDatabase database     = databaseHelper.getWritableDatabase();
     ContentValues contentValues = new ContentValues();
@@ -552,8 +627,8 @@ public class MmsDatabase extends MessagingDatabase {
 
   public Reader getNotificationsWithDownloadState(MasterSecret masterSecret, long state) {
     SQLiteDatabase database   = databaseHelper.getReadableDatabase();
-    String selection          = STATUS + " = ?";
-    String[] selectionArgs    = new String[]{state + ""};
+    String selection          = STATUS + " = ? AND " + MESSAGE_TYPE + " = ?";
+    String[] selectionArgs    = new String[]{state + "", PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND + ""};
 
     Cursor cursor = database.query(TABLE_NAME, MMS_PROJECTION, selection, selectionArgs, null, null, null);
     return new Reader(masterSecret, cursor);
@@ -613,7 +688,6 @@ public class MmsDatabase extends MessagingDatabase {
       DatabaseFactory.getThreadDatabase(context).setUnread(threadId);
     }
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId);
     notifyConversationListeners(threadId);
     jobManager.add(new TrimThreadJob(context, threadId));
 
@@ -770,8 +844,20 @@ public class MmsDatabase extends MessagingDatabase {
     addressDatabase.insertAddressesForId(messageId, headers);
     partsDatabase.insertParts(masterSecret, messageId, body);
 
-    notifyConversationListeners(contentValues.getAsLong(THREAD_ID));
-    DatabaseFactory.getThreadDatabase(context).update(contentValues.getAsLong(THREAD_ID));
+    long   threadId     = contentValues.getAsLong(THREAD_ID);
+    String snippet      = contentValues.getAsString(BODY);
+    Long   dateSent     = contentValues.getAsLong(DATE_SENT);
+    Long   dateReceived = contentValues.getAsLong(DATE_RECEIVED);
+
+    notifyConversationListeners(threadId);
+
+    if (dateSent == null || dateReceived == null) {
+      DatabaseFactory.getThreadDatabase(context).update(threadId);
+    } else {
+      DatabaseFactory.getThreadDatabase(context).updateForNewMessage(threadId, snippet == null ? "" : snippet,
+                                                                     contentValues.getAsLong(MESSAGE_BOX),
+                                                                     dateSent * 1000, dateReceived * 1000);
+    }
 
     return messageId;
   }
@@ -970,17 +1056,26 @@ public class MmsDatabase extends MessagingDatabase {
     public static boolean isHardError(int status) {
       return status == DOWNLOAD_HARD_FAILURE;
     }
+
+    public static boolean isFailure(int status) {
+      return
+          status == DOWNLOAD_SOFT_FAILURE ||
+          status == DOWNLOAD_HARD_FAILURE ||
+          status == DOWNLOAD_APN_UNAVAILABLE;
+    }
   }
 
   public class Reader {
 
-    private final Cursor       cursor;
-    private final MasterSecret masterSecret;
-    private final MasterCipher masterCipher;
+    private final Cursor         cursor;
+    private final MasterSecret   masterSecret;
+    private final MasterCipher   masterCipher;
+    private final PlaintextCache plaintextCache;
 
     public Reader(MasterSecret masterSecret, Cursor cursor) {
-      this.cursor       = cursor;
-      this.masterSecret = masterSecret;
+      this.cursor         = cursor;
+      this.masterSecret   = masterSecret;
+      this.plaintextCache = PlaintextCache.getInstance();
 
       if (masterSecret != null) masterCipher = new MasterCipher(masterSecret);
       else                      masterCipher = null;
@@ -1105,7 +1200,15 @@ public class MmsDatabase extends MessagingDatabase {
         long box    = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.MESSAGE_BOX));
 
         if (!TextUtils.isEmpty(body) && masterCipher != null && Types.isSymmetricEncryption(box)) {
-          return new DisplayRecord.Body(masterCipher.decryptBody(body), true);
+          long   messageId = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.ID));
+          String plaintext = plaintextCache.get(TABLE_NAME, messageId, body);
+
+          if (plaintext == null) {
+            plaintext = masterCipher.decryptBody(body);
+            plaintextCache.put(TABLE_NAME, messageId, body, plaintext);
+          }
+
+          return new DisplayRecord.Body(plaintext, true);
         } else if (!TextUtils.isEmpty(body) && masterCipher == null && Types.isSymmetricEncryption(box)) {
           return new DisplayRecord.Body(body, false);
         } else {
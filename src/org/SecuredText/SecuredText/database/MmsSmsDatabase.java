@@ -21,12 +21,20 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.text.TextUtils;
 import android.util.Log;
+import android.util.Pair;
 
 import org.SecuredText.SecuredText.crypto.MasterSecret;
 import org.SecuredText.SecuredText.database.model.MessageRecord;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class MmsSmsDatabase extends Database {
@@ -35,6 +43,27 @@ public class MmsSmsDatabase extends Database {
   public static final String MMS_TRANSPORT = "mms";
   public static final String SMS_TRANSPORT = "sms";
 
+  public static final int DIRECTION_OLDER = 0;
+  public static final int DIRECTION_NEWER = 1;
+
+  private static final String TAG = MmsSmsDatabase.class.getSimpleName();
+
+  private static final String[] UNREAD_PROJECTION = {MmsSmsColumns.ID, SmsDatabase.BODY, SmsDatabase.READ, SmsDatabase.TYPE,
+                                                     SmsDatabase.ADDRESS, SmsDatabase.ADDRESS_DEVICE_ID, SmsDatabase.SUBJECT, MmsSmsColumns.THREAD_ID,
+                                                     SmsDatabase.STATUS,
+                                                     MmsSmsColumns.NORMALIZED_DATE_SENT,
+                                                     MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
+                                                     MmsDatabase.MESSAGE_TYPE, MmsDatabase.MESSAGE_BOX,
+                                                     MmsDatabase.PART_COUNT,
+                                                     MmsDatabase.CONTENT_LOCATION, MmsDatabase.TRANSACTION_ID,
+                                                     MmsDatabase.MESSAGE_SIZE, MmsDatabase.EXPIRY,
+                                                     MmsDatabase.STATUS, MmsSmsColumns.RECEIPT_COUNT,
+                                                     MmsSmsColumns.MISMATCHED_IDENTITIES,
+                                                     MmsDatabase.NETWORK_FAILURE, TRANSPORT};
+
+  private final List<PendingReceipt> pendingReceipts  = new LinkedList<>();
+  private final Object               receiptApplyLock = new Object();
+
   public MmsSmsDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
   }
@@ -63,6 +92,60 @@ public class MmsSmsDatabase extends Database {
     return cursor;
   }
 
+  /**
+   * Returns a window of at most pageSize messages in a thread that were received strictly
+   * before (DIRECTION_OLDER) or after (DIRECTION_NEWER) anchorDate, sorted oldest first.
+   * Each table is walked with a range scan over its (thread_id, date) index, so the cost
+   * of a page doesn't depend on how many messages the thread holds.  A pageSize of zero
+   * or less returns everything past the anchor.
+   */
+  public Cursor getConversation(long threadId, long anchorDate, int direction, int pageSize) {
+    String[] projection    = {MmsSmsColumns.ID, SmsDatabase.BODY, SmsDatabase.TYPE,
+                              MmsSmsColumns.THREAD_ID,
+                              SmsDatabase.ADDRESS, SmsDatabase.ADDRESS_DEVICE_ID, SmsDatabase.SUBJECT,
+                              MmsSmsColumns.NORMALIZED_DATE_SENT,
+                              MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
+                              MmsDatabase.MESSAGE_TYPE, MmsDatabase.MESSAGE_BOX,
+                              SmsDatabase.STATUS, MmsDatabase.PART_COUNT,
+                              MmsDatabase.CONTENT_LOCATION, MmsDatabase.TRANSACTION_ID,
+                              MmsDatabase.MESSAGE_SIZE, MmsDatabase.EXPIRY,
+                              MmsDatabase.STATUS, MmsSmsColumns.RECEIPT_COUNT,
+                              MmsSmsColumns.MISMATCHED_IDENTITIES,
+                              MmsDatabase.NETWORK_FAILURE, TRANSPORT};
+
+    String smsDate = SmsDatabase.TABLE_NAME + "." + SmsDatabase.DATE_RECEIVED;
+    String mmsDate = MmsDatabase.TABLE_NAME + "." + MmsDatabase.DATE_RECEIVED;
+
+    String smsSelection;
+    String mmsSelection;
+    String order;
+
+    // MMS dates are stored in seconds, so the anchor is rounded to keep the same bounds.
+    if (direction == DIRECTION_OLDER) {
+      long mmsAnchor = anchorDate / 1000 + (anchorDate % 1000 == 0 ? 0 : 1);
+
+      smsSelection   = smsDate + " < " + anchorDate;
+      mmsSelection   = mmsDate + " < " + mmsAnchor;
+      order          = " DESC";
+    } else {
+      smsSelection   = smsDate + " > " + anchorDate;
+      mmsSelection   = mmsDate + " > " + (anchorDate / 1000);
+      order          = " ASC";
+    }
+
+    String threadSelection = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND ";
+    String limit           = pageSize > 0 ? String.valueOf(pageSize) : null;
+
+    Cursor cursor = queryTables(projection,
+                                threadSelection + smsSelection, smsDate + order,
+                                threadSelection + mmsSelection, mmsDate + order,
+                                MmsSmsColumns.NORMALIZED_DATE_RECEIVED + order, limit,
+                                MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC");
+    setNotifyConverationListeners(cursor, threadId);
+
+    return cursor;
+  }
+
   public Cursor getIdentityConflictMessagesForThread(long threadId) {
     String[] projection    = {MmsSmsColumns.ID, SmsDatabase.BODY, SmsDatabase.TYPE,
                               MmsSmsColumns.THREAD_ID,
@@ -108,25 +191,36 @@ public class MmsSmsDatabase extends Database {
   }
 
   public Cursor getUnread() {
-    String[] projection    = {MmsSmsColumns.ID, SmsDatabase.BODY, SmsDatabase.READ, SmsDatabase.TYPE,
-                              SmsDatabase.ADDRESS, SmsDatabase.ADDRESS_DEVICE_ID, SmsDatabase.SUBJECT, MmsSmsColumns.THREAD_ID,
-                              SmsDatabase.STATUS,
-                              MmsSmsColumns.NORMALIZED_DATE_SENT,
-                              MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
-                              MmsDatabase.MESSAGE_TYPE, MmsDatabase.MESSAGE_BOX,
-                              MmsDatabase.PART_COUNT,
-                              MmsDatabase.CONTENT_LOCATION, MmsDatabase.TRANSACTION_ID,
-                              MmsDatabase.MESSAGE_SIZE, MmsDatabase.EXPIRY,
-                              MmsDatabase.STATUS, MmsSmsColumns.RECEIPT_COUNT,
-                              MmsSmsColumns.MISMATCHED_IDENTITIES,
-                              MmsDatabase.NETWORK_FAILURE, TRANSPORT};
+    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
+    String selection = MmsSmsColumns.READ + " = 0";
 
-    String order           = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
-    String selection       = MmsSmsColumns.READ + " = 0";
+    return queryTables(UNREAD_PROJECTION, selection, selection, order, null, null);
+  }
+
+  /**
+   * Reads just the keys of unread messages, oldest first, without touching their bodies.
+   * The type column holds the sms type and the message_box column the mms box.
+   */
+  public Cursor getUnreadKeys() {
+    String[] projection = {MmsSmsColumns.ID, MmsSmsColumns.THREAD_ID, SmsDatabase.TYPE,
+                           MmsDatabase.MESSAGE_BOX, TRANSPORT};
+    String   order      = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
+    String   selection  = MmsSmsColumns.READ + " = 0";
 
     return queryTables(projection, selection, selection, order, null, null);
   }
 
+  /**
+   * Reads the unread messages among the given ids, oldest first.
+   */
+  public Cursor getUnread(Collection<Long> smsIds, Collection<Long> mmsIds) {
+    String order        = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
+    String smsSelection = MmsSmsColumns.READ + " = 0 AND " + MmsSmsColumns.ID + " IN (" + TextUtils.join(",", smsIds) + ")";
+    String mmsSelection = MmsSmsColumns.READ + " = 0 AND " + MmsSmsColumns.ID + " IN (" + TextUtils.join(",", mmsIds) + ")";
+
+    return queryTables(UNREAD_PROJECTION, smsSelection, mmsSelection, order, null, null);
+  }
+
   public int getConversationCount(long threadId) {
     int count = DatabaseFactory.getSmsDatabase(context).getMessageCountForThread(threadId);
     count    += DatabaseFactory.getMmsDatabase(context).getMessageCountForThread(threadId);
@@ -135,11 +229,123 @@ public class MmsSmsDatabase extends Database {
   }
 
   public void incrementDeliveryReceiptCount(String address, long timestamp) {
-    DatabaseFactory.getSmsDatabase(context).incrementDeliveryReceiptCount(address, timestamp);
-    DatabaseFactory.getMmsDatabase(context).incrementDeliveryReceiptCount(address, timestamp);
+    incrementDeliveryReceiptCounts(Collections.singletonList(new Pair<>(address, timestamp)));
+  }
+
+  /**
+   * Applies a delivery receipt before returning, so a receipt is never acknowledged to
+   * the server while it only exists in memory.  Receipts that arrive while another batch
+   * is being applied wait for it, and are then applied together by whichever of their
+   * callers gets there first, so concurrent receipts still share one query per table,
+   * one transaction and one notification per affected thread.
+   */
+  public void applyDeliveryReceipt(String address, long timestamp) {
+    PendingReceipt receipt = new PendingReceipt(address, timestamp);
+
+    synchronized (pendingReceipts) {
+      pendingReceipts.add(receipt);
+    }
+
+    synchronized (receiptApplyLock) {
+      if (receipt.applied) return;
+
+      List<PendingReceipt> batch;
+
+      synchronized (pendingReceipts) {
+        batch = new LinkedList<>(pendingReceipts);
+        pendingReceipts.clear();
+      }
+
+      if (!batch.contains(receipt)) batch.add(receipt);
+
+      List<Pair<String, Long>> receipts = new LinkedList<>();
+
+      for (PendingReceipt pending : batch) {
+        receipts.add(new Pair<>(pending.address, pending.timestamp));
+      }
+
+      incrementDeliveryReceiptCounts(receipts);
+
+      for (PendingReceipt pending : batch) {
+        pending.applied = true;
+      }
+    }
+  }
+
+  /**
+   * Applies (address, sent timestamp) delivery receipts to the messages they acknowledge.
+   */
+  public void incrementDeliveryReceiptCounts(List<Pair<String, Long>> receipts) {
+    Map<Long, List<String>> receiptsByTimestamp = new HashMap<>();
+
+    for (Pair<String, Long> receipt : receipts) {
+      String address = MessagingDatabase.getCanonicalAddress(context, receipt.first);
+
+      if (address == null) continue;
+
+      List<String> addresses = receiptsByTimestamp.get(receipt.second);
+
+      if (addresses == null) {
+        addresses = new LinkedList<>();
+        receiptsByTimestamp.put(receipt.second, addresses);
+      }
+
+      addresses.add(address);
+    }
+
+    if (receiptsByTimestamp.isEmpty()) return;
+
+    SQLiteDatabase database       = databaseHelper.getWritableDatabase();
+    Set<Long>      updatedThreads = new HashSet<>();
+
+    database.beginTransaction();
+
+    try {
+      DatabaseFactory.getSmsDatabase(context).incrementDeliveryReceiptCounts(receiptsByTimestamp, updatedThreads);
+      DatabaseFactory.getMmsDatabase(context).incrementDeliveryReceiptCounts(receiptsByTimestamp, updatedThreads);
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+
+    Log.w(TAG, "Applied " + receipts.size() + " receipts to " + updatedThreads.size() + " threads");
+    notifyConversationListeners(updatedThreads);
   }
 
   private Cursor queryTables(String[] projection, String smsSelection, String mmsSelection, String order, String groupBy, String limit) {
+    String unionQuery = buildUnionQuery(smsSelection, null, mmsSelection, null, order, null);
+
+    SQLiteQueryBuilder outerQueryBuilder = new SQLiteQueryBuilder();
+    outerQueryBuilder.setTables("(" + unionQuery + ")");
+
+    String query      = outerQueryBuilder.buildQuery(projection, null, null, groupBy, null, null, limit);
+
+    Log.w("MmsSmsDatabase", "Executing query: " + query);
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
+    return db.rawQuery(query, null);
+  }
+
+  private Cursor queryTables(String[] projection,
+                             String smsSelection, String smsOrder,
+                             String mmsSelection, String mmsOrder,
+                             String unionOrder, String limit, String order)
+  {
+    String unionQuery = buildUnionQuery(smsSelection, smsOrder, mmsSelection, mmsOrder, unionOrder, limit);
+
+    SQLiteQueryBuilder outerQueryBuilder = new SQLiteQueryBuilder();
+    outerQueryBuilder.setTables("(" + unionQuery + ")");
+
+    String query      = outerQueryBuilder.buildQuery(projection, null, null, null, null, order, null);
+
+    Log.w("MmsSmsDatabase", "Executing query: " + query);
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
+    return db.rawQuery(query, null);
+  }
+
+  private String buildUnionQuery(String smsSelection, String smsOrder,
+                                 String mmsSelection, String mmsOrder,
+                                 String order, String limit)
+  {
     String[] mmsProjection = {MmsDatabase.DATE_SENT + " * 1000 AS " + MmsSmsColumns.NORMALIZED_DATE_SENT,
                               MmsDatabase.DATE_RECEIVED + " * 1000 AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
                               MmsSmsColumns.ID, SmsDatabase.BODY, MmsSmsColumns.READ, MmsSmsColumns.THREAD_ID,
@@ -209,17 +415,17 @@ public class MmsSmsDatabase extends Database {
     String mmsSubQuery = mmsQueryBuilder.buildUnionSubQuery(TRANSPORT, mmsProjection, mmsColumnsPresent, 2, MMS_TRANSPORT, mmsSelection, null, null, null);
     String smsSubQuery = smsQueryBuilder.buildUnionSubQuery(TRANSPORT, smsProjection, smsColumnsPresent, 2, SMS_TRANSPORT, smsSelection, null, null, null);
 
-    SQLiteQueryBuilder unionQueryBuilder = new SQLiteQueryBuilder();
-    String unionQuery = unionQueryBuilder.buildUnionQuery(new String[] {smsSubQuery, mmsSubQuery}, order, null);
-
-    SQLiteQueryBuilder outerQueryBuilder = new SQLiteQueryBuilder();
-    outerQueryBuilder.setTables("(" + unionQuery + ")");
+    if (limit != null) {
+      smsSubQuery = limitSubQuery(smsSubQuery, smsOrder, limit);
+      mmsSubQuery = limitSubQuery(mmsSubQuery, mmsOrder, limit);
+    }
 
-    String query      = outerQueryBuilder.buildQuery(projection, null, null, groupBy, null, null, limit);
+    SQLiteQueryBuilder unionQueryBuilder = new SQLiteQueryBuilder();
+    return unionQueryBuilder.buildUnionQuery(new String[] {smsSubQuery, mmsSubQuery}, order, limit);
+  }
 
-    Log.w("MmsSmsDatabase", "Executing query: " + query);
-    SQLiteDatabase db = databaseHelper.getReadableDatabase();
-    return db.rawQuery(query, null);
+  private String limitSubQuery(String subQuery, String order, String limit) {
+    return "SELECT * FROM (" + subQuery + " ORDER BY " + order + " LIMIT " + limit + ")";
   }
 
   public Reader readerFor(Cursor cursor, MasterSecret masterSecret) {
@@ -269,4 +475,16 @@ public class MmsSmsDatabase extends Database {
       cursor.close();
     }
   }
+
+  private static class PendingReceipt {
+    private final String address;
+    private final long   timestamp;
+
+    private boolean applied;
+
+    public PendingReceipt(String address, long timestamp) {
+      this.address   = address;
+      this.timestamp = timestamp;
+    }
+  }
 }
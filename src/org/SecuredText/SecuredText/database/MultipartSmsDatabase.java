@@ -0,0 +1,184 @@
+package org.SecuredText.SecuredText.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import org.SecuredText.SecuredText.util.VisibleForTesting;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fragments of multipart SMS transport messages that are still waiting for the rest of
+ * their set, one row per fragment, so a set can be completed after the process has died
+ * between fragments.  A set is keyed by its sender and multipart identifier.
+ */
+public class MultipartSmsDatabase {
+
+  private static final String TAG = MultipartSmsDatabase.class.getSimpleName();
+
+  private static final String DATABASE_NAME    = "multipart_sms.db";
+  private static final int    DATABASE_VERSION = 1;
+
+  private static final String TABLE_NAME     = "fragments";
+  private static final String ID             = "_id";
+  private static final String KEY            = "set_key";
+  private static final String FRAGMENT_INDEX = "fragment_index";
+  private static final String FRAGMENT_COUNT = "fragment_count";
+  private static final String DATA           = "data";
+  private static final String TIMESTAMP      = "timestamp";
+
+  private static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" + ID + " INTEGER PRIMARY KEY, " +
+                                             KEY + " TEXT NOT NULL, " + FRAGMENT_INDEX + " INTEGER, " +
+                                             FRAGMENT_COUNT + " INTEGER, " + DATA + " BLOB, " + TIMESTAMP + " INTEGER, " +
+                                             "UNIQUE (" + KEY + ", " + FRAGMENT_INDEX + ") ON CONFLICT REPLACE);";
+
+  private static final String CREATE_TIMESTAMP_INDEX = "CREATE INDEX IF NOT EXISTS fragments_timestamp_index ON " +
+                                                       TABLE_NAME + " (" + TIMESTAMP + ");";
+
+  private static final long VALID_TIME        = TimeUnit.HOURS.toMillis(1);
+  private static final long EVICTION_INTERVAL = TimeUnit.MINUTES.toMillis(15);
+
+  private static final Object instanceLock = new Object();
+  private static volatile MultipartSmsDatabase instance;
+
+  public static MultipartSmsDatabase getInstance(Context context) {
+    if (instance == null) {
+      synchronized (instanceLock) {
+        if (instance == null) {
+          instance = new MultipartSmsDatabase(context.getApplicationContext());
+        }
+      }
+    }
+
+    return instance;
+  }
+
+  private final DatabaseHelper databaseHelper;
+
+  private long lastEvictionTime;
+
+  @VisibleForTesting
+  public MultipartSmsDatabase(Context context) {
+    this.databaseHelper = new DatabaseHelper(context, DATABASE_NAME, null, DATABASE_VERSION);
+  }
+
+  /**
+   * Holds an exclusive transaction on the fragment database so that its file can be copied in a
+   * consistent state.  Writers block until endSnapshot() is called.
+   *
+   * @return the path of the database file.
+   */
+  public String beginSnapshot() {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    database.beginTransaction();
+    return database.getPath();
+  }
+
+  public void endSnapshot() {
+    databaseHelper.getWritableDatabase().endTransaction();
+  }
+
+  /**
+   * Stores a fragment, replacing any fragments left from an earlier set with the same key
+   * that had a different count or have expired.
+   *
+   * @return the set's fragments in order if this fragment completed it, in which case the
+   * set is removed, or null if fragments are still missing.
+   */
+  public synchronized byte[][] addFragment(String key, int index, int count, byte[] data) {
+    SQLiteDatabase db  = databaseHelper.getWritableDatabase();
+    long           now = System.currentTimeMillis();
+
+    if (now - lastEvictionTime >= EVICTION_INTERVAL) {
+      evictExpired(db, now);
+    }
+
+    db.beginTransaction();
+
+    try {
+      db.delete(TABLE_NAME, KEY + " = ? AND (" + FRAGMENT_COUNT + " != ? OR " + TIMESTAMP + " < ?)",
+                new String[] {key, String.valueOf(count), String.valueOf(now - VALID_TIME)});
+
+      ContentValues values = new ContentValues(5);
+      values.put(KEY, key);
+      values.put(FRAGMENT_INDEX, index);
+      values.put(FRAGMENT_COUNT, count);
+      values.put(DATA, data);
+      values.put(TIMESTAMP, now);
+
+      db.insert(TABLE_NAME, null, values);
+
+      long     stored    = DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " + TABLE_NAME + " WHERE " + KEY + " = ?",
+                                                        new String[] {key});
+      byte[][] fragments = null;
+
+      if (stored == count) {
+        fragments = getFragments(db, key, count);
+        db.delete(TABLE_NAME, KEY + " = ?", new String[] {key});
+      }
+
+      db.setTransactionSuccessful();
+      return fragments;
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  @VisibleForTesting
+  public void close() {
+    databaseHelper.close();
+  }
+
+  private byte[][] getFragments(SQLiteDatabase db, String key, int count) {
+    byte[][] fragments = new byte[count][];
+    Cursor   cursor    = null;
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {FRAGMENT_INDEX, DATA}, KEY + " = ?", new String[] {key},
+                        null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        fragments[cursor.getInt(0)] = cursor.getBlob(1);
+      }
+    } finally {
+      if (cursor != null) cursor.close();
+    }
+
+    return fragments;
+  }
+
+  private void evictExpired(SQLiteDatabase db, long now) {
+    int evicted = db.delete(TABLE_NAME, TIMESTAMP + " < ?", new String[] {String.valueOf(now - VALID_TIME)});
+
+    if (evicted > 0) {
+      Log.w(TAG, "Evicted " + evicted + " expired fragments");
+    }
+
+    lastEvictionTime = now;
+  }
+
+  private static class DatabaseHelper extends SQLiteOpenHelper {
+
+    public DatabaseHelper(Context context, String name,
+                          SQLiteDatabase.CursorFactory factory,
+                          int version)
+    {
+      super(context, name, factory, version);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+      db.execSQL(CREATE_TABLE);
+      db.execSQL(CREATE_TIMESTAMP_INDEX);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    }
+  }
+}
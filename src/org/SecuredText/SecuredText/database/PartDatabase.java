@@ -29,9 +29,10 @@ import android.util.Log;
 import android.util.Pair;
 
 import org.SecuredText.SecuredText.crypto.DecryptingPartInputStream;
-import org.SecuredText.SecuredText.crypto.EncryptingPartOutputStream;
 import org.SecuredText.SecuredText.crypto.MasterCipher;
 import org.SecuredText.SecuredText.crypto.MasterSecret;
+import org.SecuredText.SecuredText.crypto.SeekablePartInputStream;
+import org.SecuredText.SecuredText.crypto.SeekablePartOutputStream;
 import org.SecuredText.SecuredText.mms.PartAuthority;
 import org.SecuredText.SecuredText.util.BitmapDecodingException;
 import org.SecuredText.SecuredText.util.MediaUtil;
@@ -332,7 +333,12 @@ public class PartDatabase extends Database {
       throws FileNotFoundException
   {
     Log.w(TAG, "Getting part at: " + path.getAbsolutePath());
-    return new DecryptingPartInputStream(path, masterSecret);
+
+    if (SeekablePartInputStream.isSeekablePart(path)) {
+      return new SeekablePartInputStream(path, masterSecret);
+    } else {
+      return new DecryptingPartInputStream(path, masterSecret);
+    }
   }
 
   protected OutputStream getPartOutputStream(MasterSecret masterSecret, File path, PduPart part)
@@ -340,7 +346,7 @@ public class PartDatabase extends Database {
   {
     Log.w(TAG, "Writing part to: " + path.getAbsolutePath());
     part.setEncrypted(true);
-    return new EncryptingPartOutputStream(path, masterSecret);
+    return new SeekablePartOutputStream(path, masterSecret);
   }
 
   @VisibleForTesting InputStream getDataStream(MasterSecret masterSecret, long partId, String dataType)
@@ -387,7 +393,10 @@ public class PartDatabase extends Database {
       throws MmsException
   {
     try {
-      if (part.getData() != null) {
+      if (isDetachedPartFile(part)) {
+        Log.w(TAG, "Adopting part data already written to file");
+        return new Pair<>(new File(part.getDataUri().getPath()), part.getDataSize());
+      } else if (part.getData() != null) {
         Log.w(TAG, "Writing part data from buffer");
         return writePartData(masterSecret, part, new ByteArrayInputStream(part.getData()));
       } else if (part.getDataUri() != null) {
@@ -402,6 +411,29 @@ public class PartDatabase extends Database {
     }
   }
 
+  /**
+   * Encrypts a part's data into a new part file before its message exists, and points
+   * the part at that file.  When the part is later inserted the file is used as-is,
+   * so data streamed off the network is only written once.
+   */
+  public File writeDetachedPart(MasterSecret masterSecret, PduPart part, InputStream data)
+      throws MmsException
+  {
+    Pair<File, Long> partData = writePartData(masterSecret, part, data);
+
+    part.setDataUri(Uri.fromFile(partData.first));
+    part.setDataSize(partData.second);
+
+    return partData.first;
+  }
+
+  @VisibleForTesting boolean isDetachedPartFile(PduPart part) {
+    Uri uri = part.getDataUri();
+
+    return part.getEncrypted() && uri != null && "file".equals(uri.getScheme()) &&
+           context.getDir("parts", Context.MODE_PRIVATE).equals(new File(uri.getPath()).getParentFile());
+  }
+
   public InputStream getThumbnailStream(final MasterSecret masterSecret, final long partId) throws IOException {
     Log.w(TAG, "getThumbnailStream(" + partId + ")");
     final InputStream dataStream = getDataStream(masterSecret, partId, THUMBNAIL);
@@ -0,0 +1,58 @@
+package org.SecuredText.SecuredText.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+/**
+ * Delivery receipts that are owed but haven't been handed to a job yet.  A row is much
+ * cheaper to write than a persisted job, so receipts wait here to be batched.
+ */
+public class PendingReceiptDatabase extends Database {
+
+  private static final String TABLE_NAME  = "pending_receipts";
+  public  static final String ID          = "_id";
+  public  static final String DESTINATION = "destination";
+  public  static final String RELAY       = "relay";
+  public  static final String TIMESTAMP   = "timestamp";
+
+  public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" + ID + " INTEGER PRIMARY KEY, " +
+      DESTINATION + " TEXT NOT NULL, " + RELAY + " TEXT, " + TIMESTAMP + " INTEGER);";
+
+  public PendingReceiptDatabase(Context context, SQLiteOpenHelper databaseHelper) {
+    super(context, databaseHelper);
+  }
+
+  public long insert(String destination, String relay, long timestamp) {
+    ContentValues values = new ContentValues(3);
+    values.put(DESTINATION, destination);
+    values.put(RELAY, relay);
+    values.put(TIMESTAMP, timestamp);
+
+    return databaseHelper.getWritableDatabase().insert(TABLE_NAME, null, values);
+  }
+
+  /**
+   * @return every pending receipt, in the order they were added.
+   */
+  public Cursor getPending() {
+    return databaseHelper.getReadableDatabase().query(TABLE_NAME, null, null, null, null, null, ID + " ASC");
+  }
+
+  public void delete(long[] ids) {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    database.beginTransaction();
+
+    try {
+      for (long id : ids) {
+        database.delete(TABLE_NAME, ID_WHERE, new String[] {String.valueOf(id)});
+      }
+
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+  }
+}
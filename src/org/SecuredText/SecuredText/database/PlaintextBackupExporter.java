@@ -2,16 +2,54 @@ package org.SecuredText.SecuredText.database;
 
 
 import android.content.Context;
+import android.database.Cursor;
 import android.os.Environment;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.Pair;
 
+import org.SecuredText.SecuredText.crypto.MasterCipher;
 import org.SecuredText.SecuredText.crypto.MasterSecret;
+import org.SecuredText.SecuredText.database.MmsSmsColumns.Types;
 import org.SecuredText.SecuredText.database.model.SmsMessageRecord;
+import org.SecuredText.SecuredText.recipients.Recipients;
+import org.whispersystems.libaxolotl.InvalidMessageException;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import ws.com.google.android.mms.pdu.PduPart;
+
+/**
+ * Exports SMS and MMS messages as plaintext XML.
+ *
+ * Each table is walked once in _id order, one page of ids at a time.  Pages are
+ * read and decrypted on a small worker pool while the export thread writes the
+ * pages that are already done, in order, so output matches table order.  MMS
+ * part data is decrypted and streamed from disk by the export thread as it is
+ * written, in a single pass; a part that can't be opened is skipped, and one that
+ * fails part way through is written as far as it could be read and marked truncated.
+ *
+ * The header count only covers sms elements, since those are all that
+ * PlaintextBackupImporter reads back.
+ */
 public class PlaintextBackupExporter {
 
+  private static final String TAG = PlaintextBackupExporter.class.getSimpleName();
+
+  private static final int PAGE_SIZE   = 500;
+  private static final int MAX_WORKERS = 4;
+
   public static void exportPlaintextToSd(Context context, MasterSecret masterSecret)
       throws NoExternalStorageException, IOException
   {
@@ -32,35 +70,243 @@ public class PlaintextBackupExporter {
   private static void exportPlaintext(Context context, MasterSecret masterSecret)
       throws IOException
   {
-    int count               = DatabaseFactory.getSmsDatabase(context).getMessageCount();
-    XmlBackup.Writer writer = new XmlBackup.Writer(getPlaintextExportDirectoryPath(), count);
+    EncryptingSmsDatabase smsDatabase = DatabaseFactory.getEncryptingSmsDatabase(context);
+    MmsDatabase           mmsDatabase = DatabaseFactory.getMmsDatabase(context);
+    int                   count       = smsDatabase.getMessageCount();
+    int                   workers     = Math.max(1, Math.min(MAX_WORKERS, Runtime.getRuntime().availableProcessors()));
+    ExecutorService       executor    = Executors.newFixedThreadPool(workers);
+    XmlBackup.Writer      writer      = new XmlBackup.Writer(getPlaintextExportDirectoryPath(), count);
 
+    try {
+      exportTable(smsDatabase, executor, workers * 2, new SmsPageExporter(smsDatabase, masterSecret, writer));
+      exportTable(mmsDatabase, executor, workers * 2, new MmsPageExporter(context, masterSecret, writer));
+    } finally {
+      executor.shutdownNow();
+    }
 
-    SmsMessageRecord record;
-    EncryptingSmsDatabase.Reader reader = null;
-    int skip                            = 0;
-    int ROW_LIMIT                       = 500;
+    writer.close();
+  }
 
-    do {
-      if (reader != null)
-        reader.close();
+  private static <T> void exportTable(MessagingDatabase database, ExecutorService executor,
+                                      int maxPendingPages, final PageExporter<T> exporter)
+      throws IOException
+  {
+    LinkedList<Future<List<T>>> pending = new LinkedList<>();
+    long                        afterId = 0;
+    long                        lastId;
+
+    while ((lastId = database.getPageEndId(afterId, PAGE_SIZE)) != -1) {
+      final long pageStart = afterId;
+      final long pageEnd   = lastId;
 
-      reader = DatabaseFactory.getEncryptingSmsDatabase(context).getMessages(masterSecret, skip, ROW_LIMIT);
+      pending.add(executor.submit(new Callable<List<T>>() {
+        @Override
+        public List<T> call() throws Exception {
+          return exporter.read(pageStart, pageEnd);
+        }
+      }));
 
-      while ((record = reader.getNext()) != null) {
-        XmlBackup.XmlBackupItem item =
-            new XmlBackup.XmlBackupItem(0, record.getIndividualRecipient().getNumber(),
-                                        record.getDateReceived(),
-                                        MmsSmsColumns.Types.translateToSystemBaseType(record.getType()),
-                                        null, record.getDisplayBody().toString(), null,
-                                        1, record.getDeliveryStatus());
+      afterId = lastId;
+
+      if (pending.size() >= maxPendingPages) {
+        exporter.write(getPage(pending.removeFirst()));
+      }
+    }
 
+    while (!pending.isEmpty()) {
+      exporter.write(getPage(pending.removeFirst()));
+    }
+  }
+
+  private static <T> List<T> getPage(Future<List<T>> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException(e.getMessage());
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    }
+  }
+
+  private interface PageExporter<T> {
+    /**
+     * Reads and decrypts the messages with afterId < _id <= lastId.  Runs on a worker thread.
+     */
+    List<T> read(long afterId, long lastId);
+
+    /**
+     * Writes a page returned by read().  Runs on the export thread, in page order.
+     */
+    void write(List<T> page) throws IOException;
+  }
+
+  private static class SmsPageExporter implements PageExporter<XmlBackup.XmlBackupItem> {
+    private final EncryptingSmsDatabase database;
+    private final MasterSecret          masterSecret;
+    private final XmlBackup.Writer      writer;
+
+    public SmsPageExporter(EncryptingSmsDatabase database, MasterSecret masterSecret,
+                           XmlBackup.Writer writer)
+    {
+      this.database     = database;
+      this.masterSecret = masterSecret;
+      this.writer       = writer;
+    }
+
+    @Override
+    public List<XmlBackup.XmlBackupItem> read(long afterId, long lastId) {
+      List<XmlBackup.XmlBackupItem> items  = new LinkedList<>();
+      EncryptingSmsDatabase.Reader  reader = database.getMessagesInRange(masterSecret, afterId, lastId);
+      SmsMessageRecord              record;
+
+      try {
+        while ((record = reader.getNext()) != null) {
+          items.add(new XmlBackup.XmlBackupItem(0, record.getIndividualRecipient().getNumber(),
+                                                record.getDateReceived(),
+                                                MmsSmsColumns.Types.translateToSystemBaseType(record.getType()),
+                                                null, record.getDisplayBody().toString(), null,
+                                                1, record.getDeliveryStatus()));
+        }
+      } finally {
+        reader.close();
+      }
+
+      return items;
+    }
+
+    @Override
+    public void write(List<XmlBackup.XmlBackupItem> page) throws IOException {
+      for (XmlBackup.XmlBackupItem item : page) {
         writer.writeItem(item);
       }
+    }
+  }
 
-      skip += ROW_LIMIT;
-    } while (reader.getCount() > 0);
+  private static class MmsPageExporter implements PageExporter<MmsPageExporter.MmsItem> {
+    private final Context          context;
+    private final MasterSecret     masterSecret;
+    private final MasterCipher     masterCipher;
+    private final XmlBackup.Writer writer;
 
-    writer.close();
+    public MmsPageExporter(Context context, MasterSecret masterSecret, XmlBackup.Writer writer) {
+      this.context      = context;
+      this.masterSecret = masterSecret;
+      this.masterCipher = new MasterCipher(masterSecret);
+      this.writer       = writer;
+    }
+
+    @Override
+    public List<MmsItem> read(long afterId, long lastId) {
+      List<MmsItem> items  = new LinkedList<>();
+      Cursor        cursor = null;
+
+      try {
+        cursor = DatabaseFactory.getMmsDatabase(context).getMessagesInRange(afterId, lastId);
+
+        while (cursor != null && cursor.moveToNext()) {
+          long   id       = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.ID));
+          long   threadId = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.THREAD_ID));
+          long   date     = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.NORMALIZED_DATE_RECEIVED));
+          long   box      = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.MESSAGE_BOX));
+          int    read     = cursor.getInt(cursor.getColumnIndexOrThrow(MmsDatabase.READ));
+          String address  = cursor.getString(cursor.getColumnIndexOrThrow(MmsDatabase.ADDRESS));
+          String body     = cursor.getString(cursor.getColumnIndexOrThrow(MmsDatabase.BODY));
+
+          if (TextUtils.isEmpty(address)) {
+            address = getThreadAddress(threadId);
+          }
+
+          items.add(new MmsItem(id, address, date, Types.translateToSystemBaseType(box),
+                                read, getPlaintextBody(body, box)));
+        }
+      } finally {
+        if (cursor != null)
+          cursor.close();
+      }
+
+      return items;
+    }
+
+    @Override
+    public void write(List<MmsItem> page) throws IOException {
+      PartDatabase partDatabase = DatabaseFactory.getPartDatabase(context);
+
+      for (MmsItem item : page) {
+        int seq = 0;
+
+        writer.writeMmsStart(item.address, item.date, item.type, item.read);
+
+        if (!TextUtils.isEmpty(item.body)) {
+          writer.writeTextPart(seq++, item.body);
+        }
+
+        for (Pair<Long, PduPart> part : partDatabase.getParts(item.id)) {
+          if (part.second.isPendingPush() || part.second.getDataUri() == null) continue;
+
+          InputStream in;
+
+          try {
+            in = partDatabase.getPartStream(masterSecret, part.first);
+          } catch (FileNotFoundException e) {
+            Log.w(TAG, "Skipping missing part " + part.first, e);
+            continue;
+          }
+
+          try {
+            if (!writer.writeDataPart(seq++, toString(part.second.getContentType()),
+                                      toString(part.second.getName()), in))
+            {
+              Log.w(TAG, "Part " + part.first + " couldn't be read to the end, marked truncated");
+            }
+          } finally {
+            in.close();
+          }
+        }
+
+        writer.writeMmsEnd();
+      }
+    }
+
+    private String getPlaintextBody(String body, long box) {
+      if (TextUtils.isEmpty(body) || !Types.isSymmetricEncryption(box)) {
+        return body;
+      }
+
+      try {
+        return masterCipher.decryptBody(body);
+      } catch (InvalidMessageException e) {
+        Log.w(TAG, e);
+        return null;
+      }
+    }
+
+    private String getThreadAddress(long threadId) {
+      Recipients recipients = DatabaseFactory.getThreadDatabase(context).getRecipientsForThreadId(threadId);
+
+      if (recipients == null) return null;
+      else                    return TextUtils.join("~", recipients.toNumberStringArray(false));
+    }
+
+    private static String toString(byte[] value) {
+      return value == null ? null : new String(value);
+    }
+
+    private static class MmsItem {
+      private final long   id;
+      private final String address;
+      private final long   date;
+      private final int    type;
+      private final int    read;
+      private final String body;
+
+      public MmsItem(long id, String address, long date, int type, int read, String body) {
+        this.id      = id;
+        this.address = address;
+        this.date    = date;
+        this.type    = type;
+        this.read    = read;
+        this.body    = body;
+      }
+    }
   }
 }
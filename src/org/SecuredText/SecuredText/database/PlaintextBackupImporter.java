@@ -9,24 +9,35 @@ import android.util.Log;
 import org.SecuredText.SecuredText.crypto.MasterCipher;
 import org.SecuredText.SecuredText.crypto.MasterSecret;
 import org.SecuredText.SecuredText.recipients.RecipientFactory;
-import org.SecuredText.SecuredText.recipients.RecipientFormattingException;
 import org.SecuredText.SecuredText.recipients.Recipients;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 
 public class PlaintextBackupImporter {
 
+  private static final String TAG        = PlaintextBackupImporter.class.getSimpleName();
+  private static final int    CHUNK_SIZE = 500;
+
   public static void importPlaintextFromSd(Context context, MasterSecret masterSecret)
       throws NoExternalStorageException, IOException
   {
-    Log.w("PlaintextBackupImporter", "Importing plaintext...");
+    importPlaintextFromSd(context, masterSecret, null);
+  }
+
+  public static void importPlaintextFromSd(Context context, MasterSecret masterSecret,
+                                           ImportProgressListener listener)
+      throws NoExternalStorageException, IOException
+  {
+    Log.w(TAG, "Importing plaintext...");
     verifyExternalStorageForPlaintextImport();
-    importPlaintext(context, masterSecret);
+    importPlaintext(context, masterSecret, listener);
   }
 
   private static void verifyExternalStorageForPlaintextImport() throws NoExternalStorageException {
@@ -40,31 +51,35 @@ public class PlaintextBackupImporter {
     return sdDirectory.getAbsolutePath() + File.separator + "SecuredTextPlaintextBackup.xml";
   }
 
-  private static void importPlaintext(Context context, MasterSecret masterSecret)
+  private static void importPlaintext(Context context, MasterSecret masterSecret,
+                                      ImportProgressListener listener)
       throws IOException
   {
-    Log.w("PlaintextBackupImporter", "importPlaintext()");
-    SmsDatabase    db          = DatabaseFactory.getSmsDatabase(context);
-    SQLiteDatabase transaction = db.beginTransaction();
+    Log.w(TAG, "importPlaintext()");
+    SmsDatabase     db          = DatabaseFactory.getSmsDatabase(context);
+    ThreadDatabase  threads     = DatabaseFactory.getThreadDatabase(context);
+    SQLiteDatabase  transaction = db.beginTransaction();
+    SQLiteStatement statement   = db.createInsertStatement(transaction);
 
     try {
-      ThreadDatabase threads         = DatabaseFactory.getThreadDatabase(context);
-      XmlBackup      backup          = new XmlBackup(getPlaintextExportDirectoryPath());
-      MasterCipher   masterCipher    = new MasterCipher(masterSecret);
-      Set<Long>      modifiedThreads = new HashSet<Long>();
+      XmlBackup         backup          = new XmlBackup(getPlaintextExportDirectoryPath());
+      MasterCipher      masterCipher    = new MasterCipher(masterSecret);
+      Map<String, Long> threadIds       = new HashMap<>();
+      Set<Long>         modifiedThreads = new HashSet<>();
+      long              startTime       = System.currentTimeMillis();
+      int               imported        = 0;
       XmlBackup.XmlBackupItem item;
 
       while ((item = backup.getNext()) != null) {
-        Recipients      recipients = RecipientFactory.getRecipientsFromString(context, item.getAddress(), false);
-        long            threadId   = threads.getThreadIdFor(recipients);
-        SQLiteStatement statement  = db.createInsertStatement(transaction);
-
         if (item.getAddress() == null || item.getAddress().equals("null"))
           continue;
 
         if (!isAppropriateTypeForImport(item.getType()))
           continue;
 
+        long threadId = getThreadIdFor(context, threads, threadIds, item.getAddress());
+
+        statement.clearBindings();
         addStringToStatement(statement, 1, item.getAddress());
         addNullToStatement(statement, 2);
         addLongToStatement(statement, 3, item.getDate());
@@ -80,21 +95,57 @@ public class PlaintextBackupImporter {
         addLongToStatement(statement, 13, threadId);
         modifiedThreads.add(threadId);
         statement.execute();
-      }
 
-      for (long threadId : modifiedThreads) {
-        threads.update(threadId);
+        if (++imported % CHUNK_SIZE == 0) {
+          db.endTransaction(transaction);
+          transaction = db.beginTransaction();
+
+          notifyProgress(listener, imported, backup.getItemCount(), startTime);
+        }
       }
 
-      Log.w("PlaintextBackupImporter", "Exited loop");
+      db.endTransaction(transaction);
+      transaction = null;
+
+      threads.updateThreads(modifiedThreads);
+      notifyProgress(listener, imported, imported, startTime);
+
+      Log.w(TAG, "Imported " + imported + " messages into " + modifiedThreads.size() + " threads at " +
+                 getMessagesPerSecond(imported, startTime) + " messages/sec");
     } catch (XmlPullParserException e) {
-      Log.w("PlaintextBackupImporter", e);
+      Log.w(TAG, e);
       throw new IOException("XML Parsing error!");
     } finally {
-      db.endTransaction(transaction);
+      statement.close();
+      if (transaction != null) db.endTransaction(transaction);
     }
   }
 
+  private static long getThreadIdFor(Context context, ThreadDatabase threads,
+                                     Map<String, Long> threadIds, String address)
+  {
+    Long threadId = threadIds.get(address);
+
+    if (threadId == null) {
+      Recipients recipients = RecipientFactory.getRecipientsFromString(context, address, false);
+      threadId              = threads.getThreadIdFor(recipients);
+      threadIds.put(address, threadId);
+    }
+
+    return threadId;
+  }
+
+  private static void notifyProgress(ImportProgressListener listener, int imported, int total, long startTime) {
+    if (listener != null) {
+      listener.onImportProgress(imported, total, getMessagesPerSecond(imported, startTime));
+    }
+  }
+
+  private static long getMessagesPerSecond(int imported, long startTime) {
+    long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+    return imported * 1000L / elapsed;
+  }
+
   private static void addEncryptedStingToStatement(MasterCipher masterCipher, SQLiteStatement statement, int index, String value) {
     if (value == null || value.equals("null")) {
       statement.bindNull(index);
@@ -128,5 +179,7 @@ public class PlaintextBackupImporter {
            ourType == MmsSmsColumns.Types.BASE_SENT_FAILED_TYPE;
   }
 
-
+  public interface ImportProgressListener {
+    public void onImportProgress(int imported, int total, long messagesPerSecond);
+  }
 }
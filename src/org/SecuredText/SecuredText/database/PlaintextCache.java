@@ -0,0 +1,193 @@
+/**
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.SecuredText.SecuredText.database;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of decrypted message bodies shared by the SMS and MMS readers.
+ *
+ * Entries are keyed by table and message id, and hold the ciphertext they were
+ * decrypted from, which a lookup must match exactly, so a body that gets rewritten
+ * is never served stale.  The cache is bounded by the total number of ciphertext and
+ * plaintext characters it holds rather than by entry count, and is split into
+ * independently locked segments so that readers binding on different threads rarely
+ * contend.  It must be cleared when the master secret is.
+ */
+public class PlaintextCache {
+
+  private static final int SEGMENT_COUNT  = 16;
+  private static final int MAX_CHARACTERS = 1024 * 1024;
+
+  private static final PlaintextCache instance = new PlaintextCache(MAX_CHARACTERS);
+
+  private final Segment[]  segments;
+  private final AtomicLong hits      = new AtomicLong();
+  private final AtomicLong misses    = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  public static PlaintextCache getInstance() {
+    return instance;
+  }
+
+  PlaintextCache(int maxCharacters) {
+    this.segments = new Segment[SEGMENT_COUNT];
+
+    for (int i = 0; i < segments.length; i++) {
+      segments[i] = new Segment(maxCharacters / SEGMENT_COUNT);
+    }
+  }
+
+  public String get(String table, long messageId, String ciphertext) {
+    Key    key       = new Key(table, messageId);
+    String plaintext = segmentFor(key).get(key, ciphertext);
+
+    if (plaintext != null) hits.incrementAndGet();
+    else                   misses.incrementAndGet();
+
+    return plaintext;
+  }
+
+  public void put(String table, long messageId, String ciphertext, String plaintext) {
+    Key key = new Key(table, messageId);
+    evictions.addAndGet(segmentFor(key).put(key, new Entry(ciphertext, plaintext)));
+  }
+
+  public void clear() {
+    for (Segment segment : segments) {
+      segment.clear();
+    }
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  public long getCharacterCount() {
+    long count = 0;
+
+    for (Segment segment : segments) {
+      count += segment.getCharacterCount();
+    }
+
+    return count;
+  }
+
+  private Segment segmentFor(Key key) {
+    return segments[(key.hashCode() & 0x7fffffff) % segments.length];
+  }
+
+  private static class Segment {
+    private final int                       maxCharacters;
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private int characters;
+
+    public Segment(int maxCharacters) {
+      this.maxCharacters = maxCharacters;
+    }
+
+    public synchronized String get(Key key, String ciphertext) {
+      Entry entry = entries.get(key);
+
+      if (entry == null || !entry.ciphertext.equals(ciphertext)) return null;
+      else                                                       return entry.plaintext;
+    }
+
+    public synchronized int put(Key key, Entry entry) {
+      if (entry.length() > maxCharacters) return 0;
+
+      Entry previous = entries.put(key, entry);
+
+      if (previous != null) characters -= previous.length();
+      characters += entry.length();
+
+      int                             evicted  = 0;
+      Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+
+      while (characters > maxCharacters && iterator.hasNext()) {
+        Map.Entry<Key, Entry> eldest = iterator.next();
+
+        characters -= eldest.getValue().length();
+        iterator.remove();
+        evicted++;
+      }
+
+      return evicted;
+    }
+
+    public synchronized void clear() {
+      entries.clear();
+      characters = 0;
+    }
+
+    public synchronized int getCharacterCount() {
+      return characters;
+    }
+  }
+
+  private static class Entry {
+    private final String ciphertext;
+    private final String plaintext;
+
+    public Entry(String ciphertext, String plaintext) {
+      this.ciphertext = ciphertext;
+      this.plaintext  = plaintext;
+    }
+
+    public int length() {
+      return ciphertext.length() + plaintext.length();
+    }
+  }
+
+  private static class Key {
+    private final String table;
+    private final long   messageId;
+
+    public Key(String table, long messageId) {
+      this.table     = table;
+      this.messageId = messageId;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Key)) return false;
+
+      Key that = (Key)other;
+      return this.messageId == that.messageId && this.table.equals(that.table);
+    }
+
+    @Override
+    public int hashCode() {
+      int hash = (int)(messageId ^ (messageId >>> 32));
+      hash     = 31 * hash + table.hashCode();
+
+      return hash ^ (hash >>> 16);
+    }
+  }
+}
@@ -4,13 +4,9 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteOpenHelper;
-import android.util.Log;
 
-import org.SecuredText.SecuredText.util.Base64;
 import org.whispersystems.textsecure.api.messages.TextSecureEnvelope;
 
-import java.io.IOException;
-
 public class PushDatabase extends Database {
 
   private static final String TAG = PushDatabase.class.getSimpleName();
@@ -24,7 +20,11 @@ public class PushDatabase extends Database {
   public  static final String TIMESTAMP    = "timestamp";
 
   public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" + ID + " INTEGER PRIMARY KEY, " +
-      TYPE + " INTEGER, " + SOURCE + " TEXT, " + DEVICE_ID + " INTEGER, " + BODY + " TEXT, " + TIMESTAMP + " INTEGER);";
+      TYPE + " INTEGER, " + SOURCE + " TEXT, " + DEVICE_ID + " INTEGER, " + BODY + " BLOB, " + TIMESTAMP + " INTEGER);";
+
+  private static final String[] HEADER_PROJECTION = {ID, TYPE, SOURCE, DEVICE_ID, TIMESTAMP};
+
+  public static final int PENDING_BATCH_SIZE = 50;
 
   public PushDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
@@ -35,7 +35,7 @@ public class PushDatabase extends Database {
     values.put(TYPE, envelope.getType());
     values.put(SOURCE, envelope.getSource());
     values.put(DEVICE_ID, envelope.getSourceDevice());
-    values.put(BODY, Base64.encodeBytes(envelope.getMessage()));
+    values.put(BODY, envelope.getMessage());
     values.put(TIMESTAMP, envelope.getTimestamp());
 
     return databaseHelper.getWritableDatabase().insert(TABLE_NAME, null, values);
@@ -50,16 +50,8 @@ public class PushDatabase extends Database {
                                                           null, null, null);
 
       if (cursor != null && cursor.moveToNext()) {
-        return new TextSecureEnvelope(cursor.getInt(cursor.getColumnIndexOrThrow(TYPE)),
-                                      cursor.getString(cursor.getColumnIndexOrThrow(SOURCE)),
-                                      cursor.getInt(cursor.getColumnIndexOrThrow(DEVICE_ID)),
-                                      "",
-                                      cursor.getLong(cursor.getColumnIndexOrThrow(TIMESTAMP)),
-                                      Base64.decode(cursor.getString(cursor.getColumnIndexOrThrow(BODY))));
+        return getEnvelope(cursor);
       }
-    } catch (IOException e) {
-      Log.w(TAG, e);
-      throw new NoSuchMessageException(e);
     } finally {
       if (cursor != null)
         cursor.close();
@@ -68,44 +60,104 @@ public class PushDatabase extends Database {
     throw new NoSuchMessageException("Not found");
   }
 
-  public Cursor getPending() {
-    return databaseHelper.getReadableDatabase().query(TABLE_NAME, null, null, null, null, null, null);
+  /**
+   * @return up to limit pending envelopes with an id greater than afterId, in the order
+   * they were received.
+   */
+  public Cursor getPending(long afterId, int limit) {
+    return getPending(null, afterId, limit);
+  }
+
+  public boolean hasPending() {
+    Cursor cursor = null;
+
+    try {
+      cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, new String[] {ID}, null, null,
+                                                          null, null, null, "1");
+      return cursor != null && cursor.moveToFirst();
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
   }
 
   public void delete(long id) {
     databaseHelper.getWritableDatabase().delete(TABLE_NAME, ID_WHERE, new String[] {id+""});
   }
 
-  public Reader readerFor(Cursor cursor) {
-    return new Reader(cursor);
+  /**
+   * Walks every pending envelope, fetching PENDING_BATCH_SIZE rows at a time so that a
+   * large backlog is never held in one cursor window.
+   *
+   * @param includeBodies whether {@link PendingReader#getEnvelope()} will be called.  Bodies
+   *                      aren't read from the database otherwise.
+   */
+  public PendingReader readPending(boolean includeBodies) {
+    return new PendingReader(includeBodies ? null : HEADER_PROJECTION);
+  }
+
+  private Cursor getPending(String[] projection, long afterId, int limit) {
+    return databaseHelper.getReadableDatabase().query(TABLE_NAME, projection, ID + " > ?",
+                                                      new String[] {String.valueOf(afterId)},
+                                                      null, null, ID + " ASC", String.valueOf(limit));
   }
 
-  public static class Reader {
-    private final Cursor cursor;
+  private static TextSecureEnvelope getEnvelope(Cursor cursor) {
+    int    type      = cursor.getInt(cursor.getColumnIndexOrThrow(TYPE));
+    String source    = cursor.getString(cursor.getColumnIndexOrThrow(SOURCE));
+    int    deviceId  = cursor.getInt(cursor.getColumnIndexOrThrow(DEVICE_ID));
+    byte[] body      = cursor.getBlob(cursor.getColumnIndexOrThrow(BODY));
+    long   timestamp = cursor.getLong(cursor.getColumnIndexOrThrow(TIMESTAMP));
 
-    public Reader(Cursor cursor) {
-      this.cursor = cursor;
+    return new TextSecureEnvelope(type, source, deviceId, "", timestamp, body);
+  }
+
+  public class PendingReader {
+    private final String[] projection;
+
+    private Cursor  cursor;
+    private long    lastId;
+    private boolean exhausted;
+
+    private PendingReader(String[] projection) {
+      this.projection = projection;
     }
 
-    public TextSecureEnvelope getNext() {
-      try {
-        if (cursor == null || !cursor.moveToNext())
-          return null;
+    public boolean next() {
+      while (cursor != null || !exhausted) {
+        if (cursor == null) {
+          cursor    = getPending(projection, lastId, PENDING_BATCH_SIZE);
+          exhausted = cursor.getCount() < PENDING_BATCH_SIZE;
+        }
 
-        int          type         = cursor.getInt(cursor.getColumnIndexOrThrow(TYPE));
-        String       source       = cursor.getString(cursor.getColumnIndexOrThrow(SOURCE));
-        int          deviceId     = cursor.getInt(cursor.getColumnIndexOrThrow(DEVICE_ID));
-        byte[]       body         = Base64.decode(cursor.getString(cursor.getColumnIndexOrThrow(BODY)));
-        long         timestamp    = cursor.getLong(cursor.getColumnIndexOrThrow(TIMESTAMP));
+        if (cursor.moveToNext()) {
+          lastId = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
+          return true;
+        }
 
-        return new TextSecureEnvelope(type, source, deviceId, "", timestamp, body);
-      } catch (IOException e) {
-        throw new AssertionError(e);
+        close();
       }
+
+      return false;
+    }
+
+    public long getId() {
+      return lastId;
+    }
+
+    public String getSource() {
+      return cursor.getString(cursor.getColumnIndexOrThrow(SOURCE));
+    }
+
+    public TextSecureEnvelope getEnvelope() {
+      return PushDatabase.getEnvelope(cursor);
     }
 
     public void close() {
-      this.cursor.close();
+      if (cursor != null) {
+        cursor.close();
+        cursor = null;
+      }
     }
   }
 }
@@ -5,26 +5,38 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
-import android.net.Uri;
+import android.database.sqlite.SQLiteStatement;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.util.Log;
 
+import org.SecuredText.SecuredText.util.VisibleForTesting;
 import org.whispersystems.textsecure.api.push.ContactTokenDetails;
 import org.whispersystems.textsecure.api.util.InvalidNumberException;
 import org.whispersystems.textsecure.api.util.PhoneNumberFormatter;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The push directory.  The whole table is held in an in-memory index, loaded on first
+ * use, so lookups never touch SQLite; a number missing from the index isn't in the
+ * directory.  Writes go to SQLite first, then replace the index.
+ */
 public class SecuredTextDirectory {
 
   private static final int INTRODUCED_CHANGE_FROM_TOKEN_TO_E164_NUMBER = 2;
+  private static final int INTRODUCED_CONTACT_NUMBERS_VERSION         = 3;
 
   private static final String DATABASE_NAME    = "whisper_directory.db";
-  private static final int    DATABASE_VERSION = 2;
+  private static final int    DATABASE_VERSION = 3;
 
   private static final String TABLE_NAME   = "directory";
   private static final String ID           = "_id";
@@ -40,6 +52,16 @@ public class SecuredTextDirectory {
                               SUPPORTS_SMS + " INTEGER, " +
                               TIMESTAMP    + " INTEGER);";
 
+  private static final String CONTACT_NUMBERS_TABLE_NAME   = "contact_numbers";
+  private static final String DATA_VERSION                 = "data_version";
+  private static final String CREATE_CONTACT_NUMBERS_TABLE = "CREATE TABLE " + CONTACT_NUMBERS_TABLE_NAME + "(" +
+                              ID           + " INTEGER PRIMARY KEY, " +
+                              DATA_VERSION + " INTEGER, " +
+                              NUMBER       + " TEXT);";
+
+  private static final long STALE_MILLIS     = TimeUnit.DAYS.toMillis(7);
+  private static final int  STALE_BATCH_SIZE = 500;
+
   private static final Object instanceLock = new Object();
   private static volatile SecuredTextDirectory instance;
 
@@ -55,31 +77,59 @@ public class SecuredTextDirectory {
     return instance;
   }
 
-  private final DatabaseHelper databaseHelper;
   private final Context        context;
+  private final Object         indexLock = new Object();
+  private final AtomicLong     lookups   = new AtomicLong();
+
+  private DatabaseHelper databaseHelper;
+
+  private volatile Map<String, Entry> index;
+  private volatile long               indexLoadedAt;
 
-  private SecuredTextDirectory(Context context) {
+  @VisibleForTesting
+  public SecuredTextDirectory(Context context) {
     this.context = context;
     this.databaseHelper = new DatabaseHelper(context, DATABASE_NAME, null, DATABASE_VERSION);
   }
 
-  public boolean isSmsFallbackSupported(String e164number) {
-    SQLiteDatabase db = databaseHelper.getReadableDatabase();
-    Cursor cursor = null;
+  /**
+   * Reopens the database and drops the index, for when the database file has been
+   * replaced underneath the directory, such as by a backup import.
+   */
+  public void reset(Context context) {
+    synchronized (indexLock) {
+      DatabaseHelper old  = this.databaseHelper;
+      this.databaseHelper = new DatabaseHelper(context, DATABASE_NAME, null, DATABASE_VERSION);
+      old.close();
+
+      index = null;
+    }
+  }
 
-    try {
-      cursor = db.query(TABLE_NAME, new String[] {SUPPORTS_SMS}, NUMBER + " = ?",
-                        new String[]{e164number}, null, null, null);
+  @VisibleForTesting
+  public void close() {
+    databaseHelper.close();
+  }
 
-      if (cursor != null && cursor.moveToFirst()) {
-        return cursor.getInt(0) == 1;
-      } else {
-        return false;
-      }
-    } finally {
-      if (cursor != null)
-        cursor.close();
-    }
+  /**
+   * Holds an exclusive transaction on the directory database so that its file can be copied in a
+   * consistent state.  Writers block until endSnapshot() is called.
+   *
+   * @return the path of the database file.
+   */
+  public String beginSnapshot() {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    database.beginTransaction();
+    return database.getPath();
+  }
+
+  public void endSnapshot() {
+    databaseHelper.getWritableDatabase().endTransaction();
+  }
+
+  public boolean isSmsFallbackSupported(String e164number) {
+    Entry entry = getEntry(e164number);
+    return entry != null && entry.supportsSms;
   }
 
   public boolean isActiveNumber(String e164number) throws NotInDirectoryException {
@@ -87,117 +137,265 @@ public class SecuredTextDirectory {
       return false;
     }
 
-    SQLiteDatabase db = databaseHelper.getReadableDatabase();
-    Cursor cursor = null;
-
-    try {
-      cursor = db.query(TABLE_NAME,
-          new String[]{REGISTERED}, NUMBER + " = ?",
-          new String[] {e164number}, null, null, null);
-
-      if (cursor != null && cursor.moveToFirst()) {
-        return cursor.getInt(0) == 1;
-      } else {
-        throw new NotInDirectoryException();
-      }
+    Entry entry = getEntry(e164number);
 
-    } finally {
-      if (cursor != null)
-        cursor.close();
+    if (entry == null) {
+      throw new NotInDirectoryException();
     }
+
+    return entry.registered;
   }
 
   public String getRelay(String e164number) {
-    SQLiteDatabase database = databaseHelper.getReadableDatabase();
-    Cursor         cursor   = null;
+    Entry entry = getEntry(e164number);
+    return entry != null ? entry.relay : null;
+  }
 
-    try {
-      cursor = database.query(TABLE_NAME, null, NUMBER + " = ?", new String[]{e164number}, null, null, null);
+  /**
+   * @return the relay of each number that has one, from a single read of the index.
+   */
+  public Map<String, String> getRelays(Collection<String> e164numbers) {
+    Map<String, Entry>  index  = getIndex();
+    Map<String, String> relays = new HashMap<>();
 
-      if (cursor != null && cursor.moveToFirst()) {
-        return cursor.getString(cursor.getColumnIndexOrThrow(RELAY));
-      }
+    lookups.addAndGet(e164numbers.size());
 
-      return null;
-    } finally {
-      if (cursor != null)
-        cursor.close();
+    for (String e164number : e164numbers) {
+      Entry entry = index.get(e164number);
+
+      if (entry != null && entry.relay != null) {
+        relays.put(e164number, entry.relay);
+      }
     }
+
+    return relays;
   }
 
   public void setNumber(ContactTokenDetails token, boolean active) {
-    SQLiteDatabase db     = databaseHelper.getWritableDatabase();
-    ContentValues  values = new ContentValues();
-    values.put(NUMBER, token.getNumber());
-    values.put(RELAY, token.getRelay());
-    values.put(REGISTERED, active ? 1 : 0);
-    values.put(SUPPORTS_SMS, token.isSupportsSms() ? 1 : 0);
-    values.put(TIMESTAMP, System.currentTimeMillis());
-    db.replace(TABLE_NAME, null, values);
+    synchronized (indexLock) {
+      Map<String, Entry> updated = new HashMap<>(getIndex());
+      Entry              entry   = Entry.get(active, token.getRelay(), token.isSupportsSms());
+      SQLiteDatabase     db      = databaseHelper.getWritableDatabase();
+
+      db.replace(TABLE_NAME, null, getContentValues(token.getNumber(), entry, System.currentTimeMillis()));
+      updated.put(token.getNumber(), entry);
+
+      index = updated;
+    }
   }
 
+  /**
+   * Writes only the numbers whose directory state changed, then swaps the updated index
+   * in, so readers see either all of a refresh or none of it.
+   */
   public void setNumbers(List<ContactTokenDetails> activeTokens, Collection<String> inactiveTokens) {
-    long timestamp    = System.currentTimeMillis();
-    SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    db.beginTransaction();
+    setNumbers(activeTokens, inactiveTokens, null);
+  }
+
+  /**
+   * Applies the result of checking a refresh batch's numbers: those without an active
+   * token are inactive, the ones that didn't change are marked as freshly checked, and
+   * the batch's contact watermarks are saved along with them.
+   */
+  public void setNumbers(RefreshBatch batch, List<ContactTokenDetails> activeTokens) {
+    Set<String> inactiveTokens = new HashSet<>(batch.numbers);
+
+    for (ContactTokenDetails token : activeTokens) {
+      inactiveTokens.remove(token.getNumber());
+    }
+
+    setNumbers(activeTokens, inactiveTokens, batch);
+  }
+
+  private void setNumbers(List<ContactTokenDetails> activeTokens, Collection<String> inactiveTokens,
+                          RefreshBatch batch)
+  {
+    synchronized (indexLock) {
+      Map<String, Entry> current   = getIndex();
+      Map<String, Entry> changed   = new HashMap<>();
+      List<String>       unchanged = new LinkedList<>();
+      long               timestamp = System.currentTimeMillis();
 
-    try {
       for (ContactTokenDetails token : activeTokens) {
-        Log.w("Directory", "Adding active token: " + token);
-        ContentValues values = new ContentValues();
-        values.put(NUMBER, token.getNumber());
-        values.put(REGISTERED, 1);
-        values.put(TIMESTAMP, timestamp);
-        values.put(RELAY, token.getRelay());
-        values.put(SUPPORTS_SMS, token.isSupportsSms() ? 1 : 0);
-        db.replace(TABLE_NAME, null, values);
+        Entry entry = Entry.get(true, token.getRelay(), token.isSupportsSms());
+
+        if (!entry.equals(current.get(token.getNumber()))) {
+          Log.w("Directory", "Adding active token: " + token);
+          changed.put(token.getNumber(), entry);
+        } else {
+          unchanged.add(token.getNumber());
+        }
       }
 
       for (String token : inactiveTokens) {
-        ContentValues values = new ContentValues();
-        values.put(NUMBER, token);
-        values.put(REGISTERED, 0);
-        values.put(TIMESTAMP, timestamp);
-        db.replace(TABLE_NAME, null, values);
+        Entry entry = Entry.get(false, null, false);
+
+        if (!entry.equals(current.get(token))) changed.put(token, entry);
+        else                                    unchanged.add(token);
+      }
+
+      Log.w("Directory", "Refresh changed " + changed.size() + " of " +
+                         (activeTokens.size() + inactiveTokens.size()) + " numbers");
+
+      if (changed.isEmpty() && batch == null) return;
+
+      SQLiteDatabase db = databaseHelper.getWritableDatabase();
+      db.beginTransaction();
+
+      try {
+        for (Map.Entry<String, Entry> change : changed.entrySet()) {
+          db.replace(TABLE_NAME, null, getContentValues(change.getKey(), change.getValue(), timestamp));
+        }
+
+        if (batch != null) {
+          touchNumbers(db, unchanged, timestamp);
+          saveContactNumbers(db, batch);
+        }
+
+        db.setTransactionSuccessful();
+      } finally {
+        db.endTransaction();
+      }
+
+      if (!changed.isEmpty()) {
+        Map<String, Entry> updated = new HashMap<>(current);
+        updated.putAll(changed);
+
+        index = updated;
       }
+    }
+  }
+
+  private void touchNumbers(SQLiteDatabase db, List<String> numbers, long timestamp) {
+    SQLiteStatement statement = db.compileStatement("UPDATE " + TABLE_NAME + " SET " + TIMESTAMP + " = ? " +
+                                                    "WHERE " + NUMBER + " = ?");
 
-      db.setTransactionSuccessful();
+    try {
+      for (String number : numbers) {
+        statement.bindLong(1, timestamp);
+        statement.bindString(2, number);
+        statement.execute();
+      }
     } finally {
-      db.endTransaction();
+      statement.close();
+    }
+  }
+
+  private void saveContactNumbers(SQLiteDatabase db, RefreshBatch batch) {
+    for (Map.Entry<Long, ContactNumber> row : batch.changedRows.entrySet()) {
+      ContentValues values = new ContentValues();
+      values.put(ID, row.getKey());
+      values.put(DATA_VERSION, row.getValue().version);
+      values.put(NUMBER, row.getValue().number);
+      db.replace(CONTACT_NUMBERS_TABLE_NAME, null, values);
     }
+
+    for (long removedRow : batch.removedRows) {
+      db.delete(CONTACT_NUMBERS_TABLE_NAME, ID + " = ?", new String[] {String.valueOf(removedRow)});
+    }
+  }
+
+  public int getIndexSize() {
+    return getIndex().size();
   }
 
-  public Set<String> getPushEligibleContactNumbers(String localNumber) {
-    final Uri         uri     = Phone.CONTENT_URI;
-    final Set<String> results = new HashSet<String>();
-          Cursor      cursor  = null;
+  /**
+   * @return lookups per minute since the index was loaded.
+   */
+  public long getLookupRate() {
+    long elapsed = System.currentTimeMillis() - indexLoadedAt;
+    return lookups.get() * 60 * 1000 / Math.max(1, elapsed);
+  }
+
+  /**
+   * Collects the numbers a directory refresh needs to check: address book numbers that
+   * are new or were edited since the last refresh and aren't in the directory yet, plus
+   * a batch of directory numbers that haven't been checked for STALE_MILLIS.  Address
+   * book rows whose version hasn't changed aren't formatted again, so the work done
+   * grows with the number of changes rather than with the size of the address book.
+   */
+  public RefreshBatch getRefreshBatch(String localNumber) {
+    Map<Long, ContactNumber> known  = getContactNumbers();
+    Map<String, Entry>       index  = getIndex();
+    RefreshBatch             batch  = new RefreshBatch();
+    Cursor                   cursor = null;
 
     try {
-      cursor = context.getContentResolver().query(uri, new String[] {Phone.NUMBER}, null, null, null);
+      cursor = context.getContentResolver().query(Phone.CONTENT_URI,
+                                                  new String[] {Phone._ID, Phone.DATA_VERSION, Phone.NUMBER},
+                                                  null, null, null);
 
       while (cursor != null && cursor.moveToNext()) {
-        final String rawNumber = cursor.getString(0);
+        long          id       = cursor.getLong(0);
+        long          version  = cursor.getLong(1);
+        ContactNumber previous = known.remove(id);
+
+        if (previous != null && previous.version == version) continue;
+
+        String rawNumber  = cursor.getString(2);
+        String e164Number = null;
+
         if (rawNumber != null) {
           try {
-            final String e164Number = PhoneNumberFormatter.formatNumber(rawNumber, localNumber);
-            results.add(e164Number);
+            e164Number = PhoneNumberFormatter.formatNumber(rawNumber, localNumber);
           } catch (InvalidNumberException e) {
             Log.w("Directory", "Invalid number: " + rawNumber);
           }
         }
+
+        batch.changedRows.put(id, new ContactNumber(version, e164Number));
+
+        if (e164Number != null && !index.containsKey(e164Number)) {
+          batch.numbers.add(e164Number);
+        }
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    batch.removedRows.addAll(known.keySet());
+    batch.numbers.addAll(getStaleNumbers());
+
+    Log.w("Directory", "Refresh batch: " + batch.changedRows.size() + " changed contact numbers, " +
+                       batch.removedRows.size() + " removed, " + batch.numbers.size() + " numbers to check");
+
+    return batch;
+  }
+
+  private Map<Long, ContactNumber> getContactNumbers() {
+    Map<Long, ContactNumber> results = new HashMap<>();
+    Cursor                   cursor  = null;
+
+    try {
+      cursor = databaseHelper.getReadableDatabase().query(CONTACT_NUMBERS_TABLE_NAME,
+                                                          new String[] {ID, DATA_VERSION, NUMBER},
+                                                          null, null, null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        results.put(cursor.getLong(0), new ContactNumber(cursor.getLong(1), cursor.getString(2)));
       }
 
+      return results;
+    } finally {
       if (cursor != null)
         cursor.close();
+    }
+  }
 
-      final SQLiteDatabase readableDb = databaseHelper.getReadableDatabase();
-      if (readableDb != null) {
-        cursor = readableDb.query(TABLE_NAME, new String[]{NUMBER},
-            null, null, null, null, null);
+  private List<String> getStaleNumbers() {
+    List<String> results = new LinkedList<>();
+    Cursor       cursor  = null;
 
-        while (cursor != null && cursor.moveToNext()) {
-          results.add(cursor.getString(0));
-        }
+    try {
+      cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, new String[] {NUMBER},
+                                                          TIMESTAMP + " < ?",
+                                                          new String[] {String.valueOf(System.currentTimeMillis() - STALE_MILLIS)},
+                                                          null, null, TIMESTAMP + " ASC",
+                                                          String.valueOf(STALE_BATCH_SIZE));
+
+      while (cursor != null && cursor.moveToNext()) {
+        results.add(cursor.getString(0));
       }
 
       return results;
@@ -209,21 +407,131 @@ public class SecuredTextDirectory {
 
   public List<String> getActiveNumbers() {
     final List<String> results = new ArrayList<String>();
+
+    for (Map.Entry<String, Entry> entry : getIndex().entrySet()) {
+      if (entry.getValue().registered) {
+        results.add(entry.getKey());
+      }
+    }
+
+    return results;
+  }
+
+  private Entry getEntry(String e164number) {
+    lookups.incrementAndGet();
+    return getIndex().get(e164number);
+  }
+
+  private Map<String, Entry> getIndex() {
+    Map<String, Entry> current = index;
+
+    if (current == null) {
+      synchronized (indexLock) {
+        if (index == null) {
+          index         = loadIndex();
+          indexLoadedAt = System.currentTimeMillis();
+        }
+
+        current = index;
+      }
+    }
+
+    return current;
+  }
+
+  private Map<String, Entry> loadIndex() {
     Cursor cursor = null;
+
     try {
-      cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, new String[]{NUMBER},
-          REGISTERED + " = 1", null, null, null, null);
+      cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, new String[] {NUMBER, REGISTERED, RELAY, SUPPORTS_SMS},
+                                                          null, null, null, null, null);
 
-      while (cursor != null && cursor.moveToNext()) {
-        results.add(cursor.getString(0));
+      Map<String, Entry> loaded = new HashMap<>(cursor.getCount() * 4 / 3 + 1);
+
+      while (cursor.moveToNext()) {
+        loaded.put(cursor.getString(0), Entry.get(cursor.getInt(1) == 1, cursor.getString(2), cursor.getInt(3) == 1));
       }
-      return results;
+
+      Log.w("Directory", "Loaded " + loaded.size() + " numbers into the directory index");
+      return loaded;
     } finally {
       if (cursor != null)
         cursor.close();
     }
   }
 
+  private ContentValues getContentValues(String number, Entry entry, long timestamp) {
+    ContentValues values = new ContentValues();
+    values.put(NUMBER, number);
+    values.put(REGISTERED, entry.registered ? 1 : 0);
+    values.put(RELAY, entry.relay);
+    values.put(SUPPORTS_SMS, entry.supportsSms ? 1 : 0);
+    values.put(TIMESTAMP, timestamp);
+    return values;
+  }
+
+  /**
+   * A number's directory state.  Nearly every number has no relay, so those entries are
+   * shared, and relay names are interned.
+   */
+  private static class Entry {
+    private static final Entry[] WITHOUT_RELAY = {new Entry(false, null, false), new Entry(false, null, true),
+                                                  new Entry(true, null, false),  new Entry(true, null, true)};
+
+    private final boolean registered;
+    private final String  relay;
+    private final boolean supportsSms;
+
+    private Entry(boolean registered, String relay, boolean supportsSms) {
+      this.registered  = registered;
+      this.relay       = relay;
+      this.supportsSms = supportsSms;
+    }
+
+    public static Entry get(boolean registered, String relay, boolean supportsSms) {
+      if (relay == null) return WITHOUT_RELAY[(registered ? 2 : 0) | (supportsSms ? 1 : 0)];
+      else               return new Entry(registered, relay.intern(), supportsSms);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Entry)) return false;
+
+      Entry that = (Entry)other;
+      return this.registered == that.registered && this.supportsSms == that.supportsSms &&
+             (this.relay == null ? that.relay == null : this.relay.equals(that.relay));
+    }
+
+    @Override
+    public int hashCode() {
+      return ((registered ? 2 : 0) | (supportsSms ? 1 : 0)) ^ (relay == null ? 0 : relay.hashCode());
+    }
+  }
+
+  /**
+   * The numbers to check in one directory refresh, and the address book watermarks to
+   * save once they have been checked.
+   */
+  public static class RefreshBatch {
+    private final Set<String>              numbers     = new HashSet<>();
+    private final Map<Long, ContactNumber> changedRows = new HashMap<>();
+    private final Set<Long>                removedRows = new HashSet<>();
+
+    public Set<String> getNumbers() {
+      return numbers;
+    }
+  }
+
+  private static class ContactNumber {
+    private final long   version;
+    private final String number;
+
+    public ContactNumber(long version, String number) {
+      this.version = version;
+      this.number  = number;
+    }
+  }
+
   private class DatabaseHelper extends SQLiteOpenHelper {
 
     public DatabaseHelper(Context context, String name,
@@ -236,6 +544,7 @@ public class SecuredTextDirectory {
     @Override
     public void onCreate(SQLiteDatabase db) {
       db.execSQL(CREATE_TABLE);
+      db.execSQL(CREATE_CONTACT_NUMBERS_TABLE);
     }
 
     @Override
@@ -249,6 +558,10 @@ public class SecuredTextDirectory {
                    "supports_sms INTEGER, " +
                    "timestamp INTEGER);");
       }
+
+      if (oldVersion < INTRODUCED_CONTACT_NUMBERS_VERSION) {
+        db.execSQL(CREATE_CONTACT_NUMBERS_TABLE);
+      }
     }
   }
 
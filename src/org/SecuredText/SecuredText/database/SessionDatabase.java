@@ -0,0 +1,94 @@
+package org.SecuredText.SecuredText.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Session records, encrypted by the caller, one row per recipient and device.  Keeping
+ * them in messages.db lets a session update commit in the same transaction as the
+ * message it was advanced for.
+ */
+public class SessionDatabase extends Database {
+
+  private static final String TABLE_NAME = "sessions";
+  private static final String ID         = "_id";
+  public  static final String RECIPIENT  = "recipient";
+  public  static final String DEVICE     = "device";
+  public  static final String RECORD     = "record";
+
+  public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME +
+      " (" + ID + " INTEGER PRIMARY KEY, " +
+      RECIPIENT + " INTEGER NOT NULL, " +
+      DEVICE + " INTEGER NOT NULL, " +
+      RECORD + " BLOB NOT NULL, " +
+      "UNIQUE(" + RECIPIENT + ", " + DEVICE + ") ON CONFLICT REPLACE);";
+
+  private static final String RECIPIENT_DEVICE_WHERE = RECIPIENT + " = ? AND " + DEVICE + " = ?";
+
+  public SessionDatabase(Context context, SQLiteOpenHelper databaseHelper) {
+    super(context, databaseHelper);
+  }
+
+  /**
+   * @return the encrypted record, or null if there isn't one.
+   */
+  public byte[] get(long recipientId, int deviceId) {
+    Cursor cursor = null;
+
+    try {
+      cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, new String[] {RECORD},
+                                                          RECIPIENT_DEVICE_WHERE,
+                                                          new String[] {String.valueOf(recipientId), String.valueOf(deviceId)},
+                                                          null, null, null);
+
+      if (cursor != null && cursor.moveToFirst()) {
+        return cursor.getBlob(0);
+      }
+
+      return null;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  public void store(long recipientId, int deviceId, byte[] record) {
+    ContentValues values = new ContentValues(3);
+    values.put(RECIPIENT, recipientId);
+    values.put(DEVICE, deviceId);
+    values.put(RECORD, record);
+
+    databaseHelper.getWritableDatabase().insert(TABLE_NAME, null, values);
+  }
+
+  public void delete(long recipientId, int deviceId) {
+    databaseHelper.getWritableDatabase().delete(TABLE_NAME, RECIPIENT_DEVICE_WHERE,
+                                                new String[] {String.valueOf(recipientId), String.valueOf(deviceId)});
+  }
+
+  public List<Integer> getDevices(long recipientId) {
+    List<Integer> results = new LinkedList<>();
+    Cursor        cursor  = null;
+
+    try {
+      cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, new String[] {DEVICE},
+                                                          RECIPIENT + " = ?",
+                                                          new String[] {String.valueOf(recipientId)},
+                                                          null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        results.add(cursor.getInt(0));
+      }
+
+      return results;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+}
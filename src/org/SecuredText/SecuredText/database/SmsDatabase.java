@@ -43,15 +43,14 @@ import org.SecuredText.SecuredText.sms.IncomingTextMessage;
 import org.SecuredText.SecuredText.sms.OutgoingTextMessage;
 import org.SecuredText.SecuredText.util.JsonUtils;
 import org.whispersystems.jobqueue.JobManager;
-import org.whispersystems.textsecure.api.util.InvalidNumberException;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
-import static org.SecuredText.SecuredText.util.Util.canonicalizeNumber;
-
 /**
  * Database for storage of SMS messages.
  *
@@ -85,7 +84,8 @@ public class SmsDatabase extends MessagingDatabase {
     "CREATE INDEX IF NOT EXISTS sms_read_index ON " + TABLE_NAME + " (" + READ + ");",
     "CREATE INDEX IF NOT EXISTS sms_read_and_thread_id_index ON " + TABLE_NAME + "(" + READ + "," + THREAD_ID + ");",
     "CREATE INDEX IF NOT EXISTS sms_type_index ON " + TABLE_NAME + " (" + TYPE + ");",
-    "CREATE INDEX IF NOT EXISTS sms_date_sent_index ON " + TABLE_NAME + " (" + DATE_SENT + ");"
+    "CREATE INDEX IF NOT EXISTS sms_date_sent_index ON " + TABLE_NAME + " (" + DATE_SENT + ");",
+    "CREATE INDEX IF NOT EXISTS sms_thread_date_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ");"
   };
 
   private static final String[] MESSAGE_PROJECTION = new String[] {
@@ -269,37 +269,40 @@ public class SmsDatabase extends MessagingDatabase {
     updateTypeBitmask(id, Types.BASE_TYPE_MASK, Types.BASE_SENT_FAILED_TYPE);
   }
 
-  public void incrementDeliveryReceiptCount(String address, long timestamp) {
-    SQLiteDatabase database = databaseHelper.getWritableDatabase();
-    Cursor         cursor   = null;
+  /**
+   * Applies a batch of delivery receipts, keyed by sent timestamp with the canonical
+   * addresses that acknowledged it, using one query against the date_sent index.  The
+   * caller owns the transaction and notifies the threads added to updatedThreads.
+   */
+  /*package*/ void incrementDeliveryReceiptCounts(Map<Long, List<String>> receipts, Set<Long> updatedThreads) {
+    SQLiteDatabase  database = databaseHelper.getWritableDatabase();
+    SQLiteStatement update   = database.compileStatement("UPDATE " + TABLE_NAME + " SET " + RECEIPT_COUNT + " = " +
+                                                         RECEIPT_COUNT + " + ? WHERE " + ID + " = ?");
+    Cursor          cursor   = null;
 
     try {
-      cursor = database.query(TABLE_NAME, new String[] {ID, THREAD_ID, ADDRESS, TYPE},
-                              DATE_SENT + " = ?", new String[] {String.valueOf(timestamp)},
+      cursor = database.query(TABLE_NAME, new String[] {ID, THREAD_ID, ADDRESS, TYPE, DATE_SENT},
+                              DATE_SENT + " IN (" + TextUtils.join(",", receipts.keySet()) + ")",
                               null, null, null, null);
 
       while (cursor.moveToNext()) {
-        if (Types.isOutgoingMessageType(cursor.getLong(cursor.getColumnIndexOrThrow(TYPE)))) {
-          try {
-            String theirAddress = canonicalizeNumber(context, address);
-            String ourAddress   = canonicalizeNumber(context, cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS)));
-
-            if (ourAddress.equals(theirAddress)) {
-              database.execSQL("UPDATE " + TABLE_NAME +
-                               " SET " + RECEIPT_COUNT + " = " + RECEIPT_COUNT + " + 1 WHERE " +
-                               ID + " = ?",
-                               new String[] {String.valueOf(cursor.getLong(cursor.getColumnIndexOrThrow(ID)))});
-
-              notifyConversationListeners(cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID)));
-            }
-          } catch (InvalidNumberException e) {
-            Log.w("SmsDatabase", e);
-          }
+        if (!Types.isOutgoingMessageType(cursor.getLong(cursor.getColumnIndexOrThrow(TYPE)))) continue;
+
+        String ourAddress = getCanonicalAddress(context, cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS)));
+        int    count      = Collections.frequency(receipts.get(cursor.getLong(cursor.getColumnIndexOrThrow(DATE_SENT))), ourAddress);
+
+        if (ourAddress != null && count > 0) {
+          update.bindLong(1, count);
+          update.bindLong(2, cursor.getLong(cursor.getColumnIndexOrThrow(ID)));
+          update.execute();
+
+          updatedThreads.add(cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID)));
         }
       }
     } finally {
       if (cursor != null)
         cursor.close();
+      update.close();
     }
   }
 
@@ -353,7 +356,11 @@ public class SmsDatabase extends MessagingDatabase {
     SQLiteDatabase db           = databaseHelper.getWritableDatabase();
     long           newMessageId = db.insert(TABLE_NAME, null, contentValues);
 
-    DatabaseFactory.getThreadDatabase(context).update(record.getThreadId());
+    DatabaseFactory.getThreadDatabase(context).updateForNewMessage(record.getThreadId(),
+                                                                   contentValues.getAsString(BODY),
+                                                                   contentValues.getAsLong(TYPE),
+                                                                   contentValues.getAsLong(DATE_SENT),
+                                                                   contentValues.getAsLong(DATE_RECEIVED));
     notifyConversationListeners(record.getThreadId());
 
     jobManager.add(new TrimThreadJob(context, record.getThreadId()));
@@ -437,7 +444,9 @@ public class SmsDatabase extends MessagingDatabase {
       DatabaseFactory.getThreadDatabase(context).setUnread(threadId);
     }
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId);
+    DatabaseFactory.getThreadDatabase(context).updateForNewMessage(threadId, values.getAsString(BODY), type,
+                                                                   values.getAsLong(DATE_SENT),
+                                                                   values.getAsLong(DATE_RECEIVED));
     notifyConversationListeners(threadId);
     jobManager.add(new TrimThreadJob(context, threadId));
 
@@ -470,16 +479,17 @@ public class SmsDatabase extends MessagingDatabase {
     SQLiteDatabase db        = databaseHelper.getWritableDatabase();
     long           messageId = db.insert(TABLE_NAME, ADDRESS, contentValues);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId);
+    DatabaseFactory.getThreadDatabase(context).updateForNewMessage(threadId, message.getMessageBody(), type, date, date);
     notifyConversationListeners(threadId);
     jobManager.add(new TrimThreadJob(context, threadId));
 
     return messageId;
   }
 
-  Cursor getMessages(int skip, int limit) {
+  Cursor getMessagesInRange(long afterId, long lastId) {
     SQLiteDatabase db = databaseHelper.getReadableDatabase();
-    return db.query(TABLE_NAME, MESSAGE_PROJECTION, null, null, null, null, ID, skip + "," + limit);
+    return db.query(TABLE_NAME, MESSAGE_PROJECTION, ID + " > ? AND " + ID + " <= ?",
+                    new String[] {afterId + "", lastId + ""}, null, null, ID);
   }
 
   Cursor getOutgoingMessages() {
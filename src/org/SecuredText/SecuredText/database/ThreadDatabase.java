@@ -27,16 +27,20 @@ import android.util.Log;
 import org.SecuredText.SecuredText.R;
 import org.SecuredText.SecuredText.crypto.MasterCipher;
 import org.SecuredText.SecuredText.database.model.DisplayRecord;
-import org.SecuredText.SecuredText.database.model.MessageRecord;
 import org.SecuredText.SecuredText.database.model.ThreadRecord;
 import org.SecuredText.SecuredText.recipients.Recipient;
 import org.SecuredText.SecuredText.recipients.RecipientFactory;
 import org.SecuredText.SecuredText.recipients.Recipients;
 import org.whispersystems.libaxolotl.InvalidMessageException;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class ThreadDatabase extends Database {
@@ -64,6 +68,8 @@ public class ThreadDatabase extends Database {
     "CREATE INDEX IF NOT EXISTS thread_recipient_ids_index ON " + TABLE_NAME + " (" + RECIPIENT_IDS + ");",
   };
 
+  private static final int UPDATE_BATCH_SIZE = 500;
+
   public ThreadDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
   }
@@ -114,7 +120,7 @@ public class ThreadDatabase extends Database {
     return db.insert(TABLE_NAME, null, contentValues);
   }
 
-  private void updateThread(long threadId, long count, String body, long date, long type)
+  private void updateThread(SQLiteDatabase db, long threadId, long count, String body, long date, long type)
   {
     ContentValues contentValues = new ContentValues(4);
     contentValues.put(DATE, date - date % 1000);
@@ -122,9 +128,7 @@ public class ThreadDatabase extends Database {
     contentValues.put(SNIPPET, body);
     contentValues.put(SNIPPET_TYPE, type);
 
-    SQLiteDatabase db = databaseHelper.getWritableDatabase();
     db.update(TABLE_NAME, contentValues, ID + " = ?", new String[] {threadId + ""});
-    notifyConversationListListeners();
   }
 
   public void updateSnippet(long threadId, String snippet, long type) {
@@ -163,9 +167,10 @@ public class ThreadDatabase extends Database {
   }
 
   public void trimAllThreads(int length, ProgressListener listener) {
-    Cursor cursor   = null;
-    int threadCount = 0;
-    int complete    = 0;
+    Cursor    cursor      = null;
+    int       threadCount = 0;
+    int       complete    = 0;
+    Set<Long> trimmed     = new HashSet<>();
 
     try {
       cursor = this.getConversationList();
@@ -175,7 +180,10 @@ public class ThreadDatabase extends Database {
 
       while (cursor != null && cursor.moveToNext()) {
         long threadId = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
-        trimThread(threadId, length);
+
+        if (trimThreadMessages(threadId, length)) {
+          trimmed.add(threadId);
+        }
 
         listener.onProgress(++complete, threadCount);
       }
@@ -183,9 +191,22 @@ public class ThreadDatabase extends Database {
       if (cursor != null)
         cursor.close();
     }
+
+    updateThreads(trimmed);
+    notifyConversationListeners(trimmed);
   }
 
   public void trimThread(long threadId, int length) {
+    if (trimThreadMessages(threadId, length)) {
+      update(threadId);
+      notifyConversationListeners(threadId);
+    }
+  }
+
+  /**
+   * @return true if messages were deleted, leaving the thread's metadata to be updated.
+   */
+  private boolean trimThreadMessages(long threadId, int length) {
     Log.w("ThreadDatabase", "Trimming thread: " + threadId + " to: " + length);
     Cursor cursor = null;
 
@@ -203,9 +224,10 @@ public class ThreadDatabase extends Database {
         DatabaseFactory.getSmsDatabase(context).deleteMessagesInThreadBeforeDate(threadId, lastTweetDate);
         DatabaseFactory.getMmsDatabase(context).deleteMessagesInThreadBeforeDate(threadId, lastTweetDate);
 
-        update(threadId);
-        notifyConversationListeners(threadId);
+        return true;
       }
+
+      return false;
     } finally {
       if (cursor != null)
         cursor.close();
@@ -379,37 +401,144 @@ public class ThreadDatabase extends Database {
   }
 
   public void update(long threadId) {
-    MmsSmsDatabase mmsSmsDatabase = DatabaseFactory.getMmsSmsDatabase(context);
-    long count                    = mmsSmsDatabase.getConversationCount(threadId);
+    updateThreads(Collections.singleton(threadId));
+  }
+
+  /**
+   * Recomputes the message count, date and snippet of every given thread from one grouped
+   * query per message table, and writes them in a single transaction.  Threads left
+   * without messages are deleted.
+   */
+  public void updateThreads(Collection<Long> threadIds) {
+    if (threadIds.isEmpty()) return;
 
-    if (count == 0) {
-      deleteThread(threadId);
-      notifyConversationListListeners();
-      return;
+    SQLiteDatabase           db        = databaseHelper.getWritableDatabase();
+    List<Long>               pending   = new ArrayList<>(threadIds);
+    Map<Long, ThreadSummary> summaries = new HashMap<>();
+
+    db.beginTransaction();
+
+    try {
+      for (int i = 0; i < pending.size(); i += UPDATE_BATCH_SIZE) {
+        List<Long> batch = pending.subList(i, Math.min(pending.size(), i + UPDATE_BATCH_SIZE));
+        String     ids   = TextUtils.join(",", batch);
+
+        addSummaries(db, SmsDatabase.TABLE_NAME, SmsDatabase.TYPE, SmsDatabase.DATE_SENT,
+                     SmsDatabase.DATE_RECEIVED, 1, ids, summaries);
+        addSummaries(db, MmsDatabase.TABLE_NAME, MmsDatabase.MESSAGE_BOX, MmsDatabase.DATE_SENT,
+                     MmsDatabase.DATE_RECEIVED, 1000, ids, summaries);
+      }
+
+      for (long threadId : pending) {
+        ThreadSummary summary = summaries.get(threadId);
+
+        if (summary == null) {
+          db.delete(TABLE_NAME, ID_WHERE, new String[] {threadId + ""});
+        } else {
+          updateThread(db, threadId, summary.count, summary.snippet, summary.getTimestamp(), summary.type);
+        }
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
     }
 
-    MmsSmsDatabase.Reader reader = null;
+    notifyConversationListListeners();
+  }
+
+  /**
+   * Records a message just inserted into a thread by adding it to the thread's running
+   * message count, rather than counting the thread again.  It becomes the snippet unless
+   * the thread already shows a newer message.
+   */
+  public void updateForNewMessage(long threadId, String snippet, long type, long dateSent, long dateReceived) {
+    long   timestamp = MmsSmsColumns.Types.isPushType(type) ? dateSent : dateReceived;
+    long   date      = timestamp - timestamp % 1000;
+    String isNewer   = "(" + MESSAGE_COUNT + " = 0 OR " + DATE + " <= " + date + ")";
+
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.execSQL("UPDATE " + TABLE_NAME + " SET " +
+               MESSAGE_COUNT + " = " + MESSAGE_COUNT + " + 1, " +
+               SNIPPET       + " = CASE WHEN " + isNewer + " THEN ? ELSE " + SNIPPET + " END, " +
+               SNIPPET_TYPE  + " = CASE WHEN " + isNewer + " THEN " + type + " ELSE " + SNIPPET_TYPE + " END, " +
+               DATE          + " = CASE WHEN " + isNewer + " THEN " + date + " ELSE " + DATE + " END " +
+               "WHERE " + ID + " = ?",
+               new Object[] {snippet, threadId});
+
+    notifyConversationListListeners();
+  }
+
+  private void addSummaries(SQLiteDatabase db, String table, String typeColumn, String sentColumn,
+                            String receivedColumn, long dateMultiplier, String ids,
+                            Map<Long, ThreadSummary> summaries)
+  {
+    String query = "SELECT m." + ID + ", m." + MmsSmsColumns.THREAD_ID + ", latest.message_count, " +
+                   "m." + MmsSmsColumns.BODY + ", m." + typeColumn + ", " +
+                   "m." + sentColumn + " * " + dateMultiplier + ", m." + receivedColumn + " * " + dateMultiplier + " " +
+                   "FROM " + table + " AS m JOIN " +
+                   "(SELECT " + MmsSmsColumns.THREAD_ID + ", COUNT(*) AS message_count, MAX(" + receivedColumn + ") AS date " +
+                   " FROM " + table + " WHERE " + MmsSmsColumns.THREAD_ID + " IN (" + ids + ")" +
+                   " GROUP BY " + MmsSmsColumns.THREAD_ID + ") AS latest " +
+                   "ON m." + MmsSmsColumns.THREAD_ID + " = latest." + MmsSmsColumns.THREAD_ID + " " +
+                   "AND m." + receivedColumn + " = latest.date";
+
+    Set<Long> counted = new HashSet<>();
+    Cursor    cursor  = null;
 
     try {
-      reader = mmsSmsDatabase.readerFor(mmsSmsDatabase.getConversationSnippet(threadId));
-      MessageRecord record;
+      cursor = db.rawQuery(query, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        long          threadId = cursor.getLong(1);
+        ThreadSummary summary  = summaries.get(threadId);
 
-      if (reader != null && (record = reader.getNext()) != null) {
-        final long timestamp;
+        if (summary == null) {
+          summary = new ThreadSummary();
+          summaries.put(threadId, summary);
+        }
 
-        if (record.isPush()) timestamp = record.getDateSent();
-        else                 timestamp = record.getDateReceived();
+        if (counted.add(threadId)) {
+          summary.count += cursor.getLong(2);
+        }
 
-        updateThread(threadId, count, record.getBody().getBody(), timestamp, record.getType());
-      } else {
-        deleteThread(threadId);
+        summary.offer(table, cursor.getLong(0), cursor.isNull(3) ? "" : cursor.getString(3), cursor.getLong(4),
+                      cursor.getLong(5), cursor.getLong(6));
       }
     } finally {
-      if (reader != null)
-        reader.close();
+      if (cursor != null)
+        cursor.close();
     }
+  }
 
-    notifyConversationListListeners();
+  private static class ThreadSummary {
+    private long   count;
+    private String table;
+    private long   messageId;
+    private String snippet;
+    private long   type;
+    private long   dateSent;
+    private long   dateReceived = Long.MIN_VALUE;
+
+    /**
+     * Keeps the newest message by received date, as getConversationSnippet() orders them.
+     */
+    public void offer(String table, long messageId, String snippet, long type, long dateSent, long dateReceived) {
+      if (dateReceived > this.dateReceived ||
+          (dateReceived == this.dateReceived && table.equals(this.table) && messageId > this.messageId))
+      {
+        this.table        = table;
+        this.messageId    = messageId;
+        this.snippet      = snippet;
+        this.type         = type;
+        this.dateSent     = dateSent;
+        this.dateReceived = dateReceived;
+      }
+    }
+
+    public long getTimestamp() {
+      return MmsSmsColumns.Types.isPushType(type) ? dateSent : dateReceived;
+    }
   }
 
   public static interface ProgressListener {
@@ -1,6 +1,9 @@
 package org.SecuredText.SecuredText.database;
 
 import android.text.TextUtils;
+import android.util.Log;
+
+import org.SecuredText.SecuredText.util.Base64;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
@@ -11,11 +14,14 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class XmlBackup {
 
+  private static final String TAG = XmlBackup.class.getSimpleName();
+
   private static final String PROTOCOL       = "protocol";
   private static final String ADDRESS        = "address";
   private static final String DATE           = "date";
@@ -28,9 +34,25 @@ public class XmlBackup {
   private static final String TOA            = "toa";
   private static final String SC_TOA         = "sc_toa";
   private static final String LOCKED         = "locked";
+  private static final String COUNT          = "count";
+  private static final String MSG_BOX        = "msg_box";
+  private static final String M_TYPE         = "m_type";
+  private static final String CT_T           = "ct_t";
+  private static final String SUB            = "sub";
+  private static final String TEXT_ONLY      = "text_only";
+  private static final String SEQ            = "seq";
+  private static final String CT             = "ct";
+  private static final String NAME           = "name";
+  private static final String CHSET          = "chset";
+  private static final String CL             = "cl";
+  private static final String TEXT           = "text";
+  private static final String DATA           = "data";
+  private static final String TRUNCATED      = "truncated";
 
   private final XmlPullParser parser;
 
+  private int itemCount = -1;
+
   public XmlBackup(String path) throws XmlPullParserException, FileNotFoundException {
     this.parser = XmlPullParserFactory.newInstance().newPullParser();
     parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
@@ -45,6 +67,11 @@ public class XmlBackup {
 
       String name = parser.getName();
 
+      if (name.equalsIgnoreCase("smses")) {
+        readItemCount();
+        continue;
+      }
+
       if (!name.equalsIgnoreCase("sms")) {
         continue;
       }
@@ -77,6 +104,23 @@ public class XmlBackup {
     return null;
   }
 
+  /**
+   * @return the item count declared by the backup's header, or -1 if it is unknown.
+   */
+  public int getItemCount() {
+    return itemCount;
+  }
+
+  private void readItemCount() {
+    String count = parser.getAttributeValue(null, COUNT);
+
+    try {
+      if (count != null) itemCount = Integer.parseInt(count);
+    } catch (NumberFormatException e) {
+      itemCount = -1;
+    }
+  }
+
   public static class XmlBackupItem {
     private int    protocol;
     private String address;
@@ -148,16 +192,32 @@ public class XmlBackup {
     private static final String  OPEN_TAG_SMSES  = "<smses count=\"%d\">";
     private static final String  CLOSE_TAG_SMSES = "</smses>";
     private static final String  OPEN_TAG_SMS    = " <sms ";
+    private static final String  OPEN_TAG_MMS    = " <mms ";
+    private static final String  CLOSE_TAG_MMS   = " </mms>";
+    private static final String  OPEN_TAG_PARTS  = "  <parts>";
+    private static final String  CLOSE_TAG_PARTS = "  </parts>";
+    private static final String  OPEN_TAG_PART   = "   <part ";
+    private static final String  CLOSE_TAG       = ">";
     private static final String  CLOSE_EMPTYTAG  = "/>";
     private static final String  OPEN_ATTRIBUTE  = "=\"";
     private static final String  CLOSE_ATTRIBUTE = "\" ";
 
+    private static final String  MMS_CONTENT_TYPE  = "application/vnd.wap.multipart.related";
+    private static final String  TEXT_CONTENT_TYPE = "text/plain";
+    private static final int     UTF_8_MIB_ENUM    = 106;
+    private static final int     M_TYPE_SEND_REQ   = 128;
+    private static final int     M_TYPE_RETRIEVE   = 132;
+
+    private static final int     WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final int     DATA_CHUNK_SIZE   = 3 * 4096;
+
     private static final Pattern PATTERN         = Pattern.compile("[^\u0020-\uD7FF]");
 
     private final BufferedWriter bufferedWriter;
+    private final byte[]         dataBuffer = new byte[DATA_CHUNK_SIZE];
 
     public Writer(String path, int count) throws IOException {
-      bufferedWriter = new BufferedWriter(new FileWriter(path, false));
+      bufferedWriter = new BufferedWriter(new FileWriter(path, false), WRITE_BUFFER_SIZE);
 
       bufferedWriter.write(XML_HEADER);
       bufferedWriter.newLine();
@@ -188,6 +248,126 @@ public class XmlBackup {
       bufferedWriter.write(stringBuilder.toString());
     }
 
+    /**
+     * Opens an mms element in the format used by SMS Backup &amp; Restore.  It must be
+     * followed by any number of writeTextPart() and writeDataPart() calls, then writeMmsEnd().
+     *
+     * @param type a system message box type, as returned by Types.translateToSystemBaseType().
+     */
+    public void writeMmsStart(String address, long date, int type, int read) throws IOException {
+      StringBuilder stringBuilder = new StringBuilder();
+
+      stringBuilder.append(OPEN_TAG_MMS);
+      appendAttribute(stringBuilder, ADDRESS, escapeXML(address));
+      appendAttribute(stringBuilder, DATE, date);
+      appendAttribute(stringBuilder, MSG_BOX, type);
+      appendAttribute(stringBuilder, READ, read);
+      appendAttribute(stringBuilder, M_TYPE, type == 1 ? M_TYPE_RETRIEVE : M_TYPE_SEND_REQ);
+      appendAttribute(stringBuilder, CT_T, MMS_CONTENT_TYPE);
+      appendAttribute(stringBuilder, SUB, "null");
+      appendAttribute(stringBuilder, TEXT_ONLY, 0);
+      appendAttribute(stringBuilder, LOCKED, 0);
+      stringBuilder.append(CLOSE_TAG);
+
+      bufferedWriter.newLine();
+      bufferedWriter.write(stringBuilder.toString());
+      bufferedWriter.newLine();
+      bufferedWriter.write(OPEN_TAG_PARTS);
+    }
+
+    public void writeTextPart(int seq, String text) throws IOException {
+      StringBuilder stringBuilder = new StringBuilder();
+
+      stringBuilder.append(OPEN_TAG_PART);
+      appendAttribute(stringBuilder, SEQ, seq);
+      appendAttribute(stringBuilder, CT, TEXT_CONTENT_TYPE);
+      appendAttribute(stringBuilder, NAME, "null");
+      appendAttribute(stringBuilder, CHSET, UTF_8_MIB_ENUM);
+      appendAttribute(stringBuilder, CL, "text.txt");
+      appendAttribute(stringBuilder, TEXT, escapeXML(text));
+      stringBuilder.append(CLOSE_EMPTYTAG);
+
+      bufferedWriter.newLine();
+      bufferedWriter.write(stringBuilder.toString());
+    }
+
+    /**
+     * Writes a part whose content is read from data and written as base64 in fixed
+     * size chunks, so attachments are never held in memory as a whole.  The stream
+     * is not closed.
+     *
+     * If data can't be read to the end, the part ends with what was read and is marked
+     * truncated="1" rather than failing the backup.  Failures writing the backup itself
+     * are still thrown.
+     *
+     * @return false if the part was truncated.
+     */
+    public boolean writeDataPart(int seq, String contentType, String name, InputStream data)
+        throws IOException
+    {
+      StringBuilder stringBuilder = new StringBuilder();
+
+      stringBuilder.append(OPEN_TAG_PART);
+      appendAttribute(stringBuilder, SEQ, seq);
+      appendAttribute(stringBuilder, CT, escapeXML(contentType));
+      appendAttribute(stringBuilder, NAME, TextUtils.isEmpty(name) ? "null" : escapeXML(name));
+      appendAttribute(stringBuilder, CL, TextUtils.isEmpty(name) ? "null" : escapeXML(name));
+      stringBuilder.append(DATA).append(OPEN_ATTRIBUTE);
+
+      bufferedWriter.newLine();
+      bufferedWriter.write(stringBuilder.toString());
+
+      boolean complete = true;
+      int     read;
+
+      while (true) {
+        try {
+          read = readChunk(data);
+        } catch (IOException e) {
+          Log.w(TAG, e);
+          complete = false;
+          break;
+        }
+
+        if (read <= 0) break;
+
+        bufferedWriter.write(Base64.encodeBytes(dataBuffer, 0, read));
+      }
+
+      bufferedWriter.write(CLOSE_ATTRIBUTE);
+
+      if (!complete) {
+        bufferedWriter.write(TRUNCATED + OPEN_ATTRIBUTE + 1 + CLOSE_ATTRIBUTE);
+      }
+
+      bufferedWriter.write(CLOSE_EMPTYTAG);
+      return complete;
+    }
+
+    public void writeMmsEnd() throws IOException {
+      bufferedWriter.newLine();
+      bufferedWriter.write(CLOSE_TAG_PARTS);
+      bufferedWriter.newLine();
+      bufferedWriter.write(CLOSE_TAG_MMS);
+    }
+
+    /**
+     * Fills the data buffer completely unless the stream ends first, so that every
+     * chunk but the last is a multiple of three bytes and encodes without padding.
+     */
+    private int readChunk(InputStream in) throws IOException {
+      int offset = 0;
+      int read;
+
+      while (offset < dataBuffer.length &&
+             (read = in.read(dataBuffer, offset, dataBuffer.length - offset)) != -1)
+      {
+        offset += read;
+      }
+
+      return offset;
+    }
+
     private <T> void appendAttribute(StringBuilder stringBuilder, String name, T value) {
       stringBuilder.append(name).append(OPEN_ATTRIBUTE).append(value).append(CLOSE_ATTRIBUTE);
     }
@@ -1,21 +1,210 @@
 package org.SecuredText.SecuredText.database.loaders;
 
 import android.content.Context;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.DataSetObserver;
+import android.database.MergeCursor;
+import android.os.Handler;
 
 import org.SecuredText.SecuredText.database.DatabaseFactory;
+import org.SecuredText.SecuredText.database.MmsSmsColumns;
+import org.SecuredText.SecuredText.database.MmsSmsDatabase;
 import org.SecuredText.SecuredText.util.AbstractCursorLoader;
 
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Loads a window of a conversation, starting with the newest page and growing
+ * one page at a time towards older messages as loadOlder() is called.  Growing
+ * the window only queries the new page, which is merged in front of the pages
+ * already loaded.  Reloads triggered by new content keep the window's start and
+ * read the whole window again, so new and changed messages are still picked up.
+ */
 public class ConversationLoader extends AbstractCursorLoader {
-  private final long                     threadId;
+  private static final long NO_WINDOW = -1;
+
+  private final long            threadId;
+  private final int             pageSize;
+  private final ContentObserver pageObserver;
+
+  private final List<Cursor> pages   = new LinkedList<>();
+  private final List<Cursor> retired = new LinkedList<>();
+
+  private volatile long    windowStart   = NO_WINDOW;
+  private volatile boolean hasOlder      = true;
+  private volatile boolean extendPending = false;
+  private volatile boolean stale         = false;
 
-  public ConversationLoader(Context context, long threadId) {
+  public ConversationLoader(Context context, long threadId, int pageSize) {
     super(context);
-    this.threadId = threadId;
+    this.threadId     = threadId;
+    this.pageSize     = pageSize;
+    this.pageObserver = new PageObserver();
   }
 
   @Override
   public Cursor getCursor() {
-    return DatabaseFactory.getMmsSmsDatabase(context).getConversation(threadId);
+    MmsSmsDatabase database = DatabaseFactory.getMmsSmsDatabase(context);
+    boolean        reload   = stale;
+
+    stale = false;
+
+    if (windowStart == NO_WINDOW) {
+      Cursor newest = database.getConversation(threadId, Long.MAX_VALUE, MmsSmsDatabase.DIRECTION_OLDER, pageSize);
+      updateWindow(newest);
+      setPages(newest);
+    } else if (extendPending) {
+      Cursor older = database.getConversation(threadId, windowStart, MmsSmsDatabase.DIRECTION_OLDER, pageSize);
+      updateWindow(older);
+      extendPending = false;
+
+      if (reload) {
+        older.close();
+        setPages(database.getConversation(threadId, windowStart - 1, MmsSmsDatabase.DIRECTION_NEWER, 0));
+      } else {
+        addOlderPage(older);
+      }
+    } else {
+      setPages(database.getConversation(threadId, windowStart - 1, MmsSmsDatabase.DIRECTION_NEWER, 0));
+    }
+
+    return getWindow();
+  }
+
+  /**
+   * Closes the pages replaced by a reload once the cursor that no longer uses them
+   * has been swapped out.
+   */
+  @Override
+  public void deliverResult(Cursor newCursor) {
+    Cursor previous = this.cursor;
+
+    super.deliverResult(newCursor);
+
+    if (newCursor != previous) {
+      closeRetiredPages();
+    }
+  }
+
+  @Override
+  protected void onReset() {
+    super.onReset();
+
+    synchronized (pages) {
+      retired.addAll(pages);
+      pages.clear();
+    }
+
+    closeRetiredPages();
+  }
+
+  public boolean hasOlder() {
+    return hasOlder;
+  }
+
+  public void loadOlder() {
+    if (hasOlder && !extendPending) {
+      extendPending = true;
+      onContentChanged();
+    }
+  }
+
+  private void updateWindow(Cursor page) {
+    hasOlder = page.getCount() >= pageSize;
+
+    if (!hasOlder) {
+      windowStart = 0;
+    } else if (page.moveToFirst()) {
+      windowStart = page.getLong(page.getColumnIndexOrThrow(MmsSmsColumns.NORMALIZED_DATE_RECEIVED));
+    }
+
+    page.moveToPosition(-1);
+  }
+
+  private void setPages(Cursor window) {
+    window.registerContentObserver(pageObserver);
+
+    synchronized (pages) {
+      retired.addAll(pages);
+      pages.clear();
+      pages.add(window);
+    }
+  }
+
+  private void addOlderPage(Cursor page) {
+    page.registerContentObserver(pageObserver);
+
+    synchronized (pages) {
+      pages.add(0, page);
+    }
+  }
+
+  private Cursor getWindow() {
+    synchronized (pages) {
+      Cursor[] window = new Cursor[pages.size()];
+
+      for (int i = 0; i < window.length; i++) {
+        window[i] = new PageCursor(pages.get(i));
+      }
+
+      return new MergeCursor(window);
+    }
+  }
+
+  private void closeRetiredPages() {
+    synchronized (pages) {
+      for (Cursor page : retired) {
+        page.unregisterContentObserver(pageObserver);
+        page.close();
+      }
+
+      retired.clear();
+    }
+  }
+
+  /**
+   * A page as seen through one delivered window.  Pages are shared by every window
+   * built since they were loaded, so they're observed and closed by the loader rather
+   * than by the windows.
+   */
+  private static class PageCursor extends CursorWrapper {
+    public PageCursor(Cursor page) {
+      super(page);
+    }
+
+    @Override
+    public void close() {}
+
+    @Override
+    public void registerContentObserver(ContentObserver observer) {}
+
+    @Override
+    public void unregisterContentObserver(ContentObserver observer) {}
+
+    @Override
+    public void registerDataSetObserver(DataSetObserver observer) {}
+
+    @Override
+    public void unregisterDataSetObserver(DataSetObserver observer) {}
+  }
+
+  private class PageObserver extends ContentObserver {
+    public PageObserver() {
+      super(new Handler());
+    }
+
+    @Override
+    public boolean deliverSelfNotifications() {
+      return true;
+    }
+
+    @Override
+    public void onChange(boolean selfChange) {
+      stale = true;
+      onContentChanged();
+    }
   }
 }
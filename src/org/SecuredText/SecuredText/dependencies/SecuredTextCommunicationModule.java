@@ -8,6 +8,7 @@ import org.SecuredText.SecuredText.crypto.storage.SecuredTextAxolotlStore;
 import org.SecuredText.SecuredText.jobs.AttachmentDownloadJob;
 import org.SecuredText.SecuredText.jobs.CleanPreKeysJob;
 import org.SecuredText.SecuredText.jobs.CreateSignedPreKeyJob;
+import org.SecuredText.SecuredText.jobs.DeliveryReceiptBatchJob;
 import org.SecuredText.SecuredText.jobs.DeliveryReceiptJob;
 import org.SecuredText.SecuredText.jobs.PushGroupSendJob;
 import org.SecuredText.SecuredText.jobs.PushMediaSendJob;
@@ -32,6 +33,7 @@ import dagger.Provides;
 @Module(complete = false, injects = {CleanPreKeysJob.class,
                                      CreateSignedPreKeyJob.class,
                                      DeliveryReceiptJob.class,
+                                     DeliveryReceiptBatchJob.class,
                                      PushGroupSendJob.class,
                                      PushTextSendJob.class,
                                      PushMediaSendJob.class,
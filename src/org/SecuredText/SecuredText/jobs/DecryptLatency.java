@@ -0,0 +1,100 @@
+package org.SecuredText.SecuredText.jobs;
+
+import android.util.Log;
+
+import org.SecuredText.SecuredText.jobs.persistence.EncryptingJobSerializer;
+import org.SecuredText.SecuredText.util.LRUCache;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Accumulates how long incoming push messages spend in each stage of decryption,
+ * and logs the running averages every REPORT_INTERVAL messages, along with the job
+ * store writes and bytes per message since the process started.
+ */
+public class DecryptLatency {
+
+  private static final String TAG = DecryptLatency.class.getSimpleName();
+
+  private static final int REPORT_INTERVAL = 50;
+  private static final int MAX_QUEUED      = 1000;
+
+  public enum Stage {
+    QUEUE_WAIT, DECRYPT, INSERT, NOTIFY
+  }
+
+  private static final Map<Long, Long> queuedAt = Collections.synchronizedMap(new LRUCache<Long, Long>(MAX_QUEUED));
+  private static final AtomicLongArray totals   = new AtomicLongArray(Stage.values().length);
+  private static final AtomicLong      count    = new AtomicLong();
+
+  /**
+   * Records when a push message was queued for decryption.  Messages queued before the
+   * process started report no queue wait.  Only the most recent MAX_QUEUED are tracked,
+   * so entries for messages whose decrypt job never runs are eventually dropped.
+   */
+  public static void onQueued(long pushMessageId) {
+    queuedAt.put(pushMessageId, System.currentTimeMillis());
+  }
+
+  public static Timing start(long pushMessageId) {
+    Long queued = queuedAt.remove(pushMessageId);
+    long now    = System.currentTimeMillis();
+
+    Timing timing = new Timing(now);
+
+    if (queued != null) {
+      timing.durations[Stage.QUEUE_WAIT.ordinal()] = now - queued;
+    }
+
+    return timing;
+  }
+
+  private static void report(long[] durations) {
+    for (int i = 0; i < durations.length; i++) {
+      totals.addAndGet(i, durations[i]);
+    }
+
+    long messages = count.incrementAndGet();
+
+    if (messages % REPORT_INTERVAL == 0) {
+      StringBuilder report = new StringBuilder("Average over " + messages + " messages:");
+
+      for (Stage stage : Stage.values()) {
+        report.append(' ').append(stage.name().toLowerCase())
+              .append('=').append(totals.get(stage.ordinal()) / messages).append("ms");
+      }
+
+      report.append(" job_store_writes=").append((double)EncryptingJobSerializer.getStoreWrites() / messages)
+            .append(" job_store_bytes=").append(EncryptingJobSerializer.getStoreBytes() / messages);
+
+      Log.w(TAG, report.toString());
+    }
+  }
+
+  public static class Timing {
+    private final long[] durations = new long[Stage.values().length];
+
+    private long stageStart;
+
+    private Timing(long stageStart) {
+      this.stageStart = stageStart;
+    }
+
+    /**
+     * Attributes the time since the previous mark to the given stage.
+     */
+    public void mark(Stage stage) {
+      long now = System.currentTimeMillis();
+
+      durations[stage.ordinal()] += now - stageStart;
+      stageStart                  = now;
+    }
+
+    public void finish() {
+      report(durations);
+    }
+  }
+}
@@ -0,0 +1,232 @@
+package org.SecuredText.SecuredText.jobs;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.util.Log;
+import android.util.Pair;
+
+import org.SecuredText.SecuredText.ApplicationContext;
+import org.SecuredText.SecuredText.database.DatabaseFactory;
+import org.SecuredText.SecuredText.database.PendingReceiptDatabase;
+import org.SecuredText.SecuredText.util.VisibleForTesting;
+import org.whispersystems.jobqueue.JobManager;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gathers the explicit delivery receipts owed for incoming push messages, and hands them to
+ * the job manager as one {@link DeliveryReceiptBatchJob} per destination.  Each receipt is
+ * written to the {@link PendingReceiptDatabase} before the receive job that owed it
+ * returns, so it survives the process, and everything pending FLUSH_DELAY_MILLIS after
+ * the first receipt arrived is flushed together.  The rows are only deleted once the job
+ * that took them over has been persisted, so receipts left behind by a process that died
+ * are flushed when the next one starts.
+ */
+public class DeliveryReceiptAggregator {
+
+  private static final String TAG = DeliveryReceiptAggregator.class.getSimpleName();
+
+  private static final long FLUSH_DELAY_MILLIS = 1000;
+  private static final int  MAX_BATCH_SIZE     = 100;
+
+  private static final ScheduledExecutorService flushExecutor = Executors.newSingleThreadScheduledExecutor();
+
+  private static final Object     pendingLock = new Object();
+  private static final Object     flushLock   = new Object();
+  private static final Set<Long>  handedOff   = new HashSet<>();
+  private static       Context    context;
+  private static       JobManager jobManager;
+  private static       boolean    scheduled;
+  private static       int        pendingCount;
+
+  private static final AtomicLong flushes  = new AtomicLong();
+  private static final AtomicLong receipts = new AtomicLong();
+  private static final AtomicLong jobs     = new AtomicLong();
+
+  public static void add(Context context, String destination, long timestamp, String relay) {
+    boolean full;
+
+    store(context, destination, timestamp, relay);
+
+    synchronized (pendingLock) {
+      full = ++pendingCount >= MAX_BATCH_SIZE;
+      if (!full) schedule(context, getJobManager(context));
+    }
+
+    if (full) flush(context, getJobManager(context));
+  }
+
+  /**
+   * Flushes the receipts an earlier process left pending, after the usual delay.
+   */
+  public static void schedulePendingFlush(Context context) {
+    synchronized (pendingLock) {
+      schedule(context, getJobManager(context));
+    }
+  }
+
+  @VisibleForTesting
+  static void store(Context context, String destination, long timestamp, String relay) {
+    DatabaseFactory.getPendingReceiptDatabase(context).insert(destination, relay, timestamp);
+  }
+
+  /**
+   * Hands every pending receipt that isn't already waiting on a job to the job manager,
+   * as one job per destination.
+   */
+  @VisibleForTesting
+  static void flush(Context context, JobManager jobManager) {
+    synchronized (flushLock) {
+      Map<Pair<String, String>, List<Pair<Long, Long>>> batches = getPendingBatches(context);
+
+      if (batches.isEmpty()) return;
+
+      for (Map.Entry<Pair<String, String>, List<Pair<Long, Long>>> batch : batches.entrySet()) {
+        List<Pair<Long, Long>> pending = batch.getValue();
+
+        for (int i = 0; i < pending.size(); i += MAX_BATCH_SIZE) {
+          enqueue(context, jobManager, batch.getKey(), pending.subList(i, Math.min(pending.size(), i + MAX_BATCH_SIZE)));
+        }
+      }
+
+      recordFlush();
+    }
+  }
+
+  /**
+   * Deletes pending receipts once the job that took them over has been persisted.
+   */
+  public static void release(Context context, long[] pendingIds) {
+    DatabaseFactory.getPendingReceiptDatabase(context).delete(pendingIds);
+
+    synchronized (handedOff) {
+      for (long pendingId : pendingIds) {
+        handedOff.remove(pendingId);
+      }
+    }
+  }
+
+  /**
+   * @return the average number of receipts sent per flush.
+   */
+  public static double getReceiptsPerFlush() {
+    long flushCount = flushes.get();
+    return flushCount == 0 ? 0 : (double)receipts.get() / flushCount;
+  }
+
+  /**
+   * @return how many job store writes batching has saved, compared to one job per receipt.
+   */
+  public static long getJobWritesAvoided() {
+    return receipts.get() - jobs.get();
+  }
+
+  private static void schedule(Context context, JobManager jobManager) {
+    DeliveryReceiptAggregator.context    = context.getApplicationContext();
+    DeliveryReceiptAggregator.jobManager = jobManager;
+
+    if (!scheduled) {
+      scheduled = true;
+      flushExecutor.schedule(new Runnable() {
+        @Override
+        public void run() {
+          Context    flushContext;
+          JobManager flushJobManager;
+
+          synchronized (pendingLock) {
+            flushContext    = DeliveryReceiptAggregator.context;
+            flushJobManager = DeliveryReceiptAggregator.jobManager;
+            scheduled       = false;
+          }
+
+          flush(flushContext, flushJobManager);
+        }
+      }, FLUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * @return the (id, timestamp) of each pending receipt not yet handed to a job, grouped
+   * by destination and relay.
+   */
+  private static Map<Pair<String, String>, List<Pair<Long, Long>>> getPendingBatches(Context context) {
+    Map<Pair<String, String>, List<Pair<Long, Long>>> batches = new LinkedHashMap<>();
+    Cursor                                            cursor  = null;
+
+    synchronized (pendingLock) {
+      pendingCount = 0;
+    }
+
+    try {
+      cursor = DatabaseFactory.getPendingReceiptDatabase(context).getPending();
+
+      while (cursor != null && cursor.moveToNext()) {
+        long id = cursor.getLong(cursor.getColumnIndexOrThrow(PendingReceiptDatabase.ID));
+
+        synchronized (handedOff) {
+          if (handedOff.contains(id)) continue;
+        }
+
+        Pair<String, String> key = new Pair<>(cursor.getString(cursor.getColumnIndexOrThrow(PendingReceiptDatabase.DESTINATION)),
+                                              cursor.getString(cursor.getColumnIndexOrThrow(PendingReceiptDatabase.RELAY)));
+        List<Pair<Long, Long>> pending = batches.get(key);
+
+        if (pending == null) {
+          pending = new ArrayList<>();
+          batches.put(key, pending);
+        }
+
+        pending.add(new Pair<>(id, cursor.getLong(cursor.getColumnIndexOrThrow(PendingReceiptDatabase.TIMESTAMP))));
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    return batches;
+  }
+
+  private static JobManager getJobManager(Context context) {
+    return ApplicationContext.getInstance(context).getJobManager();
+  }
+
+  private static void enqueue(Context context, JobManager jobManager,
+                              Pair<String, String> key, List<Pair<Long, Long>> pending)
+  {
+    long[] pendingIds = new long[pending.size()];
+    long[] batch      = new long[pending.size()];
+
+    for (int i = 0; i < batch.length; i++) {
+      pendingIds[i] = pending.get(i).first;
+      batch[i]      = pending.get(i).second;
+    }
+
+    synchronized (handedOff) {
+      for (long pendingId : pendingIds) {
+        handedOff.add(pendingId);
+      }
+    }
+
+    jobManager.add(new DeliveryReceiptBatchJob(context, key.first, batch, key.second, pendingIds));
+
+    receipts.addAndGet(batch.length);
+    jobs.incrementAndGet();
+  }
+
+  private static void recordFlush() {
+    long flushCount = flushes.incrementAndGet();
+
+    if (flushCount % 20 == 0) {
+      Log.w(TAG, "Receipts per flush: " + getReceiptsPerFlush() + ", job writes avoided: " + getJobWritesAvoided());
+    }
+  }
+}
@@ -0,0 +1,87 @@
+package org.SecuredText.SecuredText.jobs;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.SecuredText.SecuredText.dependencies.InjectableType;
+import org.whispersystems.jobqueue.JobParameters;
+import org.whispersystems.jobqueue.requirements.NetworkRequirement;
+import org.whispersystems.libaxolotl.util.guava.Optional;
+import org.whispersystems.textsecure.api.TextSecureMessageSender;
+import org.whispersystems.textsecure.api.push.TextSecureAddress;
+import org.whispersystems.textsecure.api.push.exceptions.NonSuccessfulResponseCodeException;
+import org.whispersystems.textsecure.api.push.exceptions.PushNetworkException;
+
+import java.io.IOException;
+
+import javax.inject.Inject;
+
+import static org.SecuredText.SecuredText.dependencies.SecuredTextCommunicationModule.TextSecureMessageSenderFactory;
+
+/**
+ * Sends the delivery receipts for several messages from one destination, as gathered by
+ * {@link DeliveryReceiptAggregator}, so that they're persisted as a single job.  Once the
+ * job has been persisted, the pending receipts it took over are released.
+ */
+public class DeliveryReceiptBatchJob extends ContextJob implements InjectableType {
+
+  private static final String TAG = DeliveryReceiptBatchJob.class.getSimpleName();
+
+  @Inject transient TextSecureMessageSenderFactory messageSenderFactory;
+
+  private final String destination;
+  private final long[] timestamps;
+  private final String relay;
+  private final long[] pendingIds;
+
+  private int sent;
+
+  public DeliveryReceiptBatchJob(Context context, String destination, long[] timestamps, String relay,
+                                 long[] pendingIds)
+  {
+    super(context, JobParameters.newBuilder()
+                                .withRequirement(new NetworkRequirement(context))
+                                .withPersistence()
+                                .withRetryCount(50)
+                                .create());
+
+    this.destination = destination;
+    this.timestamps  = timestamps;
+    this.relay       = relay;
+    this.pendingIds  = pendingIds;
+  }
+
+  @Override
+  public void onAdded() {
+    DeliveryReceiptAggregator.release(context, pendingIds);
+  }
+
+  /**
+   * Receipts already sent by an earlier attempt in this process aren't sent again on retry.
+   */
+  @Override
+  public void onRun() throws IOException {
+    Log.w(TAG, "Sending " + (timestamps.length - sent) + " delivery receipts...");
+    TextSecureMessageSender messageSender     = messageSenderFactory.create(null);
+    TextSecureAddress       textSecureAddress = new TextSecureAddress(destination, Optional.fromNullable(relay));
+
+    while (sent < timestamps.length) {
+      messageSender.sendDeliveryReceipt(textSecureAddress, timestamps[sent]);
+      sent++;
+    }
+  }
+
+  @Override
+  public void onCanceled() {
+    Log.w(TAG, "Failed to send " + (timestamps.length - sent) + " receipts after retry exhausted!");
+  }
+
+  @Override
+  public boolean onShouldRetry(Exception exception) {
+    Log.w(TAG, exception);
+    if (exception instanceof NonSuccessfulResponseCodeException) return false;
+    if (exception instanceof PushNetworkException)               return true;
+
+    return false;
+  }
+}
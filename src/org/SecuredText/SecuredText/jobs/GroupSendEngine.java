@@ -0,0 +1,186 @@
+package org.SecuredText.SecuredText.jobs;
+
+import android.util.Log;
+
+import org.whispersystems.textsecure.api.TextSecureMessageSender;
+import org.whispersystems.textsecure.api.crypto.UntrustedIdentityException;
+import org.whispersystems.textsecure.api.messages.TextSecureMessage;
+import org.whispersystems.textsecure.api.push.TextSecureAddress;
+import org.whispersystems.textsecure.api.push.exceptions.EncapsulatedExceptions;
+import org.whispersystems.textsecure.api.push.exceptions.NetworkFailureException;
+import org.whispersystems.textsecure.api.push.exceptions.UnregisteredUserException;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Delivers a group message to each member separately, at most maxParallelSends at a
+ * time, and reports how each delivery went so that only the members it failed for need
+ * to be tried again.
+ *
+ * Messages with attachments are the exception: the sender uploads attachments as part of
+ * every send, so those go out in a single call, which uploads them once and still
+ * reports failures per member.
+ */
+public class GroupSendEngine {
+
+  private static final String TAG = GroupSendEngine.class.getSimpleName();
+
+  public static final int MAX_PARALLEL_SENDS = 4;
+
+  private final TextSecureMessageSender messageSender;
+  private final int                     maxParallelSends;
+
+  public GroupSendEngine(TextSecureMessageSender messageSender, int maxParallelSends) {
+    this.messageSender    = messageSender;
+    this.maxParallelSends = maxParallelSends;
+  }
+
+  public Result send(List<TextSecureAddress> addresses, TextSecureMessage message) throws IOException {
+    long   startTime = System.currentTimeMillis();
+    Result result;
+
+    if (message.getAttachments().isPresent() && !message.getAttachments().get().isEmpty()) {
+      result = sendTogether(addresses, message);
+    } else {
+      result = sendSeparately(addresses, message);
+    }
+
+    Log.w(TAG, "Sent to " + addresses.size() + " members in " + (System.currentTimeMillis() - startTime) + "ms, " +
+               result.networkFailures.size() + " network failures");
+
+    return result;
+  }
+
+  private Result sendTogether(List<TextSecureAddress> addresses, TextSecureMessage message) throws IOException {
+    Result result = new Result();
+
+    for (TextSecureAddress address : addresses) {
+      result.delivered.add(address.getNumber());
+    }
+
+    try {
+      messageSender.sendMessage(addresses, message);
+    } catch (EncapsulatedExceptions e) {
+      for (NetworkFailureException nfe : e.getNetworkExceptions()) {
+        result.delivered.remove(nfe.getE164number());
+        result.networkFailures.add(nfe.getE164number());
+      }
+
+      for (UntrustedIdentityException uie : e.getUntrustedIdentityExceptions()) {
+        result.delivered.remove(uie.getE164Number());
+        result.untrustedIdentities.add(uie);
+      }
+
+      for (UnregisteredUserException uue : e.getUnregisteredUserExceptions()) {
+        result.delivered.remove(uue.getE164Number());
+        result.unregistered.add(uue.getE164Number());
+      }
+    }
+
+    return result;
+  }
+
+  private Result sendSeparately(List<TextSecureAddress> addresses, final TextSecureMessage message) {
+    final Result    result   = new Result();
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(maxParallelSends, addresses.size())));
+    List<Future<?>> sends    = new LinkedList<>();
+
+    try {
+      for (final TextSecureAddress address : addresses) {
+        sends.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() {
+            sendTo(address, message, result);
+            return null;
+          }
+        }));
+      }
+
+      for (Future<?> send : sends) {
+        try {
+          send.get();
+        } catch (InterruptedException | ExecutionException e) {
+          Log.w(TAG, e);
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    for (TextSecureAddress address : addresses) {
+      String number = address.getNumber();
+
+      if (!result.delivered.contains(number) && !result.networkFailures.contains(number) &&
+          !result.unregistered.contains(number) && !result.isUntrusted(number))
+      {
+        Log.w(TAG, "Send to " + number + " never finished");
+        result.networkFailures.add(number);
+      }
+    }
+
+    return result;
+  }
+
+  private void sendTo(TextSecureAddress address, TextSecureMessage message, Result result) {
+    try {
+      messageSender.sendMessage(address, message);
+      result.delivered.add(address.getNumber());
+    } catch (UntrustedIdentityException e) {
+      Log.w(TAG, e);
+      result.untrustedIdentities.add(e);
+    } catch (UnregisteredUserException e) {
+      Log.w(TAG, e);
+      result.unregistered.add(address.getNumber());
+    } catch (IOException e) {
+      Log.w(TAG, e);
+      result.networkFailures.add(address.getNumber());
+    }
+  }
+
+  /**
+   * Members are identified by their e164 number.  Sets are safe to fill from the
+   * sending threads.
+   */
+  public static class Result {
+    private final Set<String>                      delivered           = Collections.synchronizedSet(new HashSet<String>());
+    private final Set<String>                      networkFailures     = Collections.synchronizedSet(new HashSet<String>());
+    private final Set<String>                      unregistered        = Collections.synchronizedSet(new HashSet<String>());
+    private final List<UntrustedIdentityException> untrustedIdentities = Collections.synchronizedList(new LinkedList<UntrustedIdentityException>());
+
+    public Set<String> getDelivered() {
+      return delivered;
+    }
+
+    public Set<String> getNetworkFailures() {
+      return networkFailures;
+    }
+
+    public Set<String> getUnregistered() {
+      return unregistered;
+    }
+
+    public List<UntrustedIdentityException> getUntrustedIdentities() {
+      return untrustedIdentities;
+    }
+
+    private boolean isUntrusted(String number) {
+      synchronized (untrustedIdentities) {
+        for (UntrustedIdentityException uie : untrustedIdentities) {
+          if (number.equals(uie.getE164Number())) return true;
+        }
+      }
+
+      return false;
+    }
+  }
+}
@@ -1,7 +1,6 @@
 package org.SecuredText.SecuredText.jobs;
 
 import android.content.Context;
-import android.net.Uri;
 import android.telephony.TelephonyManager;
 import android.util.Log;
 import android.util.Pair;
@@ -12,6 +11,7 @@ import org.SecuredText.SecuredText.crypto.MmsCipher;
 import org.SecuredText.SecuredText.crypto.storage.SecuredTextAxolotlStore;
 import org.SecuredText.SecuredText.database.DatabaseFactory;
 import org.SecuredText.SecuredText.database.MmsDatabase;
+import org.SecuredText.SecuredText.database.model.MessageRecord;
 import org.SecuredText.SecuredText.jobs.requirements.MasterSecretRequirement;
 import org.SecuredText.SecuredText.mms.ApnUnavailableException;
 import org.SecuredText.SecuredText.mms.IncomingMediaMessage;
@@ -20,9 +20,11 @@ import org.SecuredText.SecuredText.mms.MmsConnection;
 import org.SecuredText.SecuredText.mms.MmsRadio;
 import org.SecuredText.SecuredText.mms.MmsRadioException;
 import org.SecuredText.SecuredText.mms.OutgoingMmsConnection;
+import org.SecuredText.SecuredText.mms.PartFileWriter;
 import org.SecuredText.SecuredText.notifications.MessageNotifier;
 import org.SecuredText.SecuredText.protocol.WirePrefix;
 import org.SecuredText.SecuredText.service.KeyCachingService;
+import org.apache.http.impl.client.CloseableHttpClient;
 import org.whispersystems.jobqueue.JobParameters;
 import org.whispersystems.jobqueue.requirements.NetworkRequirement;
 import org.whispersystems.libaxolotl.DuplicateMessageException;
@@ -32,6 +34,13 @@ import org.whispersystems.libaxolotl.NoSessionException;
 import org.whispersystems.libaxolotl.util.guava.Optional;
 
 import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import ws.com.google.android.mms.InvalidHeaderValueException;
@@ -49,6 +58,8 @@ public class MmsDownloadJob extends MasterSecretJob {
 
   private static final String TAG = MmsDownloadJob.class.getSimpleName();
 
+  private static final int MAX_CONCURRENT_DOWNLOADS = 3;
+
   private final long    messageId;
   private final long    threadId;
   private final boolean automatic;
@@ -79,95 +90,19 @@ public class MmsDownloadJob extends MasterSecretJob {
   public void onRun(MasterSecret masterSecret)  {
     Log.w(TAG, "MmsDownloadJob:onRun()");
 
-    MmsDatabase               database     = DatabaseFactory.getMmsDatabase(context);
-    Optional<NotificationInd> notification = database.getNotification(messageId);
-
-    if (!notification.isPresent()) {
-      Log.w(TAG, "No notification for ID: " + messageId);
+    if (automatic && hasFailedDownload()) {
+      Log.w(TAG, "Already attempted by an earlier download session: " + messageId);
       return;
     }
 
-    database.markDownloadState(messageId, MmsDatabase.Status.DOWNLOAD_CONNECTING);
-
-    String   contentLocation = new String(notification.get().getContentLocation());
-    byte[]   transactionId   = notification.get().getTransactionId();
-    MmsRadio radio           = MmsRadio.getInstance(context);
-
-    Log.w(TAG, "About to parse URL...");
-
-    Log.w(TAG, "Downloading mms at " +  Uri.parse(contentLocation).getHost());
-
-    try {
-      if (isCdmaNetwork()) {
-        Log.w(TAG, "Connecting directly...");
-        try {
-          retrieveAndStore(masterSecret, radio, messageId, threadId, contentLocation,
-                           transactionId, false, false);
-          return;
-        } catch (IOException e) {
-          Log.w(TAG, e);
-        }
-      }
-
-      Log.w(TAG, "Changing radio to MMS mode..");
-      radio.connect();
-
-      try {
-        Log.w(TAG, "Downloading in MMS mode with proxy...");
-
-        try {
-          retrieveAndStore(masterSecret, radio, messageId, threadId, contentLocation,
-                           transactionId, true, true);
-          return;
-        } catch (IOException e) {
-          Log.w(TAG, e);
-        }
-
-        Log.w(TAG, "Downloading in MMS mode without proxy...");
-
-        try {
-          retrieveAndStore(masterSecret, radio, messageId, threadId,
-                           contentLocation, transactionId, true, false);
-        } catch (IOException e) {
-          Log.w(TAG, e);
-          handleDownloadError(masterSecret, messageId, threadId,
-                              MmsDatabase.Status.DOWNLOAD_SOFT_FAILURE,
-                              context.getString(R.string.MmsDownloader_error_connecting_to_mms_provider),
-                              automatic);
-        }
-      } finally {
-        radio.disconnect();
-      }
+    List<PendingDownload> downloads = getPendingDownloads(masterSecret);
 
-    } catch (ApnUnavailableException e) {
-      Log.w(TAG, e);
-      handleDownloadError(masterSecret, messageId, threadId, MmsDatabase.Status.DOWNLOAD_APN_UNAVAILABLE,
-                          context.getString(R.string.MmsDownloader_error_reading_mms_settings), automatic);
-    } catch (MmsException e) {
-      Log.w(TAG, e);
-      handleDownloadError(masterSecret, messageId, threadId,
-                          MmsDatabase.Status.DOWNLOAD_HARD_FAILURE,
-                          context.getString(R.string.MmsDownloader_error_storing_mms),
-                          automatic);
-    } catch (MmsRadioException e) {
-      Log.w(TAG, e);
-      handleDownloadError(masterSecret, messageId, threadId,
-                          MmsDatabase.Status.DOWNLOAD_SOFT_FAILURE,
-                          context.getString(R.string.MmsDownloader_error_connecting_to_mms_provider),
-                          automatic);
-    } catch (DuplicateMessageException e) {
-      Log.w(TAG, e);
-      database.markAsDecryptDuplicate(messageId, threadId);
-    } catch (LegacyMessageException e) {
-      Log.w(TAG, e);
-      database.markAsLegacyVersion(messageId, threadId);
-    } catch (NoSessionException e) {
-      Log.w(TAG, e);
-      database.markAsNoSession(messageId, threadId);
-    } catch (InvalidMessageException e) {
-      Log.w(TAG, e);
-      database.markAsDecryptFailed(messageId, threadId);
+    if (downloads.isEmpty()) {
+      Log.w(TAG, "No notification for ID: " + messageId);
+      return;
     }
+
+    new DownloadSession(masterSecret, downloads).run();
   }
 
   @Override
@@ -186,25 +121,78 @@ public class MmsDownloadJob extends MasterSecretJob {
     return false;
   }
 
-  private void retrieveAndStore(MasterSecret masterSecret, MmsRadio radio,
-                                long messageId, long threadId,
-                                String contentLocation, byte[] transactionId,
-                                boolean radioEnabled, boolean useProxy)
+  /**
+   * Messages downloaded along with another job's message leave that session either
+   * deleted (once stored) or marked failed, so an automatic job whose message is
+   * marked failed has already had its attempt.
+   */
+  private boolean hasFailedDownload() {
+    Optional<Integer> state = DatabaseFactory.getMmsDatabase(context).getDownloadState(messageId);
+    return state.isPresent() && MmsDatabase.Status.isFailure(state.get());
+  }
+
+  /**
+   * @return this job's message, followed by every other notification that is still
+   * waiting for its automatic download.
+   */
+  private List<PendingDownload> getPendingDownloads(MasterSecret masterSecret) {
+    MmsDatabase               database     = DatabaseFactory.getMmsDatabase(context);
+    List<PendingDownload>     downloads    = new LinkedList<>();
+    Optional<NotificationInd> notification = database.getNotification(messageId);
+
+    if (!notification.isPresent()) {
+      return downloads;
+    }
+
+    downloads.add(new PendingDownload(messageId, threadId, automatic, notification.get()));
+
+    MmsDatabase.Reader reader = database.getNotificationsWithDownloadState(masterSecret, MmsDatabase.Status.DOWNLOAD_INITIALIZED);
+    MessageRecord      record;
+
+    try {
+      while ((record = reader.getNext()) != null) {
+        if (record.getId() == messageId) continue;
+
+        Optional<NotificationInd> pending = database.getNotification(record.getId());
+
+        if (pending.isPresent()) {
+          downloads.add(new PendingDownload(record.getId(), record.getThreadId(), true, pending.get()));
+        }
+      }
+    } finally {
+      reader.close();
+    }
+
+    return downloads;
+  }
+
+  private void retrieveAndStore(MasterSecret masterSecret, CloseableHttpClient client, Apn dbApn,
+                                PendingDownload download, boolean radioEnabled, boolean useProxy)
       throws IOException, MmsException, ApnUnavailableException,
              DuplicateMessageException, NoSessionException,
              InvalidMessageException, LegacyMessageException
   {
-    Apn                   dbApn      = MmsConnection.getApn(context, radio.getApnInformation());
-    Apn                   contentApn = new Apn(contentLocation, dbApn.getProxy(), Integer.toString(dbApn.getPort()), dbApn.getUsername(), dbApn.getPassword());
-    IncomingMmsConnection connection = new IncomingMmsConnection(context, contentApn);
-    RetrieveConf          retrieved  = connection.retrieve(radioEnabled, useProxy);
+    Apn                   contentApn = new Apn(download.contentLocation, dbApn.getProxy(), Integer.toString(dbApn.getPort()), dbApn.getUsername(), dbApn.getPassword());
+    IncomingMmsConnection connection = new IncomingMmsConnection(context, contentApn, client);
+    PartFileWriter        partWriter = new PartFileWriter(context, masterSecret);
+    boolean               partsKept  = false;
+
+    try {
+      RetrieveConf retrieved = connection.retrieve(radioEnabled, useProxy, partWriter);
+      partsKept = storeRetrievedMms(masterSecret, download.contentLocation, download.messageId, download.threadId, retrieved);
+    } finally {
+      if (!partsKept) partWriter.discard();
+    }
 
-    storeRetrievedMms(masterSecret, contentLocation, messageId, threadId, retrieved);
-    sendRetrievedAcknowledgement(radio, transactionId, radioEnabled, useProxy);
+    sendRetrievedAcknowledgement(client, download.transactionId, radioEnabled, useProxy);
   }
 
-  private void storeRetrievedMms(MasterSecret masterSecret, String contentLocation,
-                                 long messageId, long threadId, RetrieveConf retrieved)
+  /**
+   * @return true if the retrieved parts were stored, false if the message was
+   * encrypted and stored from its decrypted parts instead.
+   */
+  private boolean storeRetrievedMms(MasterSecret masterSecret, String contentLocation,
+                                    long messageId, long threadId, RetrieveConf retrieved)
       throws MmsException, NoSessionException, DuplicateMessageException, InvalidMessageException,
              LegacyMessageException
   {
@@ -212,6 +200,7 @@ public class MmsDownloadJob extends MasterSecretJob {
     IncomingMediaMessage message  = new IncomingMediaMessage(retrieved);
 
     Pair<Long, Long> messageAndThreadId;
+    boolean          partsKept;
 
     if (retrieved.getSubject() != null && WirePrefix.isEncryptedMmsSubject(retrieved.getSubject().getString())) {
       MmsCipher            mmsCipher          = new MmsCipher(new SecuredTextAxolotlStore(context, masterSecret));
@@ -221,6 +210,7 @@ public class MmsDownloadJob extends MasterSecretJob {
 
       messageAndThreadId = database.insertSecureDecryptedMessageInbox(masterSecret, plaintextMessage,
                                                                       threadId);
+      partsKept          = false;
 
 //      if (masterSecret != null)
 //        DecryptingQueue.scheduleDecryption(context, masterSecret, messageAndThreadId.first,
@@ -229,13 +219,16 @@ public class MmsDownloadJob extends MasterSecretJob {
     } else {
       messageAndThreadId = database.insertMessageInbox(masterSecret, message,
                                                        contentLocation, threadId);
+      partsKept          = true;
     }
 
     database.delete(messageId);
     MessageNotifier.updateNotification(context, masterSecret, messageAndThreadId.second);
+
+    return partsKept;
   }
 
-  private void sendRetrievedAcknowledgement(MmsRadio radio,
+  private void sendRetrievedAcknowledgement(CloseableHttpClient client,
                                             byte[] transactionId,
                                             boolean usingRadio,
                                             boolean useProxy)
@@ -246,7 +239,8 @@ public class MmsDownloadJob extends MasterSecretJob {
                                                        transactionId,
                                                        PduHeaders.STATUS_RETRIEVED);
 
-      OutgoingMmsConnection connection = new OutgoingMmsConnection(context, radio.getApnInformation(), new PduComposer(context, notifyResponse).make());
+      OutgoingMmsConnection connection = new OutgoingMmsConnection(context, MmsRadio.getInstance(context).getApnInformation(),
+                                                                   new PduComposer(context, notifyResponse).make(), client);
       connection.sendNotificationReceived(usingRadio, useProxy);
     } catch (InvalidHeaderValueException | IOException e) {
       Log.w(TAG, e);
@@ -274,4 +268,182 @@ public class MmsDownloadJob extends MasterSecretJob {
         .getPhoneType() == TelephonyManager.PHONE_TYPE_CDMA;
   }
 
+  /**
+   * Downloads a set of messages over one MMS radio connection and one pooled HTTP
+   * client, at most MAX_CONCURRENT_DOWNLOADS at a time.  Each way of connecting is
+   * tried in turn (direct on CDMA, then through the radio with and without the
+   * proxy), and only the messages that failed to connect move on to the next one.
+   */
+  private class DownloadSession {
+    private final MasterSecret          masterSecret;
+    private final List<PendingDownload> downloads;
+
+    public DownloadSession(MasterSecret masterSecret, List<PendingDownload> downloads) {
+      this.masterSecret = masterSecret;
+      this.downloads    = downloads;
+    }
+
+    public void run() {
+      MmsDatabase database  = DatabaseFactory.getMmsDatabase(context);
+      MmsRadio    radio     = MmsRadio.getInstance(context);
+      long        startTime = System.currentTimeMillis();
+
+      for (PendingDownload download : downloads) {
+        database.markDownloadState(download.messageId, MmsDatabase.Status.DOWNLOAD_CONNECTING);
+      }
+
+      Log.w(TAG, "Starting download session for " + downloads.size() + " messages");
+
+      Apn dbApn;
+
+      try {
+        dbApn = MmsConnection.getApn(context, radio.getApnInformation());
+      } catch (ApnUnavailableException e) {
+        Log.w(TAG, e);
+        failAll(downloads, MmsDatabase.Status.DOWNLOAD_APN_UNAVAILABLE, R.string.MmsDownloader_error_reading_mms_settings);
+        return;
+      }
+
+      CloseableHttpClient   client    = MmsConnection.constructPooledHttpClient(MAX_CONCURRENT_DOWNLOADS);
+      ExecutorService       executor  = Executors.newFixedThreadPool(Math.min(MAX_CONCURRENT_DOWNLOADS, downloads.size()));
+      List<PendingDownload> remaining = downloads;
+
+      try {
+        if (isCdmaNetwork()) {
+          Log.w(TAG, "Connecting directly...");
+          remaining = downloadAll(executor, client, dbApn, remaining, false, false, false);
+        }
+
+        if (!remaining.isEmpty()) {
+          Log.w(TAG, "Changing radio to MMS mode..");
+          radio.connect();
+
+          try {
+            Log.w(TAG, "Downloading in MMS mode with proxy...");
+            remaining = downloadAll(executor, client, dbApn, remaining, true, true, false);
+
+            Log.w(TAG, "Downloading in MMS mode without proxy...");
+            downloadAll(executor, client, dbApn, remaining, true, false, true);
+          } finally {
+            radio.disconnect();
+          }
+        }
+      } catch (MmsRadioException e) {
+        Log.w(TAG, e);
+        failAll(remaining, MmsDatabase.Status.DOWNLOAD_SOFT_FAILURE, R.string.MmsDownloader_error_connecting_to_mms_provider);
+      } finally {
+        executor.shutdown();
+
+        try {
+          client.close();
+        } catch (IOException e) {
+          Log.w(TAG, e);
+        }
+      }
+
+      Log.w(TAG, "Download session for " + downloads.size() + " messages took " +
+                 (System.currentTimeMillis() - startTime) + "ms");
+    }
+
+    /**
+     * @return the downloads that couldn't connect, unless this is the last attempt,
+     * in which case they're marked as failed.
+     */
+    private List<PendingDownload> downloadAll(ExecutorService executor, final CloseableHttpClient client,
+                                              final Apn dbApn, List<PendingDownload> downloads,
+                                              final boolean radioEnabled, final boolean useProxy,
+                                              final boolean lastAttempt)
+    {
+      List<Pair<PendingDownload, Future<Boolean>>> results = new LinkedList<>();
+      List<PendingDownload>                        failed  = new LinkedList<>();
+
+      for (final PendingDownload download : downloads) {
+        results.add(new Pair<>(download, executor.submit(new Callable<Boolean>() {
+          @Override
+          public Boolean call() {
+            return download(client, dbApn, download, radioEnabled, useProxy, lastAttempt);
+          }
+        })));
+      }
+
+      for (Pair<PendingDownload, Future<Boolean>> result : results) {
+        try {
+          if (!result.second.get()) failed.add(result.first);
+        } catch (InterruptedException | ExecutionException e) {
+          Log.w(TAG, e);
+          if (lastAttempt) fail(result.first, MmsDatabase.Status.DOWNLOAD_SOFT_FAILURE, R.string.MmsDownloader_error_connecting_to_mms_provider);
+          else             failed.add(result.first);
+        }
+      }
+
+      return failed;
+    }
+
+    /**
+     * @return false if the download couldn't connect and should be tried another way.
+     */
+    private boolean download(CloseableHttpClient client, Apn dbApn, PendingDownload download,
+                             boolean radioEnabled, boolean useProxy, boolean lastAttempt)
+    {
+      MmsDatabase database  = DatabaseFactory.getMmsDatabase(context);
+      long        startTime = System.currentTimeMillis();
+
+      try {
+        retrieveAndStore(masterSecret, client, dbApn, download, radioEnabled, useProxy);
+        Log.w(TAG, "Downloaded message " + download.messageId + " in " +
+                   (System.currentTimeMillis() - startTime) + "ms");
+      } catch (IOException e) {
+        Log.w(TAG, e);
+        if (!lastAttempt) return false;
+        fail(download, MmsDatabase.Status.DOWNLOAD_SOFT_FAILURE, R.string.MmsDownloader_error_connecting_to_mms_provider);
+      } catch (ApnUnavailableException e) {
+        Log.w(TAG, e);
+        fail(download, MmsDatabase.Status.DOWNLOAD_APN_UNAVAILABLE, R.string.MmsDownloader_error_reading_mms_settings);
+      } catch (MmsException e) {
+        Log.w(TAG, e);
+        fail(download, MmsDatabase.Status.DOWNLOAD_HARD_FAILURE, R.string.MmsDownloader_error_storing_mms);
+      } catch (DuplicateMessageException e) {
+        Log.w(TAG, e);
+        database.markAsDecryptDuplicate(download.messageId, download.threadId);
+      } catch (LegacyMessageException e) {
+        Log.w(TAG, e);
+        database.markAsLegacyVersion(download.messageId, download.threadId);
+      } catch (NoSessionException e) {
+        Log.w(TAG, e);
+        database.markAsNoSession(download.messageId, download.threadId);
+      } catch (InvalidMessageException e) {
+        Log.w(TAG, e);
+        database.markAsDecryptFailed(download.messageId, download.threadId);
+      }
+
+      return true;
+    }
+
+    private void failAll(List<PendingDownload> downloads, int downloadStatus, int error) {
+      for (PendingDownload download : downloads) {
+        fail(download, downloadStatus, error);
+      }
+    }
+
+    private void fail(PendingDownload download, int downloadStatus, int error) {
+      handleDownloadError(masterSecret, download.messageId, download.threadId,
+                          downloadStatus, context.getString(error), download.automatic);
+    }
+  }
+
+  private static class PendingDownload {
+    private final long    messageId;
+    private final long    threadId;
+    private final boolean automatic;
+    private final String  contentLocation;
+    private final byte[]  transactionId;
+
+    public PendingDownload(long messageId, long threadId, boolean automatic, NotificationInd notification) {
+      this.messageId       = messageId;
+      this.threadId        = threadId;
+      this.automatic       = automatic;
+      this.contentLocation = new String(notification.getContentLocation());
+      this.transactionId   = notification.getTransactionId();
+    }
+  }
 }
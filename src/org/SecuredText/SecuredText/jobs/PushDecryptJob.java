@@ -29,7 +29,6 @@ import org.SecuredText.SecuredText.sms.IncomingTextMessage;
 import org.SecuredText.SecuredText.util.Base64;
 import org.SecuredText.SecuredText.util.SecuredTextPreferences;
 import org.whispersystems.jobqueue.JobParameters;
-import org.whispersystems.libaxolotl.AxolotlAddress;
 import org.whispersystems.libaxolotl.DuplicateMessageException;
 import org.whispersystems.libaxolotl.IdentityKey;
 import org.whispersystems.libaxolotl.InvalidKeyException;
@@ -40,7 +39,6 @@ import org.whispersystems.libaxolotl.LegacyMessageException;
 import org.whispersystems.libaxolotl.NoSessionException;
 import org.whispersystems.libaxolotl.UntrustedIdentityException;
 import org.whispersystems.libaxolotl.protocol.PreKeyWhisperMessage;
-import org.whispersystems.libaxolotl.state.AxolotlStore;
 import org.whispersystems.libaxolotl.state.SessionStore;
 import org.whispersystems.libaxolotl.util.guava.Optional;
 import org.whispersystems.textsecure.api.crypto.TextSecureCipher;
@@ -56,6 +54,8 @@ public class PushDecryptJob extends MasterSecretJob {
 
   public static final String TAG = PushDecryptJob.class.getSimpleName();
 
+  private static final long NO_NOTIFICATION = -1;
+
   private final long messageId;
   private final long smsMessageId;
 
@@ -81,13 +81,61 @@ public class PushDecryptJob extends MasterSecretJob {
     }
   }
 
+  /**
+   * Decrypts the envelope, then inserts the message, persists the session it advanced
+   * and deletes the envelope in one transaction, so a crash can neither lose a message
+   * whose session moved on nor keep an envelope whose session already has.
+   */
   @Override
   public void onRun(MasterSecret masterSecret) throws NoSuchMessageException {
-    PushDatabase       database = DatabaseFactory.getPushDatabase(context);
-    TextSecureEnvelope envelope = database.get(messageId);
+    PushDatabase            database     = DatabaseFactory.getPushDatabase(context);
+    DatabaseFactory         messages     = DatabaseFactory.getInstance(context);
+    DecryptLatency.Timing   timing       = DecryptLatency.start(messageId);
+    TextSecureEnvelope      envelope     = database.get(messageId);
+    SecuredTextSessionStore sessionStore = new SecuredTextSessionStore(context, masterSecret, true);
+    TextSecureMessage       message      = null;
+    Exception               failure      = null;
+    boolean                 committed    = false;
+    long                    threadId;
+
+    try {
+      message = new TextSecureCipher(new SecuredTextAxolotlStore(context, masterSecret, sessionStore)).decrypt(envelope);
+    } catch (InvalidVersionException | InvalidMessageException | InvalidKeyIdException | InvalidKeyException |
+             NoSessionException | LegacyMessageException | DuplicateMessageException | UntrustedIdentityException e)
+    {
+      Log.w(TAG, e);
+      failure = e;
+    }
+
+    timing.mark(DecryptLatency.Stage.DECRYPT);
+    messages.beginTransaction();
+
+    try {
+      if (message != null) threadId = handleMessage(masterSecret, envelope, message, smsMessageId, sessionStore);
+      else                 threadId = handleFailure(masterSecret, envelope, failure, smsMessageId);
+
+      sessionStore.persistDeferred();
+      database.delete(messageId);
+      messages.setTransactionSuccessful();
+      committed = true;
+    } finally {
+      messages.endTransaction();
+
+      if (!committed) SecuredTextSessionStore.reset();
+    }
+
+    timing.mark(DecryptLatency.Stage.INSERT);
+
+    if (threadId != NO_NOTIFICATION) {
+      MessageNotifier.updateNotification(context, masterSecret, threadId);
+    }
+
+    timing.mark(DecryptLatency.Stage.NOTIFY);
+    timing.finish();
 
-    handleMessage(masterSecret, envelope, smsMessageId);
-    database.delete(messageId);
+    if (message != null && envelope.isPreKeyWhisperMessage()) {
+      ApplicationContext.getInstance(context).getJobManager().add(new RefreshPreKeysJob(context));
+    }
   }
 
   @Override
@@ -100,44 +148,40 @@ public class PushDecryptJob extends MasterSecretJob {
 
   }
 
-  private void handleMessage(MasterSecret masterSecret, TextSecureEnvelope envelope, long smsMessageId) {
+  /**
+   * @return the thread to update notifications for, or NO_NOTIFICATION.
+   */
+  private long handleMessage(MasterSecret masterSecret, TextSecureEnvelope envelope, TextSecureMessage message,
+                             long smsMessageId, SessionStore sessionStore)
+  {
     try {
-      AxolotlStore     axolotlStore = new SecuredTextAxolotlStore(context, masterSecret);
-      TextSecureCipher cipher       = new TextSecureCipher(axolotlStore);
-
-      TextSecureMessage message = cipher.decrypt(envelope);
-
-      if      (message.isEndSession())               handleEndSessionMessage(masterSecret, envelope, message, smsMessageId);
-      else if (message.isGroupUpdate())              handleGroupMessage(masterSecret, envelope, message, smsMessageId);
-      else if (message.getAttachments().isPresent()) handleMediaMessage(masterSecret, envelope, message, smsMessageId);
-      else                                           handleTextMessage(masterSecret, envelope, message, smsMessageId);
-
-      if (envelope.isPreKeyWhisperMessage()) {
-        ApplicationContext.getInstance(context).getJobManager().add(new RefreshPreKeysJob(context));
-      }
-    } catch (InvalidVersionException e) {
-      Log.w(TAG, e);
-      handleInvalidVersionMessage(masterSecret, envelope, smsMessageId);
-    } catch (InvalidMessageException | InvalidKeyIdException | InvalidKeyException | MmsException e) {
-      Log.w(TAG, e);
-      handleCorruptMessage(masterSecret, envelope, smsMessageId);
-    } catch (NoSessionException e) {
+      if      (message.isEndSession())               return handleEndSessionMessage(masterSecret, envelope, message, smsMessageId, sessionStore);
+      else if (message.isGroupUpdate())              return handleGroupMessage(masterSecret, envelope, message, smsMessageId);
+      else if (message.getAttachments().isPresent()) return handleMediaMessage(masterSecret, envelope, message, smsMessageId);
+      else                                           return handleTextMessage(masterSecret, envelope, message, smsMessageId);
+    } catch (MmsException e) {
       Log.w(TAG, e);
-      handleNoSessionMessage(masterSecret, envelope, smsMessageId);
-    } catch (LegacyMessageException e) {
-      Log.w(TAG, e);
-      handleLegacyMessage(masterSecret, envelope, smsMessageId);
-    } catch (DuplicateMessageException e) {
-      Log.w(TAG, e);
-      handleDuplicateMessage(masterSecret, envelope, smsMessageId);
-    } catch (UntrustedIdentityException e) {
-      Log.w(TAG, e);
-      handleUntrustedIdentityMessage(masterSecret, envelope, smsMessageId);
+      return handleCorruptMessage(masterSecret, envelope, smsMessageId);
     }
   }
 
-  private void handleEndSessionMessage(MasterSecret masterSecret, TextSecureEnvelope envelope,
-                                       TextSecureMessage message, long smsMessageId)
+  /**
+   * @return the thread to update notifications for, or NO_NOTIFICATION.
+   */
+  private long handleFailure(MasterSecret masterSecret, TextSecureEnvelope envelope, Exception failure,
+                             long smsMessageId)
+  {
+    if      (failure instanceof InvalidVersionException)    return handleInvalidVersionMessage(masterSecret, envelope, smsMessageId);
+    else if (failure instanceof NoSessionException)         return handleNoSessionMessage(masterSecret, envelope, smsMessageId);
+    else if (failure instanceof LegacyMessageException)     return handleLegacyMessage(masterSecret, envelope, smsMessageId);
+    else if (failure instanceof DuplicateMessageException)  return handleDuplicateMessage(masterSecret, envelope, smsMessageId);
+    else if (failure instanceof UntrustedIdentityException) return handleUntrustedIdentityMessage(masterSecret, envelope, smsMessageId);
+    else                                                    return handleCorruptMessage(masterSecret, envelope, smsMessageId);
+  }
+
+  private long handleEndSessionMessage(MasterSecret masterSecret, TextSecureEnvelope envelope,
+                                       TextSecureMessage message, long smsMessageId,
+                                       SessionStore sessionStore)
   {
     EncryptingSmsDatabase smsDatabase         = DatabaseFactory.getEncryptingSmsDatabase(context);
     IncomingTextMessage   incomingTextMessage = new IncomingTextMessage(envelope.getSource(),
@@ -156,22 +200,23 @@ public class PushDecryptJob extends MasterSecretJob {
       threadId = smsDatabase.getThreadIdForMessage(smsMessageId);
     }
 
-    SessionStore sessionStore = new SecuredTextSessionStore(context, masterSecret);
     sessionStore.deleteAllSessions(envelope.getSource());
 
     SecurityEvent.broadcastSecurityUpdateEvent(context, threadId);
-    MessageNotifier.updateNotification(context, masterSecret, threadId);
+    return threadId;
   }
 
-  private void handleGroupMessage(MasterSecret masterSecret, TextSecureEnvelope envelope, TextSecureMessage message, long smsMessageId) {
+  private long handleGroupMessage(MasterSecret masterSecret, TextSecureEnvelope envelope, TextSecureMessage message, long smsMessageId) {
     GroupMessageProcessor.process(context, masterSecret, envelope, message);
 
     if (smsMessageId > 0) {
       DatabaseFactory.getSmsDatabase(context).deleteMessage(smsMessageId);
     }
+
+    return NO_NOTIFICATION;
   }
 
-  private void handleMediaMessage(MasterSecret masterSecret, TextSecureEnvelope envelope, TextSecureMessage message, long smsMessageId)
+  private long handleMediaMessage(MasterSecret masterSecret, TextSecureEnvelope envelope, TextSecureMessage message, long smsMessageId)
       throws MmsException
   {
     String               localNumber  = SecuredTextPreferences.getLocalNumber(context);
@@ -199,10 +244,10 @@ public class PushDecryptJob extends MasterSecretJob {
       DatabaseFactory.getSmsDatabase(context).deleteMessage(smsMessageId);
     }
 
-    MessageNotifier.updateNotification(context, masterSecret, messageAndThreadId.second);
+    return messageAndThreadId.second;
   }
 
-  private void handleTextMessage(MasterSecret masterSecret, TextSecureEnvelope envelope,
+  private long handleTextMessage(MasterSecret masterSecret, TextSecureEnvelope envelope,
                                  TextSecureMessage message, long smsMessageId)
   {
     EncryptingSmsDatabase database = DatabaseFactory.getEncryptingSmsDatabase(context);
@@ -210,6 +255,7 @@ public class PushDecryptJob extends MasterSecretJob {
 
     if (smsMessageId > 0) {
       database.updateBundleMessageBody(masterSecret, smsMessageId, body);
+      return NO_NOTIFICATION;
     } else {
       IncomingTextMessage textMessage = new IncomingTextMessage(envelope.getSource(),
                                                                 envelope.getSourceDevice(),
@@ -221,59 +267,63 @@ public class PushDecryptJob extends MasterSecretJob {
       }
 
       Pair<Long, Long> messageAndThreadId = database.insertMessageInbox(masterSecret, textMessage);
-      MessageNotifier.updateNotification(context, masterSecret, messageAndThreadId.second);
+      return messageAndThreadId.second;
     }
   }
 
-  private void handleInvalidVersionMessage(MasterSecret masterSecret, TextSecureEnvelope envelope, long smsMessageId) {
+  private long handleInvalidVersionMessage(MasterSecret masterSecret, TextSecureEnvelope envelope, long smsMessageId) {
     EncryptingSmsDatabase smsDatabase = DatabaseFactory.getEncryptingSmsDatabase(context);
 
     if (smsMessageId <= 0) {
       Pair<Long, Long> messageAndThreadId = insertPlaceholder(masterSecret, envelope);
       smsDatabase.markAsInvalidVersionKeyExchange(messageAndThreadId.first);
-      MessageNotifier.updateNotification(context, masterSecret, messageAndThreadId.second);
+      return messageAndThreadId.second;
     } else {
       smsDatabase.markAsInvalidVersionKeyExchange(smsMessageId);
+      return NO_NOTIFICATION;
     }
   }
 
-  private void handleCorruptMessage(MasterSecret masterSecret, TextSecureEnvelope envelope, long smsMessageId) {
+  private long handleCorruptMessage(MasterSecret masterSecret, TextSecureEnvelope envelope, long smsMessageId) {
     EncryptingSmsDatabase smsDatabase = DatabaseFactory.getEncryptingSmsDatabase(context);
 
     if (smsMessageId <= 0) {
       Pair<Long, Long> messageAndThreadId = insertPlaceholder(masterSecret, envelope);
       smsDatabase.markAsDecryptFailed(messageAndThreadId.first);
-      MessageNotifier.updateNotification(context, masterSecret, messageAndThreadId.second);
+      return messageAndThreadId.second;
     } else {
       smsDatabase.markAsDecryptFailed(smsMessageId);
+      return NO_NOTIFICATION;
     }
   }
 
-  private void handleNoSessionMessage(MasterSecret masterSecret, TextSecureEnvelope envelope, long smsMessageId) {
+  private long handleNoSessionMessage(MasterSecret masterSecret, TextSecureEnvelope envelope, long smsMessageId) {
     EncryptingSmsDatabase smsDatabase = DatabaseFactory.getEncryptingSmsDatabase(context);
 
     if (smsMessageId <= 0) {
       Pair<Long, Long> messageAndThreadId = insertPlaceholder(masterSecret, envelope);
       smsDatabase.markAsNoSession(messageAndThreadId.first);
-      MessageNotifier.updateNotification(context, masterSecret, messageAndThreadId.second);
+      return messageAndThreadId.second;
     } else {
       smsDatabase.markAsNoSession(smsMessageId);
+      return NO_NOTIFICATION;
     }
   }
 
-  private void handleLegacyMessage(MasterSecret masterSecret, TextSecureEnvelope envelope, long smsMessageId) {
+  private long handleLegacyMessage(MasterSecret masterSecret, TextSecureEnvelope envelope, long smsMessageId) {
     EncryptingSmsDatabase smsDatabase = DatabaseFactory.getEncryptingSmsDatabase(context);
 
     if (smsMessageId <= 0) {
       Pair<Long, Long> messageAndThreadId = insertPlaceholder(masterSecret, envelope);
       smsDatabase.markAsLegacyVersion(messageAndThreadId.first);
-      MessageNotifier.updateNotification(context, masterSecret, messageAndThreadId.second);
+      return messageAndThreadId.second;
     } else {
       smsDatabase.markAsLegacyVersion(smsMessageId);
+      return NO_NOTIFICATION;
     }
   }
 
-  private void handleDuplicateMessage(MasterSecret masterSecret, TextSecureEnvelope envelope, long smsMessageId) {
+  private long handleDuplicateMessage(MasterSecret masterSecret, TextSecureEnvelope envelope, long smsMessageId) {
     // Let's start ignoring these now
 //    SmsDatabase smsDatabase = DatabaseFactory.getEncryptingSmsDatabase(context);
 //
@@ -284,9 +334,10 @@ public class PushDecryptJob extends MasterSecretJob {
 //    } else {
 //      smsDatabase.markAsDecryptDuplicate(smsMessageId);
 //    }
+    return NO_NOTIFICATION;
   }
 
-  private void handleUntrustedIdentityMessage(MasterSecret masterSecret, TextSecureEnvelope envelope, long smsMessageId) {
+  private long handleUntrustedIdentityMessage(MasterSecret masterSecret, TextSecureEnvelope envelope, long smsMessageId) {
     try {
       EncryptingSmsDatabase database       = DatabaseFactory.getEncryptingSmsDatabase(context);
       Recipients            recipients     = RecipientFactory.getRecipientsFromString(context, envelope.getSource(), false);
@@ -303,11 +354,12 @@ public class PushDecryptJob extends MasterSecretJob {
         Pair<Long, Long>            messageAndThreadId = database.insertMessageInbox(masterSecret, bundleMessage);
 
         database.addMismatchedIdentity(messageAndThreadId.first, recipientId, identityKey);
-        MessageNotifier.updateNotification(context, masterSecret, messageAndThreadId.second);
+        return messageAndThreadId.second;
       } else {
         database.updateMessageBody(masterSecret, smsMessageId, encoded);
         database.markAsPreKeyBundle(smsMessageId);
         database.addMismatchedIdentity(smsMessageId, recipientId, identityKey);
+        return NO_NOTIFICATION;
       }
     } catch (InvalidMessageException | InvalidVersionException e) {
       throw new AssertionError(e);
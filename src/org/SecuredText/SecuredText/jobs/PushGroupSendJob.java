@@ -14,10 +14,9 @@ import org.SecuredText.SecuredText.jobs.requirements.MasterSecretRequirement;
 import org.SecuredText.SecuredText.mms.PartParser;
 import org.SecuredText.SecuredText.recipients.Recipient;
 import org.SecuredText.SecuredText.recipients.RecipientFactory;
-import org.SecuredText.SecuredText.recipients.RecipientFormattingException;
-import org.SecuredText.SecuredText.recipients.Recipients;
 import org.SecuredText.SecuredText.util.Base64;
 import org.SecuredText.SecuredText.util.GroupUtil;
+import org.SecuredText.SecuredText.util.Util;
 import org.whispersystems.jobqueue.JobParameters;
 import org.whispersystems.jobqueue.requirements.NetworkRequirement;
 import org.whispersystems.textsecure.api.TextSecureMessageSender;
@@ -26,14 +25,15 @@ import org.whispersystems.textsecure.api.messages.TextSecureAttachment;
 import org.whispersystems.textsecure.api.messages.TextSecureGroup;
 import org.whispersystems.textsecure.api.messages.TextSecureMessage;
 import org.whispersystems.textsecure.api.push.TextSecureAddress;
-import org.whispersystems.textsecure.api.push.exceptions.EncapsulatedExceptions;
-import org.whispersystems.textsecure.api.push.exceptions.NetworkFailureException;
 import org.whispersystems.textsecure.api.util.InvalidNumberException;
 import org.whispersystems.textsecure.internal.push.PushMessageProtos;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import javax.inject.Inject;
 
@@ -70,46 +70,63 @@ public class PushGroupSendJob extends PushSendJob implements InjectableType {
                    .markAsSending(messageId);
   }
 
+  /**
+   * Sends to the members that still need the message: everyone on the first attempt,
+   * and only the members whose delivery failed (recorded as NetworkFailures) after that.
+   * Network failures make the job retry for just those members, and the failures of
+   * members who have left the group since are dropped rather than retried.
+   */
   @Override
   public void onSend(MasterSecret masterSecret)
       throws MmsException, IOException, NoSuchMessageException
   {
-    MmsDatabase database = DatabaseFactory.getMmsDatabase(context);
-    SendReq     message  = database.getOutgoingMessage(masterSecret, messageId);
+    MmsDatabase          database = DatabaseFactory.getMmsDatabase(context);
+    SendReq              message  = database.getOutgoingMessage(masterSecret, messageId);
+    List<NetworkFailure> pending  = database.getFailures(messageId);
 
     try {
-      deliver(masterSecret, message, filterRecipientId);
+      List<Recipient>        recipients = getRecipients(message);
+      Map<String, Recipient> targets    = getTargets(recipients, pending);
+      GroupSendEngine.Result result     = targets.isEmpty() ? new GroupSendEngine.Result()
+                                                            : deliver(masterSecret, message, targets);
 
-      database.markAsPush(messageId);
-      database.markAsSecure(messageId);
-      database.markAsSent(messageId, "push".getBytes(), 0);
-    } catch (InvalidNumberException | RecipientFormattingException e) {
-      Log.w(TAG, e);
-      database.markAsSentFailed(messageId);
-      notifyMediaMessageDeliveryFailed(context, messageId);
-    } catch (EncapsulatedExceptions e) {
-      Log.w(TAG, e);
-      List<NetworkFailure> failures = new LinkedList<>();
+      List<NetworkFailure> failures = new LinkedList<>(pending);
 
-      for (NetworkFailureException nfe : e.getNetworkExceptions()) {
-        Recipient recipient = RecipientFactory.getRecipientsFromString(context, nfe.getE164number(), false).getPrimaryRecipient();
-        failures.add(new NetworkFailure(recipient.getRecipientId()));
+      for (Recipient target : targets.values()) {
+        failures.remove(new NetworkFailure(target.getRecipientId()));
       }
 
-//      for (UnregisteredUserException uue : e.getUnregisteredUserExceptions()) {
-//        Recipient recipient = RecipientFactory.getRecipientsFromString(context, uue.getE164Number(), false).getPrimaryRecipient();
-//        failures.add(new NetworkFailure(recipient.getRecipientId(), NetworkFailure.UNREGISTERED_FAILURE));
-//      }
+      if (filterRecipientId < 0) {
+        failures.retainAll(getNetworkFailures(recipients));
+      }
+
+      for (String e164number : result.getNetworkFailures()) {
+        failures.add(new NetworkFailure(targets.get(e164number).getRecipientId()));
+      }
 
-      for (UntrustedIdentityException uie : e.getUntrustedIdentityExceptions()) {
-        Recipient recipient = RecipientFactory.getRecipientsFromString(context, uie.getE164Number(), false).getPrimaryRecipient();
+      for (UntrustedIdentityException uie : result.getUntrustedIdentities()) {
+        Recipient recipient = targets.get(uie.getE164Number());
         database.addMismatchedIdentity(messageId, recipient.getRecipientId(), uie.getIdentityKey());
       }
 
-      database.addFailures(messageId, failures);
-      database.markAsSentFailed(messageId);
+      database.setFailures(messageId, failures);
       database.markAsPush(messageId);
 
+      if (!result.getNetworkFailures().isEmpty()) {
+        throw new IOException("Delivery failed for " + result.getNetworkFailures().size() + " of " +
+                              targets.size() + " members");
+      }
+
+      if (!result.getUnregistered().isEmpty() || database.hasMismatchedIdentities(messageId)) {
+        database.markAsSentFailed(messageId);
+        notifyMediaMessageDeliveryFailed(context, messageId);
+      } else {
+        database.markAsSecure(messageId);
+        database.markAsSent(messageId, "push".getBytes(), 0);
+      }
+    } catch (InvalidNumberException e) {
+      Log.w(TAG, e);
+      database.markAsSentFailed(messageId);
       notifyMediaMessageDeliveryFailed(context, messageId);
     }
   }
@@ -122,20 +139,65 @@ public class PushGroupSendJob extends PushSendJob implements InjectableType {
 
   @Override
   public void onCanceled() {
-    DatabaseFactory.getMmsDatabase(context).markAsSentFailed(messageId);
+    MmsDatabase database = DatabaseFactory.getMmsDatabase(context);
+    database.markAsSentFailed(messageId);
+
+    if (!database.getFailures(messageId).isEmpty()) {
+      notifyMediaMessageDeliveryFailed(context, messageId);
+    }
+  }
+
+  /**
+   * @return the filtered recipient, or else the current members of the group.
+   */
+  private List<Recipient> getRecipients(SendReq message) throws IOException {
+    if (filterRecipientId >= 0) {
+      return Collections.singletonList(RecipientFactory.getRecipientForId(context, filterRecipientId, false));
+    } else {
+      byte[] groupId = GroupUtil.getDecodedId(message.getTo()[0].getString());
+      return DatabaseFactory.getGroupDatabase(context).getGroupMembers(groupId, false).getRecipientsList();
+    }
   }
 
-  private void deliver(MasterSecret masterSecret, SendReq message, long filterRecipientId)
-      throws IOException, RecipientFormattingException, InvalidNumberException, EncapsulatedExceptions
+  /**
+   * @return the members to send to, keyed by their canonical number.
+   */
+  private Map<String, Recipient> getTargets(List<Recipient> recipients, List<NetworkFailure> pending)
+      throws InvalidNumberException
+  {
+    Map<String, Recipient> targets = new HashMap<>();
+
+    for (Recipient recipient : recipients) {
+      if (filterRecipientId < 0 && !pending.isEmpty() &&
+          !pending.contains(new NetworkFailure(recipient.getRecipientId())))
+      {
+        continue;
+      }
+
+      targets.put(Util.canonicalizeNumber(context, recipient.getNumber()), recipient);
+    }
+
+    return targets;
+  }
+
+  private List<NetworkFailure> getNetworkFailures(List<Recipient> recipients) {
+    List<NetworkFailure> failures = new LinkedList<>();
+
+    for (Recipient recipient : recipients) {
+      failures.add(new NetworkFailure(recipient.getRecipientId()));
+    }
+
+    return failures;
+  }
+
+  private GroupSendEngine.Result deliver(MasterSecret masterSecret, SendReq message, Map<String, Recipient> targets)
+      throws IOException
   {
     TextSecureMessageSender    messageSender = messageSenderFactory.create(masterSecret);
+    GroupSendEngine            engine        = new GroupSendEngine(messageSender, GroupSendEngine.MAX_PARALLEL_SENDS);
     byte[]                     groupId       = GroupUtil.getDecodedId(message.getTo()[0].getString());
-    Recipients                 recipients    = DatabaseFactory.getGroupDatabase(context).getGroupMembers(groupId, false);
     List<TextSecureAttachment> attachments   = getAttachments(masterSecret, message);
-    List<TextSecureAddress>    addresses;
-
-    if (filterRecipientId >= 0) addresses = getPushAddresses(filterRecipientId);
-    else                        addresses = getPushAddresses(recipients);
+    List<TextSecureAddress>    addresses     = getPushAddresses(targets.keySet());
 
     if (MmsSmsColumns.Types.isGroupUpdate(message.getDatabaseMessageBox()) ||
         MmsSmsColumns.Types.isGroupQuit(message.getDatabaseMessageBox()))
@@ -149,31 +211,17 @@ public class PushGroupSendJob extends PushSendJob implements InjectableType {
         TextSecureGroup      group        = new TextSecureGroup(type, groupId, groupContext.getName(), groupContext.getMembersList(), avatar);
         TextSecureMessage groupMessage = new TextSecureMessage(message.getSentTimestamp(), group, null, null);
 
-        messageSender.sendMessage(addresses, groupMessage);
+        return engine.send(addresses, groupMessage);
       }
+
+      return new GroupSendEngine.Result();
     } else {
       String            body         = PartParser.getMessageText(message.getBody());
       TextSecureGroup   group        = new TextSecureGroup(groupId);
       TextSecureMessage groupMessage = new TextSecureMessage(message.getSentTimestamp(), group, attachments, body);
 
-      messageSender.sendMessage(addresses, groupMessage);
+      return engine.send(addresses, groupMessage);
     }
   }
 
-  private List<TextSecureAddress> getPushAddresses(Recipients recipients) throws InvalidNumberException {
-    List<TextSecureAddress> addresses = new LinkedList<>();
-
-    for (Recipient recipient : recipients.getRecipientsList()) {
-      addresses.add(getPushAddress(recipient.getNumber()));
-    }
-
-    return addresses;
-  }
-
-  private List<TextSecureAddress> getPushAddresses(long filterRecipientId) throws InvalidNumberException {
-    List<TextSecureAddress> addresses = new LinkedList<>();
-    addresses.add(getPushAddress(RecipientFactory.getRecipientForId(context, filterRecipientId, false).getNumber()));
-    return addresses;
-  }
-
 }
@@ -78,10 +78,12 @@ public class PushReceiveJob extends ContextJob {
     JobManager jobManager = ApplicationContext.getInstance(context).getJobManager();
     long       messageId  = DatabaseFactory.getPushDatabase(context).insert(envelope);
 
+    DecryptLatency.onQueued(messageId);
+
     if (sendExplicitReceipt) {
-      jobManager.add(new DeliveryReceiptJob(context, envelope.getSource(),
-                                            envelope.getTimestamp(),
-                                            envelope.getRelay()));
+      DeliveryReceiptAggregator.add(context, envelope.getSource(),
+                                    envelope.getTimestamp(),
+                                    envelope.getRelay());
     }
 
     jobManager.add(new PushDecryptJob(context, messageId, envelope.getSource()));
@@ -89,8 +91,8 @@ public class PushReceiveJob extends ContextJob {
 
   private void handleReceipt(TextSecureEnvelope envelope) {
     Log.w(TAG, String.format("Received receipt: (XXXXX, %d)", envelope.getTimestamp()));
-    DatabaseFactory.getMmsSmsDatabase(context).incrementDeliveryReceiptCount(envelope.getSource(),
-                                                                             envelope.getTimestamp());
+    DatabaseFactory.getMmsSmsDatabase(context).applyDeliveryReceipt(envelope.getSource(),
+                                                                     envelope.getTimestamp());
   }
 
   private boolean isActiveNumber(Context context, String e164number) {
@@ -23,8 +23,10 @@ import org.whispersystems.textsecure.api.util.InvalidNumberException;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import ws.com.google.android.mms.ContentType;
 import ws.com.google.android.mms.pdu.PduPart;
@@ -82,6 +84,21 @@ public abstract class PushSendJob extends SendJob {
     return new TextSecureAddress(e164number, Optional.fromNullable(relay));
   }
 
+  /**
+   * @return the push addresses of already canonicalized numbers, with their relays read
+   * from the directory in one lookup.
+   */
+  protected List<TextSecureAddress> getPushAddresses(Collection<String> e164numbers) {
+    Map<String, String>     relays    = SecuredTextDirectory.getInstance(context).getRelays(e164numbers);
+    List<TextSecureAddress> addresses = new LinkedList<>();
+
+    for (String e164number : e164numbers) {
+      addresses.add(new TextSecureAddress(e164number, Optional.fromNullable(relays.get(e164number))));
+    }
+
+    return addresses;
+  }
+
   protected boolean isSmsFallbackApprovalRequired(String destination, boolean media) {
     return (isSmsFallbackSupported(context, destination, media) && SecuredTextPreferences.isFallbackSmsAskRequired(context));
   }
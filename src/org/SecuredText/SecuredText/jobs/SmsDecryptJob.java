@@ -44,10 +44,15 @@ public class SmsDecryptJob extends MasterSecretJob {
 
   private final long messageId;
 
-  public SmsDecryptJob(Context context, long messageId) {
+  /**
+   * Messages from one sender share a job group, so they decrypt in the order they arrived
+   * while other senders' messages decrypt in parallel.
+   */
+  public SmsDecryptJob(Context context, long messageId, String sender) {
     super(context, JobParameters.newBuilder()
                                 .withPersistence()
                                 .withRequirement(new MasterSecretRequirement(context))
+                                .withGroupId(sender)
                                 .create());
 
     this.messageId = messageId;
@@ -24,8 +24,6 @@ public class SmsReceiveJob extends ContextJob {
 
   private static final String TAG = SmsReceiveJob.class.getSimpleName();
 
-  private static MultipartSmsMessageHandler multipartMessageHandler = new MultipartSmsMessageHandler();
-
   private final Object[] pdus;
 
   public SmsReceiveJob(Context context, Object[] pdus) {
@@ -77,7 +75,7 @@ public class SmsReceiveJob extends ContextJob {
     if (masterSecret == null || message.isSecureMessage() || message.isKeyExchange() || message.isEndSession()) {
       ApplicationContext.getInstance(context)
                         .getJobManager()
-                        .add(new SmsDecryptJob(context, messageAndThreadId.first));
+                        .add(new SmsDecryptJob(context, messageAndThreadId.first, message.getSender()));
     } else {
       MessageNotifier.updateNotification(context, masterSecret, messageAndThreadId.second);
     }
@@ -103,6 +101,7 @@ public class SmsReceiveJob extends ContextJob {
         WirePrefix.isPreKeyBundle(message.getMessageBody())     ||
         WirePrefix.isEndSession(message.getMessageBody()))
     {
+      MultipartSmsMessageHandler multipartMessageHandler = new MultipartSmsMessageHandler(context);
       return Optional.fromNullable(multipartMessageHandler.processPotentialMultipartMessage(message));
     } else {
       return Optional.of(message);
@@ -101,7 +101,7 @@ public class SmsSendJob extends SendJob {
   private void deliverSecureMessage(MasterSecret masterSecret, SmsMessageRecord message)
       throws UndeliverableMessageException, InsecureFallbackApprovalException
   {
-    MultipartSmsMessageHandler multipartMessageHandler = new MultipartSmsMessageHandler();
+    MultipartSmsMessageHandler multipartMessageHandler = new MultipartSmsMessageHandler(context);
     OutgoingTextMessage        transportMessage        = OutgoingTextMessage.from(message);
 
     if (message.isSecure() || message.isEndSession()) {
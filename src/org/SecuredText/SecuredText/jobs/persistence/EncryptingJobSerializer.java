@@ -2,17 +2,49 @@ package org.SecuredText.SecuredText.jobs.persistence;
 
 import org.SecuredText.SecuredText.crypto.MasterCipher;
 import org.SecuredText.SecuredText.crypto.MasterSecret;
+import org.SecuredText.SecuredText.util.Base64;
 import org.SecuredText.SecuredText.util.ParcelUtil;
+import org.SecuredText.SecuredText.util.VisibleForTesting;
 import org.whispersystems.jobqueue.EncryptionKeys;
 import org.whispersystems.jobqueue.Job;
 import org.whispersystems.jobqueue.persistence.JavaJobSerializer;
 import org.whispersystems.jobqueue.persistence.JobSerializer;
 import org.whispersystems.libaxolotl.InvalidMessageException;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
+/**
+ * Serializes jobs as deflated Java serialization, encrypted as bytes when the job carries
+ * encryption keys, and Base64 encoded once.  Serialized jobs start with BINARY_PREFIX, which
+ * the Base64 of the older text format never does, so jobs persisted in that format are still
+ * restored through the delegate.
+ *
+ * This makes each job store write smaller and cheaper, but not less frequent: the job
+ * manager persists every job on its own as it's added, and only hands this class one job
+ * at a time, so jobs can't be committed together from here.  Fewer writes come from
+ * adding fewer persistent jobs, as DeliveryReceiptAggregator does.  The job manager calls
+ * serialize() once for each job it stores, so the writes and bytes counted there are the
+ * job store's own, and DecryptLatency reports them per decrypted message.
+ */
 public class EncryptingJobSerializer implements JobSerializer {
 
+  private static final String BINARY_PREFIX = "!";
+
+  private static final Object     cacheLock   = new Object();
+  private static final AtomicLong storeWrites = new AtomicLong();
+  private static final AtomicLong storeBytes  = new AtomicLong();
+
+  private static byte[]       cachedKeys;
+  private static MasterCipher cachedCipher;
+
   private final JavaJobSerializer delegate;
 
   public EncryptingJobSerializer() {
@@ -21,35 +53,116 @@ public class EncryptingJobSerializer implements JobSerializer {
 
   @Override
   public String serialize(Job job) throws IOException {
-    String plaintext = delegate.serialize(job);
+    EncryptionKeys keys       = job.getEncryptionKeys();
+    String         serialized = serialize(job, keys == null ? null : getMasterCipher(keys));
 
-    if (job.getEncryptionKeys() != null) {
-      MasterSecret masterSecret = ParcelUtil.deserialize(job.getEncryptionKeys().getEncoded(),
-                                                         MasterSecret.CREATOR);
-      MasterCipher masterCipher = new MasterCipher(masterSecret);
+    storeWrites.incrementAndGet();
+    storeBytes.addAndGet(serialized.length());
 
-      return masterCipher.encryptBody(plaintext);
-    } else {
-      return plaintext;
-    }
+    return serialized;
   }
 
   @Override
   public Job deserialize(EncryptionKeys keys, boolean encrypted, String serialized) throws IOException {
     try {
-      String plaintext;
+      MasterCipher masterCipher = encrypted ? getMasterCipher(keys) : null;
 
-      if (encrypted) {
-        MasterSecret masterSecret = ParcelUtil.deserialize(keys.getEncoded(), MasterSecret.CREATOR);
-        MasterCipher masterCipher = new MasterCipher(masterSecret);
-        plaintext = masterCipher.decryptBody(serialized);
-      } else {
-        plaintext = serialized;
+      if (serialized.startsWith(BINARY_PREFIX)) {
+        return deserialize(masterCipher, serialized);
       }
 
+      String plaintext;
+
+      if (encrypted) plaintext = masterCipher.decryptBody(serialized);
+      else           plaintext = serialized;
+
       return delegate.deserialize(keys, encrypted, plaintext);
     } catch (InvalidMessageException e) {
       throw new IOException(e);
     }
   }
+
+  @VisibleForTesting
+  String serialize(Job job, MasterCipher masterCipher) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream    out   = new ObjectOutputStream(new DeflaterOutputStream(bytes));
+
+    try {
+      out.writeObject(job);
+    } finally {
+      out.close();
+    }
+
+    byte[] serialized = bytes.toByteArray();
+
+    if (masterCipher != null) {
+      serialized = masterCipher.encryptBytes(serialized);
+    }
+
+    return BINARY_PREFIX + Base64.encodeBytes(serialized);
+  }
+
+  @VisibleForTesting
+  Job deserialize(MasterCipher masterCipher, String serialized)
+      throws IOException, InvalidMessageException
+  {
+    byte[] decoded = Base64.decode(serialized.substring(BINARY_PREFIX.length()));
+
+    if (masterCipher != null) {
+      decoded = masterCipher.decryptBytes(decoded);
+    }
+
+    ObjectInputStream in = new ObjectInputStream(new InflaterInputStream(new ByteArrayInputStream(decoded)));
+
+    try {
+      return (Job)in.readObject();
+    } catch (ClassNotFoundException e) {
+      throw new IOException(e);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * @return the number of jobs written to the job store by this process.
+   */
+  public static long getStoreWrites() {
+    return storeWrites.get();
+  }
+
+  /**
+   * @return the number of serialized bytes written to the job store by this process.
+   */
+  public static long getStoreBytes() {
+    return storeBytes.get();
+  }
+
+  /**
+   * Drops the cached cipher, and with it the master secret, when the secret is cleared.
+   */
+  public static void clearCachedCipher() {
+    synchronized (cacheLock) {
+      cachedKeys   = null;
+      cachedCipher = null;
+    }
+  }
+
+  /**
+   * Every persisted job carries the same keys while the master secret is unlocked, so the
+   * cipher built for the last keys seen is reused rather than unparceled for each job.
+   */
+  private static MasterCipher getMasterCipher(EncryptionKeys keys) {
+    byte[] encoded = keys.getEncoded();
+
+    synchronized (cacheLock) {
+      if (cachedCipher == null || !Arrays.equals(cachedKeys, encoded)) {
+        MasterSecret masterSecret = ParcelUtil.deserialize(encoded, MasterSecret.CREATOR);
+
+        cachedKeys   = encoded;
+        cachedCipher = new MasterCipher(masterSecret);
+      }
+
+      return cachedCipher;
+    }
+  }
 }
@@ -25,10 +25,12 @@ import org.apache.http.HttpHost;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpGetHC4;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.CloseableHttpClient;
 
 import java.io.IOException;
-import java.util.Arrays;
+import java.io.InputStream;
 
+import ws.com.google.android.mms.pdu.GenericPdu;
 import ws.com.google.android.mms.pdu.PduParser;
 import ws.com.google.android.mms.pdu.RetrieveConf;
 
@@ -39,6 +41,10 @@ public class IncomingMmsConnection extends MmsConnection {
     super(context, apn);
   }
 
+  public IncomingMmsConnection(Context context, Apn apn, CloseableHttpClient client) {
+    super(context, apn, client);
+  }
+
   @Override
   protected HttpUriRequest constructRequest(boolean useProxy) throws IOException {
     HttpGetHC4 request = new HttpGetHC4(apn.getMmsc());
@@ -64,33 +70,53 @@ public class IncomingMmsConnection extends MmsConnection {
   public RetrieveConf retrieve(boolean usingMmsRadio, boolean useProxyIfAvailable)
       throws IOException, ApnUnavailableException
   {
-    byte[] pdu = null;
+    return retrieve(usingMmsRadio, useProxyIfAvailable, null);
+  }
 
+  /**
+   * Retrieves and parses the message as the response arrives.  Parts the handler accepts
+   * are streamed to it, so only the remaining (small) parts are held in memory.
+   */
+  public RetrieveConf retrieve(boolean usingMmsRadio, boolean useProxyIfAvailable,
+                               PduParser.PartDataHandler partDataHandler)
+      throws IOException, ApnUnavailableException
+  {
     final boolean useProxy   = useProxyIfAvailable && apn.hasProxy();
     final String  targetHost = useProxy
                              ? apn.getProxy()
                              : Uri.parse(apn.getMmsc()).getHost();
-    try {
-      if (checkRouteToHost(context, targetHost, usingMmsRadio)) {
-        Log.w(TAG, "got successful route to host " + targetHost);
-        pdu = makeRequest(useProxy);
-      }
-    } catch (IOException ioe) {
-      Log.w(TAG, ioe);
-    }
 
-    if (pdu == null) {
+    if (!checkRouteToHost(context, targetHost, usingMmsRadio)) {
       throw new IOException("Connection manager could not obtain route to host.");
     }
 
-    RetrieveConf retrieved = (RetrieveConf)new PduParser(pdu).parse();
+    Log.w(TAG, "got successful route to host " + targetHost);
+    return makeRequest(useProxy, new RetrieveConfReader(partDataHandler));
+  }
 
-    if (retrieved == null) {
-      Log.w(TAG, "Couldn't parse PDU, byte response: " + Arrays.toString(pdu));
-      Log.w(TAG, "Couldn't parse PDU, ASCII:         " + new String(pdu));
-      throw new IOException("Bad retrieved PDU");
+  private static class RetrieveConfReader implements ResponseReader<RetrieveConf> {
+    private final PduParser.PartDataHandler partDataHandler;
+
+    public RetrieveConfReader(PduParser.PartDataHandler partDataHandler) {
+      this.partDataHandler = partDataHandler;
     }
 
-    return retrieved;
+    @Override
+    public RetrieveConf read(InputStream in, long contentLength) throws IOException {
+      Log.w(TAG, "Parsing server response as it arrives, " + contentLength + " bytes expected");
+
+      PduParser  parser = new PduParser(in, contentLength, partDataHandler);
+      GenericPdu pdu    = parser.parse();
+
+      if (parser.getStreamException() != null) {
+        throw parser.getStreamException();
+      }
+
+      if (!(pdu instanceof RetrieveConf)) {
+        throw new IOException("Bad retrieved PDU");
+      }
+
+      return (RetrieveConf)pdu;
+    }
   }
 }
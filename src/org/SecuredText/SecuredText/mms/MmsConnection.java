@@ -22,18 +22,22 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.CredentialsProvider;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.impl.NoConnectionReuseStrategyHC4;
 import org.apache.http.impl.client.BasicCredentialsProvider;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.client.LaxRedirectStrategy;
 import org.apache.http.impl.conn.BasicHttpClientConnectionManager;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.message.BasicHeader;
 import org.SecuredText.SecuredText.database.ApnDatabase;
 import org.SecuredText.SecuredText.util.TelephonyUtil;
@@ -53,12 +57,22 @@ import java.util.List;
 public abstract class MmsConnection {
   private static final String TAG = "MmsCommunication";
 
-  protected final Context context;
-  protected final Apn     apn;
+  protected final Context             context;
+  protected final Apn                 apn;
+  private   final CloseableHttpClient sharedClient;
 
   protected MmsConnection(Context context, Apn apn) {
-    this.context = context;
-    this.apn     = apn;
+    this(context, apn, null);
+  }
+
+  /**
+   * @param sharedClient a client to make requests with, which the caller closes, or
+   *                     null to construct (and close) a client for each request.
+   */
+  protected MmsConnection(Context context, Apn apn, CloseableHttpClient sharedClient) {
+    this.context      = context;
+    this.apn          = apn;
+    this.sharedClient = sharedClient;
   }
 
   public static Apn getApn(Context context, String apnName) throws ApnUnavailableException {
@@ -119,8 +133,27 @@ public abstract class MmsConnection {
     return baos.toByteArray();
   }
 
-  protected CloseableHttpClient constructHttpClient()
-      throws IOException {
+  protected CloseableHttpClient constructHttpClient() {
+    return newHttpClientBuilder().setConnectionReuseStrategy(new NoConnectionReuseStrategyHC4())
+                                 .setConnectionManager(new BasicHttpClientConnectionManager())
+                                 .build();
+  }
+
+  /**
+   * Constructs a client that keeps up to maxConnections connections alive, to be shared
+   * by the requests of a download session.  The client holds no credentials; each request
+   * is given the APN's credentials scoped to its own MMSC host.
+   */
+  public static CloseableHttpClient constructPooledHttpClient(int maxConnections) {
+    PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+    connectionManager.setMaxTotal(maxConnections);
+    connectionManager.setDefaultMaxPerRoute(maxConnections);
+
+    return newHttpClientBuilder().setConnectionManager(connectionManager)
+                                 .build();
+  }
+
+  private static HttpClientBuilder newHttpClientBuilder() {
     RequestConfig config = RequestConfig.custom()
                                         .setConnectTimeout(20 * 1000)
                                         .setConnectionRequestTimeout(20 * 1000)
@@ -128,7 +161,20 @@ public abstract class MmsConnection {
                                         .setMaxRedirects(20)
                                         .build();
 
-    URL mmsc = new URL(apn.getMmsc());
+    return HttpClients.custom()
+                      .setRedirectStrategy(new LaxRedirectStrategy())
+                      .setUserAgent("Android-Mms/2.0")
+                      .setDefaultRequestConfig(config);
+  }
+
+  /**
+   * Offers the APN's credentials only to the MMSC host and port this connection was made
+   * for.  A redirect to any other host is followed without them.
+   */
+  private HttpClientContext constructRequestContext() throws IOException {
+    HttpClientContext requestContext = HttpClientContext.create();
+    URL               mmsc           = new URL(apn.getMmsc());
+
     CredentialsProvider credsProvider = new BasicCredentialsProvider();
 
     if (apn.hasAuthentication()) {
@@ -136,17 +182,20 @@ public abstract class MmsConnection {
                                    new UsernamePasswordCredentials(apn.getUsername(), apn.getPassword()));
     }
 
-    return HttpClients.custom()
-                      .setConnectionReuseStrategy(new NoConnectionReuseStrategyHC4())
-                      .setRedirectStrategy(new LaxRedirectStrategy())
-                      .setUserAgent("Android-Mms/2.0")
-                      .setConnectionManager(new BasicHttpClientConnectionManager())
-                      .setDefaultRequestConfig(config)
-                      .setDefaultCredentialsProvider(credsProvider)
-                      .build();
+    requestContext.setCredentialsProvider(credsProvider);
+    return requestContext;
   }
 
   protected byte[] makeRequest(boolean useProxy) throws IOException {
+    return makeRequest(useProxy, new ResponseReader<byte[]>() {
+      @Override
+      public byte[] read(InputStream in, long contentLength) throws IOException {
+        return parseResponse(in);
+      }
+    });
+  }
+
+  protected <T> T makeRequest(boolean useProxy, ResponseReader<T> reader) throws IOException {
     Log.w(TAG, "connecting to " + apn.getMmsc() + (useProxy ? " using proxy" : ""));
 
     HttpUriRequest request;
@@ -154,17 +203,22 @@ public abstract class MmsConnection {
     CloseableHttpResponse response = null;
     try {
       request  = constructRequest(useProxy);
-      client   = constructHttpClient();
-      response = client.execute(request);
+      client   = sharedClient != null ? sharedClient : constructHttpClient();
+      response = client.execute(request, constructRequestContext());
 
       Log.w(TAG, "* response code: " + response.getStatusLine());
 
       if (response.getStatusLine().getStatusCode() == 200) {
-        return parseResponse(response.getEntity().getContent());
+        HttpEntity  entity  = response.getEntity();
+        InputStream content = entity.getContent();
+        T           result  = reader.read(content, entity.getContentLength());
+
+        content.close();
+        return result;
       }
     } finally {
-      if (response != null) response.close();
-      if (client != null)   client.close();
+      if (response != null)                         response.close();
+      if (client != null && client != sharedClient) client.close();
     }
 
     throw new IOException("unhandled response code");
@@ -188,6 +242,13 @@ public abstract class MmsConnection {
 
   }
 
+  /**
+   * Consumes a successful response body while the connection is still open.
+   */
+  protected interface ResponseReader<T> {
+    T read(InputStream in, long contentLength) throws IOException;
+  }
+
   public static class Apn {
 
     public static Apn EMPTY = new Apn("", "", "", "", "");
@@ -30,6 +30,7 @@ import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpPostHC4;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.entity.ByteArrayEntityHC4;
+import org.apache.http.impl.client.CloseableHttpClient;
 import org.SecuredText.SecuredText.util.TelephonyUtil;
 import org.SecuredText.SecuredText.util.Util;
 
@@ -44,7 +45,13 @@ public class OutgoingMmsConnection extends MmsConnection {
   private final byte[] mms;
 
   public OutgoingMmsConnection(Context context, String apnName, byte[] mms) throws ApnUnavailableException {
-    super(context, getApn(context, apnName));
+    this(context, apnName, mms, null);
+  }
+
+  public OutgoingMmsConnection(Context context, String apnName, byte[] mms, CloseableHttpClient client)
+      throws ApnUnavailableException
+  {
+    super(context, getApn(context, apnName), client);
     this.mms = mms;
   }
 
@@ -0,0 +1,61 @@
+package org.SecuredText.SecuredText.mms;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.SecuredText.SecuredText.crypto.MasterSecret;
+import org.SecuredText.SecuredText.database.DatabaseFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.List;
+
+import ws.com.google.android.mms.MmsException;
+import ws.com.google.android.mms.pdu.PduParser;
+import ws.com.google.android.mms.pdu.PduPart;
+
+/**
+ * Encrypts the media parts of an incoming PDU straight into part files while it is
+ * being parsed.  Text and other parts are left for the parser to buffer, since they're
+ * small and the message body is built from them in memory.
+ */
+public class PartFileWriter implements PduParser.PartDataHandler {
+
+  private static final String TAG = PartFileWriter.class.getSimpleName();
+
+  private final Context      context;
+  private final MasterSecret masterSecret;
+  private final List<File>   files = new LinkedList<>();
+
+  public PartFileWriter(Context context, MasterSecret masterSecret) {
+    this.context      = context;
+    this.masterSecret = masterSecret;
+  }
+
+  @Override
+  public boolean onPartData(PduPart part, InputStream data) throws IOException {
+    if (!PartParser.isDisplayableMedia(part)) {
+      return false;
+    }
+
+    try {
+      files.add(DatabaseFactory.getPartDatabase(context).writeDetachedPart(masterSecret, part, data));
+      return true;
+    } catch (MmsException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Deletes the part files written so far, for a message that won't be stored.
+   */
+  public void discard() {
+    for (File file : files) {
+      if (!file.delete()) Log.w(TAG, "Failed to delete " + file.getAbsolutePath());
+    }
+
+    files.clear();
+  }
+}
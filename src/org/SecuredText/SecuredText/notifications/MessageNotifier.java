@@ -43,21 +43,20 @@ import org.SecuredText.SecuredText.R;
 import org.SecuredText.SecuredText.RoutingActivity;
 import org.SecuredText.SecuredText.crypto.MasterSecret;
 import org.SecuredText.SecuredText.database.DatabaseFactory;
-import org.SecuredText.SecuredText.database.MmsSmsDatabase;
 import org.SecuredText.SecuredText.database.PushDatabase;
-import org.SecuredText.SecuredText.database.SmsDatabase;
-import org.SecuredText.SecuredText.database.model.MessageRecord;
 import org.SecuredText.SecuredText.recipients.Recipient;
 import org.SecuredText.SecuredText.recipients.RecipientFactory;
 import org.SecuredText.SecuredText.recipients.Recipients;
 import org.SecuredText.SecuredText.service.KeyCachingService;
-import org.SecuredText.SecuredText.util.SpanUtil;
 import org.SecuredText.SecuredText.util.SecuredTextPreferences;
-import org.whispersystems.textsecure.api.messages.TextSecureEnvelope;
+import org.SecuredText.SecuredText.util.VisibleForTesting;
 
 import java.io.IOException;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import me.leolin.shortcutbadger.ShortcutBadger;
@@ -74,7 +73,16 @@ public class MessageNotifier {
 
   public static final int NOTIFICATION_ID = 1338;
 
+  private static final long DEBOUNCE_MILLIS = 250;
+
+  private static final ScheduledExecutorService updateExecutor = Executors.newSingleThreadScheduledExecutor();
+  private static final UnreadNotificationCache  unreadCache    = new UnreadNotificationCache();
+  private static final Object                   pendingLock    = new Object();
+
   private volatile static long visibleThread = -1;
+  private volatile static int  queryCount    = 0;
+
+  private static PendingUpdate pendingUpdate;
 
   public static void setVisibleThread(long threadId) {
     visibleThread = threadId;
@@ -111,7 +119,7 @@ public class MessageNotifier {
       return;
     }
 
-    updateNotification(context, masterSecret, false, 0);
+    scheduleUpdate(context, masterSecret, false, 0);
   }
 
   public static void updateNotification(Context context, MasterSecret masterSecret, long threadId) {
@@ -123,31 +131,82 @@ public class MessageNotifier {
       DatabaseFactory.getThreadDatabase(context).setRead(threadId);
       sendInThreadNotification(context);
     } else {
-      updateNotification(context, masterSecret, true, 0);
+      scheduleUpdate(context, masterSecret, true, 0);
     }
   }
 
+  /**
+   * @return the number of database queries made by notification updates so far.
+   */
+  @VisibleForTesting
+  static int getQueryCount() {
+    return queryCount + unreadCache.getQueryCount();
+  }
+
+  /**
+   * Blocks until every update requested before this call has been rebuilt.  Updates run
+   * in the order they were scheduled on one thread, so this waits on a no-op scheduled
+   * DEBOUNCE_MILLIS from now.
+   */
+  @VisibleForTesting
+  static void awaitPendingUpdates() throws InterruptedException, ExecutionException {
+    updateExecutor.schedule(new Runnable() {
+      @Override
+      public void run() {}
+    }, DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS).get();
+  }
+
+  /**
+   * Coalesces every update requested within DEBOUNCE_MILLIS into a single rebuild.  The
+   * rebuild signals if any of the coalesced requests did, and otherwise uses the most
+   * recent request's master secret and reminder count.
+   */
+  private static void scheduleUpdate(Context context, MasterSecret masterSecret, boolean signal, int reminderCount) {
+    synchronized (pendingLock) {
+      if (pendingUpdate != null) {
+        pendingUpdate.merge(masterSecret, signal, reminderCount);
+        return;
+      }
+
+      pendingUpdate = new PendingUpdate(context.getApplicationContext(), masterSecret, signal, reminderCount);
+    }
+
+    updateExecutor.schedule(new Runnable() {
+      @Override
+      public void run() {
+        PendingUpdate update;
+
+        synchronized (pendingLock) {
+          update        = pendingUpdate;
+          pendingUpdate = null;
+        }
+
+        updateNotification(update.context, update.masterSecret, update.signal, update.reminderCount);
+      }
+    }, DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
   private static void updateNotification(Context context, MasterSecret masterSecret, boolean signal, int reminderCount) {
     Cursor telcoCursor = null;
-    Cursor pushCursor  = null;
 
     try {
-      telcoCursor = DatabaseFactory.getMmsSmsDatabase(context).getUnread();
-      pushCursor  = DatabaseFactory.getPushDatabase(context).getPending();
+      telcoCursor = DatabaseFactory.getMmsSmsDatabase(context).getUnreadKeys();
+      queryCount += 2;
 
       if ((telcoCursor == null || telcoCursor.isAfterLast()) &&
-          (pushCursor == null || pushCursor.isAfterLast()))
+          !DatabaseFactory.getPushDatabase(context).hasPending())
       {
         ((NotificationManager)context.getSystemService(Context.NOTIFICATION_SERVICE))
           .cancel(NOTIFICATION_ID);
         updateBadge(context, 0);
         clearReminder(context);
+        unreadCache.clear();
         return;
       }
 
-      NotificationState notificationState = constructNotificationState(context, masterSecret, telcoCursor);
+      NotificationState notificationState = unreadCache.buildNotificationState(context, masterSecret, telcoCursor);
 
-      appendPushNotificationState(context, masterSecret, notificationState, pushCursor);
+      appendPushNotificationState(context, masterSecret, notificationState);
 
       if (notificationState.hasMultipleThreads()) {
         sendMultipleThreadNotification(context, masterSecret, notificationState, signal);
@@ -159,7 +218,6 @@ public class MessageNotifier {
       scheduleReminder(context, masterSecret, reminderCount);
     } finally {
       if (telcoCursor != null) telcoCursor.close();
-      if (pushCursor != null)  pushCursor.close();
     }
   }
 
@@ -299,19 +357,17 @@ public class MessageNotifier {
 
   private static void appendPushNotificationState(Context context,
                                                   MasterSecret masterSecret,
-                                                  NotificationState notificationState,
-                                                  Cursor cursor)
+                                                  NotificationState notificationState)
   {
     if (masterSecret != null) return;
 
-    PushDatabase.Reader reader = null;
-    TextSecureEnvelope envelope;
+    PushDatabase.PendingReader reader = null;
 
     try {
-      reader = DatabaseFactory.getPushDatabase(context).readerFor(cursor);
+      reader = DatabaseFactory.getPushDatabase(context).readPending(false);
 
-      while ((envelope = reader.getNext()) != null) {
-        Recipients      recipients = RecipientFactory.getRecipientsFromString(context, envelope.getSource(), false);
+      while (reader.next()) {
+        Recipients      recipients = RecipientFactory.getRecipientsFromString(context, reader.getSource(), false);
         Recipient       recipient  = recipients.getPrimaryRecipient();
         long            threadId   = DatabaseFactory.getThreadDatabase(context).getThreadIdFor(recipients);
         SpannableString body       = new SpannableString(context.getString(R.string.MessageNotifier_encrypted_message));
@@ -325,46 +381,6 @@ public class MessageNotifier {
     }
   }
 
-  private static NotificationState constructNotificationState(Context context,
-                                                              MasterSecret masterSecret,
-                                                              Cursor cursor)
-  {
-    NotificationState notificationState = new NotificationState();
-    MessageRecord record;
-    MmsSmsDatabase.Reader reader;
-
-    if (masterSecret == null) reader = DatabaseFactory.getMmsSmsDatabase(context).readerFor(cursor);
-    else                      reader = DatabaseFactory.getMmsSmsDatabase(context).readerFor(cursor, masterSecret);
-
-    while ((record = reader.getNext()) != null) {
-      Recipient       recipient        = record.getIndividualRecipient();
-      Recipients      recipients       = record.getRecipients();
-      long            threadId         = record.getThreadId();
-      CharSequence    body             = record.getDisplayBody();
-      Uri             image            = null;
-      Recipients      threadRecipients = null;
-
-      if (threadId != -1) {
-        threadRecipients = DatabaseFactory.getThreadDatabase(context).getRecipientsForThreadId(threadId);
-      }
-
-      if (SmsDatabase.Types.isDecryptInProgressType(record.getType()) || !record.getBody().isPlaintext()) {
-        body = SpanUtil.italic(context.getString(R.string.MessageNotifier_encrypted_message));
-      } else if (record.isMms() && TextUtils.isEmpty(body)) {
-        body = SpanUtil.italic(context.getString(R.string.MessageNotifier_media_message));
-      } else if (record.isMms()) {
-        String message      = context.getString(R.string.MessageNotifier_media_message_with_text, body);
-        int    italicLength = message.length() - body.length();
-        body = SpanUtil.italic(message, italicLength);
-      }
-
-      notificationState.addNotification(new NotificationItem(recipient, recipients, threadRecipients, threadId, body, image));
-    }
-
-    reader.close();
-    return notificationState;
-  }
-
   private static void setNotificationAlarms(Context context,
                                             NotificationCompat.Builder builder,
                                             boolean signal)
@@ -436,7 +452,7 @@ public class MessageNotifier {
     public void onReceive(Context context, Intent intent) {
       MasterSecret masterSecret  = KeyCachingService.getMasterSecret(context);
       int          reminderCount = intent.getIntExtra("reminder_count", 0);
-      MessageNotifier.updateNotification(context, masterSecret, true, reminderCount + 1);
+      MessageNotifier.scheduleUpdate(context, masterSecret, true, reminderCount + 1);
     }
   }
 
@@ -449,4 +465,25 @@ public class MessageNotifier {
       clearReminder(context);
     }
   }
+
+  private static class PendingUpdate {
+    private final Context context;
+
+    private MasterSecret masterSecret;
+    private boolean      signal;
+    private int          reminderCount;
+
+    public PendingUpdate(Context context, MasterSecret masterSecret, boolean signal, int reminderCount) {
+      this.context       = context;
+      this.masterSecret  = masterSecret;
+      this.signal        = signal;
+      this.reminderCount = reminderCount;
+    }
+
+    public void merge(MasterSecret masterSecret, boolean signal, int reminderCount) {
+      this.masterSecret  = masterSecret;
+      this.signal        = this.signal || signal;
+      this.reminderCount = reminderCount;
+    }
+  }
 }
@@ -0,0 +1,193 @@
+package org.SecuredText.SecuredText.notifications;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.text.TextUtils;
+
+import org.SecuredText.SecuredText.R;
+import org.SecuredText.SecuredText.crypto.MasterSecret;
+import org.SecuredText.SecuredText.database.DatabaseFactory;
+import org.SecuredText.SecuredText.database.MmsDatabase;
+import org.SecuredText.SecuredText.database.MmsSmsColumns;
+import org.SecuredText.SecuredText.database.MmsSmsDatabase;
+import org.SecuredText.SecuredText.database.SmsDatabase;
+import org.SecuredText.SecuredText.database.model.MessageRecord;
+import org.SecuredText.SecuredText.recipients.Recipient;
+import org.SecuredText.SecuredText.recipients.Recipients;
+import org.SecuredText.SecuredText.util.SpanUtil;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Holds the notification items built for unread messages between notification updates.
+ * An update reads only the keys of unread messages, then loads and decrypts just the
+ * messages it hasn't seen (or whose type changed, such as after a decrypt finishes).
+ * Messages that were read are dropped, along with the cached recipients of threads
+ * that no longer have anything unread.
+ *
+ * Not thread safe; MessageNotifier only uses it from its update thread.
+ */
+class UnreadNotificationCache {
+
+  private final Map<String, CachedItem> items            = new HashMap<>();
+  private final Map<Long, Recipients>   threadRecipients = new HashMap<>();
+
+  private MasterSecret masterSecret;
+  private int          queryCount;
+
+  public NotificationState buildNotificationState(Context context, MasterSecret masterSecret, Cursor keys) {
+    if (!isSameSecret(masterSecret, this.masterSecret)) {
+      items.clear();
+    }
+
+    this.masterSecret = masterSecret;
+
+    Map<String, Long> unread     = new LinkedHashMap<>();
+    List<Long>        missingSms = new LinkedList<>();
+    List<Long>        missingMms = new LinkedList<>();
+
+    while (keys.moveToNext()) {
+      long    id    = keys.getLong(keys.getColumnIndexOrThrow(MmsSmsColumns.ID));
+      boolean isMms = MmsSmsDatabase.MMS_TRANSPORT.equals(keys.getString(keys.getColumnIndexOrThrow(MmsSmsDatabase.TRANSPORT)));
+      long    type  = keys.getLong(keys.getColumnIndexOrThrow(isMms ? MmsDatabase.MESSAGE_BOX : SmsDatabase.TYPE));
+      String  key   = getKey(isMms, id);
+
+      CachedItem cached = items.get(key);
+
+      if (cached == null || cached.type != type) {
+        if (isMms) missingMms.add(id);
+        else       missingSms.add(id);
+      }
+
+      unread.put(key, type);
+    }
+
+    items.keySet().retainAll(unread.keySet());
+
+    if (!missingSms.isEmpty() || !missingMms.isEmpty()) {
+      loadItems(context, missingSms, missingMms, unread);
+    }
+
+    Set<Long>         threads           = new HashSet<>();
+    NotificationState notificationState = new NotificationState();
+
+    for (String key : unread.keySet()) {
+      CachedItem cached = items.get(key);
+
+      if (cached != null) {
+        notificationState.addNotification(cached.item);
+        threads.add(cached.item.getThreadId());
+      }
+    }
+
+    threadRecipients.keySet().retainAll(threads);
+
+    return notificationState;
+  }
+
+  public void clear() {
+    items.clear();
+    threadRecipients.clear();
+  }
+
+  public int getQueryCount() {
+    return queryCount;
+  }
+
+  private void loadItems(Context context, List<Long> smsIds, List<Long> mmsIds, Map<String, Long> unread) {
+    MmsSmsDatabase        database = DatabaseFactory.getMmsSmsDatabase(context);
+    Cursor                cursor   = database.getUnread(smsIds, mmsIds);
+    MmsSmsDatabase.Reader reader;
+    MessageRecord         record;
+
+    queryCount++;
+
+    if (masterSecret == null) reader = database.readerFor(cursor);
+    else                      reader = database.readerFor(cursor, masterSecret);
+
+    try {
+      while ((record = reader.getNext()) != null) {
+        String key  = getKey(record.isMms(), record.getId());
+        Long   type = unread.get(key);
+
+        if (type != null) {
+          items.put(key, new CachedItem(type, createItem(context, record)));
+        }
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  private NotificationItem createItem(Context context, MessageRecord record) {
+    Recipient    recipient        = record.getIndividualRecipient();
+    Recipients   recipients       = record.getRecipients();
+    long         threadId         = record.getThreadId();
+    CharSequence body             = record.getDisplayBody();
+    Uri          image            = null;
+    Recipients   threadRecipients = null;
+
+    if (threadId != -1) {
+      threadRecipients = getThreadRecipients(context, threadId);
+    }
+
+    if (SmsDatabase.Types.isDecryptInProgressType(record.getType()) || !record.getBody().isPlaintext()) {
+      body = SpanUtil.italic(context.getString(R.string.MessageNotifier_encrypted_message));
+    } else if (record.isMms() && TextUtils.isEmpty(body)) {
+      body = SpanUtil.italic(context.getString(R.string.MessageNotifier_media_message));
+    } else if (record.isMms()) {
+      String message      = context.getString(R.string.MessageNotifier_media_message_with_text, body);
+      int    italicLength = message.length() - body.length();
+      body = SpanUtil.italic(message, italicLength);
+    }
+
+    return new NotificationItem(recipient, recipients, threadRecipients, threadId, body, image);
+  }
+
+  private Recipients getThreadRecipients(Context context, long threadId) {
+    Recipients recipients = threadRecipients.get(threadId);
+
+    if (recipients == null) {
+      recipients = DatabaseFactory.getThreadDatabase(context).getRecipientsForThreadId(threadId);
+      queryCount++;
+
+      if (recipients != null) {
+        threadRecipients.put(threadId, recipients);
+      }
+    }
+
+    return recipients;
+  }
+
+  /**
+   * Compares by key rather than identity, since the secret is re-parcelled between
+   * components and an equal secret must not throw away the decrypted items.
+   */
+  private static boolean isSameSecret(MasterSecret a, MasterSecret b) {
+    if (a == null || b == null) return a == b;
+
+    return a.getEncryptionKey().equals(b.getEncryptionKey()) &&
+           a.getMacKey().equals(b.getMacKey());
+  }
+
+  private static String getKey(boolean isMms, long id) {
+    return (isMms ? MmsSmsDatabase.MMS_TRANSPORT : MmsSmsDatabase.SMS_TRANSPORT) + ":" + id;
+  }
+
+  private static class CachedItem {
+    private final long             type;
+    private final NotificationItem item;
+
+    public CachedItem(long type, NotificationItem item) {
+      this.type = type;
+      this.item = item;
+    }
+  }
+}
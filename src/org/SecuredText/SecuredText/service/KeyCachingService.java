@@ -40,6 +40,9 @@ import org.SecuredText.SecuredText.RoutingActivity;
 import org.SecuredText.SecuredText.crypto.InvalidPassphraseException;
 import org.SecuredText.SecuredText.crypto.MasterSecret;
 import org.SecuredText.SecuredText.crypto.MasterSecretUtil;
+import org.SecuredText.SecuredText.crypto.storage.SecuredTextSessionStore;
+import org.SecuredText.SecuredText.database.PlaintextCache;
+import org.SecuredText.SecuredText.jobs.persistence.EncryptingJobSerializer;
 import org.SecuredText.SecuredText.notifications.MessageNotifier;
 import org.SecuredText.SecuredText.util.DynamicLanguage;
 import org.SecuredText.SecuredText.util.ParcelUtil;
@@ -187,6 +190,9 @@ public class KeyCachingService extends Service {
 
   private void handleClearKey() {
     this.masterSecret = null;
+    PlaintextCache.getInstance().clear();
+    SecuredTextSessionStore.reset();
+    EncryptingJobSerializer.clearCachedCipher();
     stopForeground(true);
 
     Intent intent = new Intent(CLEAR_KEY_EVENT);
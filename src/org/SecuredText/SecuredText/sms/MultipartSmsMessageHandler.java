@@ -16,44 +16,46 @@
  */
 package org.SecuredText.SecuredText.sms;
 
+import android.content.Context;
 import android.util.Log;
 
+import org.SecuredText.SecuredText.database.MultipartSmsDatabase;
 import org.SecuredText.SecuredText.util.Base64;
+import org.SecuredText.SecuredText.util.VisibleForTesting;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
 
 public class MultipartSmsMessageHandler {
 
   private static final String TAG = MultipartSmsMessageHandler.class.getSimpleName();
 
-  private final HashMap<String, MultipartSmsTransportMessageFragments> partialMessages = new HashMap<>();
+  private final MultipartSmsDatabase partialMessages;
+
+  public MultipartSmsMessageHandler(Context context) {
+    this(MultipartSmsDatabase.getInstance(context));
+  }
+
+  @VisibleForTesting
+  public MultipartSmsMessageHandler(MultipartSmsDatabase partialMessages) {
+    this.partialMessages = partialMessages;
+  }
 
   private IncomingTextMessage processMultipartMessage(MultipartSmsTransportMessage message) {
     Log.w(TAG, "Processing multipart message...");
     Log.w(TAG, "Multipart Count: " + message.getMultipartCount());
     Log.w(TAG, "Multipart ID: " + message.getIdentifier());
     Log.w(TAG, "Multipart Key: " + message.getKey());
-    MultipartSmsTransportMessageFragments container = partialMessages.get(message.getKey());
 
-    Log.w(TAG, "Found multipart container: " + container);
+    byte[][] fragments = partialMessages.addFragment(message.getKey(), message.getMultipartIndex(),
+                                                     message.getMultipartCount(), message.getStrippedMessage());
 
-    if (container == null || container.getSize() != message.getMultipartCount() || container.isExpired()) {
-      Log.w(TAG, "Constructing new container...");
-      container = new MultipartSmsTransportMessageFragments(message.getMultipartCount());
-      partialMessages.put(message.getKey(), container);
-    }
-
-    container.add(message);
+    Log.w(TAG, "Stored fragment at index: " + message.getMultipartIndex());
 
-    Log.w(TAG, "Filled buffer at index: " + message.getMultipartIndex());
-
-    if (!container.isComplete())
+    if (fragments == null)
       return null;
 
-    partialMessages.remove(message.getKey());
-    String strippedMessage = Base64.encodeBytesWithoutPadding(container.getJoined());
+    String strippedMessage = Base64.encodeBytesWithoutPadding(join(fragments));
 
     if (message.getWireType() == MultipartSmsTransportMessage.WIRETYPE_KEY) {
       return new IncomingKeyExchangeMessage(message.getBaseMessage(), strippedMessage);
@@ -64,6 +66,24 @@ public class MultipartSmsMessageHandler {
     }
   }
 
+  private byte[] join(byte[][] fragments) {
+    int totalMessageLength = 0;
+
+    for (byte[] fragment : fragments) {
+      totalMessageLength += fragment.length;
+    }
+
+    byte[] totalMessage       = new byte[totalMessageLength];
+    int    totalMessageOffset = 0;
+
+    for (byte[] fragment : fragments) {
+      System.arraycopy(fragment, 0, totalMessage, totalMessageOffset, fragment.length);
+      totalMessageOffset += fragment.length;
+    }
+
+    return totalMessage;
+  }
+
   private IncomingTextMessage processSinglePartMessage(MultipartSmsTransportMessage message) {
     Log.w(TAG, "Processing single part message...");
     String strippedMessage = Base64.encodeBytesWithoutPadding(message.getStrippedMessage());
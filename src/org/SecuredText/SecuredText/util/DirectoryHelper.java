@@ -14,8 +14,8 @@ import org.whispersystems.textsecure.api.push.ContactTokenDetails;
 import org.whispersystems.textsecure.api.util.InvalidNumberException;
 
 import java.io.IOException;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.Set;
 
 public class DirectoryHelper {
   private static final String TAG = DirectoryHelper.class.getSimpleName();
@@ -58,24 +58,27 @@ public class DirectoryHelper {
   public static void refreshDirectory(final Context context, final TextSecureAccountManager accountManager)
       throws IOException
   {
-    refreshDirectory(context, accountManager, SecuredTextPreferences.getLocalNumber(context));
+    refreshDirectory(SecuredTextDirectory.getInstance(context), accountManager,
+                     SecuredTextPreferences.getLocalNumber(context));
   }
 
-  public static void refreshDirectory(final Context context, final TextSecureAccountManager accountManager, final String localNumber)
+  @VisibleForTesting
+  static void refreshDirectory(final SecuredTextDirectory directory, final TextSecureAccountManager accountManager,
+                               final String localNumber)
       throws IOException
   {
-    SecuredTextDirectory       directory              = SecuredTextDirectory.getInstance(context);
-    Set<String>               eligibleContactNumbers = directory.getPushEligibleContactNumbers(localNumber);
-    List<ContactTokenDetails> activeTokens           = accountManager.getContacts(eligibleContactNumbers);
+    SecuredTextDirectory.RefreshBatch batch        = directory.getRefreshBatch(localNumber);
+    List<ContactTokenDetails>         activeTokens;
 
-    if (activeTokens != null) {
-      for (ContactTokenDetails activeToken : activeTokens) {
-        eligibleContactNumbers.remove(activeToken.getNumber());
-        activeToken.setNumber(activeToken.getNumber());
-      }
+    if (batch.getNumbers().isEmpty()) activeTokens = new LinkedList<>();
+    else                              activeTokens = accountManager.getContacts(batch.getNumbers());
 
-      directory.setNumbers(activeTokens, eligibleContactNumbers);
+    if (activeTokens != null) {
+      directory.setNumbers(batch, activeTokens);
     }
+
+    Log.w(TAG, "Directory index holds " + directory.getIndexSize() + " numbers, serving " +
+               directory.getLookupRate() + " lookups/minute");
   }
 
   public static boolean isPushDestination(Context context, Recipients recipients) {
@@ -0,0 +1,164 @@
+package org.SecuredText.SecuredText.util;
+
+import java.util.Arrays;
+
+/**
+ * A map from primitive longs to objects, using open addressing with linear probing so that
+ * entries don't box their keys or allocate a node each.  Null values aren't supported, and
+ * the map isn't thread safe.
+ */
+public class LongObjectMap<V> {
+
+  private static final int   MINIMUM_CAPACITY = 16;
+  private static final float LOAD_FACTOR      = 0.75f;
+
+  private long[]   keys;
+  private Object[] values;
+  private int      size;
+
+  public LongObjectMap() {
+    this(MINIMUM_CAPACITY);
+  }
+
+  public LongObjectMap(int expectedSize) {
+    allocate(getCapacity(expectedSize));
+  }
+
+  @SuppressWarnings("unchecked")
+  public V get(long key) {
+    int index = find(key);
+    return index == -1 ? null : (V)values[index];
+  }
+
+  public boolean containsKey(long key) {
+    return find(key) != -1;
+  }
+
+  @SuppressWarnings("unchecked")
+  public V put(long key, V value) {
+    if (value == null) throw new IllegalArgumentException("Null values aren't supported");
+
+    int index = getSlot(key, keys.length);
+
+    while (values[index] != null) {
+      if (keys[index] == key) {
+        V previous    = (V)values[index];
+        values[index] = value;
+        return previous;
+      }
+
+      index = (index + 1) & (keys.length - 1);
+    }
+
+    keys[index]   = key;
+    values[index] = value;
+
+    if (++size > keys.length * LOAD_FACTOR) {
+      resize(keys.length * 2);
+    }
+
+    return null;
+  }
+
+  @SuppressWarnings("unchecked")
+  public V remove(long key) {
+    int index = find(key);
+
+    if (index == -1) return null;
+
+    V removed = (V)values[index];
+    values[index] = null;
+    size--;
+
+    shiftBack(index);
+    return removed;
+  }
+
+  public void clear() {
+    Arrays.fill(values, null);
+    size = 0;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  private int find(long key) {
+    int index = getSlot(key, keys.length);
+
+    while (values[index] != null) {
+      if (keys[index] == key) return index;
+      index = (index + 1) & (keys.length - 1);
+    }
+
+    return -1;
+  }
+
+  /**
+   * Moves later entries of the probe sequence into the emptied slot, so lookups never need
+   * tombstones to step over removed entries.
+   */
+  private void shiftBack(int empty) {
+    int mask  = keys.length - 1;
+    int index = (empty + 1) & mask;
+
+    while (values[index] != null) {
+      int slot = getSlot(keys[index], keys.length);
+
+      if ((index > empty && (slot <= empty || slot > index)) ||
+          (index < empty && (slot <= empty && slot > index)))
+      {
+        keys[empty]   = keys[index];
+        values[empty] = values[index];
+        values[index] = null;
+        empty         = index;
+      }
+
+      index = (index + 1) & mask;
+    }
+  }
+
+  private void resize(int capacity) {
+    long[]   oldKeys   = keys;
+    Object[] oldValues = values;
+
+    allocate(capacity);
+
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldValues[i] != null) {
+        int index = getSlot(oldKeys[i], capacity);
+
+        while (values[index] != null) {
+          index = (index + 1) & (capacity - 1);
+        }
+
+        keys[index]   = oldKeys[i];
+        values[index] = oldValues[i];
+      }
+    }
+  }
+
+  private void allocate(int capacity) {
+    keys   = new long[capacity];
+    values = new Object[capacity];
+  }
+
+  private static int getCapacity(int expectedSize) {
+    int capacity = MINIMUM_CAPACITY;
+
+    while (capacity * LOAD_FACTOR < expectedSize) {
+      capacity <<= 1;
+    }
+
+    return capacity;
+  }
+
+  private static int getSlot(long key, int capacity) {
+    long hash = key * 0x9E3779B97F4A7C15L;
+    return (int)(hash ^ (hash >>> 32)) & (capacity - 1);
+  }
+}
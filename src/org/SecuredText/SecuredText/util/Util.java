@@ -48,6 +48,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -57,6 +58,8 @@ import ws.com.google.android.mms.pdu.EncodedStringValue;
 
 public class Util {
 
+  private static final Map<String, String> canonicalNumbers = Collections.synchronizedMap(new LRUCache<String, String>(512));
+
   public static String join(Collection<String> list, String delimiter) {
     StringBuilder result = new StringBuilder();
     int i=0;
@@ -134,11 +137,23 @@ public class Util {
     }
   }
 
+  /**
+   * Formatting depends only on the number and the local number, so results are cached
+   * for the numbers that sends and directory lookups resolve over and over.
+   */
   public static String canonicalizeNumber(Context context, String number)
       throws InvalidNumberException
   {
     String localNumber = SecuredTextPreferences.getLocalNumber(context);
-    return PhoneNumberFormatter.formatNumber(number, localNumber);
+    String key         = localNumber + ":" + number;
+    String canonical   = canonicalNumbers.get(key);
+
+    if (canonical == null) {
+      canonical = PhoneNumberFormatter.formatNumber(number, localNumber);
+      canonicalNumbers.put(key, canonical);
+    }
+
+    return canonical;
   }
 
   public static String canonicalizeNumberOrGroup(Context context, String number)
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2015 Open Whisper Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.com.google.android.mms.pdu;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Lets PduParser read a PDU from a stream instead of a byte array.
+ *
+ * The parser is written against ByteArrayInputStream: it measures consumed bytes with
+ * available() and backtracks with mark()/reset().  This adapter keeps those semantics
+ * while only buffering what a single mark needs.  Since ByteArrayInputStream's methods
+ * can't throw, the first IOException is recorded, reads report end of stream, and the
+ * caller checks getException() once parsing is done.
+ */
+class PduInputStream extends ByteArrayInputStream {
+
+    private static final int MAX_MARK = 64 * 1024;
+
+    private final BufferedInputStream in;
+    private final long length;
+
+    private long position;
+    private long markPosition;
+    private IOException exception;
+
+    /**
+     * @param length the length of the pdu, or -1 if unknown.  An unknown length is
+     *        fine for pdus that are parsed to their end, since the parser then
+     *        only reads as much as the pdu says it contains.
+     */
+    public PduInputStream(InputStream in, long length) {
+        super(new byte[0]);
+        this.in = new BufferedInputStream(in);
+        this.length = length < 0 ? Integer.MAX_VALUE : length;
+    }
+
+    @Override
+    public synchronized int read() {
+        if (position >= length) {
+            return -1;
+        }
+
+        try {
+            int value = in.read();
+
+            if (value == -1) {
+                setException(new IOException("PDU truncated at " + position + " of " + length));
+            } else {
+                position++;
+            }
+
+            return value;
+        } catch (IOException e) {
+            setException(e);
+            return -1;
+        }
+    }
+
+    @Override
+    public synchronized int read(byte[] buffer, int offset, int count) {
+        if (position >= length) {
+            return -1;
+        }
+
+        try {
+            int read = in.read(buffer, offset, (int) Math.min(count, length - position));
+
+            if (read == -1) {
+                setException(new IOException("PDU truncated at " + position + " of " + length));
+            } else {
+                position += read;
+            }
+
+            return read;
+        } catch (IOException e) {
+            setException(e);
+            return -1;
+        }
+    }
+
+    @Override
+    public synchronized long skip(long count) {
+        long skipped = 0;
+        byte[] buffer = new byte[4096];
+
+        while (skipped < count) {
+            int read = read(buffer, 0, (int) Math.min(buffer.length, count - skipped));
+
+            if (read == -1) {
+                break;
+            }
+
+            skipped += read;
+        }
+
+        return skipped;
+    }
+
+    @Override
+    public synchronized int available() {
+        return (int) (length - position);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+        in.mark(MAX_MARK);
+        markPosition = position;
+    }
+
+    @Override
+    public synchronized void reset() {
+        try {
+            in.reset();
+            position = markPosition;
+        } catch (IOException e) {
+            setException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    public IOException getException() {
+        return exception;
+    }
+
+    void setException(IOException exception) {
+        if (this.exception == null) {
+            this.exception = exception;
+        }
+    }
+}
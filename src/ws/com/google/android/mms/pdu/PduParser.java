@@ -25,6 +25,8 @@ import ws.com.google.android.mms.InvalidHeaderValueException;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -69,6 +71,11 @@ public class PduParser {
      */
     private PduBody mBody = null;
 
+    /**
+     * Receives part data as it is parsed, when parsing from a stream.
+     */
+    private PartDataHandler mPartDataHandler = null;
+
     /**
      * Store the "type" parameter in "Content-Type" header field.
      */
@@ -94,6 +101,44 @@ public class PduParser {
         mPduDataStream = new ByteArrayInputStream(pduDataStream);
     }
 
+    /**
+     * Constructor for parsing a pdu as it is read, without buffering it.
+     *
+     * @param pduDataStream pdu data to be parsed
+     * @param length the length of the pdu, or -1 if unknown
+     * @param partDataHandler offered each part's data as it is reached, may be null
+     */
+    public PduParser(InputStream pduDataStream, long length, PartDataHandler partDataHandler) {
+        mPduDataStream = new PduInputStream(pduDataStream, length);
+        mPartDataHandler = partDataHandler;
+    }
+
+    /**
+     * Consumes part data straight from the pdu stream, so that large parts
+     * never have to be held in memory.
+     */
+    public interface PartDataHandler {
+        /**
+         * Called once the part's headers are parsed.  The handler either reads
+         * the part's data from the stream, which ends with the part, and returns
+         * true, or returns false without reading to have the data buffered into
+         * the part as usual.
+         */
+        boolean onPartData(PduPart part, InputStream data) throws IOException;
+    }
+
+    /**
+     * @return the first error reading the pdu stream or handling its part data,
+     *         null if there was none or the pdu was parsed from a byte array.
+     */
+    public IOException getStreamException() {
+        if (mPduDataStream instanceof PduInputStream) {
+            return ((PduInputStream) mPduDataStream).getException();
+        }
+
+        return null;
+    }
+
     /**
      * Parse the pdu.
      *
@@ -127,7 +172,7 @@ public class PduParser {
                 (PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF == messageType)) {
             /* need to parse the parts */
             Log.w("PduParser", "Parsing parts...");
-            mBody = parseParts(mPduDataStream);
+            mBody = parseParts(mPduDataStream, mPartDataHandler);
             if (null == mBody) {
                 // Parse parts failed.
                 return null;
@@ -735,6 +780,18 @@ public class PduParser {
      * @return parts in PduBody structure
      */
     protected static PduBody parseParts(ByteArrayInputStream pduDataStream) {
+        return parseParts(pduDataStream, null);
+    }
+
+    /**
+     * Parse pdu parts, offering each part's data to a handler before buffering it.
+     *
+     * @param pduDataStream pdu data input stream
+     * @param partDataHandler the handler, may be null
+     * @return parts in PduBody structure
+     */
+    protected static PduBody parseParts(ByteArrayInputStream pduDataStream,
+            PartDataHandler partDataHandler) {
         if (pduDataStream == null) {
             return null;
         }
@@ -797,11 +854,38 @@ public class PduParser {
                         System.currentTimeMillis()).getBytes());
             }
 
+            /* hand part's data to the handler, if it takes it */
+            if (dataLength > 0 && partDataHandler != null
+                    && null == part.getContentTransferEncoding()
+                    && !new String(part.getContentType()).equalsIgnoreCase(ContentType.MULTIPART_ALTERNATIVE)) {
+                LimitedInputStream partStream = new LimitedInputStream(pduDataStream, dataLength);
+
+                try {
+                    if (partDataHandler.onPartData(part, partStream)) {
+                        partStream.skipRemaining();
+                        dataLength = 0;
+                    }
+                } catch (IOException e) {
+                    if (pduDataStream instanceof PduInputStream) {
+                        ((PduInputStream) pduDataStream).setException(e);
+                    }
+                    log("Part data handler failed!");
+                    return null;
+                }
+            }
+
             /* get part's data */
             if (dataLength > 0) {
                 byte[] partData = new byte[dataLength];
                 String partContentType = new String(part.getContentType());
-                pduDataStream.read(partData, 0, dataLength);
+                int partOffset = 0;
+                while (partOffset < dataLength) {
+                    int read = pduDataStream.read(partData, partOffset, dataLength - partOffset);
+                    if (read == -1) {
+                        break;
+                    }
+                    partOffset += read;
+                }
                 if (partContentType.equalsIgnoreCase(ContentType.MULTIPART_ALTERNATIVE)) {
                     // parse "multipart/vnd.wap.multipart.alternative".
                     PduBody childBody = parseParts(new ByteArrayInputStream(partData));
@@ -1916,4 +2000,54 @@ public class PduParser {
 
         return true;
     }
+
+    /**
+     * Exposes exactly one part's data from the pdu stream to a PartDataHandler.
+     */
+    private static class LimitedInputStream extends InputStream {
+        private final ByteArrayInputStream mStream;
+        private int mRemaining;
+
+        public LimitedInputStream(ByteArrayInputStream stream, int length) {
+            mStream = stream;
+            mRemaining = length;
+        }
+
+        @Override
+        public int read() {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+
+            int value = mStream.read();
+            if (value != -1) {
+                mRemaining--;
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+
+            int read = mStream.read(buffer, offset, Math.min(count, mRemaining));
+            if (read > 0) {
+                mRemaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public int available() {
+            return Math.min(mStream.available(), mRemaining);
+        }
+
+        public void skipRemaining() {
+            if (mRemaining > 0) {
+                mRemaining -= mStream.skip(mRemaining);
+            }
+        }
+    }
 }